@@ -0,0 +1,39 @@
+package com.pap.calculate.anysoft.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 性能测试的入口
+ *
+ * <br>
+ * 参数与JMH的命令行相同，例如:<br>
+ * - java -jar target/benchmarks.jar 运行全部测试<br>
+ * - java -jar target/benchmarks.jar Function -p name=PMT,RATE 只测试部分函数<br>
+ * - java -jar target/benchmarks.jar Evaluator -t 4 以4个线程同时计算<br>
+ *
+ * <p>没有指定-prof时缺省使用gc profiler，输出每次调用分配的字节数(gc.alloc.rate.norm)。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+				|| options.shouldListProfilers() || options.shouldListResultFormats()) {
+			Main.main(args);
+			return;
+		}
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(options);
+		if (options.getProfilers().isEmpty()) {
+			builder.addProfiler(GCProfiler.class);
+		}
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,72 @@
+package com.pap.calculate.anysoft.benchmark;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pap.calculate.anysoft.formula.DatePattern;
+import com.pap.calculate.anysoft.formula.DateUtil;
+
+/**
+ * {@link DateUtil}的性能测试
+ *
+ * <br>
+ * 以几种常用模板解析和格式化同一个时间，transform为解析后再以另一个模板格式化。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateUtilBenchmark {
+
+	protected static final long TIME = 1539826205000L;
+
+	@Param({ "yyyyMMddHHmmss", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd", "yyMMdd HHmm" })
+	public String pattern;
+
+	protected String text;
+
+	@Setup
+	public void setup() {
+		text = DateUtil.formatTime(TIME, pattern);
+		if (DateUtil.parseTime(text, pattern) == DatePattern.NONE) {
+			throw new IllegalStateException("Can not parse " + text + " with " + pattern);
+		}
+	}
+
+	@Benchmark
+	public long parseTime() {
+		return DateUtil.parseTime(text, pattern);
+	}
+
+	@Benchmark
+	public Date parseDate() {
+		return DateUtil.parseDate(text, pattern);
+	}
+
+	@Benchmark
+	public String formatTime() {
+		return DateUtil.formatTime(TIME, pattern);
+	}
+
+	@Benchmark
+	public String transform() {
+		return DateUtil.transform(text, pattern, "yyyyMMdd");
+	}
+}
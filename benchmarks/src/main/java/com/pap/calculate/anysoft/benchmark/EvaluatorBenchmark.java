@@ -0,0 +1,170 @@
+package com.pap.calculate.anysoft.benchmark;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pap.calculate.anysoft.formula.DataProvider;
+import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
+import com.pap.calculate.anysoft.formula.ExprValue;
+import com.pap.calculate.anysoft.formula.Expression;
+import com.pap.calculate.anysoft.formula.Parser;
+import com.pap.calculate.anysoft.formula.Row;
+import com.pap.calculate.anysoft.formula.Schema;
+import com.pap.calculate.anysoft.formula.TypedDataProvider;
+
+/**
+ * {@link Expression#getValue(DataProvider)}的性能测试
+ *
+ * <br>
+ * 同一个公式分别以三种方式计算:<br>
+ * - noProvider:变量替换为常量的公式，不使用DataProvider<br>
+ * - namedProvider:变量由按名称查找的{@link TypedDataProvider}获取<br>
+ * - typedRow:公式绑定到{@link Schema}，变量从{@link Row}按位置获取<br>
+ *
+ * <p>Expression树和数据都是只读的，由所有线程共享，以-t指定线程数即可测试并发计算。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+	/**
+	 * 公式名,使用变量的公式,变量替换为常量的公式
+	 */
+	protected static final String[][] FORMULAS = {
+		{ "arithmetic", "a*b+c-d*2", "123456*789+1000-42*2" },
+		{ "finance", "PMT(rate/12,n,0-pv,0,false)+choice(pv>50000,pv*0.01,pv/3)",
+				"PMT(0.05/12,360,0-200000,0,false)+choice(200000>50000,200000*0.01,200000/3)" },
+		{ "string", "substr(s,2,5)+strlen(s)+instr(s,'world')",
+				"substr('hello world formula',2,5)+strlen('hello world formula')+instr('hello world formula','world')" }
+	};
+
+	protected static final String[] NAMES = { "a", "b", "c", "d", "rate", "n", "pv", "s" };
+
+	protected static final ExprValue.DataType[] TYPES = { ExprValue.DataType.Long, ExprValue.DataType.Long,
+			ExprValue.DataType.Long, ExprValue.DataType.Long, ExprValue.DataType.Double, ExprValue.DataType.Long,
+			ExprValue.DataType.Double, ExprValue.DataType.String };
+
+	protected static final Object[] VALUES = { 123456L, 789L, 1000L, 42L, 0.05, 360L, 200000.0, "hello world formula" };
+
+	@Param({ "arithmetic", "finance", "string" })
+	public String formula;
+
+	protected Expression constant;
+
+	protected Expression variable;
+
+	protected Expression bound;
+
+	protected TypedDataProvider provider;
+
+	protected Row row;
+
+	@Setup
+	public void setup() {
+		String[] found = null;
+		for (String[] item : FORMULAS) {
+			if (item[0].equals(formula)) {
+				found = item;
+			}
+		}
+		if (found == null) {
+			throw new IllegalArgumentException("Unknown formula:" + formula);
+		}
+		Parser parser = new Parser(new DefaultFunctionHelper(null));
+		constant = parser.parse(found[2]);
+		variable = parser.parse(found[1]);
+
+		final Map<String, Integer> slots = new HashMap<String, Integer>();
+		for (int i = 0; i < NAMES.length; i++) {
+			slots.put(NAMES[i], Integer.valueOf(i));
+		}
+		provider = new TypedDataProvider() {
+			@Override
+			public Object getContext(String varName) {
+				return slots.get(varName);
+			}
+
+			@Override
+			public ExprValue.DataType getDataType(String varName, Object context) {
+				return context == null ? null : TYPES[(Integer) context];
+			}
+
+			@Override
+			public boolean isNull(String varName, Object context) {
+				return context == null || VALUES[(Integer) context] == null;
+			}
+
+			@Override
+			public String getValue(String varName, Object context, String defaultValue) {
+				return context == null ? defaultValue : VALUES[(Integer) context].toString();
+			}
+
+			@Override
+			public double getDouble(String varName, Object context) {
+				return ((Number) VALUES[(Integer) context]).doubleValue();
+			}
+
+			@Override
+			public long getLong(String varName, Object context) {
+				return ((Number) VALUES[(Integer) context]).longValue();
+			}
+
+			@Override
+			public boolean getBoolean(String varName, Object context) {
+				return ((Boolean) VALUES[(Integer) context]).booleanValue();
+			}
+
+			@Override
+			public Date getDate(String varName, Object context) {
+				return (Date) VALUES[(Integer) context];
+			}
+		};
+
+		Schema schema = new Schema(NAMES, TYPES);
+		bound = schema.bind(variable);
+		row = schema.row(VALUES);
+
+		// the three ways must agree,otherwise the numbers are meaningless
+		String expected = constant.getValue(null).toString();
+		if (!expected.equals(variable.getValue(provider).toString())
+				|| !expected.equals(bound.getValue(row).toString())) {
+			throw new IllegalStateException("The results of " + formula + " are different.");
+		}
+	}
+
+	@Benchmark
+	public ExprValue noProvider() {
+		return constant.getValue(null);
+	}
+
+	@Benchmark
+	public ExprValue namedProvider() {
+		return variable.getValue(provider);
+	}
+
+	@Benchmark
+	public ExprValue typedRow() {
+		return bound.getValue(row);
+	}
+}
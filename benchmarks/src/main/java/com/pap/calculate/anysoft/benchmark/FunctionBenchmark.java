@@ -0,0 +1,124 @@
+package com.pap.calculate.anysoft.benchmark;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
+import com.pap.calculate.anysoft.formula.ExprValue;
+import com.pap.calculate.anysoft.formula.Expression;
+import com.pap.calculate.anysoft.formula.Function;
+import com.pap.calculate.anysoft.formula.FunctionRegistry;
+import com.pap.calculate.anysoft.formula.Parser;
+import com.pap.calculate.anysoft.formula.Row;
+import com.pap.calculate.anysoft.formula.Schema;
+
+/**
+ * 内置函数的性能测试
+ *
+ * <br>
+ * 每个内置函数({@link FunctionRegistry})以一个典型调用计算，参数来自{@link Row}中的变量，避免被当作常量计算。<br>
+ * 新增内置函数时需同时在{@link #SAMPLES}和name参数中增加，缺少的函数在setup时输出到标准错误。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FunctionBenchmark {
+
+	protected static final String[] NAMES = { "x", "y", "n", "rate", "pv", "s", "text", "num", "day", "missing" };
+
+	protected static final ExprValue.DataType[] TYPES = { ExprValue.DataType.Double, ExprValue.DataType.Double,
+			ExprValue.DataType.Long, ExprValue.DataType.Double, ExprValue.DataType.Double, ExprValue.DataType.String,
+			ExprValue.DataType.String, ExprValue.DataType.String, ExprValue.DataType.Date, ExprValue.DataType.String };
+
+	/**
+	 * 函数名与测试用的公式
+	 */
+	protected static final Map<String, String> SAMPLES = new HashMap<String, String>();
+
+	static {
+		SAMPLES.put("choice", "choice(x>1000,x*2,x/2)");
+		SAMPLES.put("nvl", "nvl(missing,s)");
+		SAMPLES.put("to_date", "to_date(text,'yyyyMMddHHmmss')");
+		SAMPLES.put("to_char", "to_char(day,'yyyy-MM-dd HH:mm:ss')");
+		SAMPLES.put("to_string", "to_string(x)");
+		SAMPLES.put("to_long", "to_long(num)");
+		SAMPLES.put("to_double", "to_double(num)");
+		SAMPLES.put("substr", "substr(s,2,5)");
+		SAMPLES.put("instr", "instr(s,'world')");
+		SAMPLES.put("strlen", "strlen(s)");
+		SAMPLES.put("match", "match(s,'.*world.*')");
+		SAMPLES.put("PMT", "PMT(rate/12,n,0-pv,0,false)");
+		SAMPLES.put("FV", "FV(rate/12,n,0-1000,0-pv,false)");
+		SAMPLES.put("NPER", "NPER(rate/12,0-1500,pv,0,false)");
+		SAMPLES.put("PV", "PV(rate/12,n,0-1000,0,false)");
+		SAMPLES.put("DB", "DB(pv,1000,10,2,12)");
+		SAMPLES.put("DDB", "DDB(pv,1000,10,2,2)");
+		SAMPLES.put("RATE", "RATE(n,0-1200,pv,0,0,0.1)");
+		SAMPLES.put("EFFECT", "EFFECT(rate,12)");
+		SAMPLES.put("IF", "IF(x>1000,x,y)");
+		SAMPLES.put("DEVIDE", "DEVIDE(x,y)");
+		SAMPLES.put("ROUND", "ROUND(x,2)");
+		SAMPLES.put("ROUNDUP", "ROUNDUP(x,2)");
+		SAMPLES.put("TOINT", "TOINT(x)");
+		SAMPLES.put("E_NUMBER", "E_NUMBER(x)");
+		SAMPLES.put("NUM_DIGIT", "NUM_DIGIT(x)");
+		SAMPLES.put("E_YUSHU", "E_YUSHU(x,y)");
+	}
+
+	@Param({ "choice", "nvl", "to_date", "to_char", "to_string", "to_long", "to_double", "substr", "instr", "strlen",
+			"match", "PMT", "FV", "NPER", "PV", "DB", "DDB", "RATE", "EFFECT", "IF", "DEVIDE", "ROUND", "ROUNDUP",
+			"TOINT", "E_NUMBER", "NUM_DIGIT", "E_YUSHU" })
+	public String name;
+
+	protected Expression expr;
+
+	protected Row row;
+
+	@Setup
+	public void setup() {
+		for (String registered : FunctionRegistry.getNames()) {
+			if (!SAMPLES.containsKey(registered)) {
+				// plugins found on the classpath are not benchmarked
+				System.err.println("Function " + registered + " has no benchmark sample.");
+			}
+		}
+		String formula = SAMPLES.get(name);
+		if (formula == null) {
+			throw new IllegalArgumentException("Unknown function:" + name);
+		}
+		Schema schema = new Schema(NAMES, TYPES);
+		expr = schema.bind(new Parser(new DefaultFunctionHelper(null)).parse(formula));
+		if (!(expr instanceof Function)) {
+			throw new IllegalStateException(formula + " is not a function call.");
+		}
+		row = schema.row(new Object[] { 1234.5678, 3.0, 360L, 0.05, 200000.0, "hello world formula",
+				"20181018093005", "12345", new Date(1539826205000L), null });
+		// fail fast instead of measuring the cost of an exception
+		expr.getValue(row);
+	}
+
+	@Benchmark
+	public ExprValue evaluate() {
+		return expr.getValue(row);
+	}
+}
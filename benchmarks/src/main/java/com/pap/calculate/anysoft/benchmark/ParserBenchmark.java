@@ -0,0 +1,104 @@
+package com.pap.calculate.anysoft.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
+import com.pap.calculate.anysoft.formula.Expression;
+import com.pap.calculate.anysoft.formula.Parser;
+
+/**
+ * {@link Parser#parse(String)}的性能测试
+ *
+ * <br>
+ * - small:只有算术运算的短公式<br>
+ * - medium:带函数调用和条件的业务公式<br>
+ * - huge:生成的由几千个项组成的公式，检查解析是否随长度线性增长<br>
+ *
+ * <p>Parser保存解析状态，每个线程使用自己的实例。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	public static final String SMALL = "a*b+c-d*2";
+
+	public static final String MEDIUM = "choice(rate>0.05,PMT(rate/12,n,0-pv,0,false),pv/n)"
+			+ "+ROUND(price*1.17,2)-to_long(nvl(discount,'0'))";
+
+	/**
+	 * huge公式的项数
+	 */
+	public static final int HUGE_TERMS = 2000;
+
+	@Param({ "small", "medium", "huge" })
+	public String size;
+
+	protected String formula;
+
+	protected Parser parser;
+
+	@Setup
+	public void setup() {
+		if ("small".equals(size)) {
+			formula = SMALL;
+		} else if ("medium".equals(size)) {
+			formula = MEDIUM;
+		} else {
+			formula = huge(HUGE_TERMS);
+		}
+		parser = new Parser(new DefaultFunctionHelper(null));
+	}
+
+	@Benchmark
+	public Expression parse() {
+		return parser.parse(formula);
+	}
+
+	/**
+	 * 生成由count个项组成的公式，包含变量、常量、括号和函数调用
+	 * @param count 项数
+	 * @return 公式
+	 */
+	public static String huge(int count) {
+		StringBuilder buffer = new StringBuilder(count * 24);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				buffer.append(i % 3 == 0 ? " - " : " + ");
+			}
+			switch (i % 4) {
+			case 0:
+				buffer.append("x").append(i % 10).append("*").append(i);
+				break;
+			case 1:
+				buffer.append("(y").append(i % 10).append("/").append(i).append(".5)");
+				break;
+			case 2:
+				buffer.append("ROUND(z").append(i % 10).append(",2)");
+				break;
+			default:
+				buffer.append("choice(x").append(i % 10).append(">").append(i).append(",1,0)");
+				break;
+			}
+		}
+		return buffer.toString();
+	}
+}
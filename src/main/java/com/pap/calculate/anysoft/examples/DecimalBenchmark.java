@@ -0,0 +1,112 @@
+package com.pap.calculate.anysoft.examples;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
+import com.pap.calculate.anysoft.formula.ExprValue;
+import com.pap.calculate.anysoft.formula.Expression;
+import com.pap.calculate.anysoft.formula.Parser;
+import com.pap.calculate.anysoft.formula.Row;
+import com.pap.calculate.anysoft.formula.Schema;
+
+/**
+ * 十进制舍入函数的性能测试
+ *
+ * <br>
+ * 对同一批金额分别用原来基于BigDecimal/DecimalFormat的算法和当前的函数计算ROUND,ROUNDUP,DEVIDE,NUM_DIGIT,E_YUSHU，
+ * 输出每次计算的耗时和加速比，并检查两者的结果逐位一致。<br>
+ * 参数:行数(缺省200000)
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class DecimalBenchmark {
+
+	protected static final String[] FORMULAS = { "ROUND(x,2)", "ROUNDUP(x,2)", "DEVIDE(x,y)", "NUM_DIGIT(x)",
+			"E_YUSHU(x,y)" };
+
+	protected static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		Schema schema = new Schema(new String[] { "x", "y" }, new ExprValue.DataType[] { ExprValue.DataType.Double,
+				ExprValue.DataType.Double });
+		Parser parser = new Parser(new DefaultFunctionHelper(null));
+
+		Random random = new Random(7);
+		double[] x = new double[size];
+		double[] y = new double[size];
+		for (int i = 0; i < size; i++) {
+			// amounts with up to 3 decimals,and some computed values
+			x[i] = random.nextInt(10000000) / 1000.0;
+			if (i % 4 == 0) {
+				x[i] = x[i] * 1.07;
+			}
+			y[i] = 1 + random.nextInt(3600) / 100.0;
+		}
+		Row.DoubleRow row = schema.row(new double[2]);
+		double[] values = new double[2];
+
+		System.out.println("rows:" + size);
+		System.out.println("formula\t\tlegacy(ns)\tcurrent(ns)\tspeedup");
+		for (int f = 0; f < FORMULAS.length; f++) {
+			Expression expr = schema.bind(parser.parse(FORMULAS[f]));
+			long bestLegacy = Long.MAX_VALUE;
+			long bestCurrent = Long.MAX_VALUE;
+			double sum = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < size; i++) {
+					sum += legacy(f, x[i], y[i]);
+				}
+				bestLegacy = Math.min(bestLegacy, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				for (int i = 0; i < size; i++) {
+					values[0] = x[i];
+					values[1] = y[i];
+					sum += expr.evalDouble(row.setValues(values));
+				}
+				bestCurrent = Math.min(bestCurrent, System.nanoTime() - start);
+			}
+			for (int i = 0; i < size; i++) {
+				values[0] = x[i];
+				values[1] = y[i];
+				double expected = legacy(f, x[i], y[i]);
+				double actual = expr.evalDouble(row.setValues(values));
+				if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)) {
+					throw new IllegalStateException(FORMULAS[f] + " is different at x=" + x[i] + ",y=" + y[i] + ":"
+							+ expected + "," + actual);
+				}
+			}
+			System.out.println(FORMULAS[f] + "\t" + bestLegacy / size + "\t\t" + bestCurrent / size + "\t\t"
+					+ String.format("%.2fx", (double) bestLegacy / bestCurrent) + (sum == 0 ? " " : ""));
+		}
+	}
+
+	/**
+	 * 原来的算法
+	 */
+	@SuppressWarnings("deprecation")
+	protected static double legacy(int function, double x, double y) {
+		switch (function) {
+		case 0:
+			return Double.parseDouble(new BigDecimal(String.valueOf(x)).setScale(2, BigDecimal.ROUND_HALF_UP)
+					.toString());
+		case 1:
+			return Double.parseDouble(new BigDecimal(String.valueOf(x)).setScale(2, BigDecimal.ROUND_UP).floatValue()
+					+ "");
+		case 2:
+			return Double.parseDouble(new BigDecimal(String.valueOf(x)).divide(new BigDecimal(String.valueOf(y)), 10,
+					BigDecimal.ROUND_CEILING).toString());
+		case 3:
+			return Double.parseDouble(new DecimalFormat("#.00").format(x));
+		default:
+			float size = Float.parseFloat(String.valueOf(x)) / Float.parseFloat(String.valueOf(y));
+			return Double.parseDouble(new DecimalFormat("#.00").format(size));
+		}
+	}
+}
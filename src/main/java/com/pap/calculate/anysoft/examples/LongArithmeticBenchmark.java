@@ -0,0 +1,176 @@
+package com.pap.calculate.anysoft.examples;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import com.pap.calculate.anysoft.formula.BatchEvaluator;
+import com.pap.calculate.anysoft.formula.Column;
+import com.pap.calculate.anysoft.formula.CompiledFormula;
+import com.pap.calculate.anysoft.formula.DecimalUtil;
+import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
+import com.pap.calculate.anysoft.formula.ExprValue;
+import com.pap.calculate.anysoft.formula.Expression;
+import com.pap.calculate.anysoft.formula.FormulaCompiler;
+import com.pap.calculate.anysoft.formula.Parser;
+import com.pap.calculate.anysoft.formula.Row;
+import com.pap.calculate.anysoft.formula.Schema;
+
+/**
+ * long溢出检查的性能测试
+ *
+ * <br>
+ * 先比较原来回绕的long加减乘和溢出检查(DecimalUtil.addExact等)的循环，再分别用解释器、编译后的公式和批量计算
+ * 计算同一个整数公式，输出没有溢出和部分行溢出(结果提升为Decimal)时每行的耗时，并检查结果与BigInteger精确计算一致。<br>
+ * 参数:行数(缺省1000000) 溢出行的比例(缺省0.01)
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class LongArithmeticBenchmark {
+
+	protected static final String FORMULA = "a*b+c-d*2";
+
+	protected static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		double ratio = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+
+		Schema schema = new Schema(new String[] { "a", "b", "c", "d" }, new ExprValue.DataType[] {
+				ExprValue.DataType.Long, ExprValue.DataType.Long, ExprValue.DataType.Long, ExprValue.DataType.Long });
+		Expression expr = schema.bind(new Parser(new DefaultFunctionHelper(null)).parse(FORMULA));
+		CompiledFormula compiled = new FormulaCompiler().compile(expr);
+		BatchEvaluator batch = new BatchEvaluator(schema);
+
+		Random random = new Random(7);
+		long[][] safe = data(random, size, 0);
+		long[][] overflow = data(random, size, ratio);
+
+		System.out.println("formula:" + FORMULA + ",rows:" + size + ",overflow:" + ratio);
+		long wrap = Long.MAX_VALUE;
+		long exact = Long.MAX_VALUE;
+		long sum = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			sum += legacy(safe);
+			wrap = Math.min(wrap, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			sum += checked(safe);
+			exact = Math.min(exact, System.nanoTime() - start);
+		}
+		System.out.println("loop\twrap(ns)\texact(ns)\tratio");
+		System.out.println("\t" + String.format("%.2f", (double) wrap / size) + "\t\t"
+				+ String.format("%.2f", (double) exact / size) + "\t\t"
+				+ String.format("%.2fx", (double) exact / wrap) + (sum == 0 ? " " : ""));
+
+		System.out.println("engine\t\tno overflow(ns)\toverflow(ns)");
+		String[] engines = { "interpreter", "compiled", "batch" };
+		for (int engine = 0; engine < engines.length; engine++) {
+			long bestSafe = Long.MAX_VALUE;
+			long bestOverflow = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				run(engine, expr, compiled, batch, schema, safe);
+				bestSafe = Math.min(bestSafe, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				run(engine, expr, compiled, batch, schema, overflow);
+				bestOverflow = Math.min(bestOverflow, System.nanoTime() - start);
+			}
+			verify(engines[engine], run(engine, expr, compiled, batch, schema, safe), safe);
+			verify(engines[engine], run(engine, expr, compiled, batch, schema, overflow), overflow);
+			System.out.println(engines[engine] + "\t" + (engine == 2 ? "\t" : "") + bestSafe / size + "\t\t"
+					+ bestOverflow / size);
+		}
+	}
+
+	/**
+	 * 生成各列的数据，按比例让一部分行的a*b溢出
+	 */
+	protected static long[][] data(Random random, int size, double ratio) {
+		long[][] columns = new long[4][size];
+		for (int i = 0; i < size; i++) {
+			if (random.nextDouble() < ratio) {
+				columns[0][i] = Long.MAX_VALUE / 2 + random.nextInt(1000000);
+				columns[1][i] = 2 + random.nextInt(10);
+			} else {
+				columns[0][i] = random.nextInt(2000000000) - 1000000000;
+				columns[1][i] = random.nextInt(2000000) - 1000000;
+			}
+			columns[2][i] = random.nextInt();
+			columns[3][i] = random.nextInt();
+		}
+		return columns;
+	}
+
+	protected static ExprValue[] run(int engine, Expression expr, CompiledFormula compiled, BatchEvaluator batch,
+			Schema schema, long[][] columns) {
+		int size = columns[0].length;
+		ExprValue[] result = new ExprValue[size];
+		if (engine == 2) {
+			Column output = batch.evaluate(expr, new Column[] { new Column(columns[0]), new Column(columns[1]),
+					new Column(columns[2]), new Column(columns[3]) });
+			for (int i = 0; i < size; i++) {
+				result[i] = output.getValue(i);
+			}
+			return result;
+		}
+		Row.LongRow row = schema.row(new long[4]);
+		long[] values = new long[4];
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < 4; j++) {
+				values[j] = columns[j][i];
+			}
+			row.setValues(values);
+			result[i] = engine == 0 ? expr.getValue(row) : compiled.getValue(row);
+		}
+		return result;
+	}
+
+	/**
+	 * 检查结果与BigInteger的精确值一致
+	 */
+	protected static void verify(String engine, ExprValue[] result, long[][] columns) {
+		for (int i = 0; i < result.length; i++) {
+			BigInteger expected = BigInteger.valueOf(columns[0][i]).multiply(BigInteger.valueOf(columns[1][i]))
+					.add(BigInteger.valueOf(columns[2][i]))
+					.subtract(BigInteger.valueOf(columns[3][i]).multiply(BigInteger.valueOf(2)));
+			if (!expected.toString().equals(result[i].toString())) {
+				throw new IllegalStateException(engine + " is different at row " + i + ":" + expected + ","
+						+ result[i]);
+			}
+		}
+	}
+
+	/**
+	 * 原来的算法，溢出时回绕
+	 */
+	protected static long legacy(long[][] columns) {
+		long[] a = columns[0];
+		long[] b = columns[1];
+		long[] c = columns[2];
+		long[] d = columns[3];
+		long sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i] + c[i] - d[i] * 2;
+		}
+		return sum;
+	}
+
+	/**
+	 * 检查溢出的算法
+	 */
+	protected static long checked(long[][] columns) {
+		long[] a = columns[0];
+		long[] b = columns[1];
+		long[] c = columns[2];
+		long[] d = columns[3];
+		long sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += DecimalUtil.subtractExact(DecimalUtil.addExact(DecimalUtil.multiplyExact(a[i], b[i]), c[i]),
+					DecimalUtil.multiplyExact(d[i], 2));
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,98 @@
+package com.pap.calculate.anysoft.examples;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.pap.calculate.anysoft.formula.BatchEvaluator;
+import com.pap.calculate.anysoft.formula.Column;
+import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
+import com.pap.calculate.anysoft.formula.ExprValue;
+import com.pap.calculate.anysoft.formula.Expression;
+import com.pap.calculate.anysoft.formula.ParallelEvaluator;
+import com.pap.calculate.anysoft.formula.Parser;
+import com.pap.calculate.anysoft.formula.Schema;
+
+/**
+ * 并行计算的扩展性测试
+ *
+ * <br>
+ * 分别用1到N个线程计算同一批行，输出每种方式的耗时和相对单线程的加速比，并检查结果与单线程一致。<br>
+ * 参数:行数(缺省2000000) 最大线程数(缺省为CPU核数)
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class ParallelBenchmark {
+
+	protected static final String FORMULA = "PMT(rate/12,n,0-pv,0,false)+choice(pv>50000,pv*0.01,pv/3)";
+
+	protected static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		Schema schema = new Schema(new String[] { "rate", "n", "pv" }, new ExprValue.DataType[] {
+				ExprValue.DataType.Double, ExprValue.DataType.Double, ExprValue.DataType.Double });
+		Expression expr = new Parser(new DefaultFunctionHelper(null)).parse(FORMULA);
+
+		Random random = new Random(7);
+		double[][] rows = new double[size][];
+		double[] rate = new double[size];
+		double[] n = new double[size];
+		double[] pv = new double[size];
+		for (int i = 0; i < size; i++) {
+			rate[i] = 0.01 + random.nextInt(1000) / 10000.0;
+			n[i] = 12 + random.nextInt(348);
+			pv[i] = 1000 + random.nextInt(1000000);
+			rows[i] = new double[] { rate[i], n[i], pv[i] };
+		}
+		Column[] columns = new Column[] { new Column(rate), new Column(n), new Column(pv) };
+		BatchEvaluator batch = new BatchEvaluator(schema);
+
+		System.out.println("formula:" + FORMULA + ",rows:" + size + ",cores:"
+				+ Runtime.getRuntime().availableProcessors());
+		System.out.println("threads\trow(ms)\tspeedup\tbatch(ms)\tspeedup");
+
+		double[] expectRow = null;
+		double[] expectBatch = null;
+		long baseRow = 0;
+		long baseBatch = 0;
+		for (int threads = 1; threads <= maxThreads; threads++) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				ParallelEvaluator evaluator = new ParallelEvaluator(pool);
+				double[] resultRow = null;
+				double[] resultBatch = null;
+				long bestRow = Long.MAX_VALUE;
+				long bestBatch = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					long start = System.nanoTime();
+					resultRow = evaluator.evaluateDouble(expr, schema, rows);
+					bestRow = Math.min(bestRow, System.nanoTime() - start);
+
+					start = System.nanoTime();
+					resultBatch = evaluator.evaluate(batch, expr, columns).getDoubles();
+					bestBatch = Math.min(bestBatch, System.nanoTime() - start);
+				}
+				if (threads == 1) {
+					expectRow = resultRow;
+					expectBatch = resultBatch;
+					baseRow = bestRow;
+					baseBatch = bestBatch;
+				} else if (!Arrays.equals(expectRow, resultRow) || !Arrays.equals(expectBatch, resultBatch)) {
+					throw new IllegalStateException("The result with " + threads + " threads is different.");
+				}
+				System.out.println(threads + "\t" + bestRow / 1000000 + "\t" + format(baseRow, bestRow) + "\t"
+						+ bestBatch / 1000000 + "\t\t" + format(baseBatch, bestBatch));
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	protected static String format(long base, long time) {
+		return String.format("%.2fx", (double) base / time);
+	}
+}
@@ -0,0 +1,133 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * Base class of the classes generated by {@link FormulaCompiler}
+ * 
+ * <br>
+ * The generated classes are defined by their own class loader,so they live in another runtime package.
+ * All the members used by the generated code must be public or protected.
+ * 
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - computed again by the interpreter when a long operation overflows
+ * @version 1.0.2
+ * - long的%检查除数为0
+ * @version 1.0.3
+ * - 只在long溢出时由解释器重新计算，其他ArithmeticException直接抛出
+ */
+public abstract class AbstractCompiledFormula implements CompiledFormula {
+	/**
+	 * the source expression
+	 */
+	protected final Expression source;
+	
+	/**
+	 * the nodes which are not compiled and computed by the interpreter
+	 */
+	protected final Expression[] nodes;
+	
+	/**
+	 * constructor
+	 * @param _source the source expression
+	 * @param _nodes the nodes computed by interpreter
+	 */
+	public AbstractCompiledFormula(Expression _source,Expression[] _nodes){
+		source = _source;
+		nodes = _nodes;
+	}
+	
+	@Override
+	public ExprValue getValue(DataProvider provider) throws FormulaException {
+		try {
+			return evaluate(provider);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			// a long operation overflows,the interpreter promotes it to decimal
+			return source.getValue(provider);
+		}
+	}
+	
+	/**
+	 * the generated code
+	 * @param provider instance of DataProvider
+	 * @return value of formula
+	 */
+	public abstract ExprValue evaluate(DataProvider provider);
+
+	@Override
+	public Expression getExpression() {
+		return source;
+	}
+
+	@Override
+	public boolean isCompiled() {
+		return true;
+	}
+	
+	public String toString(){
+		return source.toString();
+	}
+	
+	public static ExprValue box(long value){
+		return new ExprValue(value);
+	}
+	
+	public static ExprValue box(double value){
+		return new ExprValue(value);
+	}
+	
+	public static ExprValue box(boolean value){
+		return new ExprValue(value);
+	}
+	
+	public static boolean isTrue(long value){
+		return value != 0;
+	}
+	
+	public static long div(long left,long right){
+		if (right == 0)
+			throw new FormulaException("divided by zero");
+		return left / right;
+	}
+	
+	public static double div(double left,double right){
+		if (right == 0)
+			throw new FormulaException("divided by zero");
+		return left / right;
+	}
+	
+	public static long mod(long left,long right){
+		if (right == 0)
+			throw new FormulaException("divided by zero");
+		return left % right;
+	}
+	
+	/**
+	 * the same conversion as the arguments of the finance functions
+	 * @param value value
+	 * @return double value
+	 */
+	public static double parseDouble(ExprValue value){
+		return Function.toDouble(value);
+	}
+	
+	public static boolean parseBoolean(ExprValue value){
+		return Function.toBoolean(value);
+	}
+	
+	public static boolean isTrue(double value){
+		return value != 0;
+	}
+	
+	public static int parseInt(ExprValue value){
+		return Function.toInt(value);
+	}
+	
+	public static int parseInt(long value){
+		return Function.toInt(value);
+	}
+	
+	public static int parseInt(double value){
+		return Function.toInt(value);
+	}
+}
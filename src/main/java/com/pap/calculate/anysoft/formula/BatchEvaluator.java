@@ -0,0 +1,1682 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * 列式批量计算引擎
+ *
+ * <br>
+ * 在一组{@link Column}上计算同一个公式，结果写入输出列:<br>
+ * - 计算前按输入列的数据类型把Expression树规划为一棵算子(Kernel)树，每个算子对一段行做一次紧凑循环<br>
+ * - 按块(默认4096行)计算，中间结果保存在每个算子自己的基本类型数组中，块之间复用，不为每行创建{@link ExprValue}<br>
+ * - choice,nvl,IF,&&,||只对需要计算的行(选择向量)计算分支，与逐行计算时的短路行为一致<br>
+ * - 没有对应算子的节点(字符串、日期函数以及自定义函数等)整棵子树逐行交由解释器计算<br>
+ *
+ * <p>变量按{@link Schema}中的位置对应输入列，{@link Schema#bind(Expression)}前后的公式均可计算。
+ *
+ * <p>null值:输入为null的行结果为null(逐行计算时这类行会抛出异常)，choice,nvl,IF,&&,||只考虑会被计算的分支。
+ *
+ * <p>BatchEvaluator不保存计算状态，可被多个线程共享，每次计算使用独立的算子树。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - Decimal列按Decimal比较，其运算逐行解释计算
+ * @version 1.0.2
+ * - long的加减乘检查溢出，溢出时这些运算改为逐行计算，结果提升为Decimal
+ * @version 1.0.3
+ * - 按区间计算时可指定提升模式，供{@link ParallelEvaluator}在溢出后重新计算
+ * @version 1.0.4
+ * - 只在long溢出时按提升模式重新计算，其他ArithmeticException直接抛出
+ */
+public class BatchEvaluator {
+
+	/**
+	 * 缺省的块大小
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	/**
+	 * 变量模式，变量的位置即输入列的位置
+	 */
+	protected final Schema schema;
+
+	/**
+	 * 块大小，64的倍数
+	 */
+	protected final int chunkSize;
+
+	/**
+	 * 构造函数
+	 * @param _schema 变量模式
+	 */
+	public BatchEvaluator(Schema _schema) {
+		this(_schema, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _schema 变量模式
+	 * @param _chunkSize 块大小，向上取整为64的倍数
+	 */
+	public BatchEvaluator(Schema _schema, int _chunkSize) {
+		if (_chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive.");
+		}
+		schema = _schema;
+		chunkSize = (_chunkSize + 63) & ~63;
+	}
+
+	/**
+	 * 计算所有行
+	 * @param expr 公式
+	 * @param columns 输入列，顺序与Schema一致
+	 * @return 输出列
+	 * @throws FormulaException 计算出错
+	 */
+	public Column evaluate(Expression expr, Column[] columns) throws FormulaException {
+		return evaluate(expr, columns, columns.length == 0 ? 0 : columns[0].size());
+	}
+
+	/**
+	 * 计算前size行
+	 * @param expr 公式
+	 * @param columns 输入列，顺序与Schema一致
+	 * @param size 行数
+	 * @return 输出列
+	 * @throws FormulaException 计算出错
+	 */
+	public Column evaluate(Expression expr, Column[] columns, int size) throws FormulaException {
+		Kernel root = plan(expr, columns, size);
+		Column output = Column.allocate(root.type, size);
+		try {
+			run(root, 0, size, output);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			// a long operation overflows,the results of long add,sub,mul may be decimal
+			root = new Planner(columns, true).plan(expr);
+			output = Column.allocate(root.type, size);
+			run(root, 0, size, output);
+		}
+		return output;
+	}
+
+	/**
+	 * 计算[from,to)行，结果写入输出列的相同位置
+	 * @param expr 公式
+	 * @param columns 输入列，顺序与Schema一致
+	 * @param from 起始行
+	 * @param to 结束行(不含)
+	 * @param output 输出列，数据类型须与{@link #getResultType(Expression, Column[])}一致
+	 * @throws FormulaException 计算出错
+	 * @throws ArithmeticException long运算溢出，结果无法写入输出列
+	 */
+	public void evaluate(Expression expr, Column[] columns, int from, int to, Column output)
+			throws FormulaException {
+		evaluate(expr, columns, from, to, output, false);
+	}
+
+	/**
+	 * 计算[from,to)行，结果写入输出列的相同位置
+	 * @param promote 为true时long的加减乘按溢出后的方式规划，结果提升为Decimal，
+	 * 输出列的数据类型须与{@link #getResultType(Expression, Column[], boolean)}一致
+	 * @throws ArithmeticException promote为false时long运算溢出
+	 */
+	protected void evaluate(Expression expr, Column[] columns, int from, int to, Column output, boolean promote)
+			throws FormulaException {
+		if (from < 0 || from > to || to > output.size()) {
+			throw new IllegalArgumentException("Invalid range [" + from + "," + to + ") of " + output);
+		}
+		Kernel root = plan(expr, columns, to, promote);
+		if (root.type != output.getType()) {
+			throw new FormulaException("The output column is " + output.getType() + ",but the formula returns "
+					+ root.type);
+		}
+		run(root, from, to, output);
+	}
+
+	/**
+	 * 获取公式在这组输入列上的结果类型
+	 * @param expr 公式
+	 * @param columns 输入列
+	 * @return 数据类型，null表示混合类型
+	 */
+	public ExprValue.DataType getResultType(Expression expr, Column[] columns) {
+		return getResultType(expr, columns, false);
+	}
+
+	protected ExprValue.DataType getResultType(Expression expr, Column[] columns, boolean promote) {
+		return plan(expr, columns, 0, promote).type;
+	}
+
+	protected Kernel plan(Expression expr, Column[] columns, int size) {
+		return plan(expr, columns, size, false);
+	}
+
+	protected Kernel plan(Expression expr, Column[] columns, int size, boolean promote) {
+		if (columns.length < schema.size()) {
+			throw new FormulaException("The schema has " + schema.size() + " variants,but there are only "
+					+ columns.length + " columns.");
+		}
+		for (int i = 0; i < schema.size(); i++) {
+			if (columns[i].size() < size) {
+				throw new FormulaException("Column " + schema.getName(i) + " has only " + columns[i].size() + " rows.");
+			}
+		}
+		return new Planner(columns, promote).plan(expr);
+	}
+
+	protected void run(Kernel root, int from, int to, Column output) {
+		int[] sel = new int[chunkSize];
+		for (int i = 0; i < chunkSize; i++) {
+			sel[i] = i;
+		}
+		for (int base = from; base < to; base += chunkSize) {
+			int count = Math.min(chunkSize, to - base);
+			root.eval(base, sel, count);
+			root.write(output, base, count);
+		}
+	}
+
+	/**
+	 * 把Expression树规划为算子树
+	 */
+	protected class Planner {
+		protected final Column[] columns;
+
+		/**
+		 * 逐行计算时使用的DataProvider
+		 */
+		protected final ColumnRow row;
+
+		/**
+		 * 溢出后重新规划时为true，long的加减乘按ExprValue计算，溢出时提升为Decimal
+		 */
+		protected final boolean promote;
+
+		protected Planner(Column[] _columns, boolean _promote) {
+			columns = _columns;
+			row = new ColumnRow(schema, _columns);
+			promote = _promote;
+		}
+
+		protected Kernel plan(Expression expr) {
+			if (expr instanceof Expression.Constant) {
+				return new ConstKernel(expr.getValue(null), chunkSize);
+			}
+			if (expr instanceof Expression.Slot) {
+				return planSlot((Expression.Slot) expr);
+			}
+			if (expr instanceof Expression.Variant) {
+				return input(((Expression.Variant) expr).getVarName());
+			}
+			if (expr instanceof Expression.ArithmeticExpression) {
+				return planArithmetic((Expression.ArithmeticExpression) expr);
+			}
+			if (expr instanceof Expression.LogicalExpression) {
+				return planLogical((Expression.LogicalExpression) expr);
+			}
+			if (expr instanceof Expression.UnaryExpression) {
+				return planUnary((Expression.UnaryExpression) expr);
+			}
+			if (expr instanceof Function) {
+				return planFunction((Function) expr);
+			}
+			return generic(expr);
+		}
+
+		protected Kernel input(String varName) {
+			int index = schema.indexOf(varName);
+			if (index < 0) {
+				throw new FormulaException("Variant " + varName + " is not defined in the schema.");
+			}
+			return new InputKernel(columns[index], chunkSize);
+		}
+
+		protected Kernel planSlot(Expression.Slot slot) {
+			int index = slot.getIndex();
+			if (index >= schema.size() || !schema.getName(index).equals(slot.getVarName())) {
+				// bound with another schema
+				return input(slot.getVarName());
+			}
+			ExprValue.DataType declared = slot.getResultType();
+			if (declared != null && declared != columns[index].getType()) {
+				throw new FormulaException("Column " + slot.getVarName() + " is " + columns[index].getType()
+						+ ",but it is declared as " + declared + " in the schema.");
+			}
+			return new InputKernel(columns[index], chunkSize);
+		}
+
+		protected Kernel planArithmetic(Expression.ArithmeticExpression expr) {
+			Kernel left = plan(expr.getLeft());
+			Kernel right = plan(expr.getRight());
+			Expression.Operator operator = expr.getOperator();
+			if (left.type == ExprValue.DataType.String && operator == Expression.Operator.OP_Add && right.type != null) {
+				return new ConcatKernel(left, right, chunkSize);
+			}
+			if (isNumeric(left.type) && isNumeric(right.type)) {
+				boolean isLong = left.type == ExprValue.DataType.Long && right.type == ExprValue.DataType.Long;
+				if (isLong && promote && operator != Expression.Operator.OP_Div
+						&& operator != Expression.Operator.OP_Mod) {
+					return new PromotedArithmeticKernel(operator, left, right, chunkSize);
+				}
+				if (isLong) {
+					return new LongArithmeticKernel(operator, left, right, chunkSize);
+				}
+				if (operator != Expression.Operator.OP_Mod) {
+					return new DoubleArithmeticKernel(operator, left, right, chunkSize);
+				}
+			}
+			return generic(expr);
+		}
+
+		protected Kernel planLogical(Expression.LogicalExpression expr) {
+			Kernel left = plan(expr.getLeft());
+			Kernel right = plan(expr.getRight());
+			switch (expr.getOperator()) {
+			case OP_And:
+			case OP_Or:
+				if (isBoolean(left.type) && isBoolean(right.type)) {
+					return new LogicalKernel(expr.getOperator(), left, right, chunkSize);
+				}
+				break;
+			case OP_Greater:
+			case OP_Greater_Equal:
+			case OP_Equal:
+			case OP_Not_Equal:
+			case OP_Less:
+			case OP_Less_Equal:
+				if (isNumeric(left.type) && isNumeric(right.type)
+						|| left.type != null && left.type == right.type && left.type != ExprValue.DataType.Void) {
+					return new CompareKernel(expr.getOperator(), left, right, chunkSize);
+				}
+				break;
+			default:
+				break;
+			}
+			return generic(expr);
+		}
+
+		protected Kernel planUnary(Expression.UnaryExpression expr) {
+			Kernel child = plan(expr.getChild());
+			switch (expr.getOperator()) {
+			case OP_Positive:
+				return child;
+			case OP_Negative:
+				if (isNumeric(child.type)) {
+					return new NegativeKernel(child, chunkSize);
+				}
+				break;
+			case OP_Not:
+				if (child.type == ExprValue.DataType.Boolean) {
+					return new NotKernel(child, chunkSize);
+				}
+				break;
+			default:
+				break;
+			}
+			return generic(expr);
+		}
+
+		protected Kernel planFunction(Function func) {
+			int count = func.getArgumentCount();
+			Kernel[] args = new Kernel[count];
+			for (int i = 0; i < count; i++) {
+				args[i] = plan(func.getArgument(i));
+			}
+			if (func instanceof Function.Choice && count == 3) {
+				if (isBoolean(args[0].type) && args[1].type != null && args[1].type == args[2].type) {
+					return new ChoiceKernel(args[0], args[1], args[2], chunkSize);
+				}
+			} else if (func instanceof Function.Nvl && count == 2) {
+				if (args[0].type != null && args[0].type == args[1].type) {
+					return new NvlKernel(args[0], args[1], chunkSize);
+				}
+			} else if (func instanceof Function.IF && count == 3) {
+				if (isBoolean(args[0].type) && isNumericOrString(args[1].type) && isNumericOrString(args[2].type)) {
+					return new IfKernel(args[0], args[1], args[2], chunkSize);
+				}
+			} else if (func instanceof Function.ToLong && count == 1) {
+				if (args[0].type == ExprValue.DataType.Long) {
+					return args[0];
+				}
+				if (args[0].type == ExprValue.DataType.String) {
+					return new CastKernel(CastKernel.TO_LONG, args[0], chunkSize);
+				}
+			} else if (func instanceof Function.ToDouble && count == 1) {
+				if (isNumericOrString(args[0].type)) {
+					return new CastKernel(CastKernel.TO_DOUBLE, args[0], chunkSize);
+				}
+			} else if (func instanceof Function.TOINT && count == 1) {
+				if (isNumeric(args[0].type)) {
+					return new CastKernel(CastKernel.TO_INT, args[0], chunkSize);
+				}
+			} else {
+				int finance = FinanceKernel.functionOf(func);
+				if (finance >= 0 && FinanceKernel.accepts(finance, args)) {
+					return new FinanceKernel(finance, args, chunkSize);
+				}
+			}
+			return generic(func);
+		}
+
+		protected Kernel generic(Expression expr) {
+			ExprValue.DataType type = expr.getResultType();
+			if (promote && type == ExprValue.DataType.Long) {
+				// the value of a long subtree may be promoted to decimal
+				type = null;
+			}
+			return new GenericKernel(expr, type, row, chunkSize);
+		}
+	}
+
+	protected static boolean isNumeric(ExprValue.DataType type) {
+		return type == ExprValue.DataType.Long || type == ExprValue.DataType.Double;
+	}
+
+	protected static boolean isBoolean(ExprValue.DataType type) {
+		return type == ExprValue.DataType.Boolean || type == ExprValue.DataType.Long;
+	}
+
+	protected static boolean isNumericOrString(ExprValue.DataType type) {
+		return isNumeric(type) || type == ExprValue.DataType.String;
+	}
+
+	/**
+	 * 算子
+	 *
+	 * <p>每次计算一个块中由选择向量指定的行，选择向量中的下标递增，结果保存在与块等长的数组中。
+	 * 不在选择向量中的行，其值和null位都是未定义的。
+	 */
+	protected abstract static class Kernel {
+		protected final ExprValue.DataType type;
+		protected double[] d;
+		protected long[] l;
+		protected boolean[] b;
+		protected Object[] o;
+
+		/**
+		 * 块内的null值位图，hasNulls为false时未定义
+		 */
+		protected final long[] nulls;
+		protected boolean hasNulls = false;
+
+		protected Kernel(ExprValue.DataType _type, int chunk) {
+			type = _type;
+			if (_type == ExprValue.DataType.Double) {
+				d = new double[chunk];
+			} else if (_type == ExprValue.DataType.Long) {
+				l = new long[chunk];
+			} else if (_type == ExprValue.DataType.Boolean) {
+				b = new boolean[chunk];
+			} else {
+				o = new Object[chunk];
+			}
+			nulls = new long[Column.words(chunk)];
+		}
+
+		/**
+		 * 计算
+		 * @param base 块的起始行
+		 * @param sel 选择向量，块内的行号
+		 * @param count 选择向量的长度，大于0
+		 */
+		protected abstract void eval(int base, int[] sel, int count);
+
+		protected final boolean isNull(int i) {
+			return hasNulls && (nulls[i >>> 6] & (1L << i)) != 0;
+		}
+
+		protected final void setNull(int i) {
+			if (!hasNulls) {
+				Arrays.fill(nulls, 0L);
+				hasNulls = true;
+			}
+			nulls[i >>> 6] |= 1L << i;
+		}
+
+		protected final void clearNull(int i) {
+			if (hasNulls) {
+				nulls[i >>> 6] &= ~(1L << i);
+			}
+		}
+
+		/**
+		 * null值为任一子算子为null的行
+		 */
+		protected final void mergeNulls(Kernel[] children, int[] sel, int count) {
+			hasNulls = false;
+			for (Kernel child : children) {
+				hasNulls = hasNulls || child.hasNulls;
+			}
+			if (!hasNulls) {
+				return;
+			}
+			int words = Column.words(sel[count - 1] + 1);
+			Arrays.fill(nulls, 0, words, 0L);
+			for (Kernel child : children) {
+				if (child.hasNulls) {
+					for (int w = 0; w < words; w++) {
+						nulls[w] |= child.nulls[w];
+					}
+				}
+			}
+		}
+
+		/**
+		 * 复制指定行的值
+		 */
+		protected final void copy(Kernel src, int[] rows, int count) {
+			for (int k = 0; k < count; k++) {
+				int i = rows[k];
+				if (src.isNull(i)) {
+					setNull(i);
+				}
+			}
+			switch (type) {
+			case Double:
+				for (int k = 0; k < count; k++) {
+					d[rows[k]] = src.d[rows[k]];
+				}
+				break;
+			case Long:
+				for (int k = 0; k < count; k++) {
+					l[rows[k]] = src.l[rows[k]];
+				}
+				break;
+			case Boolean:
+				for (int k = 0; k < count; k++) {
+					b[rows[k]] = src.b[rows[k]];
+				}
+				break;
+			default:
+				for (int k = 0; k < count; k++) {
+					o[rows[k]] = src.o[rows[k]];
+				}
+				break;
+			}
+		}
+
+		/**
+		 * 将块内前count行写入输出列
+		 */
+		protected void write(Column output, int base, int count) {
+			if (type == ExprValue.DataType.Double) {
+				System.arraycopy(d, 0, output.doubles, base, count);
+			} else if (type == ExprValue.DataType.Long) {
+				System.arraycopy(l, 0, output.longs, base, count);
+			} else if (type == ExprValue.DataType.Boolean) {
+				System.arraycopy(b, 0, output.booleans, base, count);
+			} else {
+				System.arraycopy(o, 0, output.objects, base, count);
+			}
+			if (hasNulls) {
+				for (int i = 0; i < count; i++) {
+					if (isNull(i)) {
+						output.setNull(base + i);
+					} else {
+						output.clearNull(base + i);
+					}
+				}
+			} else if (output.nulls != null) {
+				for (int i = 0; i < count; i++) {
+					output.clearNull(base + i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 选择向量是否为0..count-1
+	 */
+	protected static boolean isDense(int[] sel, int count) {
+		return sel[count - 1] == count - 1;
+	}
+
+	protected static boolean bool(Kernel k, int i) {
+		return k.type == ExprValue.DataType.Boolean ? k.b[i] : k.l[i] != 0;
+	}
+
+	/**
+	 * 以double数组访问数值算子的结果
+	 */
+	protected static double[] doubles(Kernel k, double[] scratch, int[] sel, int count) {
+		if (k.type == ExprValue.DataType.Double) {
+			return k.d;
+		}
+		long[] values = k.l;
+		for (int j = 0; j < count; j++) {
+			int i = sel[j];
+			scratch[i] = values[i];
+		}
+		return scratch;
+	}
+
+	/**
+	 * 与{@link ExprValue#getString()}一致
+	 */
+	protected static String string(Kernel k, int i) {
+		switch (k.type) {
+		case Long:
+			return Long.toString(k.l[i]);
+		case Double:
+			return Double.toString(k.d[i]);
+		case Boolean:
+			return Boolean.toString(k.b[i]);
+		default:
+			return k.o[i].toString();
+		}
+	}
+
+	/**
+	 * 常量
+	 */
+	protected static class ConstKernel extends Kernel {
+		protected ConstKernel(ExprValue value, int chunk) {
+			super(value.getDataType(), chunk);
+			switch (type) {
+			case Double:
+				Arrays.fill(d, value.getDouble());
+				break;
+			case Long:
+				Arrays.fill(l, value.getLong());
+				break;
+			case Boolean:
+				Arrays.fill(b, value.getBoolean());
+				break;
+			default:
+				Arrays.fill(o, value.getValue());
+				break;
+			}
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			// filled when created
+		}
+	}
+
+	/**
+	 * 输入列
+	 */
+	protected static class InputKernel extends Kernel {
+		protected final Column column;
+
+		protected InputKernel(Column _column, int chunk) {
+			super(_column.getType(), chunk);
+			column = _column;
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			int length = sel[count - 1] + 1;
+			if (type == ExprValue.DataType.Double) {
+				System.arraycopy(column.doubles, base, d, 0, length);
+			} else if (type == ExprValue.DataType.Long) {
+				System.arraycopy(column.longs, base, l, 0, length);
+			} else if (type == ExprValue.DataType.Boolean) {
+				System.arraycopy(column.booleans, base, b, 0, length);
+			} else {
+				System.arraycopy(column.objects, base, o, 0, length);
+			}
+			long[] src = column.nulls;
+			hasNulls = src != null;
+			if (hasNulls) {
+				int shift = base & 63;
+				int word = base >>> 6;
+				int words = Column.words(length);
+				for (int w = 0; w < words; w++, word++) {
+					long value = src[word] >>> shift;
+					if (shift != 0 && word + 1 < src.length) {
+						value |= src[word + 1] << (64 - shift);
+					}
+					nulls[w] = value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * long算术运算
+	 */
+	protected static class LongArithmeticKernel extends Kernel {
+		protected final Expression.Operator operator;
+		protected final Kernel left;
+		protected final Kernel right;
+		protected final Kernel[] children;
+
+		protected LongArithmeticKernel(Expression.Operator _operator, Kernel _left, Kernel _right, int chunk) {
+			super(ExprValue.DataType.Long, chunk);
+			operator = _operator;
+			left = _left;
+			right = _right;
+			children = new Kernel[] { _left, _right };
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			left.eval(base, sel, count);
+			right.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			long[] x = left.l;
+			long[] y = right.l;
+			long[] r = l;
+			boolean dense = isDense(sel, count);
+			/*
+			 * Overflow is detected without branches so that the loops stay vectorizable:
+			 * add and sub overflow when the sign of the result differs from the signs of both operands,
+			 * mul can not overflow when all the operands are less than 2^31.
+			 * The flag is only a hint,since the rows which are null hold undefined values.
+			 */
+			long overflow = 0;
+			switch (operator) {
+			case OP_Add:
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						long v = x[i] + y[i];
+						overflow |= (x[i] ^ v) & (y[i] ^ v);
+						r[i] = v;
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						long v = x[i] + y[i];
+						overflow |= (x[i] ^ v) & (y[i] ^ v);
+						r[i] = v;
+					}
+				}
+				if (overflow < 0) {
+					checkOverflow(sel, count);
+				}
+				break;
+			case OP_Sub:
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						long v = x[i] - y[i];
+						overflow |= (x[i] ^ y[i]) & (x[i] ^ v);
+						r[i] = v;
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						long v = x[i] - y[i];
+						overflow |= (x[i] ^ y[i]) & (x[i] ^ v);
+						r[i] = v;
+					}
+				}
+				if (overflow < 0) {
+					checkOverflow(sel, count);
+				}
+				break;
+			case OP_Mul:
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						overflow |= (x[i] ^ (x[i] >> 63)) | (y[i] ^ (y[i] >> 63));
+						r[i] = x[i] * y[i];
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						overflow |= (x[i] ^ (x[i] >> 63)) | (y[i] ^ (y[i] >> 63));
+						r[i] = x[i] * y[i];
+					}
+				}
+				if ((overflow >>> 31) != 0) {
+					checkOverflow(sel, count);
+				}
+				break;
+			case OP_Div:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (y[i] == 0) {
+						if (!isNull(i)) {
+							throw new FormulaException("divided by zero");
+						}
+						continue;
+					}
+					r[i] = x[i] / y[i];
+				}
+				break;
+			case OP_Mod:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (y[i] == 0) {
+						if (!isNull(i)) {
+							throw new FormulaException("divided by zero");
+						}
+						continue;
+					}
+					r[i] = x[i] % y[i];
+				}
+				break;
+			default:
+				throw new FormulaException("Unsupport operator:" + operator);
+			}
+		}
+
+		/**
+		 * 逐行确认是否溢出，跳过null行
+		 * @throws ArithmeticException 溢出
+		 */
+		private void checkOverflow(int[] sel, int count) {
+			long[] x = left.l;
+			long[] y = right.l;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (isNull(i)) {
+					continue;
+				}
+				switch (operator) {
+				case OP_Add:
+					DecimalUtil.addExact(x[i], y[i]);
+					break;
+				case OP_Sub:
+					DecimalUtil.subtractExact(x[i], y[i]);
+					break;
+				default:
+					DecimalUtil.multiplyExact(x[i], y[i]);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 溢出后重新计算的long加减乘，按{@link ExprValue}计算，结果为Long或Decimal(混合类型)
+	 */
+	protected static class PromotedArithmeticKernel extends Kernel {
+		protected final Expression.Operator operator;
+		protected final Kernel left;
+		protected final Kernel right;
+		protected final Kernel[] children;
+
+		protected PromotedArithmeticKernel(Expression.Operator _operator, Kernel _left, Kernel _right, int chunk) {
+			super(null, chunk);
+			operator = _operator;
+			left = _left;
+			right = _right;
+			children = new Kernel[] { _left, _right };
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			left.eval(base, sel, count);
+			right.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (isNull(i)) {
+					continue;
+				}
+				ExprValue x = new ExprValue(left.l[i]);
+				ExprValue y = new ExprValue(right.l[i]);
+				switch (operator) {
+				case OP_Add:
+					o[i] = x.add(y);
+					break;
+				case OP_Sub:
+					o[i] = x.sub(y);
+					break;
+				default:
+					o[i] = x.mul(y);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * double算术运算，long操作数先转换为double
+	 */
+	protected static class DoubleArithmeticKernel extends Kernel {
+		protected final Expression.Operator operator;
+		protected final Kernel left;
+		protected final Kernel right;
+		protected final Kernel[] children;
+		protected final double[] leftScratch;
+		protected final double[] rightScratch;
+
+		protected DoubleArithmeticKernel(Expression.Operator _operator, Kernel _left, Kernel _right, int chunk) {
+			super(ExprValue.DataType.Double, chunk);
+			operator = _operator;
+			left = _left;
+			right = _right;
+			children = new Kernel[] { _left, _right };
+			leftScratch = _left.type == ExprValue.DataType.Double ? null : new double[chunk];
+			rightScratch = _right.type == ExprValue.DataType.Double ? null : new double[chunk];
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			left.eval(base, sel, count);
+			right.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			double[] x = doubles(left, leftScratch, sel, count);
+			double[] y = doubles(right, rightScratch, sel, count);
+			double[] r = d;
+			boolean dense = isDense(sel, count);
+			switch (operator) {
+			case OP_Add:
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						r[i] = x[i] + y[i];
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						r[i] = x[i] + y[i];
+					}
+				}
+				break;
+			case OP_Sub:
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						r[i] = x[i] - y[i];
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						r[i] = x[i] - y[i];
+					}
+				}
+				break;
+			case OP_Mul:
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						r[i] = x[i] * y[i];
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						r[i] = x[i] * y[i];
+					}
+				}
+				break;
+			case OP_Div:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (y[i] == 0 && !isNull(i)) {
+						throw new FormulaException("divided by zero");
+					}
+				}
+				if (dense) {
+					for (int i = 0; i < count; i++) {
+						r[i] = x[i] / y[i];
+					}
+				} else {
+					for (int k = 0; k < count; k++) {
+						int i = sel[k];
+						r[i] = x[i] / y[i];
+					}
+				}
+				break;
+			default:
+				throw new FormulaException("Unsupport operator:" + operator);
+			}
+		}
+	}
+
+	/**
+	 * 字符串连接
+	 */
+	protected static class ConcatKernel extends Kernel {
+		protected final Kernel left;
+		protected final Kernel right;
+		protected final Kernel[] children;
+
+		protected ConcatKernel(Kernel _left, Kernel _right, int chunk) {
+			super(ExprValue.DataType.String, chunk);
+			left = _left;
+			right = _right;
+			children = new Kernel[] { _left, _right };
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			left.eval(base, sel, count);
+			right.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (!isNull(i)) {
+					o[i] = left.o[i].toString() + string(right, i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 比较运算
+	 */
+	protected static class CompareKernel extends Kernel {
+		protected final Kernel left;
+		protected final Kernel right;
+		protected final Kernel[] children;
+
+		/**
+		 * 比较结果小于、等于、大于0时的值
+		 */
+		protected final boolean less, equal, greater;
+
+		protected CompareKernel(Expression.Operator operator, Kernel _left, Kernel _right, int chunk) {
+			super(ExprValue.DataType.Boolean, chunk);
+			left = _left;
+			right = _right;
+			children = new Kernel[] { _left, _right };
+			less = operator == Expression.Operator.OP_Less || operator == Expression.Operator.OP_Less_Equal
+					|| operator == Expression.Operator.OP_Not_Equal;
+			equal = operator == Expression.Operator.OP_Equal || operator == Expression.Operator.OP_Less_Equal
+					|| operator == Expression.Operator.OP_Greater_Equal;
+			greater = operator == Expression.Operator.OP_Greater || operator == Expression.Operator.OP_Greater_Equal
+					|| operator == Expression.Operator.OP_Not_Equal;
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			left.eval(base, sel, count);
+			right.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			ExprValue.DataType lt = left.type;
+			ExprValue.DataType rt = right.type;
+			if (lt == ExprValue.DataType.Long && rt == ExprValue.DataType.Long) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					b[i] = test(ExprValue.compare(left.l[i], right.l[i]));
+				}
+			} else if (lt == ExprValue.DataType.Long && rt == ExprValue.DataType.Double) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					b[i] = test(ExprValue.compare(left.l[i], right.d[i]));
+				}
+			} else if (lt == ExprValue.DataType.Double && rt == ExprValue.DataType.Long) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					b[i] = test(ExprValue.compare(left.d[i], right.l[i]));
+				}
+			} else if (lt == ExprValue.DataType.Double) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					b[i] = test(ExprValue.compare(left.d[i], right.d[i]));
+				}
+			} else if (lt == ExprValue.DataType.Boolean) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					b[i] = test(Boolean.compare(left.b[i], right.b[i]));
+				}
+			} else if (lt == ExprValue.DataType.Date) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						b[i] = test(((Date) left.o[i]).compareTo((Date) right.o[i]));
+					}
+				}
+			} else if (lt == ExprValue.DataType.Decimal) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						b[i] = test(((Decimal) left.o[i]).compareTo((Decimal) right.o[i]));
+					}
+				}
+			} else {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						b[i] = test(left.o[i].toString().compareTo(right.o[i].toString()));
+					}
+				}
+			}
+		}
+
+		private boolean test(int result) {
+			return result < 0 ? less : (result == 0 ? equal : greater);
+		}
+	}
+
+	/**
+	 * &&,||，右侧只对需要计算的行计算
+	 */
+	protected static class LogicalKernel extends Kernel {
+		protected final boolean isAnd;
+		protected final Kernel left;
+		protected final Kernel right;
+		protected final int[] rightSel;
+
+		protected LogicalKernel(Expression.Operator operator, Kernel _left, Kernel _right, int chunk) {
+			super(ExprValue.DataType.Boolean, chunk);
+			isAnd = operator == Expression.Operator.OP_And;
+			left = _left;
+			right = _right;
+			rightSel = new int[chunk];
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			left.eval(base, sel, count);
+			int rightCount = 0;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (!left.isNull(i) && bool(left, i) == isAnd) {
+					rightSel[rightCount++] = i;
+				}
+			}
+			if (rightCount > 0) {
+				right.eval(base, rightSel, rightCount);
+			}
+			hasNulls = false;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (left.isNull(i)) {
+					setNull(i);
+					continue;
+				}
+				boolean value = bool(left, i);
+				if (value != isAnd) {
+					// false&&x,true||x
+					b[i] = value;
+				} else if (right.isNull(i)) {
+					setNull(i);
+				} else {
+					b[i] = bool(right, i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 取负
+	 */
+	protected static class NegativeKernel extends Kernel {
+		protected final Kernel child;
+		protected final Kernel[] children;
+
+		protected NegativeKernel(Kernel _child, int chunk) {
+			super(_child.type, chunk);
+			child = _child;
+			children = new Kernel[] { _child };
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			child.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			if (type == ExprValue.DataType.Long) {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					l[i] = -child.l[i];
+				}
+			} else {
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					d[i] = -child.d[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * 逻辑非
+	 */
+	protected static class NotKernel extends Kernel {
+		protected final Kernel child;
+		protected final Kernel[] children;
+
+		protected NotKernel(Kernel _child, int chunk) {
+			super(ExprValue.DataType.Boolean, chunk);
+			child = _child;
+			children = new Kernel[] { _child };
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			child.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				b[i] = !child.b[i];
+			}
+		}
+	}
+
+	/**
+	 * choice，两个分支分别只对选中的行计算
+	 */
+	protected static class ChoiceKernel extends Kernel {
+		protected final Kernel test;
+		protected final Kernel valueIfTrue;
+		protected final Kernel valueIfFalse;
+		protected final int[] trueSel;
+		protected final int[] falseSel;
+
+		protected ChoiceKernel(Kernel _test, Kernel _valueIfTrue, Kernel _valueIfFalse, int chunk) {
+			super(_valueIfTrue.type, chunk);
+			test = _test;
+			valueIfTrue = _valueIfTrue;
+			valueIfFalse = _valueIfFalse;
+			trueSel = new int[chunk];
+			falseSel = new int[chunk];
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			test.eval(base, sel, count);
+			hasNulls = false;
+			int trueCount = 0;
+			int falseCount = 0;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (test.isNull(i)) {
+					setNull(i);
+				} else if (bool(test, i)) {
+					trueSel[trueCount++] = i;
+				} else {
+					falseSel[falseCount++] = i;
+				}
+			}
+			if (trueCount > 0) {
+				valueIfTrue.eval(base, trueSel, trueCount);
+				copy(valueIfTrue, trueSel, trueCount);
+			}
+			if (falseCount > 0) {
+				valueIfFalse.eval(base, falseSel, falseCount);
+				copy(valueIfFalse, falseSel, falseCount);
+			}
+		}
+	}
+
+	/**
+	 * nvl，缺省值只对null行计算
+	 */
+	protected static class NvlKernel extends Kernel {
+		protected final Kernel value;
+		protected final Kernel defaultValue;
+		protected final int[] nullSel;
+
+		protected NvlKernel(Kernel _value, Kernel _defaultValue, int chunk) {
+			super(_value.type, chunk);
+			value = _value;
+			defaultValue = _defaultValue;
+			nullSel = new int[chunk];
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			value.eval(base, sel, count);
+			hasNulls = false;
+			copy(value, sel, count);
+			if (!hasNulls) {
+				return;
+			}
+			int nullCount = 0;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (isNull(i)) {
+					clearNull(i);
+					nullSel[nullCount++] = i;
+				}
+			}
+			defaultValue.eval(base, nullSel, nullCount);
+			copy(defaultValue, nullSel, nullCount);
+		}
+	}
+
+	/**
+	 * IF，与{@link Function.IF}一致:只对选中的行计算分支，值转换为double
+	 */
+	protected static class IfKernel extends Kernel {
+		protected final Kernel test;
+		protected final Kernel valueIfTrue;
+		protected final Kernel valueIfFalse;
+		protected final int[] trueSel;
+		protected final int[] falseSel;
+		protected final double[] trueScratch;
+		protected final double[] falseScratch;
+
+		protected IfKernel(Kernel _test, Kernel _valueIfTrue, Kernel _valueIfFalse, int chunk) {
+			super(ExprValue.DataType.Double, chunk);
+			test = _test;
+			valueIfTrue = _valueIfTrue;
+			valueIfFalse = _valueIfFalse;
+			trueSel = new int[chunk];
+			falseSel = new int[chunk];
+			trueScratch = _valueIfTrue.type == ExprValue.DataType.Long ? new double[chunk] : null;
+			falseScratch = _valueIfFalse.type == ExprValue.DataType.Long ? new double[chunk] : null;
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			test.eval(base, sel, count);
+			hasNulls = false;
+			int trueCount = 0;
+			int falseCount = 0;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (test.isNull(i)) {
+					setNull(i);
+				} else if (bool(test, i)) {
+					trueSel[trueCount++] = i;
+				} else {
+					falseSel[falseCount++] = i;
+				}
+			}
+			if (trueCount > 0) {
+				valueIfTrue.eval(base, trueSel, trueCount);
+				assign(valueIfTrue, trueScratch, trueSel, trueCount);
+			}
+			if (falseCount > 0) {
+				valueIfFalse.eval(base, falseSel, falseCount);
+				assign(valueIfFalse, falseScratch, falseSel, falseCount);
+			}
+		}
+
+		protected void assign(Kernel chosen, double[] scratch, int[] rows, int count) {
+			double[] x = isNumeric(chosen.type) ? doubles(chosen, scratch, rows, count) : null;
+			for (int k = 0; k < count; k++) {
+				int i = rows[k];
+				if (chosen.isNull(i)) {
+					setNull(i);
+				} else {
+					d[i] = x != null ? x[i] : Double.parseDouble((String) chosen.o[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * to_long,to_double,to_int
+	 */
+	protected static class CastKernel extends Kernel {
+		protected static final int TO_LONG = 0;
+		protected static final int TO_DOUBLE = 1;
+		protected static final int TO_INT = 2;
+
+		protected final int function;
+		protected final Kernel child;
+		protected final Kernel[] children;
+
+		protected CastKernel(int _function, Kernel _child, int chunk) {
+			super(_function == TO_DOUBLE ? ExprValue.DataType.Double : ExprValue.DataType.Long, chunk);
+			function = _function;
+			child = _child;
+			children = new Kernel[] { _child };
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			child.eval(base, sel, count);
+			mergeNulls(children, sel, count);
+			ExprValue.DataType from = child.type;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (isNull(i)) {
+					continue;
+				}
+				switch (function) {
+				case TO_LONG:
+					l[i] = Long.parseLong((String) child.o[i]);
+					break;
+				case TO_INT:
+					l[i] = from == ExprValue.DataType.Long ? (int) child.l[i] : (int) (long) child.d[i];
+					break;
+				default:
+					if (from == ExprValue.DataType.Long) {
+						d[i] = child.l[i];
+					} else {
+						BigDecimal value = from == ExprValue.DataType.Double ? BigDecimal.valueOf(child.d[i])
+								: new BigDecimal((String) child.o[i]);
+						d[i] = value.setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 财务函数，参数转换与{@link Function}的doubleArgument,intArgument,booleanArgument一致
+	 */
+	protected static class FinanceKernel extends Kernel {
+		protected static final int PMT = 0;
+		protected static final int FV = 1;
+		protected static final int NPER = 2;
+		protected static final int PV = 3;
+		protected static final int DB = 4;
+		protected static final int DDB = 5;
+		protected static final int RATE = 6;
+		protected static final int EFFECT = 7;
+
+		/**
+		 * 各函数的参数类型:D-double,I-int,Z-boolean
+		 */
+		protected static final String[] SIGNATURES = { "DDDDZ", "DDDDZ", "DDDDZ", "DDDDZ", "DDIII", "DDIID",
+				"DDDDDD", "DD" };
+
+		protected final int function;
+		protected final String signature;
+		protected final Kernel[] args;
+
+		/**
+		 * 参数转换用的数组，参数本身就是所需类型时为null
+		 */
+		protected final double[][] doubleArgs;
+		protected final int[][] intArgs;
+		protected final boolean[][] booleanArgs;
+
+		/**
+		 * 本次计算中各参数转换后的值
+		 */
+		protected final double[][] x;
+		protected final int[][] n;
+		protected final boolean[][] z;
+
+		protected FinanceKernel(int _function, Kernel[] _args, int chunk) {
+			super(ExprValue.DataType.Double, chunk);
+			function = _function;
+			signature = SIGNATURES[_function];
+			args = _args;
+			x = new double[_args.length][];
+			n = new int[_args.length][];
+			z = new boolean[_args.length][];
+			doubleArgs = new double[_args.length][];
+			intArgs = new int[_args.length][];
+			booleanArgs = new boolean[_args.length][];
+			for (int j = 0; j < _args.length; j++) {
+				switch (signature.charAt(j)) {
+				case 'D':
+					doubleArgs[j] = _args[j].type == ExprValue.DataType.Double ? null : new double[chunk];
+					break;
+				case 'I':
+					intArgs[j] = new int[chunk];
+					break;
+				default:
+					booleanArgs[j] = _args[j].type == ExprValue.DataType.Boolean ? null : new boolean[chunk];
+					break;
+				}
+			}
+		}
+
+		protected static int functionOf(Function func) {
+			if (func instanceof Function.PMT) {
+				return PMT;
+			}
+			if (func instanceof Function.FV) {
+				return FV;
+			}
+			if (func instanceof Function.NPER) {
+				return NPER;
+			}
+			if (func instanceof Function.PV) {
+				return PV;
+			}
+			if (func instanceof Function.DB) {
+				return DB;
+			}
+			if (func instanceof Function.DDB) {
+				return DDB;
+			}
+			if (func instanceof Function.RATE) {
+				return RATE;
+			}
+			if (func instanceof Function.EFFECT) {
+				return EFFECT;
+			}
+			return -1;
+		}
+
+		protected static boolean accepts(int function, Kernel[] args) {
+			String signature = SIGNATURES[function];
+			if (args.length != signature.length()) {
+				return false;
+			}
+			for (int j = 0; j < args.length; j++) {
+				ExprValue.DataType type = args[j].type;
+				if (!isNumericOrString(type) && !(signature.charAt(j) == 'Z' && type == ExprValue.DataType.Boolean)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			for (Kernel arg : args) {
+				arg.eval(base, sel, count);
+			}
+			mergeNulls(args, sel, count);
+			for (int j = 0; j < args.length; j++) {
+				switch (signature.charAt(j)) {
+				case 'D':
+					x[j] = toDouble(args[j], doubleArgs[j], sel, count);
+					break;
+				case 'I':
+					n[j] = toInt(args[j], intArgs[j], sel, count);
+					break;
+				default:
+					z[j] = toBoolean(args[j], booleanArgs[j], sel, count);
+					break;
+				}
+			}
+			switch (function) {
+			case PMT:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.PMT(x[0][i], x[1][i], x[2][i], x[3][i], z[4][i]);
+					}
+				}
+				break;
+			case FV:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.FV(x[0][i], x[1][i], x[2][i], x[3][i], z[4][i]);
+					}
+				}
+				break;
+			case NPER:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.NPER(x[0][i], x[1][i], x[2][i], x[3][i], z[4][i]);
+					}
+				}
+				break;
+			case PV:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.PV(x[0][i], x[1][i], x[2][i], x[3][i], z[4][i]);
+					}
+				}
+				break;
+			case DB:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.DB(x[0][i], x[1][i], n[2][i], n[3][i], n[4][i]);
+					}
+				}
+				break;
+			case DDB:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.DDB(x[0][i], x[1][i], n[2][i], n[3][i], x[4][i]);
+					}
+				}
+				break;
+			case RATE:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.RATE(x[0][i], x[1][i], x[2][i], x[3][i], x[4][i], x[5][i]);
+					}
+				}
+				break;
+			default:
+				for (int k = 0; k < count; k++) {
+					int i = sel[k];
+					if (!isNull(i)) {
+						d[i] = FinanceFunctionUtilss.EFFECT(x[0][i], x[1][i]);
+					}
+				}
+				break;
+			}
+		}
+
+		private double[] toDouble(Kernel arg, double[] scratch, int[] sel, int count) {
+			if (arg.type != ExprValue.DataType.String) {
+				return doubles(arg, scratch, sel, count);
+			}
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (!isNull(i)) {
+					scratch[i] = Double.parseDouble((String) arg.o[i]);
+				}
+			}
+			return scratch;
+		}
+
+		private int[] toInt(Kernel arg, int[] scratch, int[] sel, int count) {
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (isNull(i)) {
+					continue;
+				}
+				switch (arg.type) {
+				case Long:
+					scratch[i] = Function.toInt(arg.l[i]);
+					break;
+				case Double:
+					scratch[i] = Function.toInt(arg.d[i]);
+					break;
+				default:
+					scratch[i] = Integer.parseInt((String) arg.o[i]);
+					break;
+				}
+			}
+			return scratch;
+		}
+
+		private boolean[] toBoolean(Kernel arg, boolean[] scratch, int[] sel, int count) {
+			if (arg.type == ExprValue.DataType.Boolean) {
+				return arg.b;
+			}
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				if (isNull(i)) {
+					continue;
+				}
+				switch (arg.type) {
+				case Long:
+					scratch[i] = arg.l[i] != 0;
+					break;
+				case Double:
+					scratch[i] = arg.d[i] != 0;
+					break;
+				default:
+					scratch[i] = Boolean.parseBoolean((String) arg.o[i]);
+					break;
+				}
+			}
+			return scratch;
+		}
+	}
+
+	/**
+	 * 没有对应算子的子树，逐行交由解释器计算
+	 */
+	protected static class GenericKernel extends Kernel {
+		protected final Expression expr;
+		protected final ColumnRow row;
+
+		protected GenericKernel(Expression _expr, ExprValue.DataType _type, ColumnRow _row, int chunk) {
+			super(_type, chunk);
+			expr = _expr;
+			row = _row;
+		}
+
+		@Override
+		protected void eval(int base, int[] sel, int count) {
+			hasNulls = false;
+			for (int k = 0; k < count; k++) {
+				int i = sel[k];
+				row.setRow(base + i);
+				ExprValue value = expr.getValue(row);
+				if (value == null) {
+					setNull(i);
+				} else if (type == null) {
+					o[i] = value;
+				} else {
+					switch (type) {
+					case Double:
+						d[i] = value.getDouble();
+						break;
+					case Long:
+						l[i] = value.getLong();
+						break;
+					case Boolean:
+						b[i] = value.getBoolean();
+						break;
+					case Date:
+						o[i] = value.getDate();
+						break;
+					case Decimal:
+						o[i] = value.getDecimal();
+						break;
+					default:
+						o[i] = value.getString();
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 以输入列的一行作为{@link Row}，供解释器逐行计算
+	 */
+	protected static class ColumnRow extends Row {
+		protected final Column[] columns;
+		protected int row = 0;
+
+		protected ColumnRow(Schema _schema, Column[] _columns) {
+			super(_schema);
+			columns = _columns;
+		}
+
+		protected void setRow(int _row) {
+			row = _row;
+		}
+
+		@Override
+		public ExprValue getValue(int slot) {
+			return columns[slot].getValue(row);
+		}
+
+		@Override
+		public ExprValue.DataType getDataType(int slot) {
+			return columns[slot].getType();
+		}
+
+		@Override
+		public boolean isNull(int slot) {
+			return columns[slot].isNull(row);
+		}
+
+		@Override
+		public double getDouble(int slot) {
+			return columns[slot].getDouble(row);
+		}
+
+		@Override
+		public long getLong(int slot) {
+			return columns[slot].getLong(row);
+		}
+
+		@Override
+		public boolean getBoolean(int slot) {
+			return columns[slot].getBoolean(row);
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 最小化的class文件生成器
+ *
+ * <br>
+ * 只支持{@link FormulaCompiler}所需的指令子集。生成的class文件版本为49(Java 5)，
+ * 不需要StackMapTable，由JVM的类型推导校验器进行校验。<br>
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+final class ClassFileWriter {
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int ICONST_0 = 0x03;
+	static final int ICONST_1 = 0x04;
+	static final int LCONST_0 = 0x09;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int LDC2_W = 0x14;
+	static final int ALOAD_0 = 0x2a;
+	static final int ALOAD_1 = 0x2b;
+	static final int ALOAD_2 = 0x2c;
+	static final int AALOAD = 0x32;
+	static final int POP = 0x57;
+	static final int POP2 = 0x58;
+	static final int LADD = 0x61;
+	static final int DADD = 0x63;
+	static final int LSUB = 0x65;
+	static final int DSUB = 0x67;
+	static final int LMUL = 0x69;
+	static final int DMUL = 0x6b;
+	static final int LREM = 0x71;
+	static final int LNEG = 0x75;
+	static final int DNEG = 0x77;
+	static final int IXOR = 0x82;
+	static final int L2D = 0x8a;
+	static final int LCMP = 0x94;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int GOTO = 0xa7;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETFIELD = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+
+	/**
+	 * 方法体的最大长度
+	 */
+	static final int MAX_CODE_LENGTH = 65535;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	private final List<byte[]> methods = new ArrayList<byte[]>();
+
+	private final int thisClass;
+	private final int superClass;
+
+	ClassFileWriter(String className, String superName) {
+		thisClass = classRef(className);
+		superClass = classRef(superName);
+	}
+
+	int utf8(String value) {
+		String key = "U" + value;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		try {
+			poolOut.writeByte(1);
+			poolOut.writeUTF(value);
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+		return register(key, 1);
+	}
+
+	int classRef(String internalName) {
+		String key = "C" + internalName;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		int name = utf8(internalName);
+		writeEntry(7, name, -1);
+		return register(key, 1);
+	}
+
+	int stringConstant(String value) {
+		String key = "S" + value;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		int index = utf8(value);
+		writeEntry(8, index, -1);
+		return register(key, 1);
+	}
+
+	int intConstant(int value) {
+		String key = "I" + value;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		try {
+			poolOut.writeByte(3);
+			poolOut.writeInt(value);
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+		return register(key, 1);
+	}
+
+	int longConstant(long value) {
+		String key = "J" + value;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		try {
+			poolOut.writeByte(5);
+			poolOut.writeLong(value);
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+		return register(key, 2);
+	}
+
+	int doubleConstant(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		String key = "D" + bits;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		try {
+			poolOut.writeByte(6);
+			poolOut.writeLong(bits);
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+		return register(key, 2);
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return memberRef(9, owner, name, desc);
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return memberRef(10, owner, name, desc);
+	}
+
+	private int memberRef(int tag, String owner, String name, String desc) {
+		String key = tag + owner + "." + name + desc;
+		Integer found = poolIndex.get(key);
+		if (found != null) {
+			return found;
+		}
+		int ownerIndex = classRef(owner);
+		String natKey = "N" + name + desc;
+		Integer nat = poolIndex.get(natKey);
+		if (nat == null) {
+			int nameIndex = utf8(name);
+			int descIndex = utf8(desc);
+			writeEntry(12, nameIndex, descIndex);
+			nat = register(natKey, 1);
+		}
+		writeEntry(tag, ownerIndex, nat);
+		return register(key, 1);
+	}
+
+	private void writeEntry(int tag, int first, int second) {
+		try {
+			poolOut.writeByte(tag);
+			poolOut.writeShort(first);
+			if (second >= 0) {
+				poolOut.writeShort(second);
+			}
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+	}
+
+	private int register(String key, int size) {
+		int index = poolCount;
+		poolCount += size;
+		if (poolCount > 0xffff) {
+			throw new FormulaException("Too many constants in formula.");
+		}
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	/**
+	 * 添加方法
+	 * @param access 访问标志
+	 * @param name 方法名
+	 * @param desc 方法描述符
+	 * @param code 方法体
+	 */
+	void addMethod(int access, String name, String desc, Code code) {
+		byte[] bytes = code.toByteArray();
+		if (bytes.length > MAX_CODE_LENGTH) {
+			throw new FormulaException("Formula is too large to compile.");
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(desc));
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + bytes.length);
+			out.writeShort(code.maxStack);
+			out.writeShort(code.maxLocals);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+		methods.add(buffer.toByteArray());
+	}
+
+	/**
+	 * 生成class文件
+	 * @return class文件内容
+	 */
+	byte[] toByteArray() {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			poolOut.flush();
+			pool.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			out.writeShort(0); // attributes
+		} catch (IOException ex) {
+			throw new FormulaException(ex.getMessage());
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * 跳转标签
+	 */
+	static final class Label {
+		private int position = -1;
+		private int stack = -1;
+		private final List<Integer> references = new ArrayList<Integer>();
+	}
+
+	/**
+	 * 方法体
+	 *
+	 * <p>调用者需给出每条指令对操作数栈的影响(以slot计，long/double占2个)，用于计算maxStack。
+	 */
+	static final class Code {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private byte[] patched = null;
+		private final List<Label> labels = new ArrayList<Label>();
+		private int stack = 0;
+		private int maxStack = 0;
+		private int maxLocals = 0;
+
+		Code(int locals) {
+			maxLocals = locals;
+		}
+
+		int size() {
+			return buffer.size();
+		}
+
+		void op(int opcode, int delta) {
+			buffer.write(opcode);
+			adjust(delta);
+		}
+
+		void op1(int opcode, int operand, int delta) {
+			buffer.write(opcode);
+			buffer.write(operand);
+			adjust(delta);
+		}
+
+		void op2(int opcode, int operand, int delta) {
+			buffer.write(opcode);
+			buffer.write(operand >> 8);
+			buffer.write(operand);
+			adjust(delta);
+		}
+
+		void jump(int opcode, Label label, int delta) {
+			int at = buffer.size();
+			buffer.write(opcode);
+			buffer.write(0);
+			buffer.write(0);
+			adjust(delta);
+			label.references.add(at);
+			if (label.stack < 0) {
+				label.stack = stack;
+			}
+			if (!labels.contains(label)) {
+				labels.add(label);
+			}
+		}
+
+		/**
+		 * 标记标签位置，如果标签被跳转过，当前栈深度以跳转时为准
+		 */
+		void mark(Label label) {
+			label.position = buffer.size();
+			if (label.stack >= 0) {
+				stack = label.stack;
+			}
+			if (!labels.contains(label)) {
+				labels.add(label);
+			}
+		}
+
+		private void adjust(int delta) {
+			stack += delta;
+			if (stack > maxStack) {
+				maxStack = stack;
+			}
+		}
+
+		byte[] toByteArray() {
+			if (patched != null) {
+				return patched;
+			}
+			byte[] bytes = buffer.toByteArray();
+			for (Label label : labels) {
+				for (int at : label.references) {
+					int offset = label.position - at;
+					if (label.position < 0 || offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+						throw new FormulaException("Formula is too large to compile.");
+					}
+					bytes[at + 1] = (byte) (offset >> 8);
+					bytes[at + 2] = (byte) offset;
+				}
+			}
+			patched = bytes;
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.Date;
+
+/**
+ * 列
+ *
+ * <br>
+ * {@link BatchEvaluator}的输入和输出，一列数据保存在一个基本类型数组中:<br>
+ * - Long:long[]，Double:double[]，Boolean:boolean[]<br>
+ * - String,Date,Decimal:Object[]<br>
+ * - 数据类型为null时为混合类型，Object[]中保存{@link ExprValue}<br>
+ *
+ * <p>null值由位图表示，第i行对应nulls[i/64]的第i%64位，没有null值时位图为null。
+ * String,Date和Decimal列中为null的元素同样视为null值。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 增加Decimal列
+ */
+public class Column {
+
+	/**
+	 * 数据类型，null表示混合类型
+	 */
+	protected final ExprValue.DataType type;
+
+	/**
+	 * 行数
+	 */
+	protected final int size;
+
+	protected final double[] doubles;
+	protected final long[] longs;
+	protected final boolean[] booleans;
+	protected final Object[] objects;
+
+	/**
+	 * null值位图
+	 */
+	protected long[] nulls;
+
+	/**
+	 * 构造函数
+	 * @param _values double值
+	 */
+	public Column(double[] _values) {
+		this(_values, null);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values double值
+	 * @param _nulls null值位图，可以为null
+	 */
+	public Column(double[] _values, long[] _nulls) {
+		this(ExprValue.DataType.Double, _values.length, _values, null, null, null, _nulls);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values long值
+	 */
+	public Column(long[] _values) {
+		this(_values, null);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values long值
+	 * @param _nulls null值位图，可以为null
+	 */
+	public Column(long[] _values, long[] _nulls) {
+		this(ExprValue.DataType.Long, _values.length, null, _values, null, null, _nulls);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values boolean值
+	 */
+	public Column(boolean[] _values) {
+		this(_values, null);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values boolean值
+	 * @param _nulls null值位图，可以为null
+	 */
+	public Column(boolean[] _values, long[] _nulls) {
+		this(ExprValue.DataType.Boolean, _values.length, null, null, _values, null, _nulls);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values 字符串，元素为null表示null值
+	 */
+	public Column(String[] _values) {
+		this(ExprValue.DataType.String, _values.length, null, null, null, _values, null);
+		markNulls();
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values 日期，元素为null表示null值
+	 */
+	public Column(Date[] _values) {
+		this(ExprValue.DataType.Date, _values.length, null, null, null, _values, null);
+		markNulls();
+	}
+
+	/**
+	 * 构造函数
+	 * @param _values 十进制数，元素为null表示null值
+	 */
+	public Column(Decimal[] _values) {
+		this(ExprValue.DataType.Decimal, _values.length, null, null, null, _values, null);
+		markNulls();
+	}
+
+	protected Column(ExprValue.DataType _type, int _size, double[] _doubles, long[] _longs, boolean[] _booleans,
+			Object[] _objects, long[] _nulls) {
+		if (_nulls != null && _nulls.length < words(_size)) {
+			throw new IllegalArgumentException("The null bitmap is too short,size:" + _size);
+		}
+		type = _type;
+		size = _size;
+		doubles = _doubles;
+		longs = _longs;
+		booleans = _booleans;
+		objects = _objects;
+		nulls = _nulls;
+	}
+
+	/**
+	 * 创建指定类型的空列
+	 * @param type 数据类型，null表示混合类型
+	 * @param size 行数
+	 * @return 列
+	 */
+	public static Column allocate(ExprValue.DataType type, int size) {
+		if (type == null) {
+			return new Column(null, size, null, null, null, new ExprValue[size], null);
+		}
+		switch (type) {
+		case Double:
+			return new Column(new double[size]);
+		case Long:
+			return new Column(new long[size]);
+		case Boolean:
+			return new Column(new boolean[size]);
+		case String:
+			return new Column(type, size, null, null, null, new String[size], null);
+		case Date:
+			return new Column(type, size, null, null, null, new Date[size], null);
+		case Decimal:
+			return new Column(type, size, null, null, null, new Decimal[size], null);
+		default:
+			throw new FormulaException("Unsupported column type:" + type);
+		}
+	}
+
+	/**
+	 * 位图的长度
+	 * @param size 行数
+	 * @return long的个数
+	 */
+	public static int words(int size) {
+		return (size + 63) >>> 6;
+	}
+
+	private void markNulls() {
+		for (int i = 0; i < size; i++) {
+			if (objects[i] == null) {
+				setNull(i);
+			}
+		}
+	}
+
+	public ExprValue.DataType getType() {
+		return type;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double[] getDoubles() {
+		return doubles;
+	}
+
+	public long[] getLongs() {
+		return longs;
+	}
+
+	public boolean[] getBooleans() {
+		return booleans;
+	}
+
+	public Object[] getObjects() {
+		return objects;
+	}
+
+	/**
+	 * 获取null值位图
+	 * @return 位图，没有null值时为null
+	 */
+	public long[] getNulls() {
+		return nulls;
+	}
+
+	public boolean isNull(int row) {
+		return nulls != null && (nulls[row >>> 6] & (1L << row)) != 0;
+	}
+
+	public void setNull(int row) {
+		if (nulls == null) {
+			nulls = new long[words(size)];
+		}
+		nulls[row >>> 6] |= 1L << row;
+	}
+
+	protected void clearNull(int row) {
+		if (nulls != null) {
+			nulls[row >>> 6] &= ~(1L << row);
+		}
+	}
+
+	/**
+	 * 获取指定行的值
+	 * @param row 行
+	 * @return 值，null值时为null
+	 */
+	public ExprValue getValue(int row) {
+		if (isNull(row)) {
+			return null;
+		}
+		if (type == null) {
+			return (ExprValue) objects[row];
+		}
+		switch (type) {
+		case Double:
+			return new ExprValue(doubles[row]);
+		case Long:
+			return new ExprValue(longs[row]);
+		case Boolean:
+			return new ExprValue(booleans[row]);
+		case Date:
+			return new ExprValue((Date) objects[row]);
+		case Decimal:
+			return new ExprValue((Decimal) objects[row]);
+		default:
+			return new ExprValue(objects[row].toString());
+		}
+	}
+
+	public double getDouble(int row) {
+		if (type == ExprValue.DataType.Double && !isNull(row)) {
+			return doubles[row];
+		}
+		if (type == ExprValue.DataType.Long && !isNull(row)) {
+			return longs[row];
+		}
+		return notNull(row).getDouble();
+	}
+
+	public long getLong(int row) {
+		if (type == ExprValue.DataType.Long && !isNull(row)) {
+			return longs[row];
+		}
+		return notNull(row).getLong();
+	}
+
+	public boolean getBoolean(int row) {
+		if (type == ExprValue.DataType.Boolean && !isNull(row)) {
+			return booleans[row];
+		}
+		return notNull(row).getBoolean();
+	}
+
+	private ExprValue notNull(int row) {
+		ExprValue value = getValue(row);
+		if (value == null) {
+			throw new FormulaException("The value of row " + row + " is null");
+		}
+		return value;
+	}
+
+	public String toString() {
+		return "Column[" + type + "," + size + "]";
+	}
+}
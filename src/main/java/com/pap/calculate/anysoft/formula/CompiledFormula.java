@@ -0,0 +1,66 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * Compiled formula
+ * 
+ * <br>
+ * The executable form of a parsed {@link Expression},created by {@link FormulaCompiler}.
+ * 
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public interface CompiledFormula {
+	/**
+	 * to compute the formula with {@code DataProvider}
+	 * @param provider instance of DataProvider
+	 * @return value of formula
+	 * @throws FormulaException
+	 */
+	public ExprValue getValue(DataProvider provider) throws FormulaException;
+	
+	/**
+	 * to get the expression which the formula is compiled from
+	 * @return expression
+	 */
+	public Expression getExpression();
+	
+	/**
+	 * whether the formula is compiled into bytecode or still be interpreted
+	 * @return true if it is compiled into bytecode
+	 */
+	public boolean isCompiled();
+	
+	/**
+	 * Interpreted formula
+	 * 
+	 * <br>Used when the expression can not be compiled.
+	 * @author alexgaoyh
+	 *
+	 */
+	public static class Interpreted implements CompiledFormula{
+		protected final Expression expr;
+		
+		public Interpreted(Expression _expr){
+			expr = _expr;
+		}
+		
+		@Override
+		public ExprValue getValue(DataProvider provider) throws FormulaException {
+			return expr.getValue(provider);
+		}
+
+		@Override
+		public Expression getExpression() {
+			return expr;
+		}
+
+		@Override
+		public boolean isCompiled() {
+			return false;
+		}
+		
+		public String toString(){
+			return expr.toString();
+		}
+	}
+}
@@ -16,14 +16,21 @@ package com.pap.calculate.anysoft.formula;
  * 如果有n行记录，计算的次数将是(A+B)*n。<br>
  * 
  * 进一步分析发现，对于所有行的计算，A是不变的，因此就有了上下文的设计。
- * 计算框架调用一次{@link #getContext(String)}获取上下文，再多次调用{@link #getValue(String, Object)},
+ * 由{@link #getContext(String)}获取上下文，再多次调用{@link #getValue(String, Object)},
  * 这样提升了效率，总的计算次数是A + B*n。<br>
  * 
+ * Expression树可被多个线程共享，不保存上下文，每次计算变量时都会调用{@link #getContext(String)}。
+ * 在多行之间复用的DataProvider应自行缓存上下文(例如按变量名缓存列索引)。<br>
+ * 
+ * 需要按类型提供变量值时，实现{@link TypedDataProvider}。<br>
+ * 
  * @author duanyy
  * @version 1.0.0
  * @version 1.0.1
  *     + {@link DataProvider#getValue(String, Object, String) getValue}函数的返回类型修改为String
  *     + {@link DataProvider#getValue(String, Object, String) getValue}函数增加缺省值参数
+ * @version 1.0.2
+ *     + 上下文由DataProvider缓存，Expression不再保存上下文
  */
 public interface DataProvider {
 	/**
@@ -0,0 +1,390 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * 编译后的日期模板
+ *
+ * <br>
+ * 模板只解析一次，之后的解析和格式化都是对epoch毫秒数的整数运算，不创建Calendar和SimpleDateFormat:<br>
+ * - 解析与{@link DateUtil#parseDate(String, String)}的规则相同，按yyyy(yy)、MM、dd、JJ(HH)、mm、ss在模板中的位置取值<br>
+ * - 格式化与SimpleDateFormat的结果相同，支持数字形式的y,M,d,H,h,k,K,m,s,S和文本；
+ * 含有其他字母(如E,a,z,MMM)的模板由每个线程各自的SimpleDateFormat格式化<br>
+ * - 在时区切换(夏令时)附近、1600年以前或非公历的缺省Locale下，按Calendar/SimpleDateFormat计算<br>
+ *
+ * <p>DatePattern不可变，可被多个线程共享，通常由{@link DateUtil}缓存。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public final class DatePattern {
+
+	/**
+	 * 无法解析时{@link #parse(String, TimeZone)}的返回值
+	 */
+	public static final long NONE = Long.MIN_VALUE;
+
+	protected static final long SECOND = 1000L;
+	protected static final long MINUTE = 60 * SECOND;
+	protected static final long HOUR = 60 * MINUTE;
+	protected static final long DAY = 24 * HOUR;
+
+	/**
+	 * 按整数运算计算的范围[1600-01-01,10000-01-01)，更早的日期在Calendar中是儒略历
+	 */
+	protected static final long MIN_DAY = daysOf(1600, 1, 1);
+	protected static final long MAX_DAY = daysOf(10000, 1, 1);
+
+	/*
+	 * 格式化的字段
+	 */
+	protected static final int TEXT = 0;
+	protected static final int YEAR = 1;
+	protected static final int MONTH = 2;
+	protected static final int DAY_OF_MONTH = 3;
+	protected static final int HOUR_OF_DAY = 4;
+	protected static final int HOUR_1_12 = 5;
+	protected static final int HOUR_1_24 = 6;
+	protected static final int HOUR_0_11 = 7;
+	protected static final int MINUTE_OF_HOUR = 8;
+	protected static final int SECOND_OF_MINUTE = 9;
+	protected static final int MILLISECOND = 10;
+
+	/**
+	 * 缺省Locale下的Calendar是否为公历、数字是否为ASCII，否则都按原来的方式计算
+	 */
+	protected static final boolean FAST = check();
+
+	protected final String pattern;
+
+	/*
+	 * 解析:各字段在模板中的位置，-1表示不存在
+	 */
+	protected final int yearIndex;
+	protected final int yearDigits;
+	protected final int monthIndex;
+	protected final int dayIndex;
+	protected final int hourIndex;
+	protected final int minuteIndex;
+	protected final int secondIndex;
+
+	/*
+	 * 格式化:字段和宽度，TEXT的宽度为texts中的下标
+	 */
+	protected final int[] fields;
+	protected final int[] widths;
+	protected final String[] texts;
+
+	/**
+	 * 格式化的长度估计
+	 */
+	protected final int length;
+
+	/**
+	 * 模板中有不支持的字母时，每个线程各自的SimpleDateFormat
+	 */
+	protected final ThreadLocal<SimpleDateFormat> formatter;
+
+	/**
+	 * 编译模板
+	 * @param _pattern 模板
+	 */
+	public DatePattern(String _pattern) {
+		pattern = _pattern;
+
+		int index = _pattern.indexOf("yyyy");
+		int digits = 4;
+		if (index < 0) {
+			index = _pattern.indexOf("yy");
+			digits = 2;
+		}
+		yearIndex = index;
+		yearDigits = digits;
+		monthIndex = _pattern.indexOf("MM");
+		dayIndex = _pattern.indexOf("dd");
+		index = _pattern.indexOf("JJ");
+		hourIndex = index >= 0 ? index : _pattern.indexOf("HH");
+		minuteIndex = _pattern.indexOf("mm");
+		secondIndex = _pattern.indexOf("ss");
+
+		List<int[]> tokens = new ArrayList<int[]>();
+		List<String> literals = new ArrayList<String>();
+		boolean supported = compile(_pattern, tokens, literals);
+		fields = new int[tokens.size()];
+		widths = new int[tokens.size()];
+		int size = 0;
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = tokens.get(i)[0];
+			widths[i] = tokens.get(i)[1];
+			size += fields[i] == TEXT ? literals.get(widths[i]).length() : Math.max(widths[i], 4);
+		}
+		texts = literals.toArray(new String[literals.size()]);
+		length = size;
+		formatter = supported && FAST ? null : new ThreadLocal<SimpleDateFormat>() {
+			@Override
+			protected SimpleDateFormat initialValue() {
+				return new SimpleDateFormat(pattern);
+			}
+		};
+	}
+
+	/**
+	 * 获取模板
+	 * @return 模板
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * 按模板解析日期
+	 * @param value 字符串型日期
+	 * @param zone 时区
+	 * @return epoch毫秒数，长度不足或模板中没有年、月、日时为{@link #NONE}
+	 * @throws NumberFormatException 对应位置不是数字
+	 */
+	public long parse(String value, TimeZone zone) {
+		if (value.length() < pattern.length() || yearIndex < 0 || monthIndex < 0 || dayIndex < 0) {
+			return NONE;
+		}
+		int year = number(value, yearIndex, yearDigits);
+		if (yearDigits == 2) {
+			year += 2000;
+		}
+		int month = number(value, monthIndex, 2) - 1;
+		int day = number(value, dayIndex, 2);
+		int hour = hourIndex >= 0 ? number(value, hourIndex, 2) : 0;
+		int minute = minuteIndex >= 0 ? number(value, minuteIndex, 2) : 0;
+		int second = secondIndex >= 0 ? number(value, secondIndex, 2) : 0;
+
+		// the fields are lenient,as in Calendar
+		long days = daysOf(year + Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1, 1) + day - 1;
+		if (FAST && days >= MIN_DAY && days < MAX_DAY) {
+			long local = days * DAY + hour * HOUR + minute * MINUTE + second * SECOND;
+			// the offset is the same within a day around,so there is no gap or overlap
+			int offset = zone.getOffset(local - DAY);
+			if (offset == zone.getOffset(local + DAY)) {
+				return local - offset;
+			}
+		}
+		Calendar calendar = Calendar.getInstance(zone);
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute, second);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * 按模板格式化日期
+	 * @param time epoch毫秒数
+	 * @param zone 时区
+	 * @return 格式化结果
+	 * @throws IllegalArgumentException 模板中有SimpleDateFormat不支持的字母
+	 */
+	public String format(long time, TimeZone zone) {
+		long local = time + zone.getOffset(time);
+		long days = Math.floorDiv(local, DAY);
+		if (formatter != null || days < MIN_DAY || days >= MAX_DAY) {
+			SimpleDateFormat format = formatter != null ? formatter.get() : new SimpleDateFormat(pattern);
+			format.setTimeZone(zone);
+			return format.format(new Date(time));
+		}
+		int millis = (int) (local - days * DAY);
+
+		// days since 0000-03-01,see http://howardhinnant.github.io/date_algorithms.html
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+		int hour = millis / (int) HOUR;
+
+		StringBuilder buffer = new StringBuilder(length);
+		for (int i = 0; i < fields.length; i++) {
+			int width = widths[i];
+			switch (fields[i]) {
+			case TEXT:
+				buffer.append(texts[width]);
+				break;
+			case YEAR:
+				if (width == 2) {
+					pad(buffer, year % 100, 2);
+				} else {
+					pad(buffer, year, width);
+				}
+				break;
+			case MONTH:
+				pad(buffer, month, width);
+				break;
+			case DAY_OF_MONTH:
+				pad(buffer, day, width);
+				break;
+			case HOUR_OF_DAY:
+				pad(buffer, hour, width);
+				break;
+			case HOUR_1_12:
+				pad(buffer, hour % 12 == 0 ? 12 : hour % 12, width);
+				break;
+			case HOUR_1_24:
+				pad(buffer, hour == 0 ? 24 : hour, width);
+				break;
+			case HOUR_0_11:
+				pad(buffer, hour % 12, width);
+				break;
+			case MINUTE_OF_HOUR:
+				pad(buffer, millis / (int) MINUTE % 60, width);
+				break;
+			case SECOND_OF_MINUTE:
+				pad(buffer, millis / (int) SECOND % 60, width);
+				break;
+			default:
+				pad(buffer, millis % 1000, width);
+				break;
+			}
+		}
+		return buffer.toString();
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+
+	/**
+	 * 按SimpleDateFormat的规则把模板拆分为字段和文本
+	 * @return 所有字母都可以按整数运算格式化时为true
+	 */
+	protected static boolean compile(String pattern, List<int[]> tokens, List<String> literals) {
+		StringBuilder text = new StringBuilder();
+		boolean quoted = false;
+		int length = pattern.length();
+		for (int i = 0; i < length; i++) {
+			char c = pattern.charAt(i);
+			if (c == '\'') {
+				if (i + 1 < length && pattern.charAt(i + 1) == '\'') {
+					// '' is a single quote,both inside and outside of a quoted text
+					text.append(c);
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+				continue;
+			}
+			if (quoted || !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')) {
+				text.append(c);
+				continue;
+			}
+			int count = 1;
+			while (i + 1 < length && pattern.charAt(i + 1) == c) {
+				count++;
+				i++;
+			}
+			int field = fieldOf(c, count);
+			if (field < 0) {
+				return false;
+			}
+			if (text.length() > 0) {
+				tokens.add(new int[] { TEXT, literals.size() });
+				literals.add(text.toString());
+				text.setLength(0);
+			}
+			tokens.add(new int[] { field, count });
+		}
+		if (quoted) {
+			// SimpleDateFormat rejects an unterminated quote
+			return false;
+		}
+		if (text.length() > 0) {
+			tokens.add(new int[] { TEXT, literals.size() });
+			literals.add(text.toString());
+		}
+		return true;
+	}
+
+	protected static int fieldOf(char letter, int count) {
+		switch (letter) {
+		case 'y':
+			return YEAR;
+		case 'M':
+			// MMM and longer are month names
+			return count <= 2 ? MONTH : -1;
+		case 'd':
+			return DAY_OF_MONTH;
+		case 'H':
+			return HOUR_OF_DAY;
+		case 'h':
+			return HOUR_1_12;
+		case 'k':
+			return HOUR_1_24;
+		case 'K':
+			return HOUR_0_11;
+		case 'm':
+			return MINUTE_OF_HOUR;
+		case 's':
+			return SECOND_OF_MINUTE;
+		case 'S':
+			return MILLISECOND;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * 读取数字，与Integer.parseInt(value.substring(index, index + digits))一致
+	 */
+	protected static int number(String value, int index, int digits) {
+		int result = 0;
+		for (int i = index; i < index + digits; i++) {
+			int digit = value.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				// signs and illegal characters
+				return Integer.parseInt(value.substring(index, index + digits));
+			}
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	/**
+	 * 左侧补0至指定宽度
+	 */
+	protected static void pad(StringBuilder buffer, int value, int width) {
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		for (int i = digits; i < width; i++) {
+			buffer.append('0');
+		}
+		buffer.append(value);
+	}
+
+	/**
+	 * 公历日期距1970-01-01的天数
+	 */
+	protected static long daysOf(long year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * 缺省Locale下的Calendar是否为公历，数字是否为ASCII
+	 */
+	protected static boolean check() {
+		return "gregory".equals(Calendar.getInstance().getCalendarType())
+				&& DecimalFormatSymbols.getInstance().getZeroDigit() == '0';
+	}
+}
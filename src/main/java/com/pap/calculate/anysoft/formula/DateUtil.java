@@ -1,16 +1,79 @@
 package com.pap.calculate.anysoft.formula;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * 日期工具类
- * @author duanyy
  *
+ * <br>
+ * 模板编译为{@link DatePattern}后缓存，解析和格式化都基于epoch毫秒数，可被多个线程同时调用。
+ * @author duanyy
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 模板只编译一次，不再每次调用applyPattern和创建Calendar;增加基于epoch毫秒数的{@link #parseTime(String, String)}
+ * 和{@link #formatTime(long, String)}
  */
 public class DateUtil {
+	/**
+	 * 缓存的模板数的上限，超出后清空
+	 */
+	protected static final int MAX_PATTERNS = 256;
+
+	/**
+	 * 编译后的模板
+	 */
+	protected static final ConcurrentHashMap<String,DatePattern> patterns = new ConcurrentHashMap<String,DatePattern>();
+
+	/**
+	 * 解析和格式化所用的时区，缺省为加载时的缺省时区
+	 */
+	protected static volatile TimeZone timeZone = TimeZone.getDefault();
+
+	/**
+	 * 设置解析和格式化所用的时区
+	 * @param _timeZone 时区
+	 */
+	public static void setTimeZone(TimeZone _timeZone){
+		if (_timeZone == null){
+			throw new IllegalArgumentException("timeZone must not be null.");
+		}
+		timeZone = (TimeZone)_timeZone.clone();
+	}
+
+	public static TimeZone getTimeZone(){
+		return (TimeZone)timeZone.clone();
+	}
+
+	/**
+	 * 获取编译后的模板
+	 * @param _pattern 模板
+	 * @return 编译后的模板
+	 */
+	public static DatePattern getPattern(String _pattern){
+		DatePattern found = patterns.get(_pattern);
+		if (found == null){
+			if (patterns.size() >= MAX_PATTERNS){
+				patterns.clear();
+			}
+			found = new DatePattern(_pattern);
+			patterns.put(_pattern, found);
+		}
+		return found;
+	}
+
+	/**
+	 * 按照模版解析日期
+	 * @param _value 字符串型日期
+	 * @param _pattern 模版
+	 * @return epoch毫秒数，无法解析时为{@link DatePattern#NONE}
+	 */
+	public static long parseTime(String _value,String _pattern){
+		return getPattern(_pattern).parse(_value, timeZone);
+	}
+
 	/**
 	 * 按照模版解析日期
 	 * <p>如果_instance为空,则会创建新的日期实例;如果不为空,则将解析结果填入指定的实例.</p>
@@ -20,84 +83,15 @@ public class DateUtil {
 	 * @return 日期实例
 	 */
 	public static Date parseDate(String _value,String _pattern,Date _instance){
-		if (_value.length() < _pattern.length()) return _instance;
-		int _year = 0;
-		int _month = 0;
-		int _day = 0;
-		int _hour = 0;
-		int _minute = 0;
-		int _second = 0;
-		//to find the year
-		int _index = 0;
-		_index = _pattern.indexOf("yyyy");
-		if (_index >= 0){
-			//found
-			_year = Integer.parseInt(_value.substring(_index,_index + 4));
-		}else{
-			_index = _pattern.indexOf("yy");
-			if (_index >= 0){
-				_year = Integer.parseInt(_value.substring(_index,_index + 2));
-				_year += 2000;
-			}else{
-				return _instance;
-			}
-		}
-		
-		//to find the month
-		_index = _pattern.indexOf("MM");
-		if (_index >= 0){
-			_month = Integer.parseInt(_value.substring(_index,_index + 2));
-			_month -= 1;
-		}else{
-			return _instance;
-		}
-		
-		//to find the day
-		_index = _pattern.indexOf("dd");
-		if (_index >= 0){
-			_day = Integer.parseInt(_value.substring(_index,_index + 2));
-		}else{
-			return _instance;
-		}
-		
-		//to find the hour
-		_index = _pattern.indexOf("JJ");
-		if (_index >= 0){
-			_hour = Integer.parseInt(_value.substring(_index,_index + 2));
-		}else{
-			_index = _pattern.indexOf("HH");
-			if (_index >= 0){
-				_hour = Integer.parseInt(_value.substring(_index,_index + 2));
-			}else{
-				_hour = 0;
-			}
-		}
-
-		//to find the minute
-		_index = _pattern.indexOf("mm");
-		if (_index >= 0){
-			_minute = Integer.parseInt(_value.substring(_index,_index + 2));
-		}else{
-			_minute = 0;
-		}
-		
-		//to find the second
-		_index = _pattern.indexOf("ss");
-		if (_index >= 0){
-			_second = Integer.parseInt(_value.substring(_index,_index + 2));
-		}else{
-			_second = 0;
-		}
-		
-		Calendar calendar = Calendar.getInstance();
-		calendar.set(_year, _month, _day, _hour, _minute,_second);
+		long time = parseTime(_value, _pattern);
+		if (time == DatePattern.NONE) return _instance;
 		if (_instance != null){
-			_instance.setTime(calendar.getTimeInMillis());
+			_instance.setTime(time);
 			return _instance;
 		}
-		return calendar.getTime();
+		return new Date(time);
 	}
-	
+
 	/**
 	 * 按照模版解析日期
 	 * @param _value 字符串型的日期
@@ -107,24 +101,29 @@ public class DateUtil {
 	public static Date parseDate(String _value,String _pattern){
 		return parseDate(_value,_pattern,null);
 	}
-	
+
 	/**
 	 * 按照缺省模版解析日期
-	 * 
+	 *
 	 * <p>缺省模版为yyyyMMddHHmmss</p>
-	 * 
+	 *
 	 * @param _value 字符串型的日期
 	 * @return 日期实例
 	 */
 	public static Date parseDate(String _value){
 		return parseDate(_value,"yyyyMMddHHmmss");
 	}
-	
+
 	/**
-	 * 日期格式化工具
+	 * 按照模板格式化日期
+	 * @param _time epoch毫秒数
+	 * @param _pattern 模板
+	 * @return 格式化结果
 	 */
-	protected static SimpleDateFormat formater = new SimpleDateFormat("yyyyMMdd:HH");
-	
+	public static String formatTime(long _time,String _pattern){
+		return getPattern(_pattern).format(_time, timeZone);
+	}
+
 	/**
 	 * 按照模板格式化日期
 	 * @param _date 日期的实例
@@ -133,13 +132,9 @@ public class DateUtil {
 	 */
 	public static String formatDate(Date _date,String _pattern){
 		if (_date == null) return "";
-		if (formater == null){
-			formater = new SimpleDateFormat("yyyyMMdd:HH");
-		}
-	    formater.applyPattern(_pattern);
-	    return formater.format(_date);	
+		return formatTime(_date.getTime(), _pattern);
 	}
-	
+
 	/**
 	 * 将制定字符串型日期按照模板转化为基于其他模板的字符串型日期
 	 * @param value 待转换的字符串型日期
@@ -148,8 +143,8 @@ public class DateUtil {
 	 * @return 转化为的结果
 	 */
 	public static String transform(String value,String input_format,String output_format){
-		Date _date = parseDate(value,input_format);
-		if (_date == null) return "";
-		return formatDate(_date,output_format);		
+		long time = parseTime(value,input_format);
+		if (time == DatePattern.NONE) return "";
+		return formatTime(time,output_format);
 	}
 }
@@ -0,0 +1,415 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * 定点十进制数
+ *
+ * <br>
+ * 用于金额计算，值为unscaled / 10^scale:<br>
+ * - 小数位数不超过{@link DecimalUtil#MAX_SCALE}且缩放值在long范围内时，加减乘和比较都是long运算，结果精确<br>
+ * - 除法按指定的小数位数和舍入方式计算，与BigDecimal.divide(divisor,scale,mode)一致<br>
+ * - 只有运算真正溢出时才改用BigDecimal计算，结果能放回long时恢复为long表示<br>
+ *
+ * <p>Decimal不可变，可被多个线程共享。相等比较只比较数值，1.0和1.00相等。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class Decimal extends Number implements Comparable<Decimal> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 表达式中除法的缺省小数位数
+	 */
+	public static final int DEFAULT_DIVIDE_SCALE = 10;
+
+	public static final Decimal ZERO = new Decimal(0, 0, null);
+
+	public static final Decimal ONE = new Decimal(1, 0, null);
+
+	/**
+	 * 表达式中除法的小数位数和舍入方式，见{@link #setDivision(int, RoundingMode)}
+	 */
+	protected static volatile int divideScale = DEFAULT_DIVIDE_SCALE;
+	protected static volatile RoundingMode divideRounding = RoundingMode.HALF_UP;
+
+	/**
+	 * 缩放值，inflated不为null时无意义
+	 */
+	protected final long unscaled;
+
+	/**
+	 * 小数位数，inflated不为null时无意义
+	 */
+	protected final int scale;
+
+	/**
+	 * 无法用long表示时的值
+	 */
+	protected final BigDecimal inflated;
+
+	protected Decimal(long _unscaled, int _scale, BigDecimal _inflated) {
+		unscaled = _unscaled;
+		scale = _scale;
+		inflated = _inflated;
+	}
+
+	/**
+	 * 设置表达式中除法的小数位数和舍入方式，对所有公式生效
+	 * @param _scale 小数位数
+	 * @param _rounding 舍入方式
+	 */
+	public static void setDivision(int _scale, RoundingMode _rounding) {
+		if (_scale < 0) {
+			throw new IllegalArgumentException("scale must not be negative.");
+		}
+		if (_rounding == null) {
+			throw new IllegalArgumentException("rounding must not be null.");
+		}
+		divideRounding = _rounding;
+		divideScale = _scale;
+	}
+
+	public static int getDivideScale() {
+		return divideScale;
+	}
+
+	public static RoundingMode getDivideRounding() {
+		return divideRounding;
+	}
+
+	/**
+	 * 整数
+	 * @param value 值
+	 * @return Decimal
+	 */
+	public static Decimal valueOf(long value) {
+		return new Decimal(value, 0, null);
+	}
+
+	/**
+	 * unscaled / 10^scale
+	 * @param _unscaled 缩放值
+	 * @param _scale 小数位数
+	 * @return Decimal
+	 */
+	public static Decimal valueOf(long _unscaled, int _scale) {
+		if (_scale >= 0 && _scale <= DecimalUtil.MAX_SCALE) {
+			return new Decimal(_unscaled, _scale, null);
+		}
+		return valueOf(BigDecimal.valueOf(_unscaled, _scale));
+	}
+
+	/**
+	 * 由BigDecimal转换，能放入long时使用long表示
+	 * @param value 值
+	 * @return Decimal
+	 */
+	public static Decimal valueOf(BigDecimal value) {
+		int _scale = value.scale();
+		if (_scale < 0) {
+			// no negative scale in the compact form
+			value = value.setScale(0);
+			_scale = 0;
+		}
+		BigInteger _unscaled = value.unscaledValue();
+		if (_scale <= DecimalUtil.MAX_SCALE && _unscaled.bitLength() < 64) {
+			return new Decimal(_unscaled.longValue(), _scale, null);
+		}
+		return new Decimal(0, 0, value);
+	}
+
+	/**
+	 * 解析十进制字符串，形如[-+]digits[.digits]时不创建BigDecimal，其他格式(如科学计数法)与BigDecimal一致
+	 * @param value 字符串
+	 * @return Decimal
+	 * @throws NumberFormatException 格式错误
+	 */
+	public static Decimal valueOf(String value) {
+		int length = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			i++;
+		}
+		long _unscaled = 0;
+		int _scale = -1;
+		int digits = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c == '.' && _scale < 0) {
+				_scale = 0;
+				continue;
+			}
+			int digit = c - '0';
+			if (digit < 0 || digit > 9 || _unscaled > (Long.MAX_VALUE - digit) / 10) {
+				return valueOf(new BigDecimal(value));
+			}
+			_unscaled = _unscaled * 10 + digit;
+			digits++;
+			if (_scale >= 0) {
+				_scale++;
+			}
+		}
+		if (digits == 0 || _scale > DecimalUtil.MAX_SCALE) {
+			return valueOf(new BigDecimal(value));
+		}
+		return new Decimal(negative ? -_unscaled : _unscaled, _scale < 0 ? 0 : _scale, null);
+	}
+
+	/**
+	 * 是否为long表示
+	 * @return 是否
+	 */
+	public boolean isCompact() {
+		return inflated == null;
+	}
+
+	/**
+	 * 小数位数
+	 * @return 小数位数
+	 */
+	public int scale() {
+		return inflated == null ? scale : inflated.scale();
+	}
+
+	/**
+	 * 符号
+	 * @return -1,0或1
+	 */
+	public int signum() {
+		return inflated == null ? Long.signum(unscaled) : inflated.signum();
+	}
+
+	public Decimal add(Decimal other) {
+		if (inflated == null && other.inflated == null) {
+			try {
+				if (scale == other.scale) {
+					return new Decimal(DecimalUtil.addExact(unscaled, other.unscaled), scale, null);
+				}
+				if (scale > other.scale) {
+					return new Decimal(DecimalUtil.addExact(unscaled, rescale(other.unscaled, scale - other.scale)), scale, null);
+				}
+				return new Decimal(DecimalUtil.addExact(rescale(unscaled, other.scale - scale), other.unscaled), other.scale, null);
+			} catch (ArithmeticException ex) {
+				// overflow,fall through to BigDecimal
+			}
+		}
+		return valueOf(toBigDecimal().add(other.toBigDecimal()));
+	}
+
+	public Decimal subtract(Decimal other) {
+		if (inflated == null && other.inflated == null) {
+			try {
+				if (scale == other.scale) {
+					return new Decimal(DecimalUtil.subtractExact(unscaled, other.unscaled), scale, null);
+				}
+				if (scale > other.scale) {
+					return new Decimal(DecimalUtil.subtractExact(unscaled, rescale(other.unscaled, scale - other.scale)), scale,
+							null);
+				}
+				return new Decimal(DecimalUtil.subtractExact(rescale(unscaled, other.scale - scale), other.unscaled),
+						other.scale, null);
+			} catch (ArithmeticException ex) {
+				// overflow,fall through to BigDecimal
+			}
+		}
+		return valueOf(toBigDecimal().subtract(other.toBigDecimal()));
+	}
+
+	public Decimal multiply(Decimal other) {
+		if (inflated == null && other.inflated == null && scale + other.scale <= DecimalUtil.MAX_SCALE) {
+			try {
+				return new Decimal(DecimalUtil.multiplyExact(unscaled, other.unscaled), scale + other.scale, null);
+			} catch (ArithmeticException ex) {
+				// overflow,fall through to BigDecimal
+			}
+		}
+		return valueOf(toBigDecimal().multiply(other.toBigDecimal()));
+	}
+
+	/**
+	 * 除法
+	 * @param other 除数
+	 * @param _scale 结果的小数位数
+	 * @param mode 舍入方式
+	 * @return 商
+	 * @throws ArithmeticException 除数为0，或者舍入方式为UNNECESSARY但需要舍入
+	 */
+	public Decimal divide(Decimal other, int _scale, RoundingMode mode) {
+		if (other.signum() == 0) {
+			throw new ArithmeticException("Division by zero");
+		}
+		if (inflated == null && other.inflated == null && _scale <= DecimalUtil.MAX_SCALE) {
+			long result = DecimalUtil.divide(unscaled, scale, other.unscaled, other.scale, _scale, mode);
+			if (result != DecimalUtil.UNKNOWN) {
+				return new Decimal(result, _scale, null);
+			}
+		}
+		return valueOf(toBigDecimal().divide(other.toBigDecimal(), _scale, mode));
+	}
+
+	/**
+	 * 按表达式的缺省小数位数和舍入方式相除
+	 * @param other 除数
+	 * @return 商
+	 */
+	public Decimal divide(Decimal other) {
+		return divide(other, divideScale, divideRounding);
+	}
+
+	/**
+	 * 改变小数位数
+	 * @param _scale 小数位数
+	 * @param mode 舍入方式
+	 * @return 结果
+	 */
+	public Decimal setScale(int _scale, RoundingMode mode) {
+		if (inflated == null && _scale >= 0 && _scale <= DecimalUtil.MAX_SCALE) {
+			if (_scale < scale) {
+				long power = DecimalUtil.LONG_POWERS[scale - _scale];
+				long q = unscaled / power;
+				long r = Math.abs(unscaled % power);
+				if (r != 0 && DecimalUtil.increment(mode, unscaled < 0, (q & 1) != 0, Long.compare(r, power - r))) {
+					q += unscaled < 0 ? -1 : 1;
+				}
+				return new Decimal(q, _scale, null);
+			}
+			if (_scale == scale) {
+				return this;
+			}
+			try {
+				return new Decimal(rescale(unscaled, _scale - scale), _scale, null);
+			} catch (ArithmeticException ex) {
+				// overflow,fall through to BigDecimal
+			}
+		}
+		return valueOf(toBigDecimal().setScale(_scale, mode));
+	}
+
+	public Decimal negate() {
+		if (inflated == null && unscaled != Long.MIN_VALUE) {
+			return new Decimal(-unscaled, scale, null);
+		}
+		return valueOf(toBigDecimal().negate());
+	}
+
+	@Override
+	public int compareTo(Decimal other) {
+		if (inflated == null && other.inflated == null) {
+			if (scale == other.scale) {
+				return Long.compare(unscaled, other.unscaled);
+			}
+			try {
+				if (scale > other.scale) {
+					return Long.compare(unscaled, rescale(other.unscaled, scale - other.scale));
+				}
+				return Long.compare(rescale(unscaled, other.scale - scale), other.unscaled);
+			} catch (ArithmeticException ex) {
+				// overflow,compare as BigDecimal
+			}
+		}
+		return toBigDecimal().compareTo(other.toBigDecimal());
+	}
+
+	/**
+	 * 转换为BigDecimal
+	 * @return BigDecimal
+	 */
+	public BigDecimal toBigDecimal() {
+		return inflated == null ? BigDecimal.valueOf(unscaled, scale) : inflated;
+	}
+
+	@Override
+	public double doubleValue() {
+		if (DecimalUtil.isExact(unscaled) && inflated == null) {
+			return DecimalUtil.toDouble(unscaled, scale);
+		}
+		return toBigDecimal().doubleValue();
+	}
+
+	@Override
+	public float floatValue() {
+		return toBigDecimal().floatValue();
+	}
+
+	@Override
+	public long longValue() {
+		return inflated == null ? unscaled / DecimalUtil.LONG_POWERS[scale] : inflated.longValue();
+	}
+
+	/**
+	 * 截断小数部分转换为long
+	 * @return long值
+	 * @throws ArithmeticException 超出long的范围
+	 */
+	public long toLong() {
+		if (inflated == null) {
+			return unscaled / DecimalUtil.LONG_POWERS[scale];
+		}
+		BigInteger value = inflated.toBigInteger();
+		if (value.bitLength() > 63) {
+			throw new DecimalUtil.LongOverflowException();
+		}
+		return value.longValue();
+	}
+
+	@Override
+	public int intValue() {
+		return (int) longValue();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof Decimal && compareTo((Decimal) other) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		// equal values always have the same nearest double
+		long bits = Double.doubleToLongBits(doubleValue() + 0.0);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	/**
+	 * 不使用科学计数法的十进制字符串，保留全部小数位数，与BigDecimal.toPlainString()一致
+	 */
+	@Override
+	public String toString() {
+		if (inflated != null || unscaled == Long.MIN_VALUE) {
+			return toBigDecimal().toPlainString();
+		}
+		if (scale == 0) {
+			return Long.toString(unscaled);
+		}
+		String digits = Long.toString(Math.abs(unscaled));
+		StringBuilder buffer = new StringBuilder(digits.length() + scale + 3);
+		if (unscaled < 0) {
+			buffer.append('-');
+		}
+		int point = digits.length() - scale;
+		if (point <= 0) {
+			buffer.append("0.");
+			for (int i = point; i < 0; i++) {
+				buffer.append('0');
+			}
+			buffer.append(digits);
+		} else {
+			buffer.append(digits, 0, point).append('.').append(digits, point, digits.length());
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * value * 10^digits
+	 * @throws ArithmeticException 溢出
+	 */
+	protected static long rescale(long value, int digits) {
+		return DecimalUtil.multiplyExact(value, DecimalUtil.LONG_POWERS[digits]);
+	}
+}
@@ -0,0 +1,361 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.math.RoundingMode;
+
+/**
+ * 十进制舍入工具类
+ *
+ * <br>
+ * 以缩放的long(unscaled,scale，值为unscaled/10^scale)表示十进制数，舍入和除法全部为整数或double运算，
+ * 不创建BigDecimal、DecimalFormat和字符串。<br>
+ *
+ * - double的十进制值有两种理解:BigDecimal(Double.toString(x))使用的十进制表示，
+ * 以及DecimalFormat使用的精确二进制值，两种都提供，结果与对应的BigDecimal/DecimalFormat计算一致<br>
+ * - 无法保证一致的输入(数值过大、位数过多、非有限值等)返回{@link #UNKNOWN}，由调用方按原来的方式计算<br>
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 增加不填充调用栈的long加减乘溢出检查
+ */
+public class DecimalUtil {
+
+	/**
+	 * 无法快速计算时的返回值
+	 */
+	public static final long UNKNOWN = Long.MIN_VALUE;
+
+	/**
+	 * 支持的最大小数位数
+	 */
+	public static final int MAX_SCALE = 18;
+
+	/**
+	 * 可以快速计算的最大缩放值，在此范围内double的舍入误差远小于0.5
+	 */
+	protected static final double LIMIT = 1e14;
+
+	/**
+	 * long可以精确表示为double的范围
+	 */
+	protected static final long EXACT = 1L << 53;
+
+	protected static final long[] LONG_POWERS = new long[MAX_SCALE + 1];
+	protected static final double[] DOUBLE_POWERS = new double[23];
+
+	/**
+	 * Dekker乘法的拆分常数,2^27+1
+	 */
+	protected static final double SPLIT = 134217729.0;
+
+	static {
+		LONG_POWERS[0] = 1;
+		for (int i = 1; i < LONG_POWERS.length; i++) {
+			LONG_POWERS[i] = LONG_POWERS[i - 1] * 10;
+		}
+		DOUBLE_POWERS[0] = 1;
+		for (int i = 1; i < DOUBLE_POWERS.length; i++) {
+			// exact up to 10^22
+			DOUBLE_POWERS[i] = DOUBLE_POWERS[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * 缩放值对应的double，与new BigDecimal(unscaled).movePointLeft(scale).doubleValue()一致
+	 * @param unscaled 缩放值，绝对值不超过2^53
+	 * @param scale 小数位数
+	 * @return double
+	 */
+	public static double toDouble(long unscaled, int scale) {
+		// both operands are exact,so the quotient is correctly rounded
+		return unscaled / DOUBLE_POWERS[scale];
+	}
+
+	/**
+	 * x的十进制表示(Double.toString)的缩放值
+	 * @param x 数值
+	 * @param scale 小数位数
+	 * @return 缩放值，x在该小数位数下不能精确表示时为{@link #UNKNOWN}
+	 */
+	public static long unscaled(double x, int scale) {
+		if (scale < 0 || scale >= DOUBLE_POWERS.length) {
+			return UNKNOWN;
+		}
+		double y = x * DOUBLE_POWERS[scale];
+		if (!(Math.abs(y) < LIMIT)) {
+			return UNKNOWN;
+		}
+		double c = Math.rint(y);
+		// within the limit at most one decimal at this scale converts back to x
+		return c / DOUBLE_POWERS[scale] == x ? (long) c : UNKNOWN;
+	}
+
+	/**
+	 * x的十进制表示(Double.toString)的小数位数
+	 * @param x 数值
+	 * @return 小数位数，超出快速计算的范围时为-1
+	 */
+	public static int scaleOf(double x) {
+		double a = Math.abs(x);
+		for (int scale = 0; scale <= MAX_SCALE && a * DOUBLE_POWERS[scale] < LIMIT; scale++) {
+			if (unscaled(x, scale) != UNKNOWN) {
+				return scale;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 按Double.toString(x)的十进制值四舍五入(ROUND_HALF_UP)
+	 * @param x 数值
+	 * @param scale 小数位数
+	 * @return 舍入后的缩放值，无法快速计算时为{@link #UNKNOWN}
+	 */
+	public static long roundHalfUp(double x, int scale) {
+		if (scale < 0 || scale >= DOUBLE_POWERS.length) {
+			return UNKNOWN;
+		}
+		double a = Math.abs(x);
+		double y = a * DOUBLE_POWERS[scale];
+		if (!(y < LIMIT)) {
+			return UNKNOWN;
+		}
+		long k = (long) y;
+		/*
+		 * The decimal string of x lies closer to x than any other double,
+		 * so it is above the tie k+0.5 exactly when x is above the double nearest to it.
+		 */
+		double tie = (2 * k + 1) / (2 * DOUBLE_POWERS[scale]);
+		long r = a >= tie ? k + 1 : k;
+		return x < 0 ? -r : r;
+	}
+
+	/**
+	 * 按Double.toString(x)的十进制值远离0舍入(ROUND_UP)
+	 * @param x 数值
+	 * @param scale 小数位数
+	 * @return 舍入后的缩放值，无法快速计算时为{@link #UNKNOWN}
+	 */
+	public static long roundUp(double x, int scale) {
+		if (scale < 0 || scale >= DOUBLE_POWERS.length) {
+			return UNKNOWN;
+		}
+		double a = Math.abs(x);
+		double y = a * DOUBLE_POWERS[scale];
+		if (!(y < LIMIT)) {
+			return UNKNOWN;
+		}
+		double c = Math.rint(y);
+		double nearest = c / DOUBLE_POWERS[scale];
+		long r;
+		if (nearest == a) {
+			// the decimal string of x has no more digits than scale
+			r = (long) c;
+		} else {
+			r = (long) (a > nearest ? c : c - 1) + 1;
+		}
+		return x < 0 ? -r : r;
+	}
+
+	/**
+	 * 按x的精确二进制值四舍六入五成双(ROUND_HALF_EVEN)，与DecimalFormat格式化double一致
+	 * @param x 数值
+	 * @param scale 小数位数
+	 * @return 舍入后的缩放值，无法快速计算时为{@link #UNKNOWN}
+	 */
+	public static long roundHalfEven(double x, int scale) {
+		if (scale < 0 || scale >= DOUBLE_POWERS.length) {
+			return UNKNOWN;
+		}
+		double a = Math.abs(x);
+		double p = DOUBLE_POWERS[scale];
+		double hi = a * p;
+		if (!(hi < LIMIT) || (a != 0 && a < 1e-280)) {
+			// out of range,or the error term below might underflow
+			return UNKNOWN;
+		}
+		// a * p == hi + lo exactly
+		double lo = productError(a, p, hi);
+		double k = Math.floor(hi);
+		double frac = hi - k;
+		long r;
+		if (frac > 0.5 || (frac == 0.5 && (lo > 0 || (lo == 0 && ((long) k & 1) != 0)))) {
+			r = (long) k + 1;
+		} else {
+			// a value just below an integer (frac == 0,lo < 0) also rounds to k
+			r = (long) k;
+		}
+		return x < 0 ? -r : r;
+	}
+
+	/**
+	 * 两个十进制数相除，保留指定位数，与BigDecimal.divide(divisor,scale,mode)一致
+	 * @param dividend 被除数的缩放值
+	 * @param dividendScale 被除数的小数位数
+	 * @param divisor 除数的缩放值
+	 * @param divisorScale 除数的小数位数
+	 * @param scale 结果的小数位数
+	 * @param mode 舍入方式
+	 * @return 结果的缩放值，溢出或除数为0时为{@link #UNKNOWN}
+	 * @throws ArithmeticException 舍入方式为UNNECESSARY但需要舍入
+	 */
+	public static long divide(long dividend, int dividendScale, long divisor, int divisorScale, int scale,
+			RoundingMode mode) {
+		// dividend * 10^(divisorScale + scale) / (divisor * 10^dividendScale)
+		int up = divisorScale + scale;
+		if (divisor == 0 || dividend == Long.MIN_VALUE || divisor == Long.MIN_VALUE || scale < 0
+				|| dividendScale < 0 || divisorScale < 0 || dividendScale >= LONG_POWERS.length) {
+			return UNKNOWN;
+		}
+		boolean negative = (dividend < 0) != (divisor < 0);
+		long n = Math.abs(dividend);
+		long d;
+		try {
+			d = multiplyExact(Math.abs(divisor), LONG_POWERS[dividendScale]);
+		} catch (ArithmeticException ex) {
+			return UNKNOWN;
+		}
+		// long division,a few digits at a time so that remainder * 10^digits does not overflow
+		long q = n / d;
+		long r = n % d;
+		int step = 0;
+		while (step < MAX_SCALE && d < LONG_POWERS[MAX_SCALE - step - 1]) {
+			step++;
+		}
+		while (up > 0) {
+			int digits = Math.min(up, step);
+			if (digits == 0) {
+				return UNKNOWN;
+			}
+			long scaled = r * LONG_POWERS[digits];
+			try {
+				q = addExact(multiplyExact(q, LONG_POWERS[digits]), scaled / d);
+			} catch (ArithmeticException ex) {
+				return UNKNOWN;
+			}
+			r = scaled % d;
+			up -= digits;
+		}
+		if (r != 0 && increment(mode, negative, (q & 1) != 0, Long.compare(r, d - r))) {
+			if (q == Long.MAX_VALUE) {
+				return UNKNOWN;
+			}
+			q++;
+		}
+		return negative ? -q : q;
+	}
+
+	/**
+	 * 舍去的部分不为0时，商的绝对值是否加1
+	 * @param mode 舍入方式
+	 * @param negative 结果是否为负
+	 * @param odd 商是否为奇数
+	 * @param half 舍去部分与0.5比较的结果
+	 * @return 是否加1
+	 */
+	protected static boolean increment(RoundingMode mode, boolean negative, boolean odd, int half) {
+		switch (mode) {
+		case UP:
+			return true;
+		case DOWN:
+			return false;
+		case CEILING:
+			return !negative;
+		case FLOOR:
+			return negative;
+		case HALF_UP:
+			return half >= 0;
+		case HALF_DOWN:
+			return half > 0;
+		case HALF_EVEN:
+			return half > 0 || (half == 0 && odd);
+		default:
+			throw new ArithmeticException("Rounding necessary");
+		}
+	}
+
+	/**
+	 * 判断缩放值能否精确转换为double
+	 * @param unscaled 缩放值
+	 * @return 是否可以
+	 */
+	public static boolean isExact(long unscaled) {
+		return unscaled != UNKNOWN && unscaled > -EXACT && unscaled < EXACT;
+	}
+
+	/**
+	 * long加法，溢出时抛出{@link LongOverflowException}
+	 * @param x 加数
+	 * @param y 加数
+	 * @return 和
+	 */
+	public static long addExact(long x, long y) {
+		long r = x + y;
+		if (((x ^ r) & (y ^ r)) < 0) {
+			throw new LongOverflowException();
+		}
+		return r;
+	}
+
+	/**
+	 * long减法，溢出时抛出{@link LongOverflowException}
+	 * @param x 被减数
+	 * @param y 减数
+	 * @return 差
+	 */
+	public static long subtractExact(long x, long y) {
+		long r = x - y;
+		if (((x ^ y) & (x ^ r)) < 0) {
+			throw new LongOverflowException();
+		}
+		return r;
+	}
+
+	/**
+	 * long乘法，溢出时抛出{@link LongOverflowException}
+	 * @param x 乘数
+	 * @param y 乘数
+	 * @return 积
+	 */
+	public static long multiplyExact(long x, long y) {
+		long r = x * y;
+		if (((Math.abs(x) | Math.abs(y)) >>> 31 != 0)
+				&& ((y != 0 && r / y != x) || (x == Long.MIN_VALUE && y == -1))) {
+			throw new LongOverflowException();
+		}
+		return r;
+	}
+
+	/**
+	 * a * b的舍入误差(Dekker)，要求计算过程不溢出、不下溢
+	 */
+	protected static double productError(double a, double b, double product) {
+		double c = SPLIT * a;
+		double ah = c - (c - a);
+		double al = a - ah;
+		c = SPLIT * b;
+		double bh = c - (c - b);
+		double bl = b - bh;
+		return ((ah * bh - product) + ah * bl + al * bh) + al * bl;
+	}
+
+	/**
+	 * long运算溢出
+	 *
+	 * <br>
+	 * 溢出后由调用方提升为Decimal重新计算，属于正常的控制流，所以不填充调用栈。
+	 * Math.addExact等抛出的异常要填充调用栈，而且会导致JIT编译的代码退优化，每次溢出的开销是它的数十倍。
+	 */
+	public static class LongOverflowException extends ArithmeticException {
+		private static final long serialVersionUID = 1L;
+
+		public LongOverflowException() {
+			super("long overflow");
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
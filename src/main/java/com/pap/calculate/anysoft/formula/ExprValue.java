@@ -1,13 +1,31 @@
 package com.pap.calculate.anysoft.formula;
 
+import java.math.RoundingMode;
 import java.util.Date;
 
 /**
  * Value of Expression
  * 
- *  <code>ExprValue</code> supports five basic data types:long,string,double,boolean,date.
+ *  <code>ExprValue</code> supports five basic data types:long,string,double,boolean,date,
+ *  and the optional fixed-point type decimal({@link Decimal}).
  * @author duanyy
  * @version 1.0.0 
+ * @version 1.0.1
+ * - add,sub,mul,div,mod返回新的实例,不再修改当前值
+ * @version 1.0.2
+ * - 增加Decimal类型，与long运算时结果为Decimal，与double运算时结果为double
+ * @version 1.0.3
+ * - long的add,sub,mul溢出时结果提升为Decimal，不再回绕
+ * @version 1.0.4
+ * - date保存为epoch毫秒数，不再共享可变的Date实例
+ * @version 1.0.5
+ * - string可保存为{@link Rope}等CharSequence，+运算不再每次复制，需要String时才生成
+ * @version 1.0.6
+ * - long溢出提升的Decimal仍按整数运算:除法取整，支持mod，结果在long的范围内时恢复为Long;Decimal支持mod
+ * @version 1.0.7
+ * - 增加{@link #copy()}，共享的值返回给调用方之前复制
+ * @version 1.0.8
+ * - double与long比较时，小于的结果为-1(原来为0，1.5<2的结果为false)
  *
  */
 public class ExprValue implements Comparable<ExprValue>{
@@ -20,11 +38,29 @@ public class ExprValue implements Comparable<ExprValue>{
 	 */
 	protected DataType dataType = DataType.Void;
 
+	/**
+	 * whether the decimal value is promoted from an overflowed long value,
+	 * such a value is still computed as an integer
+	 */
+	protected boolean promoted = false;
+
 	/**
 	 * to get data type of the value
 	 * @return
 	 */
 	public DataType getDataType(){return dataType;}
+
+	/**
+	 * to get a new instance with the same value
+	 * @return the copy
+	 */
+	protected ExprValue copy(){
+		ExprValue result = new ExprValue();
+		result.value = value;
+		result.dataType = dataType;
+		result.promoted = promoted;
+		return result;
+	}
 	
 	/**
 	 * constructor
@@ -48,6 +84,14 @@ public class ExprValue implements Comparable<ExprValue>{
 	public ExprValue(String stringValue){
 		setString(stringValue);
 	}
+
+	/**
+	 * constructor
+	 * @param stringValue string value,it is converted to String when needed
+	 */
+	public ExprValue(CharSequence stringValue){
+		setString(stringValue);
+	}
 	
 	/**
 	 * constructor 
@@ -65,6 +109,10 @@ public class ExprValue implements Comparable<ExprValue>{
 		setDouble(doubleValue);
 	}
 	
+	public ExprValue(Decimal decimalValue){
+		setDecimal(decimalValue);
+	}
+	
 	public ExprValue setLong(long longValue){
 		value = Long.valueOf(longValue);
 		dataType = DataType.Long;		
@@ -84,26 +132,52 @@ public class ExprValue implements Comparable<ExprValue>{
 	}
 
 	public ExprValue setDate(Date dateValue) {
-		value = dateValue;
+		value = dateValue == null ? null : Long.valueOf(dateValue.getTime());
 		dataType = DataType.Date;
 		return this;
 	}
 
+	/**
+	 * set date value
+	 * @param time milliseconds since 1970-01-01T00:00:00Z
+	 * @return this
+	 */
+	public ExprValue setDate(long time) {
+		value = Long.valueOf(time);
+		dataType = DataType.Date;
+		return this;
+	}
+
+	public ExprValue setDecimal(Decimal decimalValue) {
+		value = decimalValue;
+		dataType = DataType.Decimal;
+		promoted = false;
+		return this;
+	}
+
 	public ExprValue setString(String stringValue) {
 		value = stringValue;
 		dataType = DataType.String;
 		return this;
 	}
 
+	public ExprValue setString(CharSequence stringValue) {
+		value = stringValue;
+		dataType = DataType.String;
+		return this;
+	}
+
 	/**
 	 * get long value from <code>ExprValue</code>
 	 * @return long value of the expr value
 	 * @throws FormulaException en excption when data type is mismatched
+	 * @throws ArithmeticException the decimal value is out of the range of long
 	 */
 	public long getLong(){
 		switch (dataType){
 		case Long:return ((Long)value).longValue();
 		case Double:return ((Double)value).longValue();
+		case Decimal:return ((Decimal)value).toLong();
 		}
 		throw new FormulaException("Can not get a long value from " + dataType.toString());
 	}
@@ -123,6 +197,8 @@ public class ExprValue implements Comparable<ExprValue>{
 			return ((Long) value).doubleValue();
 		case Double:
 			return ((Double) value).doubleValue();
+		case Decimal:
+			return ((Decimal) value).doubleValue();
 		}
 		throw new FormulaException("Can not get a double value from "
 				+ dataType.toString());
@@ -132,18 +208,62 @@ public class ExprValue implements Comparable<ExprValue>{
 		return (float)getDouble();
 	}
 	
+	/**
+	 * get decimal value from <code>ExprValue</code>
+	 * @return decimal value
+	 * @throws FormulaException en excption when data type is mismatched
+	 */
+	public Decimal getDecimal(){
+		switch (dataType) {
+		case Long:
+			return Decimal.valueOf(((Long) value).longValue());
+		case Decimal:
+			return (Decimal) value;
+		}
+		throw new FormulaException("Can not get a decimal value from "
+				+ dataType.toString());
+	}
+	
 	/**
 	 * get string value from <code>ExprValue</code>
 	 * @return double value
 	 * @throws FormulaException
 	 */
 	public String getString(){
-		return value.toString();
+		return toString();
 	}
 	
 	public String toString(){
+		if (dataType == DataType.Date){
+			return getDate().toString();
+		}
+		if (dataType == DataType.String && value != null && !(value instanceof String)){
+			// keep the flattened string
+			String string = value.toString();
+			value = string;
+			return string;
+		}
 		return value.toString();
 	}
+
+	/**
+	 * get string value without building a String
+	 * @return the string value,or the result of {@link #toString()} for other data types
+	 */
+	public CharSequence getCharSequence(){
+		if (dataType == DataType.String && value != null){
+			return (CharSequence)value;
+		}
+		return toString();
+	}
+	
+	/**
+	 * whether the value is null,such as a date which can not be parsed
+	 * @return true if the value is null
+	 */
+	public boolean isNull(){
+		return value == null;
+	}
 	
 	/**
 	 * get boolean value from <code>ExprValue</code>
@@ -169,40 +289,69 @@ public class ExprValue implements Comparable<ExprValue>{
 	public Date getDate(){
 		switch (dataType){
 		case Date:
-			return (Date)value;
+			return value == null ? null : new Date(((Long)value).longValue());
 		}
 		throw new FormulaException("Can not get a date value from "
 				+ dataType.toString());		
 	}
 	
+	/**
+	 * get date value as milliseconds since 1970-01-01T00:00:00Z
+	 * @return milliseconds
+	 * @throws FormulaException en excption when data type is mismatched or the date is null
+	 */
+	public long getTime(){
+		switch (dataType){
+		case Date:
+			if (value != null){
+				return ((Long)value).longValue();
+			}
+			throw new FormulaException("The date value is null");
+		}
+		throw new FormulaException("Can not get a date value from "
+				+ dataType.toString());
+	}
+	
 	/**
 	 * add
+	 * 
+	 * <br>The arithmetic methods do not change this value,the result is a new instance.
+	 * When add,sub or mul of two long values overflows,the exact result is returned as {@link Decimal}.
 	 * @param other anonther <code>ExprValue</code>
 	 * @return 
 	 * @throws FormulaException en excption when data type is mismatched
 	 */
 	public ExprValue add(ExprValue other){
+		if (isDecimal(other)){
+			return decimal(getDecimal().add(other.getDecimal()), other);
+		}
+		if (isMixed(other)){
+			return new ExprValue(getDouble() + other.getDouble());
+		}
 		switch (dataType){
 		case Long:
 			if (other.dataType == DataType.Long){
-				setLong(getLong() + other.getLong());
-				return this;
+				long l = getLong();
+				long r = other.getLong();
+				try {
+					return new ExprValue(DecimalUtil.addExact(l, r));
+				} catch (ArithmeticException ex){
+					// overflow,promote to decimal
+					return integer(Decimal.valueOf(l).add(Decimal.valueOf(r)));
+				}
 			}else{
 				if (other.dataType == DataType.Double){
-					setDouble(getLong() + other.getDouble());
-					return this;
+					return new ExprValue(getLong() + other.getDouble());
 				}
 			}
 			break;
 		case Double:
 			if (other.dataType == DataType.Long || other.dataType == DataType.Double){
-				setDouble(getDouble() + other.getDouble());
-				return this;
+				return new ExprValue(getDouble() + other.getDouble());
 			}
 			break;
 		case String:
-			setString(getString() + other.getString());
-			return this;
+			return new ExprValue(Rope.concat(getCharSequence(), other.getCharSequence()));
 		}
 		throw new FormulaException("Can not add value between "
 				+ dataType.toString() + " and " + other.dataType.toString());				
@@ -215,22 +364,32 @@ public class ExprValue implements Comparable<ExprValue>{
 	 * @throws FormulaException
 	 */
 	public ExprValue sub(ExprValue other){
+		if (isDecimal(other)){
+			return decimal(getDecimal().subtract(other.getDecimal()), other);
+		}
+		if (isMixed(other)){
+			return new ExprValue(getDouble() - other.getDouble());
+		}
 		switch (dataType){
 		case Long:
 			if (other.dataType == DataType.Long){
-				setLong(getLong() - other.getLong());
-				return this;
+				long l = getLong();
+				long r = other.getLong();
+				try {
+					return new ExprValue(DecimalUtil.subtractExact(l, r));
+				} catch (ArithmeticException ex){
+					// overflow,promote to decimal
+					return integer(Decimal.valueOf(l).subtract(Decimal.valueOf(r)));
+				}
 			}else{
 				if (other.dataType == DataType.Double){
-					setDouble(getLong() - other.getDouble());
-					return this;
+					return new ExprValue(getLong() - other.getDouble());
 				}
 			}
 			break;
 		case Double:
 			if (other.dataType == DataType.Long || other.dataType == DataType.Double){
-				setDouble(getDouble() - other.getDouble());
-				return this;
+				return new ExprValue(getDouble() - other.getDouble());
 			}
 			break;
 		}
@@ -245,22 +404,32 @@ public class ExprValue implements Comparable<ExprValue>{
 	 * @throws FormulaException
 	 */
 	public ExprValue mul(ExprValue other){
+		if (isDecimal(other)){
+			return decimal(getDecimal().multiply(other.getDecimal()), other);
+		}
+		if (isMixed(other)){
+			return new ExprValue(getDouble() * other.getDouble());
+		}
 		switch (dataType){
 		case Long:
 			if (other.dataType == DataType.Long){
-				setLong(getLong() * other.getLong());
-				return this;
+				long l = getLong();
+				long r = other.getLong();
+				try {
+					return new ExprValue(DecimalUtil.multiplyExact(l, r));
+				} catch (ArithmeticException ex){
+					// overflow,promote to decimal
+					return integer(Decimal.valueOf(l).multiply(Decimal.valueOf(r)));
+				}
 			}else{
 				if (other.dataType == DataType.Double){
-					setDouble(getLong() * other.getDouble());
-					return this;
+					return new ExprValue(getLong() * other.getDouble());
 				}
 			}
 			break;
 		case Double:
 			if (other.dataType == DataType.Long || other.dataType == DataType.Double){
-				setDouble(getDouble() * other.getDouble());
-				return this;
+				return new ExprValue(getDouble() * other.getDouble());
 			}
 			break;
 		}
@@ -275,19 +444,32 @@ public class ExprValue implements Comparable<ExprValue>{
 	 * @throws FormulaException
 	 */	
 	public ExprValue div(ExprValue other){
+		if (isDecimal(other)){
+			Decimal divisor = other.getDecimal();
+			if (divisor.signum() == 0)
+				throw new FormulaException("divided by zero");
+			if (isInteger() && other.isInteger()){
+				// the same as the division of long values
+				return integer(getDecimal().divide(divisor, 0, RoundingMode.DOWN));
+			}
+			return new ExprValue(getDecimal().divide(divisor));
+		}
+		if (isMixed(other)){
+			if (other.getDouble() == 0)
+				throw new FormulaException("divided by zero");
+			return new ExprValue(getDouble() / other.getDouble());
+		}
 		switch (dataType){
 		case Long:
 			if (other.dataType == DataType.Long){
 				if (other.getLong() == 0)
 					throw new FormulaException("divided by zero");
-				setLong(getLong() / other.getLong());
-				return this;
+				return new ExprValue(getLong() / other.getLong());
 			}else{
 				if (other.dataType == DataType.Double){
 					if (other.getDouble() == 0)
 						throw new FormulaException("divided by zero");
-					setDouble(getLong() / other.getDouble());
-					return this;
+					return new ExprValue(getLong() / other.getDouble());
 				}
 			}
 			break;
@@ -295,8 +477,7 @@ public class ExprValue implements Comparable<ExprValue>{
 			if (other.dataType == DataType.Long || other.dataType == DataType.Double){
 				if (other.getDouble() == 0)
 					throw new FormulaException("divided by zero");
-				setDouble(getDouble() / other.getDouble());
-				return this;
+				return new ExprValue(getDouble() / other.getDouble());
 			}
 			break;
 		}
@@ -304,6 +485,48 @@ public class ExprValue implements Comparable<ExprValue>{
 				+ dataType.toString() + " and " + other.dataType.toString());		
 	}
 	
+	/**
+	 * Decimal与Decimal或long之间的运算，结果为Decimal
+	 */
+	protected boolean isDecimal(ExprValue other){
+		return (dataType == DataType.Decimal && (other.dataType == DataType.Decimal || other.dataType == DataType.Long))
+				|| (dataType == DataType.Long && other.dataType == DataType.Decimal);
+	}
+	
+	/**
+	 * Decimal运算的结果，两个值都是整数(long或由long提升)时仍为整数
+	 */
+	protected ExprValue decimal(Decimal result, ExprValue other){
+		return isInteger() && other.isInteger() ? integer(result) : new ExprValue(result);
+	}
+	
+	/**
+	 * 整数运算的结果，在long的范围内时为Long，否则为提升后的Decimal
+	 */
+	protected static ExprValue integer(Decimal result){
+		if (result.isCompact() && result.scale() == 0){
+			return new ExprValue(result.toLong());
+		}
+		ExprValue value = new ExprValue(result);
+		value.promoted = true;
+		return value;
+	}
+	
+	/**
+	 * 是否为long或者由long提升的Decimal
+	 */
+	protected boolean isInteger(){
+		return dataType == DataType.Long || (dataType == DataType.Decimal && promoted);
+	}
+	
+	/**
+	 * Decimal与double之间的运算，结果为double
+	 */
+	protected boolean isMixed(ExprValue other){
+		return (dataType == DataType.Decimal && other.dataType == DataType.Double)
+				|| (dataType == DataType.Double && other.dataType == DataType.Decimal);
+	}
+	
 	/**
 	 * mod
 	 * @param other anther <code>ExprValue</code>
@@ -311,17 +534,43 @@ public class ExprValue implements Comparable<ExprValue>{
 	 * @throws FormulaException
 	 */	
 	public ExprValue mod(ExprValue other){
+		if (isDecimal(other)){
+			Decimal divisor = other.getDecimal();
+			if (divisor.signum() == 0)
+				throw new FormulaException("divided by zero");
+			// the same sign as the dividend,like the remainder of long values
+			Decimal dividend = getDecimal();
+			return decimal(dividend.subtract(dividend.divide(divisor, 0, RoundingMode.DOWN).multiply(divisor)), other);
+		}
 		switch (dataType){
 		case Long:
 			if (other.dataType == DataType.Long){
-				setLong(getLong() % other.getLong());
-				return this;
+				if (other.getLong() == 0)
+					throw new FormulaException("divided by zero");
+				return new ExprValue(getLong() % other.getLong());
 			}
 		}
 		throw new FormulaException("Can not mod value between "
 				+ dataType.toString() + " and " + other.dataType.toString());		
 	}
 	
+	/**
+	 * negate
+	 * @return the negative value
+	 * @throws FormulaException
+	 */
+	public ExprValue negate(){
+		switch (dataType){
+		case Long:
+			return new ExprValue(-getLong());
+		case Double:
+			return new ExprValue(-getDouble());
+		case Decimal:
+			return promoted ? integer(getDecimal().negate()) : new ExprValue(getDecimal().negate());
+		}
+		throw new FormulaException("Can not get a negative value of " + dataType.toString());
+	}
+	
 	/**
 	 * get value 
 	 * @return value of the <code>ExprValue</code>
@@ -333,14 +582,14 @@ public class ExprValue implements Comparable<ExprValue>{
 	 * @author duanyy
 	 * @version 1.0.0
 	 */
-	public enum DataType {Long,String,Date,Boolean,Double,Void}
+	public enum DataType {Long,String,Date,Boolean,Double,Void,Decimal}
 	
 	@Override
 	public int compareTo(ExprValue other) {
 		switch (dataType){
 		case String:
 			if (other.dataType == DataType.String){
-				return value.toString().compareTo(other.value.toString());
+				return toString().compareTo(other.toString());
 			}
 			break;
 		case Boolean:
@@ -350,37 +599,88 @@ public class ExprValue implements Comparable<ExprValue>{
 			break;
 		case Date:
 			if (other.dataType == DataType.Date){
-				return ((Date)value).compareTo((Date)other.value);
+				return compare(getTime(), other.getTime());
 			}
 			break;
 		case Long:
 			switch (other.dataType){
 			case Long:
-				return ((Long)value).compareTo((Long)other.value);
+				return compare(getLong(), other.getLong());
 			case Double:
-				boolean compare = getLong() > other.getDouble();
-				if (compare){
-					return 1;
-				}else{
-					return other.getDouble() > getLong() ? -1 : 0;
-				}
+				return compare(getLong(), other.getDouble());
+			case Decimal:
+				return getDecimal().compareTo(other.getDecimal());
 			}
 			break;
 		case Double:
 			switch (other.dataType){
 			case Double:
-				return ((Double)value).compareTo((Double)other.value);
+			case Decimal:
+				return compare(getDouble(), other.getDouble());
 			case Long:
-				boolean compare = getDouble() > other.getLong();
-				if (compare){
-					return 1;
-				}else{
-					return getDouble() > other.getLong() ? -1 : 0;
-				}
+				return compare(getDouble(), other.getLong());
+			}
+			break;
+		case Decimal:
+			switch (other.dataType){
+			case Long:
+			case Decimal:
+				return getDecimal().compareTo(other.getDecimal());
+			case Double:
+				return compare(getDouble(), other.getDouble());
 			}
 			break;
 		}
 		throw new FormulaException("Can not compare between "
 				+ dataType.toString() + " and " + other.dataType.toString());	
-	}	
+	}
+	
+	/**
+	 * compare between long values
+	 * 
+	 * <br>The primitive comparisons are shared by every evaluation engine,so all of them
+	 * give the same result as {@link #compareTo(ExprValue)}.
+	 * @param left left value
+	 * @param right right value
+	 * @return result of comparison
+	 */
+	public static int compare(long left,long right){
+		return left < right ? -1 : (left == right ? 0 : 1);
+	}
+	
+	/**
+	 * compare between long value and double value
+	 * @param left left value
+	 * @param right right value
+	 * @return result of comparison
+	 */
+	public static int compare(long left,double right){
+		if (left > right){
+			return 1;
+		}
+		return right > left ? -1 : 0;
+	}
+	
+	/**
+	 * compare between double value and long value
+	 * @param left left value
+	 * @param right right value
+	 * @return result of comparison
+	 */
+	public static int compare(double left,long right){
+		if (left > right){
+			return 1;
+		}
+		return left < right ? -1 : 0;
+	}
+	
+	/**
+	 * compare between double values
+	 * @param left left value
+	 * @param right right value
+	 * @return result of comparison
+	 */
+	public static int compare(double left,double right){
+		return Double.compare(left, right);
+	}
 }
@@ -4,6 +4,23 @@ package com.pap.calculate.anysoft.formula;
  * Expression
  * @author duanyy
  * @version 1.0.0
+ * @version 1.0.1
+ * - 增加evalDouble,evalLong,evalBoolean,静态类型已知的节点计算时不创建{@link ExprValue}
+ * @version 1.0.2
+ * - 节点在构造后不可变,计算时不修改任何共享状态,同一棵树可被多个线程并发计算
+ * @version 1.0.3
+ * - 增加{@link Slot},由{@link Schema#bind(Expression)}将变量绑定到位置
+ * @version 1.0.4
+ * - 增加{@link Speculated},由{@link SpeculativeFormula}按运行时观察到的类型替换变量
+ * @version 1.0.5
+ * - 增加{@link DecimalConstant}，变量和负号支持{@link Decimal}
+ * @version 1.0.6
+ * - long的加减乘检查溢出，溢出时按{@link ExprValue}提升为{@link Decimal}重新计算;
+ * 静态类型为Long的节点，evalLong在值超出long的范围时抛出ArithmeticException
+ * @version 1.0.7
+ * - 溢出时抛出带有提升后的值的{@link Overflow}，上层节点不再重新计算子树
+ * @version 1.0.8
+ * - {@link DecimalConstant}可保存由long提升的值，计算时仍按整数运算
  */
 abstract public class Expression {
 
@@ -31,6 +48,129 @@ abstract public class Expression {
 	 */
 	public abstract String getOperatorPrototype();
 	
+	/**
+	 * to get the data type of the value
+	 * 
+	 * <br>The data type is inferred from the tree before computing,
+	 * it is used by the compiler to generate code for primitive values.
+	 * @return data type,null if it can only be known at runtime
+	 */
+	public ExprValue.DataType getResultType(){
+		return null;
+	}
+	
+	/**
+	 * to compute the expression as a double value
+	 * 
+	 * <br>Same as {@code getValue(provider).getDouble()}.The subclasses whose data type is
+	 * known before computing override it to compute without {@link ExprValue}.
+	 * @param provider instance of DataProvider
+	 * @return double value
+	 * @throws FormulaException
+	 */
+	public double evalDouble(DataProvider provider) throws FormulaException{
+		return notNull(getValue(provider)).getDouble();
+	}
+	
+	/**
+	 * to compute the expression as a long value
+	 * 
+	 * <br>Same as {@code getValue(provider).getLong()}.
+	 * @param provider instance of DataProvider
+	 * @return long value
+	 * @throws FormulaException
+	 */
+	public long evalLong(DataProvider provider) throws FormulaException{
+		return notNull(getValue(provider)).getLong();
+	}
+	
+	/**
+	 * to compute the expression as a boolean value
+	 * 
+	 * <br>Same as {@code getValue(provider).getBoolean()}.
+	 * @param provider instance of DataProvider
+	 * @return boolean value
+	 * @throws FormulaException
+	 */
+	public boolean evalBoolean(DataProvider provider) throws FormulaException{
+		return notNull(getValue(provider)).getBoolean();
+	}
+	
+	private ExprValue notNull(ExprValue value){
+		if (value == null){
+			throw new FormulaException("The value of " + toString() + " is null");
+		}
+		return value;
+	}
+
+	/**
+	 * 静态类型为Long的子节点在evalLong中溢出后的值
+	 *
+	 * <br>异常由该子节点抛出时直接使用其中提升后的值，否则重新计算该子节点(只计算一次，不涉及其他子节点)。
+	 * @param child 子节点
+	 * @param ex 子节点抛出的异常
+	 * @param provider instance of DataProvider
+	 * @return 子节点的值
+	 */
+	protected static ExprValue overflowed(Expression child, ArithmeticException ex, DataProvider provider){
+		if (ex instanceof Overflow && ((Overflow)ex).source == child){
+			return ((Overflow)ex).value;
+		}
+		return child.getValue(provider);
+	}
+
+	/**
+	 * 提升后的值转换为long
+	 * @param value 本节点提升后的值
+	 * @return long值
+	 * @throws Overflow 超出long的范围，异常中带有该值
+	 */
+	protected long longValue(ExprValue value){
+		try {
+			return value.getLong();
+		} catch (ArithmeticException ex){
+			throw new Overflow(this, value);
+		}
+	}
+
+	/**
+	 * 静态类型为Long的节点在evalLong,evalDouble,evalBoolean中溢出
+	 *
+	 * <br>异常中带有溢出节点提升为{@link Decimal}后的值，上层节点通过{@link Expression#overflowed}直接使用，
+	 * 每个子树只计算一次。
+	 */
+	public static class Overflow extends DecimalUtil.LongOverflowException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * 溢出的节点
+		 */
+		protected final transient Expression source;
+
+		/**
+		 * 该节点提升后的值
+		 */
+		protected final transient ExprValue value;
+
+		public Overflow(Expression _source, ExprValue _value){
+			source = _source;
+			value = _value;
+		}
+
+		/**
+		 * 获取节点提升后的值
+		 * @param node 节点
+		 * @return 提升后的值
+		 * @throws Overflow 不是由该节点抛出的异常原样抛出
+		 */
+		public ExprValue valueOf(Expression node){
+			if (source != node){
+				throw this;
+			}
+			return value;
+		}
+	}
+
 	/**
 	 * get operator
 	 * @return operator
@@ -66,7 +206,7 @@ abstract public class Expression {
 	/**
 	 * operator of {@code Expression}
 	 */
-	protected Operator operator;
+	protected final Operator operator;
 
 	/**
 	 * Binary Expression
@@ -77,11 +217,11 @@ abstract public class Expression {
 		/**
 		 * the left expression
 		 */
-		protected Expression left = null;
+		protected final Expression left;
 		/**
 		 * the right expression
 		 */
-		protected Expression right = null;
+		protected final Expression right;
 
 		/**
 		 * Constructor
@@ -200,6 +340,11 @@ abstract public class Expression {
 
 			return "";
 		}
+		
+		@Override
+		public ExprValue.DataType getResultType(){
+			return ExprValue.DataType.Boolean;
+		}
 
 		/**
 		 * to compute the expression with {@code DataProvider}
@@ -209,35 +354,70 @@ abstract public class Expression {
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
-			// TODO Auto-generated method stub
+			return new ExprValue(evalBoolean(provider));
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider)
+				throws FormulaException {
 			switch (operator) {
 			case OP_Greater:
-				return new ExprValue(left.getValue(provider).compareTo(
-						right.getValue(provider)) > 0);
+				return compare(provider) > 0;
 			case OP_Greater_Equal:
-				return new ExprValue(left.getValue(provider).compareTo(
-						right.getValue(provider)) >= 0);
+				return compare(provider) >= 0;
 			case OP_Equal:
-				return new ExprValue(left.getValue(provider).compareTo(
-						right.getValue(provider)) == 0);
+				return compare(provider) == 0;
 			case OP_Not_Equal:
-				return new ExprValue(left.getValue(provider).compareTo(
-						right.getValue(provider)) != 0);
+				return compare(provider) != 0;
 			case OP_Less:
-				return new ExprValue(left.getValue(provider).compareTo(
-						right.getValue(provider)) < 0);
+				return compare(provider) < 0;
 			case OP_Less_Equal:
-				return new ExprValue(left.getValue(provider).compareTo(
-						right.getValue(provider)) <= 0);
+				return compare(provider) <= 0;
 			case OP_Or:
-				return new ExprValue(left.getValue(provider).getBoolean()
-						|| right.getValue(provider).getBoolean());
+				return left.evalBoolean(provider) || right.evalBoolean(provider);
 			case OP_And:
-				return new ExprValue(left.getValue(provider).getBoolean()
-						&& right.getValue(provider).getBoolean());
+				return left.evalBoolean(provider) && right.evalBoolean(provider);
 			}
 			throw new FormulaException("Unsupport operator:" + operator);
 		}
+		
+		/**
+		 * to compare the children,numeric children are compared without {@link ExprValue}
+		 */
+		private int compare(DataProvider provider){
+			ExprValue.DataType l = left.getResultType();
+			ExprValue.DataType r = right.getResultType();
+			boolean rNumeric = r == ExprValue.DataType.Long || r == ExprValue.DataType.Double;
+			if (l == ExprValue.DataType.Long && rNumeric){
+				long lValue;
+				try {
+					lValue = left.evalLong(provider);
+				} catch (ArithmeticException ex){
+					// a long child overflows,compare the promoted value
+					return overflowed(left, ex, provider).compareTo(right.getValue(provider));
+				}
+				try {
+					if (r == ExprValue.DataType.Long){
+						return ExprValue.compare(lValue, right.evalLong(provider));
+					}
+					return ExprValue.compare(lValue, right.evalDouble(provider));
+				} catch (ArithmeticException ex){
+					return new ExprValue(lValue).compareTo(overflowed(right, ex, provider));
+				}
+			}
+			if (l == ExprValue.DataType.Double && rNumeric){
+				double lValue = left.evalDouble(provider);
+				try {
+					if (r == ExprValue.DataType.Long){
+						return ExprValue.compare(lValue, right.evalLong(provider));
+					}
+					return ExprValue.compare(lValue, right.evalDouble(provider));
+				} catch (ArithmeticException ex){
+					return new ExprValue(lValue).compareTo(overflowed(right, ex, provider));
+				}
+			}
+			return left.getValue(provider).compareTo(right.getValue(provider));
+		}
 
 	}
 
@@ -256,7 +436,14 @@ abstract public class Expression {
 		public ArithmeticExpression(Operator _operator, Expression _left,
 				Expression _right) {
 			super(_operator, _left, _right);
+			resultType = inferType(_operator, _left.getResultType(), _right.getResultType());
 		}
+		
+		/**
+		 * data type of the value,the children are complete when the node is created,
+		 * so it is inferred once instead of walking the subtree on every call
+		 */
+		protected final ExprValue.DataType resultType;
 
 		/**
 		 *  to compute the expression with {@code DataProvider}
@@ -265,20 +452,190 @@ abstract public class Expression {
 		 */
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			ExprValue.DataType type = getResultType();
+			if (type == ExprValue.DataType.Long){
+				return getLongValue(provider);
+			}
+			if (type == ExprValue.DataType.Double){
+				return new ExprValue(computeDouble(provider));
+			}
+			return promote(left.getValue(provider), right.getValue(provider));
+		}
+		
+		/**
+		 * to compute when both children are long values,the result is promoted to {@link Decimal} when it overflows
+		 * 
+		 * <br>A child which overflows is not computed again,its promoted value is taken from the exception.
+		 */
+		private ExprValue getLongValue(DataProvider provider){
+			long l;
+			try {
+				l = left.evalLong(provider);
+			} catch (ArithmeticException ex){
+				return promote(overflowed(left, ex, provider), right.getValue(provider));
+			}
+			long r;
+			try {
+				r = right.evalLong(provider);
+			} catch (ArithmeticException ex){
+				return promote(new ExprValue(l), overflowed(right, ex, provider));
+			}
+			try {
+				return new ExprValue(computeLong(l, r));
+			} catch (ArithmeticException ex){
+				return promote(new ExprValue(l), new ExprValue(r));
+			}
+		}
+		
+		/**
+		 * to compute with {@link ExprValue},a long value which overflows is promoted to {@link Decimal}
+		 */
+		private ExprValue promote(ExprValue l, ExprValue r){
+			switch (operator) {
+			case OP_Add:
+				return l.add(r);
+			case OP_Sub:
+				return l.sub(r);
+			case OP_Mul:
+				return l.mul(r);
+			case OP_Div:
+				return l.div(r);
+			case OP_Mod:
+				return l.mod(r);
+			}
+			throw new FormulaException("Unsupport operator:" + operator);
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
+			ExprValue.DataType type = getResultType();
+			if (type == ExprValue.DataType.Long){
+				try {
+					return computeLong(provider);
+				} catch (Overflow ex){
+					return ex.valueOf(this).getDouble();
+				}
+			}
+			if (type == ExprValue.DataType.Double){
+				return computeDouble(provider);
+			}
+			return super.evalDouble(provider);
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider)
+				throws FormulaException {
+			ExprValue.DataType type = getResultType();
+			if (type == ExprValue.DataType.Long){
+				return computeLong(provider);
+			}
+			if (type == ExprValue.DataType.Double){
+				return (long)computeDouble(provider);
+			}
+			return super.evalLong(provider);
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider)
+				throws FormulaException {
+			if (getResultType() == ExprValue.DataType.Long){
+				try {
+					return computeLong(provider) != 0;
+				} catch (Overflow ex){
+					return ex.valueOf(this).getDouble() != 0;
+				}
+			}
+			return super.evalBoolean(provider);
+		}
+		
+		/**
+		 * to compute when both children are long values,same as {@link #getLongValue(DataProvider)}
+		 * @throws Overflow the value is out of the range of long,the promoted value is carried by the exception
+		 */
+		private long computeLong(DataProvider provider){
+			long l;
+			try {
+				l = left.evalLong(provider);
+			} catch (ArithmeticException ex){
+				return longValue(promote(overflowed(left, ex, provider), right.getValue(provider)));
+			}
+			long r;
+			try {
+				r = right.evalLong(provider);
+			} catch (ArithmeticException ex){
+				return longValue(promote(new ExprValue(l), overflowed(right, ex, provider)));
+			}
+			try {
+				return computeLong(l, r);
+			} catch (ArithmeticException ex){
+				return longValue(promote(new ExprValue(l), new ExprValue(r)));
+			}
+		}
+		
+		private long computeLong(long l, long r){
 			switch (operator) {
 			case OP_Add:
-				return left.getValue(provider).add(right.getValue(provider));
+				return DecimalUtil.addExact(l, r);
 			case OP_Sub:
-				return left.getValue(provider).sub(right.getValue(provider));
+				return DecimalUtil.subtractExact(l, r);
 			case OP_Mul:
-				return left.getValue(provider).mul(right.getValue(provider));
+				return DecimalUtil.multiplyExact(l, r);
 			case OP_Div:
-				return left.getValue(provider).div(right.getValue(provider));
+				if (r == 0)
+					throw new FormulaException("divided by zero");
+				return l / r;
 			case OP_Mod:
-				return left.getValue(provider).mod(right.getValue(provider));
+				if (r == 0)
+					throw new FormulaException("divided by zero");
+				return l % r;
 			}
 			throw new FormulaException("Unsupport operator:" + operator);
 		}
+		
+		/**
+		 * to compute when both children are numeric and at least one is a double value
+		 */
+		private double computeDouble(DataProvider provider){
+			double l = left.evalDouble(provider);
+			double r = right.evalDouble(provider);
+			switch (operator) {
+			case OP_Add:
+				return l + r;
+			case OP_Sub:
+				return l - r;
+			case OP_Mul:
+				return l * r;
+			case OP_Div:
+				if (r == 0)
+					throw new FormulaException("divided by zero");
+				return l / r;
+			}
+			throw new FormulaException("Unsupport operator:" + operator);
+		}
+		
+		@Override
+		public ExprValue.DataType getResultType(){
+			return resultType;
+		}
+		
+		private static ExprValue.DataType inferType(Operator operator,ExprValue.DataType l,ExprValue.DataType r){
+			if (l == null || r == null){
+				return null;
+			}
+			if (operator == Operator.OP_Add && l == ExprValue.DataType.String){
+				return ExprValue.DataType.String;
+			}
+			boolean lNumeric = l == ExprValue.DataType.Long || l == ExprValue.DataType.Double;
+			boolean rNumeric = r == ExprValue.DataType.Long || r == ExprValue.DataType.Double;
+			if (!lNumeric || !rNumeric){
+				return null;
+			}
+			if (operator == Operator.OP_Mod){
+				return l == ExprValue.DataType.Long && r == ExprValue.DataType.Long ? ExprValue.DataType.Long : null;
+			}
+			return l == ExprValue.DataType.Long && r == ExprValue.DataType.Long ? ExprValue.DataType.Long : ExprValue.DataType.Double;
+		}
 
 		/**
 		 * to get the prototype of the operator
@@ -311,7 +668,7 @@ abstract public class Expression {
 		/**
 		 * the child 
 		 */
-		protected Expression expr = null;	
+		protected final Expression expr;
 		
 		/**
 		 * constructor
@@ -321,7 +678,13 @@ abstract public class Expression {
 		public UnaryExpression(Operator _operator,Expression _expr) {
 			super(_operator);
 			expr = _expr;
+			resultType = inferType(_operator, _expr.getResultType());
 		}
+		
+		/**
+		 * data type of the value,inferred when the node is created
+		 */
+		protected final ExprValue.DataType resultType;
 		/**
 		 *  to compute the expression with {@code DataProvider}
 		 *  @param provider instance of DataProvider
@@ -329,17 +692,25 @@ abstract public class Expression {
 		 */
 		@Override
 		public ExprValue getValue(DataProvider provider) throws FormulaException{
-			switch (operator){
-				case OP_Negative:{
-					ExprValue _value = expr.getValue(provider);
-					switch (_value.getDataType()){
-						case Long:
-							return new ExprValue(-_value.getLong());
-						case Double:
-							return new ExprValue(-_value.getDouble());
+			ExprValue.DataType type = getResultType();
+			if (operator == Operator.OP_Negative){
+				if (type == ExprValue.DataType.Long){
+					try {
+						return new ExprValue(-expr.evalLong(provider));
+					} catch (ArithmeticException ex){
+						return overflowed(expr, ex, provider).negate();
 					}
-					throw new FormulaException("Can not get a negative value of " + _value.getDataType());
 				}
+				if (type == ExprValue.DataType.Double){
+					return new ExprValue(-expr.evalDouble(provider));
+				}
+			}
+			if (operator == Operator.OP_Not && type == ExprValue.DataType.Boolean){
+				return new ExprValue(!expr.evalBoolean(provider));
+			}
+			switch (operator){
+				case OP_Negative:
+					return expr.getValue(provider).negate();
 				case OP_Positive:
 					return expr.getValue(provider);
 				case OP_Not:{
@@ -353,6 +724,92 @@ abstract public class Expression {
 			}
 			throw new FormulaException("Unsupported operator:" + operator.toString());
 		}
+		
+		@Override
+		public double evalDouble(DataProvider provider) throws FormulaException{
+			if (operator == Operator.OP_Positive){
+				return expr.evalDouble(provider);
+			}
+			if (operator == Operator.OP_Negative){
+				ExprValue.DataType type = getResultType();
+				if (type == ExprValue.DataType.Long){
+					try {
+						return -expr.evalLong(provider);
+					} catch (ArithmeticException ex){
+						return -overflowed(expr, ex, provider).getDouble();
+					}
+				}
+				if (type == ExprValue.DataType.Double){
+					return -expr.evalDouble(provider);
+				}
+			}
+			return super.evalDouble(provider);
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider) throws FormulaException{
+			if (operator == Operator.OP_Positive){
+				return expr.evalLong(provider);
+			}
+			if (operator == Operator.OP_Negative){
+				ExprValue.DataType type = getResultType();
+				if (type == ExprValue.DataType.Long){
+					try {
+						return -expr.evalLong(provider);
+					} catch (ArithmeticException ex){
+						return longValue(overflowed(expr, ex, provider).negate());
+					}
+				}
+				if (type == ExprValue.DataType.Double){
+					return (long)-expr.evalDouble(provider);
+				}
+			}
+			return super.evalLong(provider);
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider) throws FormulaException{
+			if (operator == Operator.OP_Positive){
+				return expr.evalBoolean(provider);
+			}
+			ExprValue.DataType type = getResultType();
+			if (operator == Operator.OP_Not && type == ExprValue.DataType.Boolean){
+				return !expr.evalBoolean(provider);
+			}
+			if (operator == Operator.OP_Negative && type == ExprValue.DataType.Long){
+				try {
+					return expr.evalLong(provider) != 0;
+				} catch (ArithmeticException ex){
+					return overflowed(expr, ex, provider).getDouble() != 0;
+				}
+			}
+			return super.evalBoolean(provider);
+		}
+		
+		@Override
+		public ExprValue.DataType getResultType(){
+			return resultType;
+		}
+		
+		private static ExprValue.DataType inferType(Operator operator,ExprValue.DataType type){
+			switch (operator){
+			case OP_Negative:
+				return type == ExprValue.DataType.Long || type == ExprValue.DataType.Double ? type : null;
+			case OP_Positive:
+				return type;
+			case OP_Not:
+				return type == ExprValue.DataType.Boolean ? type : null;
+			}
+			return null;
+		}
+		
+		/**
+		 * to get the child
+		 * @return expr
+		 */
+		public Expression getChild(){
+			return expr;
+		}
 		/**
 		 * to String
 		 */
@@ -399,7 +856,7 @@ abstract public class Expression {
 		/**
 		 * value
 		 */
-		protected String value;
+		protected final String value;
 		
 		/**
 		 * constructor
@@ -416,6 +873,19 @@ abstract public class Expression {
 			return new ExprValue(value);
 		}
 
+		@Override
+		public ExprValue.DataType getResultType(){
+			return ExprValue.DataType.String;
+		}
+		
+		/**
+		 * to get the constant value
+		 * @return value
+		 */
+		public String getConstant(){
+			return value;
+		}
+
 		@Override
 		public String getOperatorPrototype() {
 			return value;
@@ -435,7 +905,7 @@ abstract public class Expression {
 	 *
 	 */
 	public static class LongConstant extends Constant{
-		protected long value;
+		protected final long value;
 		public LongConstant(long _value) {
 			super(Operator.OP_Integer_Constant);
 			value = _value;
@@ -447,6 +917,34 @@ abstract public class Expression {
 			return new ExprValue(value);
 		}
 
+		@Override
+		public double evalDouble(DataProvider provider){
+			return value;
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider){
+			return value;
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider){
+			return value != 0;
+		}
+
+		@Override
+		public ExprValue.DataType getResultType(){
+			return ExprValue.DataType.Long;
+		}
+		
+		/**
+		 * to get the constant value
+		 * @return value
+		 */
+		public long getConstant(){
+			return value;
+		}
+
 		@Override
 		public String getOperatorPrototype() {
 			return String.valueOf(value);
@@ -463,7 +961,7 @@ abstract public class Expression {
 	 *
 	 */
 	public static class DoubleConstant extends Constant{
-		protected double value;
+		protected final double value;
 		public DoubleConstant(double _value) {
 			super(Operator.OP_Float_Constant);
 			value = _value;
@@ -475,6 +973,29 @@ abstract public class Expression {
 			return new ExprValue(value);
 		}
 
+		@Override
+		public double evalDouble(DataProvider provider){
+			return value;
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider){
+			return (long)value;
+		}
+
+		@Override
+		public ExprValue.DataType getResultType(){
+			return ExprValue.DataType.Double;
+		}
+		
+		/**
+		 * to get the constant value
+		 * @return value
+		 */
+		public double getConstant(){
+			return value;
+		}
+
 		@Override
 		public String getOperatorPrototype() {
 			return String.valueOf(value);
@@ -485,13 +1006,81 @@ abstract public class Expression {
 		}
 	}
 	
+	/**
+	 * decimal constant
+	 * 
+	 * <br>Created by {@link Parser} for float literals in decimal mode,see {@link Parser#setDecimal(boolean)}.
+	 * @author alexgaoyh
+	 * @version 1.0.0
+	 */
+	public static class DecimalConstant extends Constant{
+		protected final Decimal value;
+		/**
+		 * whether the value is promoted from an overflowed long value,
+		 * it is computed as an integer like {@link ExprValue}
+		 */
+		protected final boolean promoted;
+		public DecimalConstant(Decimal _value) {
+			this(_value, false);
+		}
+		
+		/**
+		 * constructor
+		 * @param _value the value
+		 * @param _promoted whether the value is promoted from an overflowed long value
+		 */
+		public DecimalConstant(Decimal _value, boolean _promoted) {
+			super(Operator.OP_Float_Constant);
+			value = _value;
+			promoted = _promoted;
+		}
+
+		@Override
+		public ExprValue getValue(DataProvider provider)
+				throws FormulaException {
+			return promoted ? ExprValue.integer(value) : new ExprValue(value);
+		}
+
+		@Override
+		public double evalDouble(DataProvider provider){
+			return value.doubleValue();
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider){
+			return value.longValue();
+		}
+
+		@Override
+		public ExprValue.DataType getResultType(){
+			return ExprValue.DataType.Decimal;
+		}
+		
+		/**
+		 * to get the constant value
+		 * @return value
+		 */
+		public Decimal getConstant(){
+			return value;
+		}
+
+		@Override
+		public String getOperatorPrototype() {
+			return value.toString();
+		}
+		
+		public String toString(){
+			return value.toString();
+		}
+	}
+	
 	/**
 	 * boolean constant
 	 * @author duanyy
 	 *
 	 */
 	public static class BooleanConstant extends Constant{
-		protected boolean value;
+		protected final boolean value;
 		public BooleanConstant(boolean _value) {
 			super(Operator.OP_Boolean_Constant);
 			value = _value;
@@ -503,6 +1092,24 @@ abstract public class Expression {
 			return new ExprValue(value);
 		}
 
+		@Override
+		public boolean evalBoolean(DataProvider provider){
+			return value;
+		}
+
+		@Override
+		public ExprValue.DataType getResultType(){
+			return ExprValue.DataType.Boolean;
+		}
+		
+		/**
+		 * to get the constant value
+		 * @return value
+		 */
+		public boolean getConstant(){
+			return value;
+		}
+
 		@Override
 		public String getOperatorPrototype() {
 			return String.valueOf(value);
@@ -519,10 +1126,17 @@ abstract public class Expression {
 	 * @version 1.0.0
 	 * @version 1.0.1
 	 * - @link com.anysoft.formula.DataProvider}进行了修改
+	 * @version 1.0.2
+	 * - 上下文与创建它的DataProvider绑定,可在多线程间共享
+	 * @version 1.0.3
+	 * - 不再缓存上下文,每次计算时由DataProvider提供,节点不可变
+	 * @version 1.0.4
+	 * - 支持{@link TypedDataProvider},数值变量直接按类型取值,不再经过字符串
+	 * @version 1.0.5
+	 * - 支持Decimal类型的变量
 	 */
 	public static class Variant extends Expression{
-		protected String varName;
-		protected Object varContext = null;
+		protected final String varName;
 		public Variant(String _varName) {
 			super(Operator.OP_Variant);
 			varName = _varName;
@@ -534,20 +1148,386 @@ abstract public class Expression {
 			if (provider == null){
 				throw new FormulaException("Data provider is null,can not get value of " + varName);
 			}
-			if (varContext == null){
-				varContext = provider.getContext(varName);
+			Object context = provider.getContext(varName);
+			if (provider instanceof TypedDataProvider){
+				TypedDataProvider typed = (TypedDataProvider)provider;
+				ExprValue.DataType type = typed.getDataType(varName, context);
+				if (type != null && type != ExprValue.DataType.String && type != ExprValue.DataType.Void){
+					if (typed.isNull(varName, context)){
+						return null;
+					}
+					switch (type){
+					case Long:
+						return new ExprValue(typed.getLong(varName, context));
+					case Double:
+						return new ExprValue(typed.getDouble(varName, context));
+					case Boolean:
+						return new ExprValue(typed.getBoolean(varName, context));
+					case Decimal:
+						return new ExprValue(Decimal.valueOf(typed.getValue(varName, context, null)));
+					default:
+						return new ExprValue(typed.getDate(varName, context));
+					}
+				}
 			}
-			String value = provider.getValue(varName, varContext, null);
+			String value = provider.getValue(varName, context, null);
 			return value != null ? new ExprValue(value): null;
 		}
+		
+		@Override
+		public double evalDouble(DataProvider provider) throws FormulaException{
+			if (provider instanceof TypedDataProvider){
+				TypedDataProvider typed = (TypedDataProvider)provider;
+				Object context = typed.getContext(varName);
+				ExprValue.DataType type = typed.getDataType(varName, context);
+				if (type == ExprValue.DataType.Double){
+					checkNull(typed, context);
+					return typed.getDouble(varName, context);
+				}
+				if (type == ExprValue.DataType.Long){
+					checkNull(typed, context);
+					return typed.getLong(varName, context);
+				}
+			}
+			return super.evalDouble(provider);
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider) throws FormulaException{
+			if (provider instanceof TypedDataProvider){
+				TypedDataProvider typed = (TypedDataProvider)provider;
+				Object context = typed.getContext(varName);
+				ExprValue.DataType type = typed.getDataType(varName, context);
+				if (type == ExprValue.DataType.Long){
+					checkNull(typed, context);
+					return typed.getLong(varName, context);
+				}
+				if (type == ExprValue.DataType.Double){
+					checkNull(typed, context);
+					return (long)typed.getDouble(varName, context);
+				}
+			}
+			return super.evalLong(provider);
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider) throws FormulaException{
+			if (provider instanceof TypedDataProvider){
+				TypedDataProvider typed = (TypedDataProvider)provider;
+				Object context = typed.getContext(varName);
+				ExprValue.DataType type = typed.getDataType(varName, context);
+				if (type == ExprValue.DataType.Boolean){
+					checkNull(typed, context);
+					return typed.getBoolean(varName, context);
+				}
+				if (type == ExprValue.DataType.Long){
+					checkNull(typed, context);
+					return typed.getLong(varName, context) != 0;
+				}
+			}
+			return super.evalBoolean(provider);
+		}
+		
+		private void checkNull(TypedDataProvider provider,Object context){
+			if (provider.isNull(varName, context)){
+				throw new FormulaException("The value of " + varName + " is null");
+			}
+		}
 
 		@Override
 		public String getOperatorPrototype() {
 			return varName;
 		}
 		
+		/**
+		 * to get the name of variant
+		 * @return name
+		 */
+		public String getVarName(){
+			return varName;
+		}
+		
 		public String toString(){
 			return varName;
 		}		
 	}
+	
+	/**
+	 * Slot
+	 * 
+	 * <br>A variant bound to a position by {@link Schema#bind(Expression)}.
+	 * With a {@link Row} the value is read by index,and numeric slots are computed without {@link ExprValue}.
+	 * With other {@code DataProvider} the value is read by name like {@link Variant},
+	 * and converted to the data type declared in the schema.
+	 * @author alexgaoyh
+	 * @version 1.0.0
+	 */
+	public static class Slot extends Expression{
+		protected final String varName;
+		protected final int index;
+		protected final ExprValue.DataType type;
+		
+		/**
+		 * constructor
+		 * @param _varName name of the variant
+		 * @param _index position in the schema
+		 * @param _type declared data type,null if unknown
+		 */
+		public Slot(String _varName,int _index,ExprValue.DataType _type) {
+			super(Operator.OP_Variant);
+			varName = _varName;
+			index = _index;
+			type = _type;
+		}
+
+		@Override
+		public ExprValue getValue(DataProvider provider)
+				throws FormulaException {
+			if (provider instanceof Row){
+				return ((Row)provider).getValue(index);
+			}
+			if (provider == null){
+				throw new FormulaException("Data provider is null,can not get value of " + varName);
+			}
+			String value = provider.getValue(varName, provider.getContext(varName), null);
+			if (value == null){
+				return null;
+			}
+			if (type == null){
+				return new ExprValue(value);
+			}
+			switch (type){
+			case Long:
+				return new ExprValue(Long.parseLong(value));
+			case Double:
+				return new ExprValue(Double.parseDouble(value));
+			case Boolean:
+				return new ExprValue(Boolean.parseBoolean(value));
+			case Decimal:
+				return new ExprValue(Decimal.valueOf(value));
+			default:
+				return new ExprValue(value);
+			}
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider) throws FormulaException{
+			if (provider instanceof Row){
+				return ((Row)provider).getDouble(index);
+			}
+			return super.evalDouble(provider);
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider) throws FormulaException{
+			if (provider instanceof Row){
+				return ((Row)provider).getLong(index);
+			}
+			return super.evalLong(provider);
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider) throws FormulaException{
+			if (provider instanceof Row){
+				return ((Row)provider).getBoolean(index);
+			}
+			return super.evalBoolean(provider);
+		}
+		
+		@Override
+		public ExprValue.DataType getResultType(){
+			return type;
+		}
+
+		@Override
+		public String getOperatorPrototype() {
+			return varName;
+		}
+		
+		/**
+		 * to get the name of variant
+		 * @return name
+		 */
+		public String getVarName(){
+			return varName;
+		}
+		
+		/**
+		 * to get the position in the schema
+		 * @return index
+		 */
+		public int getIndex(){
+			return index;
+		}
+		
+		public String toString(){
+			return varName;
+		}
+	}
+
+	/**
+	 * Speculated variant
+	 * 
+	 * <br>A variant whose data type is guessed from the values seen at runtime,created by {@link SpeculativeFormula}.
+	 * Its parents infer their types from it,so they are computed by the typed paths(long add,double compare...).
+	 * Every read is guarded:when the value is null or of another type,{@link Miss} is thrown and
+	 * the formula is computed again by the generic expression.
+	 * @author alexgaoyh
+	 * @version 1.0.0
+	 */
+	public static class Speculated extends Expression{
+		/**
+		 * thrown when the guess is wrong,shared and without stack trace
+		 */
+		protected static final Miss MISS = new Miss();
+		
+		protected final String varName;
+		/**
+		 * position in the schema when it replaces a {@link Slot},-1 when it replaces a {@link Variant}
+		 */
+		protected final int index;
+		protected final ExprValue.DataType type;
+		
+		/**
+		 * constructor
+		 * @param _varName name of the variant
+		 * @param _index position of the slot,-1 for a variant
+		 * @param _type guessed data type,Long,Double or Boolean
+		 */
+		public Speculated(String _varName,int _index,ExprValue.DataType _type) {
+			super(Operator.OP_Variant);
+			if (_type != ExprValue.DataType.Long && _type != ExprValue.DataType.Double
+					&& _type != ExprValue.DataType.Boolean){
+				throw new IllegalArgumentException("Can not speculate on " + _type);
+			}
+			varName = _varName;
+			index = _index;
+			type = _type;
+		}
+
+		@Override
+		public ExprValue getValue(DataProvider provider)
+				throws FormulaException {
+			switch (type){
+			case Long:
+				return new ExprValue(evalLong(provider));
+			case Double:
+				return new ExprValue(evalDouble(provider));
+			default:
+				return new ExprValue(evalBoolean(provider));
+			}
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider) throws FormulaException{
+			if (type == ExprValue.DataType.Boolean){
+				return super.evalDouble(provider);
+			}
+			if (index >= 0){
+				Row row = guard(provider);
+				return type == ExprValue.DataType.Long ? row.getLong(index) : row.getDouble(index);
+			}
+			TypedDataProvider typed = typed(provider);
+			Object context = typed.getContext(varName);
+			guard(typed, context);
+			return type == ExprValue.DataType.Long ? typed.getLong(varName, context) : typed.getDouble(varName, context);
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider) throws FormulaException{
+			if (type == ExprValue.DataType.Boolean){
+				return super.evalLong(provider);
+			}
+			if (index >= 0){
+				Row row = guard(provider);
+				return type == ExprValue.DataType.Long ? row.getLong(index) : (long)row.getDouble(index);
+			}
+			TypedDataProvider typed = typed(provider);
+			Object context = typed.getContext(varName);
+			guard(typed, context);
+			return type == ExprValue.DataType.Long ? typed.getLong(varName, context) : (long)typed.getDouble(varName, context);
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider) throws FormulaException{
+			if (type == ExprValue.DataType.Double){
+				return super.evalBoolean(provider);
+			}
+			if (index >= 0){
+				Row row = guard(provider);
+				return type == ExprValue.DataType.Long ? row.getLong(index) != 0 : row.getBoolean(index);
+			}
+			TypedDataProvider typed = typed(provider);
+			Object context = typed.getContext(varName);
+			guard(typed, context);
+			return type == ExprValue.DataType.Long ? typed.getLong(varName, context) != 0 : typed.getBoolean(varName, context);
+		}
+		
+		private Row guard(DataProvider provider){
+			if (!(provider instanceof Row)){
+				throw MISS;
+			}
+			Row row = (Row)provider;
+			if (row.getDataType(index) != type || row.isNull(index)){
+				throw MISS;
+			}
+			return row;
+		}
+		
+		private TypedDataProvider typed(DataProvider provider){
+			if (!(provider instanceof TypedDataProvider)){
+				throw MISS;
+			}
+			return (TypedDataProvider)provider;
+		}
+		
+		private void guard(TypedDataProvider provider,Object context){
+			if (provider.getDataType(varName, context) != type || provider.isNull(varName, context)){
+				throw MISS;
+			}
+		}
+		
+		@Override
+		public ExprValue.DataType getResultType(){
+			return type;
+		}
+
+		@Override
+		public String getOperatorPrototype() {
+			return varName;
+		}
+		
+		/**
+		 * to get the name of variant
+		 * @return name
+		 */
+		public String getVarName(){
+			return varName;
+		}
+		
+		/**
+		 * to get the position of the slot
+		 * @return index,-1 for a variant
+		 */
+		public int getIndex(){
+			return index;
+		}
+		
+		public String toString(){
+			return varName;
+		}
+		
+		/**
+		 * Speculation failure
+		 * 
+		 * <br>Only used as a signal to {@link SpeculativeFormula}.
+		 */
+		public static final class Miss extends RuntimeException{
+			private static final long serialVersionUID = 1L;
+
+			protected Miss(){
+				super("The speculated type is wrong", null, false, false);
+			}
+		}
+	}
 }
@@ -0,0 +1,435 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 公式缓存
+ *
+ * <br>
+ * 以公式文本为key缓存解析后的{@link Expression}，避免对同一公式反复解析。<br>
+ *
+ * - 读操作无锁，基于{@link ConcurrentHashMap}<br>
+ * - 支持LRU/LFU两种淘汰策略，同时受条目数和权重(公式文本长度)限制<br>
+ * - 超出限制时批量淘汰至低水位(限制的90%)，淘汰的代价分摊到多次插入<br>
+ * - 提供命中、未命中、淘汰等统计信息<br>
+ * - 通过{@link #getCompiled(String)}获取编译为字节码的公式，条目被淘汰后生成的类可被卸载<br>
+ *
+ * <p>缓存中的{@link Expression}会被多个线程共享，因此只能用于计算，不能再修改。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 增加{@link #getTiered(String)}，公式先解释执行，频繁计算后在后台编译
+ * @version 1.0.2
+ * - 淘汰时排除刚插入的条目，LFU下新公式不再被立即淘汰
+ */
+public class FormulaCache {
+
+	/**
+	 * 淘汰策略
+	 */
+	public enum Policy {
+		/**
+		 * 淘汰最久未访问的公式
+		 */
+		LRU,
+		/**
+		 * 淘汰访问频次最低的公式
+		 */
+		LFU
+	}
+
+	/**
+	 * 访问时间戳的更新粒度(纳秒)，避免热点公式在每次命中时都写共享内存
+	 */
+	protected static final long TOUCH_GRANULARITY = 1000000L;
+
+	/**
+	 * 缓存条目
+	 */
+	protected final ConcurrentHashMap<String, Entry> entries;
+
+	/**
+	 * 最大条目数
+	 */
+	protected final int maxSize;
+
+	/**
+	 * 最大权重
+	 */
+	protected final long maxWeight;
+
+	/**
+	 * 淘汰策略
+	 */
+	protected final Policy policy;
+
+	/**
+	 * 解析公式所用的函数对象辅助器
+	 */
+	protected final FunctionHelper funcHelper;
+
+	/**
+	 * 公式编译器
+	 */
+	protected final FormulaCompiler compiler = new FormulaCompiler();
+
+	/**
+	 * 分层编译器
+	 */
+	protected final TieredCompiler tieredCompiler = new TieredCompiler();
+
+	/**
+	 * 公式优化器，解析后对Expression做常量折叠和化简
+	 */
+	protected final Optimizer optimizer = new Optimizer();
+
+	/**
+	 * 当前总权重
+	 */
+	protected final AtomicLong weight = new AtomicLong(0);
+
+	protected final LongAdder hitCount = new LongAdder();
+	protected final LongAdder missCount = new LongAdder();
+	protected final LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * 淘汰锁，同一时刻只允许一个线程执行淘汰
+	 */
+	protected final ReentrantLock evictionLock = new ReentrantLock();
+
+	/**
+	 * 构造函数
+	 * @param _maxSize 最大条目数
+	 * @param _maxWeight 最大权重(所有公式文本长度之和)
+	 * @param _policy 淘汰策略
+	 * @param _helper 函数对象辅助器
+	 */
+	public FormulaCache(int _maxSize, long _maxWeight, Policy _policy, FunctionHelper _helper) {
+		if (_maxSize <= 0 || _maxWeight <= 0) {
+			throw new IllegalArgumentException("maxSize and maxWeight must be positive.");
+		}
+		maxSize = _maxSize;
+		maxWeight = _maxWeight;
+		policy = _policy == null ? Policy.LRU : _policy;
+		funcHelper = _helper;
+		entries = new ConcurrentHashMap<String, Entry>(Math.min(_maxSize, 1 << 16));
+	}
+
+	/**
+	 * 构造函数
+	 * @param _maxSize 最大条目数
+	 * @param _helper 函数对象辅助器
+	 */
+	public FormulaCache(int _maxSize, FunctionHelper _helper) {
+		this(_maxSize, Long.MAX_VALUE, Policy.LRU, _helper);
+	}
+
+	/**
+	 * 获取公式对应的Expression，未命中时解析并缓存
+	 * @param formula 公式文本
+	 * @return Expression实例
+	 * @throws FormulaException 公式解析失败
+	 */
+	public Expression get(String formula) throws FormulaException {
+		return getEntry(formula).expr;
+	}
+
+	/**
+	 * 获取公式对应的编译结果，未命中时解析并缓存，首次获取时编译
+	 *
+	 * <p>生成的类只被缓存条目引用，条目被淘汰或移除后即可被卸载。
+	 * @param formula 公式文本
+	 * @return 编译后的公式
+	 * @throws FormulaException 公式解析失败
+	 */
+	public CompiledFormula getCompiled(String formula) throws FormulaException {
+		Entry entry = getEntry(formula);
+		CompiledFormula compiled = entry.compiled;
+		if (compiled == null) {
+			// racy but idempotent,the compiled formula is safely published by the volatile field
+			compiled = compiler.compile(entry.expr);
+			entry.compiled = compiled;
+		}
+		return compiled;
+	}
+
+	/**
+	 * 获取公式对应的分层执行公式，未命中时解析并缓存
+	 *
+	 * <p>公式先解释执行，计算次数达到{@link TieredCompiler#DEFAULT_THRESHOLD}后在后台编译。
+	 * @param formula 公式文本
+	 * @return 分层执行的公式
+	 * @throws FormulaException 公式解析失败
+	 */
+	public TieredFormula getTiered(String formula) throws FormulaException {
+		Entry entry = getEntry(formula);
+		TieredFormula tiered = entry.tiered;
+		if (tiered == null) {
+			synchronized (entry) {
+				// only one instance per entry,otherwise the invocations would be counted separately
+				tiered = entry.tiered;
+				if (tiered == null) {
+					tiered = tieredCompiler.create(entry.expr);
+					entry.tiered = tiered;
+				}
+			}
+		}
+		return tiered;
+	}
+
+	/**
+	 * 获取分层编译器，可用于查看编译统计
+	 * @return 分层编译器
+	 */
+	public TieredCompiler getTieredCompiler() {
+		return tieredCompiler;
+	}
+
+	protected Entry getEntry(String formula) throws FormulaException {
+		if (formula == null) {
+			throw new FormulaException("formula can not be null.");
+		}
+		Entry found = entries.get(formula);
+		if (found != null) {
+			hitCount.increment();
+			found.touch();
+			return found;
+		}
+		missCount.increment();
+
+		Entry created = new Entry(formula, parse(formula));
+		found = entries.putIfAbsent(formula, created);
+		if (found != null) {
+			// another thread has loaded it
+			found.touch();
+			return found;
+		}
+		weight.addAndGet(created.weight);
+		if (isOverflow()) {
+			evict(created);
+		}
+		return created;
+	}
+
+	/**
+	 * 解析公式
+	 *
+	 * <p>{@link Parser}不是线程安全的，每次解析使用新的实例。解析结果经过{@link Optimizer}优化后再缓存。
+	 * @param formula 公式文本
+	 * @return Expression实例
+	 */
+	protected Expression parse(String formula) {
+		Parser parser = new Parser(funcHelper);
+		return optimizer.optimize(parser.parse(formula));
+	}
+
+	/**
+	 * 从缓存中移除指定公式
+	 * @param formula 公式文本
+	 */
+	public void invalidate(String formula) {
+		Entry removed = entries.remove(formula);
+		if (removed != null) {
+			weight.addAndGet(-removed.weight);
+		}
+	}
+
+	/**
+	 * 清空缓存
+	 */
+	public void clear() {
+		for (String formula : entries.keySet()) {
+			invalidate(formula);
+		}
+	}
+
+	/**
+	 * 获取当前条目数
+	 * @return 条目数
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 获取统计信息
+	 * @return 统计信息快照
+	 */
+	public Stats getStats() {
+		return new Stats(hitCount.sum(), missCount.sum(), evictionCount.sum(), entries.size(), weight.get());
+	}
+
+	protected boolean isOverflow() {
+		return entries.size() > maxSize || weight.get() > maxWeight;
+	}
+
+	/**
+	 * 淘汰条目至低水位
+	 *
+	 * <p>对条目的排序依据做快照后排序，找出阈值，再移除不高于阈值的条目。
+	 * 其他线程正在淘汰时直接返回，不阻塞读写。
+	 * <p>刚插入的条目不参与淘汰，否则LFU下它的频率为1，总是被立即淘汰。
+	 * @param inserted 刚插入的条目
+	 */
+	protected void evict(Entry inserted) {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			if (!isOverflow()) {
+				return;
+			}
+			Entry[] snapshot = candidates(inserted);
+			if (snapshot.length == 0) {
+				return;
+			}
+			long[] keys = new long[snapshot.length];
+			for (int i = 0; i < snapshot.length; i++) {
+				keys[i] = snapshot[i].rank(policy);
+			}
+			int lowSize = Math.max(1, maxSize - maxSize / 10);
+			long lowWeight = maxWeight - maxWeight / 10;
+
+			long[] sorted = keys.clone();
+			Arrays.sort(sorted);
+			int toEvict = Math.max(1, entries.size() - lowSize);
+			long threshold = sorted[Math.min(toEvict, sorted.length) - 1];
+
+			for (int pass = 0; pass < 2 && isAbove(lowSize, lowWeight); pass++) {
+				for (int i = 0; i < snapshot.length && isAbove(lowSize, lowWeight); i++) {
+					Entry e = snapshot[i];
+					// first pass honours the threshold,the second one only runs when weight is still too high
+					if (pass == 0 && keys[i] > threshold) {
+						continue;
+					}
+					if (entries.remove(e.formula, e)) {
+						weight.addAndGet(-e.weight);
+						evictionCount.increment();
+					}
+				}
+			}
+
+			if (policy == Policy.LFU) {
+				// aging,so formulas which were hot long ago can be evicted
+				for (Entry e : entries.values()) {
+					e.frequency >>>= 1;
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private Entry[] candidates(Entry inserted) {
+		Entry[] all = entries.values().toArray(new Entry[0]);
+		int n = 0;
+		for (Entry e : all) {
+			if (e != inserted) {
+				all[n++] = e;
+			}
+		}
+		return n == all.length ? all : Arrays.copyOf(all, n);
+	}
+
+	private boolean isAbove(int lowSize, long lowWeight) {
+		return entries.size() > lowSize || weight.get() > lowWeight;
+	}
+
+	/**
+	 * 缓存条目
+	 *
+	 * <p>lastAccess和frequency只用于淘汰决策，允许丢失并发更新。
+	 */
+	protected static class Entry {
+		protected final String formula;
+		protected final Expression expr;
+		protected final int weight;
+		protected volatile CompiledFormula compiled = null;
+		protected volatile TieredFormula tiered = null;
+		protected volatile long lastAccess;
+		protected volatile int frequency;
+
+		protected Entry(String _formula, Expression _expr) {
+			formula = _formula;
+			expr = _expr;
+			weight = Math.max(1, _formula.length());
+			lastAccess = System.nanoTime();
+			frequency = 1;
+		}
+
+		protected void touch() {
+			long now = System.nanoTime();
+			if (now - lastAccess > TOUCH_GRANULARITY) {
+				lastAccess = now;
+			}
+			int freq = frequency;
+			if (freq < Integer.MAX_VALUE) {
+				frequency = freq + 1;
+			}
+		}
+
+		protected long rank(Policy policy) {
+			return policy == Policy.LFU ? frequency : lastAccess;
+		}
+	}
+
+	/**
+	 * 缓存统计信息
+	 * @author alexgaoyh
+	 *
+	 */
+	public static class Stats {
+		protected final long hitCount;
+		protected final long missCount;
+		protected final long evictionCount;
+		protected final int size;
+		protected final long weight;
+
+		public Stats(long _hitCount, long _missCount, long _evictionCount, int _size, long _weight) {
+			hitCount = _hitCount;
+			missCount = _missCount;
+			evictionCount = _evictionCount;
+			size = _size;
+			weight = _weight;
+		}
+
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		public long getMissCount() {
+			return missCount;
+		}
+
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public long getWeight() {
+			return weight;
+		}
+
+		/**
+		 * 命中率
+		 * @return 命中率,没有请求时为1.0
+		 */
+		public double getHitRate() {
+			long total = hitCount + missCount;
+			return total == 0 ? 1.0 : (double) hitCount / total;
+		}
+
+		public String toString() {
+			return "hit=" + hitCount + ",miss=" + missCount + ",eviction=" + evictionCount
+					+ ",size=" + size + ",weight=" + weight;
+		}
+	}
+}
@@ -0,0 +1,544 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 公式编译器
+ *
+ * <br>
+ * 将{@link Expression}编译为JVM字节码，使整个公式成为一个方法，便于JIT内联和优化。<br>
+ *
+ * - 常量、算术、比较、逻辑运算以及choice、IF和财务函数直接生成字节码，静态类型已知时使用原生的long/double/boolean<br>
+ * - long的加减乘使用DecimalUtil.addExact等检查溢出，溢出时整个公式由解释器重新计算，结果提升为{@link Decimal}<br>
+ * - 类型只能在运行时确定的节点仍按{@link ExprValue}计算<br>
+ * - 其他节点(变量、自定义函数等)回退到解释器执行<br>
+ * - 每个公式使用独立的类加载器，公式不再被引用(例如被{@link FormulaCache}淘汰)时，生成的类随之卸载<br>
+ *
+ * <p>无法编译的公式(例如超出方法长度限制)返回{@link CompiledFormula.Interpreted}。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - long的加减乘检查溢出
+ */
+public class FormulaCompiler {
+	protected static final String PACKAGE = "com/pap/calculate/anysoft/formula/";
+	protected static final String BASE = PACKAGE + "AbstractCompiledFormula";
+	protected static final String EXPRESSION = PACKAGE + "Expression";
+	protected static final String EXPR_VALUE = PACKAGE + "ExprValue";
+	protected static final String FINANCE = PACKAGE + "FinanceFunctionUtilss";
+	protected static final String DECIMAL_UTIL = PACKAGE + "DecimalUtil";
+	protected static final String EXPRESSION_DESC = "L" + EXPRESSION + ";";
+	protected static final String EXPR_VALUE_DESC = "L" + EXPR_VALUE + ";";
+	protected static final String PROVIDER_DESC = "L" + PACKAGE + "DataProvider;";
+
+	/**
+	 * 生成类的序号
+	 */
+	protected static final AtomicLong sequence = new AtomicLong(0);
+
+	/**
+	 * 编译公式
+	 * @param expr 公式
+	 * @return 编译后的公式，无法编译时返回解释执行的公式
+	 */
+	public CompiledFormula compile(Expression expr) {
+		try {
+			return generate(expr);
+		} catch (FormulaException ex) {
+			return new CompiledFormula.Interpreted(expr);
+		} catch (StackOverflowError error) {
+			// the expression is too deep
+			return new CompiledFormula.Interpreted(expr);
+		} catch (LinkageError error) {
+			return new CompiledFormula.Interpreted(expr);
+		}
+	}
+
+	protected CompiledFormula generate(Expression expr) {
+		String className = PACKAGE + "GeneratedFormula$" + sequence.incrementAndGet();
+		ClassFileWriter writer = new ClassFileWriter(className, BASE);
+
+		String initDesc = "(" + EXPRESSION_DESC + "[" + EXPRESSION_DESC + ")V";
+		ClassFileWriter.Code init = new ClassFileWriter.Code(3);
+		init.op(ClassFileWriter.ALOAD_0, 1);
+		init.op(ClassFileWriter.ALOAD_1, 1);
+		init.op(ClassFileWriter.ALOAD_2, 1);
+		init.op2(ClassFileWriter.INVOKESPECIAL, writer.methodRef(BASE, "<init>", initDesc), -3);
+		init.op(ClassFileWriter.RETURN, 0);
+		writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", initDesc, init);
+
+		Generator generator = new Generator(writer, className);
+		generator.compileAs(expr, Kind.VALUE);
+		generator.code.op(ClassFileWriter.ARETURN, -1);
+		writer.addMethod(ClassFileWriter.ACC_PUBLIC, "evaluate", "(" + PROVIDER_DESC + ")" + EXPR_VALUE_DESC,
+				generator.code);
+
+		byte[] bytes = writer.toByteArray();
+		Expression[] nodes = generator.nodes.toArray(new Expression[0]);
+		try {
+			FormulaClassLoader loader = new FormulaClassLoader(AbstractCompiledFormula.class.getClassLoader());
+			Class<?> clazz = loader.define(className.replace('/', '.'), bytes);
+			Constructor<?> constructor = clazz.getConstructor(Expression.class, Expression[].class);
+			return (CompiledFormula) constructor.newInstance(expr, nodes);
+		} catch (ReflectiveOperationException ex) {
+			throw new FormulaException("Can not load compiled formula:" + ex.getMessage());
+		}
+	}
+
+	/**
+	 * 值在操作数栈上的形式
+	 */
+	protected enum Kind {
+		LONG(2), DOUBLE(2), BOOLEAN(1), VALUE(1);
+
+		protected final int size;
+
+		Kind(int _size) {
+			size = _size;
+		}
+
+		static Kind of(ExprValue.DataType type) {
+			if (type == null) {
+				return VALUE;
+			}
+			switch (type) {
+			case Long:
+				return LONG;
+			case Double:
+				return DOUBLE;
+			case Boolean:
+				return BOOLEAN;
+			}
+			return VALUE;
+		}
+	}
+
+	/**
+	 * 代码生成器
+	 */
+	protected static class Generator {
+		protected final ClassFileWriter writer;
+		protected final String className;
+		protected final ClassFileWriter.Code code = new ClassFileWriter.Code(2);
+		protected final List<Expression> nodes = new ArrayList<Expression>();
+
+		protected Generator(ClassFileWriter _writer, String _className) {
+			writer = _writer;
+			className = _className;
+		}
+
+		/**
+		 * 编译表达式，值以指定形式留在操作数栈上
+		 */
+		protected void compileAs(Expression expr, Kind kind) {
+			convert(compile(expr), kind);
+		}
+
+		/**
+		 * 编译表达式，值以其静态类型对应的形式留在操作数栈上
+		 */
+		protected Kind compile(Expression expr) {
+			Kind natural = Kind.of(expr.getResultType());
+			convert(emit(expr), natural);
+			return natural;
+		}
+
+		protected Kind emit(Expression expr) {
+			if (expr instanceof Expression.LongConstant) {
+				long value = ((Expression.LongConstant) expr).getConstant();
+				code.op2(ClassFileWriter.LDC2_W, writer.longConstant(value), 2);
+				return Kind.LONG;
+			}
+			if (expr instanceof Expression.DoubleConstant) {
+				double value = ((Expression.DoubleConstant) expr).getConstant();
+				code.op2(ClassFileWriter.LDC2_W, writer.doubleConstant(value), 2);
+				return Kind.DOUBLE;
+			}
+			if (expr instanceof Expression.BooleanConstant) {
+				boolean value = ((Expression.BooleanConstant) expr).getConstant();
+				code.op(value ? ClassFileWriter.ICONST_1 : ClassFileWriter.ICONST_0, 1);
+				return Kind.BOOLEAN;
+			}
+			if (expr instanceof Expression.ArithmeticExpression) {
+				return emitArithmetic((Expression.ArithmeticExpression) expr);
+			}
+			if (expr instanceof Expression.LogicalExpression) {
+				return emitLogical((Expression.LogicalExpression) expr);
+			}
+			if (expr instanceof Expression.UnaryExpression) {
+				return emitUnary((Expression.UnaryExpression) expr);
+			}
+			if (expr instanceof Function) {
+				return emitFunction((Function) expr);
+			}
+			return interpret(expr);
+		}
+
+		protected Kind emitArithmetic(Expression.ArithmeticExpression expr) {
+			Kind kind = Kind.of(expr.getResultType());
+			if (kind == Kind.LONG || kind == Kind.DOUBLE) {
+				boolean isLong = kind == Kind.LONG;
+				compileAs(expr.getLeft(), kind);
+				compileAs(expr.getRight(), kind);
+				switch (expr.getOperator()) {
+				case OP_Add:
+					if (isLong) {
+						invokeStatic(DECIMAL_UTIL, "addExact", "(JJ)J", -2);
+					} else {
+						code.op(ClassFileWriter.DADD, -2);
+					}
+					return kind;
+				case OP_Sub:
+					if (isLong) {
+						invokeStatic(DECIMAL_UTIL, "subtractExact", "(JJ)J", -2);
+					} else {
+						code.op(ClassFileWriter.DSUB, -2);
+					}
+					return kind;
+				case OP_Mul:
+					if (isLong) {
+						invokeStatic(DECIMAL_UTIL, "multiplyExact", "(JJ)J", -2);
+					} else {
+						code.op(ClassFileWriter.DMUL, -2);
+					}
+					return kind;
+				case OP_Div:
+					invokeStatic(BASE, "div", isLong ? "(JJ)J" : "(DD)D", -2);
+					return kind;
+				case OP_Mod:
+					if (isLong) {
+						invokeStatic(BASE, "mod", "(JJ)J", -2);
+						return kind;
+					}
+				}
+				throw new FormulaException("Unsupport operator:" + expr.getOperator());
+			}
+
+			String method;
+			switch (expr.getOperator()) {
+			case OP_Add:
+				method = "add";
+				break;
+			case OP_Sub:
+				method = "sub";
+				break;
+			case OP_Mul:
+				method = "mul";
+				break;
+			case OP_Div:
+				method = "div";
+				break;
+			case OP_Mod:
+				method = "mod";
+				break;
+			default:
+				return interpret(expr);
+			}
+			compileAs(expr.getLeft(), Kind.VALUE);
+			compileAs(expr.getRight(), Kind.VALUE);
+			invokeVirtual(EXPR_VALUE, method, "(" + EXPR_VALUE_DESC + ")" + EXPR_VALUE_DESC, -1);
+			return Kind.VALUE;
+		}
+
+		protected Kind emitLogical(Expression.LogicalExpression expr) {
+			int branch;
+			switch (expr.getOperator()) {
+			case OP_And:
+				return emitAnd(expr.getLeft(), expr.getRight());
+			case OP_Or:
+				return emitOr(expr.getLeft(), expr.getRight());
+			case OP_Greater:
+				branch = ClassFileWriter.IFGT;
+				break;
+			case OP_Greater_Equal:
+				branch = ClassFileWriter.IFGE;
+				break;
+			case OP_Equal:
+				branch = ClassFileWriter.IFEQ;
+				break;
+			case OP_Not_Equal:
+				branch = ClassFileWriter.IFNE;
+				break;
+			case OP_Less:
+				branch = ClassFileWriter.IFLT;
+				break;
+			case OP_Less_Equal:
+				branch = ClassFileWriter.IFLE;
+				break;
+			default:
+				return interpret(expr);
+			}
+
+			Kind left = Kind.of(expr.getLeft().getResultType());
+			Kind right = Kind.of(expr.getRight().getResultType());
+			if ((left == Kind.LONG || left == Kind.DOUBLE) && (right == Kind.LONG || right == Kind.DOUBLE)) {
+				compile(expr.getLeft());
+				compile(expr.getRight());
+				String desc = "(" + (left == Kind.LONG ? "J" : "D") + (right == Kind.LONG ? "J" : "D") + ")I";
+				invokeStatic(EXPR_VALUE, "compare", desc, 1 - left.size - right.size);
+			} else {
+				compileAs(expr.getLeft(), Kind.VALUE);
+				compileAs(expr.getRight(), Kind.VALUE);
+				invokeVirtual(EXPR_VALUE, "compareTo", "(" + EXPR_VALUE_DESC + ")I", -1);
+			}
+			ClassFileWriter.Label isTrue = new ClassFileWriter.Label();
+			ClassFileWriter.Label end = new ClassFileWriter.Label();
+			code.jump(branch, isTrue, -1);
+			code.op(ClassFileWriter.ICONST_0, 1);
+			code.jump(ClassFileWriter.GOTO, end, 0);
+			code.mark(isTrue);
+			code.op(ClassFileWriter.ICONST_1, 1);
+			code.mark(end);
+			return Kind.BOOLEAN;
+		}
+
+		protected Kind emitAnd(Expression left, Expression right) {
+			ClassFileWriter.Label isFalse = new ClassFileWriter.Label();
+			ClassFileWriter.Label end = new ClassFileWriter.Label();
+			compileAs(left, Kind.BOOLEAN);
+			code.jump(ClassFileWriter.IFEQ, isFalse, -1);
+			compileAs(right, Kind.BOOLEAN);
+			code.jump(ClassFileWriter.IFEQ, isFalse, -1);
+			code.op(ClassFileWriter.ICONST_1, 1);
+			code.jump(ClassFileWriter.GOTO, end, 0);
+			code.mark(isFalse);
+			code.op(ClassFileWriter.ICONST_0, 1);
+			code.mark(end);
+			return Kind.BOOLEAN;
+		}
+
+		protected Kind emitOr(Expression left, Expression right) {
+			ClassFileWriter.Label isTrue = new ClassFileWriter.Label();
+			ClassFileWriter.Label end = new ClassFileWriter.Label();
+			compileAs(left, Kind.BOOLEAN);
+			code.jump(ClassFileWriter.IFNE, isTrue, -1);
+			compileAs(right, Kind.BOOLEAN);
+			code.jump(ClassFileWriter.IFNE, isTrue, -1);
+			code.op(ClassFileWriter.ICONST_0, 1);
+			code.jump(ClassFileWriter.GOTO, end, 0);
+			code.mark(isTrue);
+			code.op(ClassFileWriter.ICONST_1, 1);
+			code.mark(end);
+			return Kind.BOOLEAN;
+		}
+
+		protected Kind emitUnary(Expression.UnaryExpression expr) {
+			Kind kind = Kind.of(expr.getResultType());
+			switch (expr.getOperator()) {
+			case OP_Positive:
+				return compile(expr.getChild());
+			case OP_Negative:
+				if (kind == Kind.LONG || kind == Kind.DOUBLE) {
+					compile(expr.getChild());
+					code.op(kind == Kind.LONG ? ClassFileWriter.LNEG : ClassFileWriter.DNEG, 0);
+					return kind;
+				}
+				break;
+			case OP_Not:
+				if (kind == Kind.BOOLEAN) {
+					compile(expr.getChild());
+					code.op(ClassFileWriter.ICONST_1, 1);
+					code.op(ClassFileWriter.IXOR, -1);
+					return kind;
+				}
+				break;
+			}
+			return interpret(expr);
+		}
+
+		protected Kind emitFunction(Function func) {
+			int count = func.getArgumentCount();
+			if (func instanceof Function.Choice && count == 3) {
+				Kind kind = Kind.of(func.getResultType());
+				ClassFileWriter.Label otherwise = new ClassFileWriter.Label();
+				ClassFileWriter.Label end = new ClassFileWriter.Label();
+				compileAs(func.getArgument(0), Kind.BOOLEAN);
+				code.jump(ClassFileWriter.IFEQ, otherwise, -1);
+				compileAs(func.getArgument(1), kind);
+				code.jump(ClassFileWriter.GOTO, end, 0);
+				code.mark(otherwise);
+				compileAs(func.getArgument(2), kind);
+				code.mark(end);
+				return kind;
+			}
+			if (func instanceof Function.IF && count == 3) {
+				// IF is always double,the branches are converted as Function.IF does
+				ClassFileWriter.Label otherwise = new ClassFileWriter.Label();
+				ClassFileWriter.Label end = new ClassFileWriter.Label();
+				compileAs(func.getArgument(0), Kind.BOOLEAN);
+				code.jump(ClassFileWriter.IFEQ, otherwise, -1);
+				doubleArgument(func.getArgument(1));
+				code.jump(ClassFileWriter.GOTO, end, 0);
+				code.mark(otherwise);
+				doubleArgument(func.getArgument(2));
+				code.mark(end);
+				return Kind.DOUBLE;
+			}
+			if (func instanceof Function.PMT || func instanceof Function.FV
+					|| func instanceof Function.NPER || func instanceof Function.PV) {
+				if (count == 5) {
+					for (int i = 0; i < 4; i++) {
+						doubleArgument(func.getArgument(i));
+					}
+					booleanArgument(func.getArgument(4));
+					invokeStatic(FINANCE, func.getOperatorPrototype(), "(DDDDZ)D", -7);
+					return Kind.DOUBLE;
+				}
+			}
+			if ((func instanceof Function.DB || func instanceof Function.DDB) && count == 5) {
+				boolean isDB = func instanceof Function.DB;
+				doubleArgument(func.getArgument(0));
+				doubleArgument(func.getArgument(1));
+				intArgument(func.getArgument(2));
+				intArgument(func.getArgument(3));
+				if (isDB) {
+					intArgument(func.getArgument(4));
+				} else {
+					doubleArgument(func.getArgument(4));
+				}
+				invokeStatic(FINANCE, func.getOperatorPrototype(), isDB ? "(DDIII)D" : "(DDIID)D", isDB ? -5 : -6);
+				return Kind.DOUBLE;
+			}
+			if (func instanceof Function.RATE && count == 6) {
+				for (int i = 0; i < 6; i++) {
+					doubleArgument(func.getArgument(i));
+				}
+				invokeStatic(FINANCE, "RATE", "(DDDDDD)D", -10);
+				return Kind.DOUBLE;
+			}
+			if (func instanceof Function.EFFECT && count == 2) {
+				doubleArgument(func.getArgument(0));
+				doubleArgument(func.getArgument(1));
+				invokeStatic(FINANCE, "EFFECT", "(DD)D", -2);
+				return Kind.DOUBLE;
+			}
+			return interpret(func);
+		}
+
+		/**
+		 * 与函数的参数转换一致:数值直接使用，其他值按字符串解析
+		 */
+		protected void doubleArgument(Expression arg) {
+			Kind kind = compile(arg);
+			if (kind == Kind.LONG) {
+				code.op(ClassFileWriter.L2D, 0);
+			} else if (kind != Kind.DOUBLE) {
+				convert(kind, Kind.VALUE);
+				invokeStatic(BASE, "parseDouble", "(" + EXPR_VALUE_DESC + ")D", 1);
+			}
+		}
+
+		protected void booleanArgument(Expression arg) {
+			Kind kind = compile(arg);
+			if (kind == Kind.LONG) {
+				invokeStatic(BASE, "isTrue", "(J)Z", -1);
+			} else if (kind == Kind.DOUBLE) {
+				invokeStatic(BASE, "isTrue", "(D)Z", -1);
+			} else if (kind != Kind.BOOLEAN) {
+				convert(kind, Kind.VALUE);
+				invokeStatic(BASE, "parseBoolean", "(" + EXPR_VALUE_DESC + ")Z", 0);
+			}
+		}
+
+		protected void intArgument(Expression arg) {
+			Kind kind = compile(arg);
+			if (kind == Kind.LONG) {
+				invokeStatic(BASE, "parseInt", "(J)I", -1);
+			} else if (kind == Kind.DOUBLE) {
+				invokeStatic(BASE, "parseInt", "(D)I", -1);
+			} else {
+				convert(kind, Kind.VALUE);
+				invokeStatic(BASE, "parseInt", "(" + EXPR_VALUE_DESC + ")I", 0);
+			}
+		}
+
+		/**
+		 * 由解释器计算节点:nodes[index].getValue(provider)，静态类型为基本类型时调用evalLong/evalDouble/evalBoolean
+		 */
+		protected Kind interpret(Expression expr) {
+			Kind kind = Kind.of(expr.getResultType());
+			int index = nodes.size();
+			nodes.add(expr);
+			code.op(ClassFileWriter.ALOAD_0, 1);
+			code.op2(ClassFileWriter.GETFIELD, writer.fieldRef(className, "nodes", "[" + EXPRESSION_DESC), 0);
+			if (index <= Short.MAX_VALUE) {
+				code.op2(ClassFileWriter.SIPUSH, index, 1);
+			} else {
+				code.op2(ClassFileWriter.LDC_W, writer.intConstant(index), 1);
+			}
+			code.op(ClassFileWriter.AALOAD, -1);
+			code.op(ClassFileWriter.ALOAD_1, 1);
+			switch (kind) {
+			case LONG:
+				invokeVirtual(EXPRESSION, "evalLong", "(" + PROVIDER_DESC + ")J", 0);
+				break;
+			case DOUBLE:
+				invokeVirtual(EXPRESSION, "evalDouble", "(" + PROVIDER_DESC + ")D", 0);
+				break;
+			case BOOLEAN:
+				invokeVirtual(EXPRESSION, "evalBoolean", "(" + PROVIDER_DESC + ")Z", -1);
+				break;
+			default:
+				invokeVirtual(EXPRESSION, "getValue", "(" + PROVIDER_DESC + ")" + EXPR_VALUE_DESC, -1);
+				break;
+			}
+			return kind;
+		}
+
+		protected void convert(Kind from, Kind to) {
+			if (from == to) {
+				return;
+			}
+			if (from == Kind.LONG && to == Kind.DOUBLE) {
+				code.op(ClassFileWriter.L2D, 0);
+				return;
+			}
+			if (from == Kind.LONG && to == Kind.BOOLEAN) {
+				invokeStatic(BASE, "isTrue", "(J)Z", -1);
+				return;
+			}
+			if (from != Kind.VALUE) {
+				String desc = from == Kind.LONG ? "J" : from == Kind.DOUBLE ? "D" : "Z";
+				invokeStatic(BASE, "box", "(" + desc + ")" + EXPR_VALUE_DESC, 1 - from.size);
+			}
+			switch (to) {
+			case LONG:
+				invokeVirtual(EXPR_VALUE, "getLong", "()J", 1);
+				break;
+			case DOUBLE:
+				invokeVirtual(EXPR_VALUE, "getDouble", "()D", 1);
+				break;
+			case BOOLEAN:
+				invokeVirtual(EXPR_VALUE, "getBoolean", "()Z", 0);
+				break;
+			default:
+				break;
+			}
+		}
+
+		protected void invokeStatic(String owner, String name, String desc, int delta) {
+			code.op2(ClassFileWriter.INVOKESTATIC, writer.methodRef(owner, name, desc), delta);
+		}
+
+		protected void invokeVirtual(String owner, String name, String desc, int delta) {
+			code.op2(ClassFileWriter.INVOKEVIRTUAL, writer.methodRef(owner, name, desc), delta);
+		}
+	}
+
+	/**
+	 * 每个公式独立的类加载器，公式不再被引用时可以连同生成的类一起被回收
+	 */
+	protected static class FormulaClassLoader extends ClassLoader {
+		protected FormulaClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		protected Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * 按公式和函数汇总的计算指标
+ *
+ * <br>
+ * 每个公式标识和每个函数名对应一个{@link Recorder}，记录调用次数、异常次数、字符串转换次数和耗时的直方图:<br>
+ * - 记录只做原子递增，不加锁<br>
+ * - 公式标识或函数名超过{@link #MAX_NAMES}个后，新的名称计入{@link #OTHER}<br>
+ * - {@link #register(MBeanServer, String)}后每个Recorder发布为一个MBean，
+ * 名称为domain:type=Formula|Function,name=标识，之后新增的Recorder也会自动发布<br>
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class FormulaMetrics implements MetricsSink {
+
+	/**
+	 * 缺省的JMX domain
+	 */
+	public static final String DOMAIN = "com.pap.calculate";
+
+	/**
+	 * 超出数量上限后使用的名称
+	 */
+	public static final String OTHER = "<other>";
+
+	/**
+	 * 公式标识和函数名各自的数量上限
+	 */
+	protected static final int MAX_NAMES = 4096;
+
+	protected final ConcurrentHashMap<String, Recorder> formulas = new ConcurrentHashMap<String, Recorder>();
+
+	protected final ConcurrentHashMap<String, Recorder> functions = new ConcurrentHashMap<String, Recorder>();
+
+	/**
+	 * 发布MBean的MBeanServer，未注册时为null
+	 */
+	protected MBeanServer server = null;
+
+	protected String domain = DOMAIN;
+
+	@Override
+	public void recordFormula(String formulaId, long nanos, boolean failed) {
+		recorder(formulas, "Formula", formulaId).record(nanos, failed);
+	}
+
+	@Override
+	public void recordFunction(String formulaId, String function, long nanos, boolean failed) {
+		recorder(functions, "Function", function).record(nanos, failed);
+	}
+
+	@Override
+	public void recordConversion(String formulaId, String function) {
+		recorder(formulas, "Formula", formulaId).conversions.increment();
+		recorder(functions, "Function", function).conversions.increment();
+	}
+
+	/**
+	 * 获取公式的指标
+	 * @param formulaId 公式标识
+	 * @return 指标，没有记录时为null
+	 */
+	public Recorder getFormula(String formulaId) {
+		return formulas.get(formulaId);
+	}
+
+	/**
+	 * 获取函数的指标
+	 * @param function 函数名
+	 * @return 指标，没有记录时为null
+	 */
+	public Recorder getFunction(String function) {
+		return functions.get(function);
+	}
+
+	/**
+	 * 已记录的公式标识
+	 * @return 公式标识集合(不可修改)
+	 */
+	public Set<String> getFormulaIds() {
+		return Collections.unmodifiableSet(formulas.keySet());
+	}
+
+	/**
+	 * 已记录的函数名
+	 * @return 函数名集合(不可修改)
+	 */
+	public Set<String> getFunctionNames() {
+		return Collections.unmodifiableSet(functions.keySet());
+	}
+
+	/**
+	 * 清空所有指标，已发布的MBean保留
+	 */
+	public void reset() {
+		for (Recorder recorder : formulas.values()) {
+			recorder.reset();
+		}
+		for (Recorder recorder : functions.values()) {
+			recorder.reset();
+		}
+	}
+
+	/**
+	 * 发布到平台MBeanServer
+	 */
+	public void register() {
+		register(ManagementFactory.getPlatformMBeanServer(), DOMAIN);
+	}
+
+	/**
+	 * 发布为MBean
+	 * @param _server MBeanServer
+	 * @param _domain MBean名称的domain
+	 * @throws FormulaException 已发布到其他MBeanServer或发布失败
+	 */
+	public synchronized void register(MBeanServer _server, String _domain) {
+		if (server != null) {
+			throw new FormulaException("The metrics have been registered to " + domain);
+		}
+		server = _server;
+		domain = _domain;
+		for (Recorder recorder : formulas.values()) {
+			publish(recorder);
+		}
+		for (Recorder recorder : functions.values()) {
+			publish(recorder);
+		}
+	}
+
+	/**
+	 * 注销所有MBean
+	 */
+	public synchronized void unregister() {
+		if (server == null) {
+			return;
+		}
+		try {
+			for (Recorder recorder : formulas.values()) {
+				unpublish(recorder);
+			}
+			for (Recorder recorder : functions.values()) {
+				unpublish(recorder);
+			}
+		} finally {
+			server = null;
+		}
+	}
+
+	protected Recorder recorder(ConcurrentHashMap<String, Recorder> recorders, String type, String name) {
+		Recorder found = recorders.get(name);
+		if (found == null) {
+			if (recorders.size() >= MAX_NAMES) {
+				name = OTHER;
+				found = recorders.get(name);
+				if (found != null) {
+					return found;
+				}
+			}
+			Recorder created = new Recorder(type, name);
+			found = recorders.putIfAbsent(name, created);
+			if (found == null) {
+				found = created;
+				synchronized (this) {
+					if (server != null) {
+						publish(created);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	protected void publish(Recorder recorder) {
+		try {
+			server.registerMBean(new StandardMBean(recorder, RecorderMBean.class), objectName(recorder));
+		} catch (InstanceAlreadyExistsException e) {
+			// published by register() and by the thread which created it
+		} catch (JMException e) {
+			throw new FormulaException("Can not register metrics of " + recorder.getName() + ":" + e.getMessage());
+		}
+	}
+
+	protected void unpublish(Recorder recorder) {
+		try {
+			server.unregisterMBean(objectName(recorder));
+		} catch (InstanceNotFoundException e) {
+			// unregistered by others
+		} catch (JMException e) {
+			throw new FormulaException("Can not unregister metrics of " + recorder.getName() + ":" + e.getMessage());
+		}
+	}
+
+	protected ObjectName objectName(Recorder recorder) throws JMException {
+		return new ObjectName(domain + ":type=" + recorder.getType() + ",name=" + ObjectName.quote(recorder.getName()));
+	}
+
+	/**
+	 * 通过JMX发布的指标
+	 */
+	public interface RecorderMBean {
+		public String getType();
+
+		public String getName();
+
+		public long getCalls();
+
+		public long getErrors();
+
+		public long getConversions();
+
+		public double getMeanNanos();
+
+		public long getMaxNanos();
+
+		public long getP50Nanos();
+
+		public long getP90Nanos();
+
+		public long getP99Nanos();
+
+		public long getP999Nanos();
+
+		public void reset();
+	}
+
+	/**
+	 * 一个公式或函数的指标
+	 */
+	public static class Recorder implements RecorderMBean {
+		protected final String type;
+		protected final String name;
+		protected final LatencyHistogram latency = new LatencyHistogram();
+		protected final LongAdder errors = new LongAdder();
+		protected final LongAdder conversions = new LongAdder();
+
+		protected Recorder(String _type, String _name) {
+			type = _type;
+			name = _name;
+		}
+
+		/**
+		 * 记录一次计算
+		 * @param nanos 耗时(纳秒)
+		 * @param failed 是否抛出了异常
+		 */
+		public void record(long nanos, boolean failed) {
+			latency.record(nanos);
+			if (failed) {
+				errors.increment();
+			}
+		}
+
+		@Override
+		public String getType() {
+			return type;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public long getCalls() {
+			return latency.getCount();
+		}
+
+		@Override
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		@Override
+		public long getConversions() {
+			return conversions.sum();
+		}
+
+		@Override
+		public double getMeanNanos() {
+			return latency.getMean();
+		}
+
+		@Override
+		public long getMaxNanos() {
+			return latency.getMax();
+		}
+
+		@Override
+		public long getP50Nanos() {
+			return latency.getValueAtPercentile(50);
+		}
+
+		@Override
+		public long getP90Nanos() {
+			return latency.getValueAtPercentile(90);
+		}
+
+		@Override
+		public long getP99Nanos() {
+			return latency.getValueAtPercentile(99);
+		}
+
+		@Override
+		public long getP999Nanos() {
+			return latency.getValueAtPercentile(99.9);
+		}
+
+		/**
+		 * 耗时的直方图
+		 * @return 直方图
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public void reset() {
+			latency.reset();
+			errors.reset();
+			conversions.reset();
+		}
+
+		@Override
+		public String toString() {
+			return type + ":" + name + "[calls=" + getCalls() + ",errors=" + getErrors() + ",conversions="
+					+ getConversions() + ",mean=" + String.format("%.1f", getMeanNanos()) + "ns,p99=" + getP99Nanos()
+					+ "ns,max=" + getMaxNanos() + "ns]";
+		}
+	}
+}
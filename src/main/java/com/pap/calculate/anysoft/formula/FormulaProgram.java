@@ -0,0 +1,660 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * 栈式虚拟机上的公式
+ *
+ * <br>
+ * 由{@link ProgramCompiler}把{@link Expression}编译为后缀形式的int[]指令流，附带常量池，在一个解释循环中执行:<br>
+ * - 指令为操作码加内联操作数，常量、回退节点通过下标引用常量池<br>
+ * - 使用三个操作数栈:long栈(long、boolean以0/1保存)、double栈、对象栈({@link ExprValue})<br>
+ * - 静态类型已知的运算直接在long/double栈上完成，不创建{@link ExprValue}<br>
+ * - 变量、字符串函数等没有对应指令的节点保存在常量池中，由解释器计算(EVAL_*)<br>
+ * - long的加减乘检查溢出，溢出时整个公式由解释器重新计算，结果提升为{@link Decimal}<br>
+ *
+ * <p>一个公式只占用一个int数组和几个常量数组，不为每个运算符创建对象，也不像{@link FormulaCompiler}那样为每个公式生成类，
+ * 适合在内存中保存大量公式。
+ *
+ * <p>FormulaProgram不可变，可被多个线程共享。计算使用的操作数栈保存在{@link Frame}中，
+ * 调用方可以为每个线程创建一个Frame反复使用，使计算过程不分配内存;不传Frame时每次计算创建新的Frame。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - long的加减乘检查溢出
+ * @version 1.0.2
+ * - 结果为常量池中的值时返回副本，调用方修改结果不影响后续计算
+ * @version 1.0.3
+ * - 只在long溢出时由解释器重新计算，其他ArithmeticException直接抛出
+ */
+public final class FormulaProgram {
+
+	/*
+	 * 操作码，注释中为内联操作数和栈的变化(L:long栈,D:double栈,V:对象栈)
+	 */
+
+	/** 常量池下标 : -> L */
+	public static final int LCONST = 0;
+	/** 常量池下标 : -> D */
+	public static final int DCONST = 1;
+	/** 常量池下标 : -> V */
+	public static final int VCONST = 2;
+	/** 节点下标 : -> L */
+	public static final int EVAL_L = 3;
+	/** 节点下标 : -> D */
+	public static final int EVAL_D = 4;
+	/** 节点下标 : -> L(0/1) */
+	public static final int EVAL_Z = 5;
+	/** 节点下标 : -> V */
+	public static final int EVAL_V = 6;
+
+	/** L,L -> L，加减乘溢出时抛出{@link DecimalUtil.LongOverflowException} */
+	public static final int LADD = 7;
+	public static final int LSUB = 8;
+	public static final int LMUL = 9;
+	public static final int LDIV = 10;
+	public static final int LMOD = 11;
+	/** D,D -> D */
+	public static final int DADD = 12;
+	public static final int DSUB = 13;
+	public static final int DMUL = 14;
+	public static final int DDIV = 15;
+	/** V,V -> V */
+	public static final int VADD = 16;
+	public static final int VSUB = 17;
+	public static final int VMUL = 18;
+	public static final int VDIV = 19;
+	public static final int VMOD = 20;
+	/** L -> L */
+	public static final int LNEG = 21;
+	/** D -> D */
+	public static final int DNEG = 22;
+	/** L(0/1) -> L(1/0) */
+	public static final int ZNOT = 23;
+
+	/** 比较条件 : L,L -> L(0/1) */
+	public static final int CMP_LL = 24;
+	/** 比较条件 : L,D -> L(0/1) */
+	public static final int CMP_LD = 25;
+	/** 比较条件 : D,L -> L(0/1) */
+	public static final int CMP_DL = 26;
+	/** 比较条件 : D,D -> L(0/1) */
+	public static final int CMP_DD = 27;
+	/** 比较条件 : V,V -> L(0/1) */
+	public static final int CMP_VV = 28;
+
+	/** L -> D */
+	public static final int L2D = 29;
+	/** L -> L(0/1)，非0即为true */
+	public static final int L2Z = 30;
+	/** D -> L(0/1)，非0即为true */
+	public static final int D2Z = 31;
+	/** L -> V */
+	public static final int BOX_L = 32;
+	/** D -> V */
+	public static final int BOX_D = 33;
+	/** L(0/1) -> V */
+	public static final int BOX_Z = 34;
+	/** V -> L */
+	public static final int UNBOX_L = 35;
+	/** V -> D */
+	public static final int UNBOX_D = 36;
+	/** V -> L(0/1) */
+	public static final int UNBOX_Z = 37;
+
+	/** V -> D，按财务函数的参数转换 */
+	public static final int ARG_D = 38;
+	/** V -> L(0/1)，按财务函数的参数转换 */
+	public static final int ARG_Z = 39;
+	/** V -> L，按财务函数的参数转换为int */
+	public static final int ARG_I = 40;
+	/** L -> L，转换为int(检查范围) */
+	public static final int L2I = 41;
+	/** D -> L，截断为int(检查范围) */
+	public static final int D2I = 42;
+
+	/** 目标 : 无条件跳转 */
+	public static final int JMP = 43;
+	/** 目标 : L -> ，为0时跳转 */
+	public static final int JZ = 44;
+	/** 目标 : L -> L，为0时保留栈顶并跳转，否则弹出(&&) */
+	public static final int JZ_KEEP = 45;
+	/** 目标 : L -> L，非0时保留栈顶并跳转，否则弹出(||) */
+	public static final int JNZ_KEEP = 46;
+
+	/** D,D,D,D,L(0/1) -> D */
+	public static final int PMT = 47;
+	public static final int FV = 48;
+	public static final int NPER = 49;
+	public static final int PV = 50;
+	/** D,D,L,L,L -> D */
+	public static final int DB = 51;
+	/** D,D,L,L,D -> D */
+	public static final int DDB = 52;
+	/** D,D,D,D,D,D -> D */
+	public static final int RATE = 53;
+	/** D,D -> D */
+	public static final int EFFECT = 54;
+
+	/*
+	 * 比较条件
+	 */
+	public static final int GT = 0;
+	public static final int GE = 1;
+	public static final int EQ = 2;
+	public static final int NE = 3;
+	public static final int LT = 4;
+	public static final int LE = 5;
+
+	/**
+	 * 操作码的名称，用于反汇编
+	 */
+	protected static final String[] NAMES = { "LCONST", "DCONST", "VCONST", "EVAL_L", "EVAL_D", "EVAL_Z", "EVAL_V",
+			"LADD", "LSUB", "LMUL", "LDIV", "LMOD", "DADD", "DSUB", "DMUL", "DDIV", "VADD", "VSUB", "VMUL", "VDIV",
+			"VMOD", "LNEG", "DNEG", "ZNOT", "CMP_LL", "CMP_LD", "CMP_DL", "CMP_DD", "CMP_VV", "L2D", "L2Z", "D2Z",
+			"BOX_L", "BOX_D", "BOX_Z", "UNBOX_L", "UNBOX_D", "UNBOX_Z", "ARG_D", "ARG_Z", "ARG_I", "L2I", "D2I",
+			"JMP", "JZ", "JZ_KEEP", "JNZ_KEEP", "PMT", "FV", "NPER", "PV", "DB", "DDB", "RATE", "EFFECT" };
+
+	/**
+	 * 指令流
+	 */
+	protected final int[] code;
+
+	protected final long[] longs;
+	protected final double[] doubles;
+	protected final ExprValue[] values;
+
+	/**
+	 * 由解释器计算的节点
+	 */
+	protected final Expression[] nodes;
+
+	/**
+	 * 结果的数据类型
+	 */
+	protected final ExprValue.DataType resultType;
+
+	/**
+	 * 源公式，long运算溢出时由解释器计算
+	 */
+	protected final Expression source;
+
+	/*
+	 * 各操作数栈的最大深度
+	 */
+	protected final int maxLongs;
+	protected final int maxDoubles;
+	protected final int maxValues;
+
+	protected FormulaProgram(int[] _code, long[] _longs, double[] _doubles, ExprValue[] _values, Expression[] _nodes,
+			Expression _source, int _maxLongs, int _maxDoubles, int _maxValues) {
+		code = _code;
+		longs = _longs;
+		doubles = _doubles;
+		values = _values;
+		nodes = _nodes;
+		source = _source;
+		resultType = _source.getResultType();
+		maxLongs = _maxLongs;
+		maxDoubles = _maxDoubles;
+		maxValues = _maxValues;
+	}
+
+	/**
+	 * 结果的静态数据类型
+	 * @return 数据类型，null表示只能在运行时确定
+	 */
+	public ExprValue.DataType getResultType() {
+		return resultType;
+	}
+
+	/**
+	 * 指令流的长度(int个数)
+	 * @return 长度
+	 */
+	public int getCodeLength() {
+		return code.length;
+	}
+
+	/**
+	 * 创建计算用的操作数栈
+	 * @return Frame
+	 */
+	public Frame newFrame() {
+		return new Frame(maxLongs, maxDoubles, maxValues);
+	}
+
+	/**
+	 * 计算公式
+	 * @param provider 变量值
+	 * @return 公式的值
+	 * @throws FormulaException 计算出错
+	 */
+	public ExprValue getValue(DataProvider provider) throws FormulaException {
+		return getValue(provider, newFrame());
+	}
+
+	/**
+	 * 使用指定的操作数栈计算公式
+	 * @param provider 变量值
+	 * @param frame 操作数栈，须由本公式的{@link #newFrame()}创建，不能被多个线程同时使用
+	 * @return 公式的值
+	 * @throws FormulaException 计算出错
+	 */
+	public ExprValue getValue(DataProvider provider, Frame frame) throws FormulaException {
+		try {
+			run(provider, frame);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			return source.getValue(provider);
+		}
+		return toValue(frame);
+	}
+
+	/**
+	 * 计算公式，结果为double
+	 * @param provider 变量值
+	 * @param frame 操作数栈
+	 * @return 公式的值
+	 * @throws FormulaException 计算出错
+	 */
+	public double evalDouble(DataProvider provider, Frame frame) throws FormulaException {
+		try {
+			run(provider, frame);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			return source.evalDouble(provider);
+		}
+		if (resultType == ExprValue.DataType.Double) {
+			return frame.doubles[0];
+		}
+		if (resultType == ExprValue.DataType.Long) {
+			return frame.longs[0];
+		}
+		return notNull(toValue(frame)).getDouble();
+	}
+
+	/**
+	 * 计算公式，结果为long
+	 * @param provider 变量值
+	 * @param frame 操作数栈
+	 * @return 公式的值
+	 * @throws FormulaException 计算出错
+	 */
+	public long evalLong(DataProvider provider, Frame frame) throws FormulaException {
+		try {
+			run(provider, frame);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			return source.evalLong(provider);
+		}
+		if (resultType == ExprValue.DataType.Long) {
+			return frame.longs[0];
+		}
+		return notNull(toValue(frame)).getLong();
+	}
+
+	/**
+	 * 计算公式，结果为boolean
+	 * @param provider 变量值
+	 * @param frame 操作数栈
+	 * @return 公式的值
+	 * @throws FormulaException 计算出错
+	 */
+	public boolean evalBoolean(DataProvider provider, Frame frame) throws FormulaException {
+		try {
+			run(provider, frame);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			return source.evalBoolean(provider);
+		}
+		if (resultType == ExprValue.DataType.Boolean) {
+			return frame.longs[0] != 0;
+		}
+		return notNull(toValue(frame)).getBoolean();
+	}
+
+	private ExprValue toValue(Frame frame) {
+		if (resultType == ExprValue.DataType.Long) {
+			return new ExprValue(frame.longs[0]);
+		}
+		if (resultType == ExprValue.DataType.Double) {
+			return new ExprValue(frame.doubles[0]);
+		}
+		if (resultType == ExprValue.DataType.Boolean) {
+			return new ExprValue(frame.longs[0] != 0);
+		}
+		ExprValue value = (ExprValue) frame.values[0];
+		frame.values[0] = null;
+		// 常量池中的值被所有线程共享，不能交给调用方
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == value) {
+				return value.copy();
+			}
+		}
+		return value;
+	}
+
+	private static ExprValue notNull(ExprValue value) {
+		if (value == null) {
+			throw new FormulaException("The value of formula is null");
+		}
+		return value;
+	}
+
+	/**
+	 * 解释循环
+	 */
+	protected void run(DataProvider provider, Frame frame) {
+		final int[] code = this.code;
+		final long[] ls = frame.longs;
+		final double[] ds = frame.doubles;
+		final Object[] vs = frame.values;
+		int lp = 0;
+		int dp = 0;
+		int vp = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			switch (code[pc++]) {
+			case LCONST:
+				ls[lp++] = longs[code[pc++]];
+				break;
+			case DCONST:
+				ds[dp++] = doubles[code[pc++]];
+				break;
+			case VCONST:
+				vs[vp++] = values[code[pc++]];
+				break;
+			case EVAL_L:
+				ls[lp++] = nodes[code[pc++]].evalLong(provider);
+				break;
+			case EVAL_D:
+				ds[dp++] = nodes[code[pc++]].evalDouble(provider);
+				break;
+			case EVAL_Z:
+				ls[lp++] = nodes[code[pc++]].evalBoolean(provider) ? 1 : 0;
+				break;
+			case EVAL_V:
+				vs[vp++] = nodes[code[pc++]].getValue(provider);
+				break;
+			case LADD:
+				lp--;
+				ls[lp - 1] = DecimalUtil.addExact(ls[lp - 1], ls[lp]);
+				break;
+			case LSUB:
+				lp--;
+				ls[lp - 1] = DecimalUtil.subtractExact(ls[lp - 1], ls[lp]);
+				break;
+			case LMUL:
+				lp--;
+				ls[lp - 1] = DecimalUtil.multiplyExact(ls[lp - 1], ls[lp]);
+				break;
+			case LDIV:
+				lp--;
+				ls[lp - 1] = AbstractCompiledFormula.div(ls[lp - 1], ls[lp]);
+				break;
+			case LMOD:
+				lp--;
+				ls[lp - 1] = AbstractCompiledFormula.mod(ls[lp - 1], ls[lp]);
+				break;
+			case DADD:
+				dp--;
+				ds[dp - 1] += ds[dp];
+				break;
+			case DSUB:
+				dp--;
+				ds[dp - 1] -= ds[dp];
+				break;
+			case DMUL:
+				dp--;
+				ds[dp - 1] *= ds[dp];
+				break;
+			case DDIV:
+				dp--;
+				ds[dp - 1] = AbstractCompiledFormula.div(ds[dp - 1], ds[dp]);
+				break;
+			case VADD:
+				vp--;
+				vs[vp - 1] = ((ExprValue) vs[vp - 1]).add((ExprValue) vs[vp]);
+				break;
+			case VSUB:
+				vp--;
+				vs[vp - 1] = ((ExprValue) vs[vp - 1]).sub((ExprValue) vs[vp]);
+				break;
+			case VMUL:
+				vp--;
+				vs[vp - 1] = ((ExprValue) vs[vp - 1]).mul((ExprValue) vs[vp]);
+				break;
+			case VDIV:
+				vp--;
+				vs[vp - 1] = ((ExprValue) vs[vp - 1]).div((ExprValue) vs[vp]);
+				break;
+			case VMOD:
+				vp--;
+				vs[vp - 1] = ((ExprValue) vs[vp - 1]).mod((ExprValue) vs[vp]);
+				break;
+			case LNEG:
+				ls[lp - 1] = -ls[lp - 1];
+				break;
+			case DNEG:
+				ds[dp - 1] = -ds[dp - 1];
+				break;
+			case ZNOT:
+				ls[lp - 1] ^= 1;
+				break;
+			case CMP_LL:
+				lp--;
+				ls[lp - 1] = test(code[pc++], ExprValue.compare(ls[lp - 1], ls[lp]));
+				break;
+			case CMP_LD:
+				dp--;
+				ls[lp - 1] = test(code[pc++], ExprValue.compare(ls[lp - 1], ds[dp]));
+				break;
+			case CMP_DL:
+				dp--;
+				ls[lp - 1] = test(code[pc++], ExprValue.compare(ds[dp], ls[lp - 1]));
+				break;
+			case CMP_DD:
+				dp -= 2;
+				ls[lp++] = test(code[pc++], ExprValue.compare(ds[dp], ds[dp + 1]));
+				break;
+			case CMP_VV:
+				vp -= 2;
+				ls[lp++] = test(code[pc++], ((ExprValue) vs[vp]).compareTo((ExprValue) vs[vp + 1]));
+				break;
+			case L2D:
+				ds[dp++] = ls[--lp];
+				break;
+			case L2Z:
+				ls[lp - 1] = ls[lp - 1] != 0 ? 1 : 0;
+				break;
+			case D2Z:
+				ls[lp++] = ds[--dp] != 0 ? 1 : 0;
+				break;
+			case BOX_L:
+				vs[vp++] = new ExprValue(ls[--lp]);
+				break;
+			case BOX_D:
+				vs[vp++] = new ExprValue(ds[--dp]);
+				break;
+			case BOX_Z:
+				vs[vp++] = new ExprValue(ls[--lp] != 0);
+				break;
+			case UNBOX_L:
+				ls[lp++] = ((ExprValue) vs[--vp]).getLong();
+				break;
+			case UNBOX_D:
+				ds[dp++] = ((ExprValue) vs[--vp]).getDouble();
+				break;
+			case UNBOX_Z:
+				ls[lp++] = ((ExprValue) vs[--vp]).getBoolean() ? 1 : 0;
+				break;
+			case ARG_D:
+				ds[dp++] = Function.toDouble((ExprValue) vs[--vp]);
+				break;
+			case ARG_Z:
+				ls[lp++] = Function.toBoolean((ExprValue) vs[--vp]) ? 1 : 0;
+				break;
+			case ARG_I:
+				ls[lp++] = Function.toInt((ExprValue) vs[--vp]);
+				break;
+			case L2I:
+				ls[lp - 1] = Function.toInt(ls[lp - 1]);
+				break;
+			case D2I:
+				ls[lp++] = Function.toInt(ds[--dp]);
+				break;
+			case JMP:
+				pc = code[pc];
+				break;
+			case JZ:
+				pc = ls[--lp] == 0 ? code[pc] : pc + 1;
+				break;
+			case JZ_KEEP:
+				if (ls[lp - 1] == 0) {
+					pc = code[pc];
+				} else {
+					lp--;
+					pc++;
+				}
+				break;
+			case JNZ_KEEP:
+				if (ls[lp - 1] != 0) {
+					pc = code[pc];
+				} else {
+					lp--;
+					pc++;
+				}
+				break;
+			case PMT:
+				dp -= 4;
+				ds[dp] = FinanceFunctionUtilss.PMT(ds[dp], ds[dp + 1], ds[dp + 2], ds[dp + 3], ls[--lp] != 0);
+				dp++;
+				break;
+			case FV:
+				dp -= 4;
+				ds[dp] = FinanceFunctionUtilss.FV(ds[dp], ds[dp + 1], ds[dp + 2], ds[dp + 3], ls[--lp] != 0);
+				dp++;
+				break;
+			case NPER:
+				dp -= 4;
+				ds[dp] = FinanceFunctionUtilss.NPER(ds[dp], ds[dp + 1], ds[dp + 2], ds[dp + 3], ls[--lp] != 0);
+				dp++;
+				break;
+			case PV:
+				dp -= 4;
+				ds[dp] = FinanceFunctionUtilss.PV(ds[dp], ds[dp + 1], ds[dp + 2], ds[dp + 3], ls[--lp] != 0);
+				dp++;
+				break;
+			case DB:
+				dp -= 2;
+				lp -= 3;
+				ds[dp] = FinanceFunctionUtilss.DB(ds[dp], ds[dp + 1], (int) ls[lp], (int) ls[lp + 1], (int) ls[lp + 2]);
+				dp++;
+				break;
+			case DDB:
+				dp -= 3;
+				lp -= 2;
+				ds[dp] = FinanceFunctionUtilss.DDB(ds[dp], ds[dp + 1], (int) ls[lp], (int) ls[lp + 1], ds[dp + 2]);
+				dp++;
+				break;
+			case RATE:
+				dp -= 6;
+				ds[dp] = FinanceFunctionUtilss.RATE(ds[dp], ds[dp + 1], ds[dp + 2], ds[dp + 3], ds[dp + 4], ds[dp + 5]);
+				dp++;
+				break;
+			case EFFECT:
+				dp -= 2;
+				ds[dp] = FinanceFunctionUtilss.EFFECT(ds[dp], ds[dp + 1]);
+				dp++;
+				break;
+			default:
+				throw new FormulaException("Unknown opcode " + code[pc - 1] + " at " + (pc - 1));
+			}
+		}
+		// release the intermediate values
+		for (int i = 1; i < vs.length; i++) {
+			vs[i] = null;
+		}
+	}
+
+	protected static long test(int condition, int result) {
+		switch (condition) {
+		case GT:
+			return result > 0 ? 1 : 0;
+		case GE:
+			return result >= 0 ? 1 : 0;
+		case EQ:
+			return result == 0 ? 1 : 0;
+		case NE:
+			return result != 0 ? 1 : 0;
+		case LT:
+			return result < 0 ? 1 : 0;
+		default:
+			return result <= 0 ? 1 : 0;
+		}
+	}
+
+	/**
+	 * 操作数个数
+	 */
+	protected static int operands(int opcode) {
+		return opcode <= EVAL_V || (opcode >= CMP_LL && opcode <= CMP_VV) || (opcode >= JMP && opcode <= JNZ_KEEP) ? 1 : 0;
+	}
+
+	/**
+	 * 反汇编
+	 * @return 每行一条指令
+	 */
+	public String disassemble() {
+		StringBuffer buffer = new StringBuffer();
+		int pc = 0;
+		while (pc < code.length) {
+			int opcode = code[pc];
+			buffer.append(pc).append(":\t").append(NAMES[opcode]);
+			if (operands(opcode) > 0) {
+				int operand = code[pc + 1];
+				buffer.append(' ');
+				switch (opcode) {
+				case LCONST:
+					buffer.append(longs[operand]);
+					break;
+				case DCONST:
+					buffer.append(doubles[operand]);
+					break;
+				case VCONST:
+					buffer.append(values[operand]);
+					break;
+				case EVAL_L:
+				case EVAL_D:
+				case EVAL_Z:
+				case EVAL_V:
+					buffer.append(nodes[operand]);
+					break;
+				default:
+					buffer.append(operand);
+				}
+			}
+			buffer.append('\n');
+			pc += 1 + operands(opcode);
+		}
+		return buffer.toString();
+	}
+
+	public String toString() {
+		return "FormulaProgram[" + resultType + "," + code.length + "]";
+	}
+
+	/**
+	 * 操作数栈
+	 *
+	 * <p>不是线程安全的，每个线程使用自己的Frame。
+	 */
+	public static final class Frame {
+		protected final long[] longs;
+		protected final double[] doubles;
+		protected final Object[] values;
+
+		protected Frame(int maxLongs, int maxDoubles, int maxValues) {
+			// the result is always at index 0
+			longs = new long[Math.max(maxLongs, 1)];
+			doubles = new double[Math.max(maxDoubles, 1)];
+			values = new Object[Math.max(maxValues, 1)];
+		}
+	}
+}
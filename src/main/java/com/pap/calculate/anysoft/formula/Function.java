@@ -1,8 +1,10 @@
 package com.pap.calculate.anysoft.formula;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Vector;
+import java.util.regex.PatternSyntaxException;
 
 
 
@@ -10,33 +12,86 @@ import java.util.Vector;
  * Function
  * @author duanyy
  * @version 1.0.0
+ * @version 1.0.1
+ * - 参数列表改为写时复制的数组,构造完成后只读,计算时无锁
+ * @version 1.0.2
+ * - 财务函数的参数按数值计算,不再经过字符串转换;数值作为布尔参数时非0即为true
+ * @version 1.0.3
+ * - IF只计算选中的分支,分支按原类型转换为double,不再经过字符串
+ * @version 1.0.4
+ * - ROUND,ROUNDUP,DEVIDE,NUM_DIGIT,E_YUSHU由{@link DecimalUtil}计算,结果与原来一致,只在无法快速计算时使用BigDecimal/DecimalFormat
+ * @version 1.0.5
+ * - 数值参数支持{@link Decimal},ROUND,ROUNDUP直接按Decimal舍入
+ * @version 1.0.6
+ * - 插桩后({@link Instrumentation})记录参数经过字符串转换的次数
+ * @version 1.0.7
+ * - long参数溢出(提升为Decimal)时使用提升后的值，不再抛出异常
  */
-abstract public class Function extends Expression{
+abstract public class Function extends Expression implements Cloneable{
 
 	/**
 	 * constructor
 	 * @param _prototype the prototype of the function
 	 */
 	public Function(String _prototype) {
+		this(_prototype, null);
+	}
+	
+	/**
+	 * constructor
+	 * @param _prototype the prototype of the function
+	 * @param _resultType the data type of the result,null if it can only be known at runtime
+	 */
+	public Function(String _prototype, ExprValue.DataType _resultType) {
+		this(_prototype, _resultType, false);
+	}
+	
+	/**
+	 * constructor
+	 * @param _prototype the prototype of the function
+	 * @param _resultType the data type of the result,null if it can only be known at runtime
+	 * @param _pure whether the function is pure
+	 */
+	public Function(String _prototype, ExprValue.DataType _resultType, boolean _pure) {
 		super(Operator.OP_Extend);
 		prototype = _prototype;
+		resultType = _resultType;
+		pure = _pure;
 	}
 
 	/**
 	 * arguments
+	 * 
+	 * <br>Copied on write by {@link #addArgument(Expression)} while the tree is built,
+	 * the array is never changed after that,so it is read without lock.
 	 */
-	protected Vector<Expression> args = new Vector<Expression>();
+	protected Expression [] args = new Expression[0];
 	
 	/**
 	 * prototype
 	 */
 	protected String prototype = "Function";
+	
+	/**
+	 * data type of the result
+	 */
+	protected ExprValue.DataType resultType = null;
+	
+	/**
+	 * whether the function is pure
+	 */
+	protected boolean pure = false;
+	
+	/**
+	 * where the conversions are recorded,null when the function is not instrumented
+	 */
+	protected Instrumentation.Probe probe = null;
 	/**
 	 * to get argument list
 	 * @return argument list
 	 */
 	public Expression [] arguments(){
-		return args.toArray(new Expression[0]);
+		return args.clone();
 	}
 	
 	/**
@@ -44,7 +99,7 @@ abstract public class Function extends Expression{
 	 * @return count
 	 */
 	public int getArgumentCount(){
-		return args.size();
+		return args.length;
 	}
 	
 	/**
@@ -53,7 +108,7 @@ abstract public class Function extends Expression{
 	 * @return argument
 	 */
 	public Expression getArgument(int index){
-		return args.elementAt(index);
+		return args[index];
 	}
 	
 	@Override
@@ -61,6 +116,43 @@ abstract public class Function extends Expression{
 		return prototype;
 	}	
 	
+	@Override
+	public ExprValue.DataType getResultType() {
+		return resultType;
+	}
+	
+	/**
+	 * whether the function is pure
+	 * 
+	 * <br>A pure function always gives the same value for the same arguments and has no side effect,
+	 * so it can be computed by {@link Optimizer} before the formula is used.
+	 * @return true if it is pure
+	 */
+	public boolean isPure() {
+		return pure;
+	}
+	
+	/**
+	 * to create a copy of this function with other arguments
+	 * 
+	 * <br>The function itself is not changed,so it is safe to rewrite a shared tree.
+	 * @param _args the arguments of the copy
+	 * @return the copy
+	 */
+	public Function copy(Expression [] _args) {
+		Function copied;
+		try {
+			copied = (Function) clone();
+		} catch (CloneNotSupportedException ex) {
+			throw new FormulaException("Can not copy function :" + prototype);
+		}
+		copied.args = new Expression[0];
+		for (Expression arg : _args){
+			copied.addArgument(arg);
+		}
+		return copied;
+	}
+	
 	public String toString(){
 		StringBuffer buffer = new StringBuffer();
 		buffer.append(getOperatorPrototype());
@@ -76,6 +168,268 @@ abstract public class Function extends Expression{
 		buffer.append(")");
 		return buffer.toString();
 	}
+	/**
+	 * whether the argument is a long or double value before computing
+	 * @param arg the argument
+	 * @return true if it is numeric
+	 */
+	protected static boolean isNumeric(Expression arg){
+		ExprValue.DataType type = arg.getResultType();
+		return type == ExprValue.DataType.Long || type == ExprValue.DataType.Double;
+	}
+	
+	/**
+	 * to compute a double argument,numeric arguments are computed without string conversion
+	 * @param index index of the argument
+	 * @param provider data provider
+	 * @return double value
+	 */
+	protected double doubleArgument(int index,DataProvider provider){
+		Expression arg = getArgument(index);
+		if (isNumeric(arg)){
+			return arg.evalDouble(provider);
+		}
+		return toDouble(converted(arg.getValue(provider)));
+	}
+	
+	/**
+	 * to compute a int argument
+	 * @param index index of the argument
+	 * @param provider data provider
+	 * @return int value
+	 */
+	protected int intArgument(int index,DataProvider provider){
+		Expression arg = getArgument(index);
+		ExprValue.DataType type = arg.getResultType();
+		if (type == ExprValue.DataType.Long){
+			return toInt(longArgument(arg, provider));
+		}
+		if (type == ExprValue.DataType.Double){
+			return toInt(arg.evalDouble(provider));
+		}
+		return toInt(converted(arg.getValue(provider)));
+	}
+	
+	/**
+	 * to compute a boolean argument,numbers are true if they are not zero
+	 * @param index index of the argument
+	 * @param provider data provider
+	 * @return boolean value
+	 */
+	protected boolean booleanArgument(int index,DataProvider provider){
+		Expression arg = getArgument(index);
+		ExprValue.DataType type = arg.getResultType();
+		if (type == ExprValue.DataType.Boolean){
+			return arg.evalBoolean(provider);
+		}
+		if (type == ExprValue.DataType.Long){
+			try {
+				return arg.evalLong(provider) != 0;
+			} catch (DecimalUtil.LongOverflowException ex){
+				return overflowed(arg, ex, provider).getDouble() != 0;
+			}
+		}
+		if (type == ExprValue.DataType.Double){
+			return arg.evalDouble(provider) != 0;
+		}
+		return toBoolean(converted(arg.getValue(provider)));
+	}
+	
+	/**
+	 * to compute an argument whose data type is long
+	 * 
+	 * <br>When the value overflows,the promoted value is truncated to the low 64 bits,
+	 * the same as the long arithmetic without promotion.
+	 * @param arg the argument
+	 * @param provider data provider
+	 * @return long value
+	 */
+	protected static long longArgument(Expression arg,DataProvider provider){
+		try {
+			return arg.evalLong(provider);
+		} catch (DecimalUtil.LongOverflowException ex){
+			return wrapped(overflowed(arg, ex, provider));
+		}
+	}
+	
+	/**
+	 * the long value of a long or a value promoted from long,truncated to the low 64 bits
+	 * @param value value
+	 * @return long value
+	 */
+	protected static long wrapped(ExprValue value){
+		if (value.getDataType() == ExprValue.DataType.Decimal){
+			return value.getDecimal().longValue();
+		}
+		return value.getLong();
+	}
+	
+	/**
+	 * to record a conversion when the value is a string
+	 * @param value value of an argument
+	 * @return the value
+	 */
+	protected ExprValue converted(ExprValue value){
+		if (probe != null && value != null && value.getDataType() == ExprValue.DataType.String){
+			probe.converted();
+		}
+		return value;
+	}
+	
+	/**
+	 * to record a conversion through the string form of a value
+	 */
+	protected void converted(){
+		if (probe != null){
+			probe.converted();
+		}
+	}
+	
+	/**
+	 * numeric values are used directly,others are parsed from string
+	 * @param value value
+	 * @return double value
+	 */
+	protected static double toDouble(ExprValue value){
+		switch (value.getDataType()){
+		case Long:
+		case Double:
+		case Decimal:
+			return value.getDouble();
+		default:
+			return Double.parseDouble(value.getString());
+		}
+	}
+	
+	/**
+	 * 6位有效数字以内的十进制数转换为float再转换回字符串时保持不变
+	 */
+	protected static final long FLOAT_DIGITS = 1000000;
+	
+	/**
+	 * the number of digits as a scale argument of ROUND/ROUNDUP
+	 * @param value value of the argument
+	 * @return the scale,-1 when it is not a small long
+	 */
+	protected static int scaleArgument(ExprValue value){
+		if (value != null && value.getDataType() == ExprValue.DataType.Long){
+			long scale = value.getLong();
+			if (scale >= 0 && scale <= DecimalUtil.MAX_SCALE){
+				return (int)scale;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * the scale of the decimal string of a numeric value
+	 * @param value value
+	 * @return the scale,-1 when it is not numeric or too long
+	 */
+	protected static int decimalScale(ExprValue value){
+		switch (value.getDataType()){
+		case Long:
+			return 0;
+		case Double:
+			return DecimalUtil.scaleOf(value.getDouble());
+		default:
+			return -1;
+		}
+	}
+	
+	protected static long unscaled(ExprValue value,int scale){
+		if (value.getDataType() == ExprValue.DataType.Long){
+			return value.getLong();
+		}
+		return DecimalUtil.unscaled(value.getDouble(), scale);
+	}
+	
+	/**
+	 * the same as Float.parseFloat(value.toString())
+	 * @param value value
+	 * @return float value
+	 */
+	protected static float toFloat(ExprValue value){
+		switch (value.getDataType()){
+		case Long:
+			return value.getLong();
+		case Double:
+			double d = value.getDouble();
+			float f = (float)d;
+			if (f == d || Math.abs(d - f) != Math.abs(d - Math.nextAfter(f, d))){
+				// not halfway between two floats,the decimal string rounds to the same float
+				return f;
+			}
+			return Float.parseFloat(value.toString());
+		default:
+			return Float.parseFloat(value.toString());
+		}
+	}
+	
+	/**
+	 * the same as Double.parseDouble(new DecimalFormat("#.00").format(value))
+	 * @param value value
+	 * @return value with 2 digits
+	 */
+	protected static double formatTwoDigits(double value){
+		long rounded = DecimalUtil.roundHalfEven(value, 2);
+		if (DecimalUtil.isExact(rounded)){
+			double result = DecimalUtil.toDouble(rounded, 2);
+			// the minus sign is kept when a negative value is rounded to zero
+			return rounded == 0 && (value < 0 || 1 / value < 0) ? -0.0 : result;
+		}
+		String returnValue = new java.text.DecimalFormat("#.00").format(value);
+		return Double.parseDouble(returnValue);
+	}
+	
+	protected static int toInt(ExprValue value){
+		switch (value.getDataType()){
+		case Long:
+			return toInt(value.getLong());
+		case Double:
+			return toInt(value.getDouble());
+		default:
+			if (value.isInteger()){
+				// promoted from long
+				return toInt(wrapped(value));
+			}
+			return Integer.parseInt(value.getString());
+		}
+	}
+	
+	protected static int toInt(long value){
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+			throw new NumberFormatException("For input string: \"" + value + "\"");
+		}
+		return (int)value;
+	}
+	
+	/**
+	 * the fraction is truncated as to_int
+	 */
+	protected static int toInt(double value){
+		if (!(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)){
+			throw new NumberFormatException("For input string: \"" + value + "\"");
+		}
+		return (int)value;
+	}
+	
+	protected static boolean toBoolean(ExprValue value){
+		switch (value.getDataType()){
+		case Boolean:
+			return value.getBoolean();
+		case Long:
+		case Double:
+			return value.getDouble() != 0;
+		default:
+			if (value.isInteger()){
+				// promoted from long
+				return value.getDouble() != 0;
+			}
+			return Boolean.parseBoolean(value.getString());
+		}
+	}
+	
 	/**
 	 * to add a argument to argument list
 	 * @param arg the argument added
@@ -86,7 +440,9 @@ abstract public class Function extends Expression{
 			throw new FormulaException("argument can not be null.");
 		}
 		checkArgument(arg);
-		args.add(arg);
+		Expression [] added = Arrays.copyOf(args, args.length + 1);
+		added[args.length] = arg;
+		args = added;
 		return this;
 	}
 	
@@ -117,7 +473,7 @@ abstract public class Function extends Expression{
 		 * constructor
 		 */
 		public Choice() {
-			super("choice");
+			super("choice", null, true);
 		}
 
 		@Override
@@ -143,6 +499,40 @@ abstract public class Function extends Expression{
 				return getArgument(2).getValue(provider);
 			}
 		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
+			return choose(provider).evalDouble(provider);
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider)
+				throws FormulaException {
+			return choose(provider).evalLong(provider);
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider)
+				throws FormulaException {
+			return choose(provider).evalBoolean(provider);
+		}
+		
+		private Expression choose(DataProvider provider){
+			if (getArgumentCount() != 3){
+				throw new FormulaException("choice function need 3 arguments.we have " + getArgumentCount());
+			}
+			return getArgument(0).evalBoolean(provider) ? getArgument(1) : getArgument(2);
+		}
+		
+		@Override
+		public ExprValue.DataType getResultType() {
+			if (getArgumentCount() != 3){
+				return null;
+			}
+			ExprValue.DataType type = getArgument(1).getResultType();
+			return type == getArgument(2).getResultType() ? type : null;
+		}
 	}
 	
 	/**
@@ -163,7 +553,7 @@ abstract public class Function extends Expression{
 	public static class Nvl extends Function{
 
 		public Nvl() {
-			super("nvl");
+			super("nvl", null, true);
 		}
 
 		@Override
@@ -187,6 +577,15 @@ abstract public class Function extends Expression{
 			return value;
 		}
 		
+		@Override
+		public ExprValue.DataType getResultType() {
+			if (getArgumentCount() != 2){
+				return null;
+			}
+			ExprValue.DataType type = getArgument(0).getResultType();
+			return type == getArgument(1).getResultType() ? type : null;
+		}
+		
 	}
 	
 	/**
@@ -203,11 +602,12 @@ abstract public class Function extends Expression{
 	 * <p>return:date_expr
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 按编译后缓存的模板解析为epoch毫秒数
 	 */
 	public static class Char2Date extends Function{
 		public Char2Date() {
-			super("to_date");
-			// TODO Auto-generated constructor stub
+			super("to_date", ExprValue.DataType.Date, true);
 		}
 
 		@Override
@@ -225,12 +625,16 @@ abstract public class Function extends Expression{
 			}
 			
 			String pattern = "yyyyMMddHHmmss";
-			if (getArgument(1) != null){
+			if (getArgumentCount() > 1){
 				pattern = getArgument(1).getValue(provider).getString();
 			}
 			
 			String value = getArgument(0).getValue(provider).getString();
-			return new ExprValue(DateUtil.parseDate(value, pattern));
+			long time = DateUtil.parseTime(value, pattern);
+			if (time == DatePattern.NONE){
+				return new ExprValue((Date)null);
+			}
+			return new ExprValue().setDate(time);
 		}
 	}
 	/**
@@ -246,11 +650,12 @@ abstract public class Function extends Expression{
 	 * <p>return:string_expr
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 按编译后缓存的模板格式化epoch毫秒数
 	 */
 	public static class Date2Char extends Function{
 		public Date2Char() {
-			super("to_char");
-			// TODO Auto-generated constructor stub
+			super("to_char", ExprValue.DataType.String, true);
 		}
 
 		@Override
@@ -268,13 +673,15 @@ abstract public class Function extends Expression{
 			}
 			
 			String pattern = "yyyyMMddHHmmss";
-			if (getArgument(1) != null){
+			if (getArgumentCount() > 1){
 				pattern = getArgument(1).getValue(provider).getString();
 			}
 			
-			Date value = getArgument(0).getValue(provider).getDate();
-			
-			return new ExprValue(DateUtil.formatDate(value, pattern));
+			ExprValue value = getArgument(0).getValue(provider);
+			if (value.getDataType() == ExprValue.DataType.Date && value.isNull()){
+				return new ExprValue("");
+			}
+			return new ExprValue(DateUtil.formatTime(value.getTime(), pattern));
 		}		
 	}
 	
@@ -291,11 +698,13 @@ abstract public class Function extends Expression{
 	 * <p>return:long_expr
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 参数为数值时直接取值,不再转换为字符串后解析
 	 */	
 	public static class ToLong extends Function{
 
 		public ToLong() {
-			super("to_long");
+			super("to_long", ExprValue.DataType.Long, true);
 		}
 
 		@Override
@@ -308,12 +717,27 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalLong(provider));
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 1){
 				throw new FormulaException("to_long function need 1 argument.");
 			}
 			
-			String value = getArgument(0).getValue(provider).getString();
-			return new ExprValue(Long.valueOf(value));
+			Expression arg = getArgument(0);
+			if (arg.getResultType() == ExprValue.DataType.Long){
+				return longArgument(arg, provider);
+			}
+			ExprValue value = arg.getValue(provider);
+			if (value.isInteger()){
+				// typed variants and values promoted from long,no need to parse the string again
+				return wrapped(value);
+			}
+			converted();
+			return Long.parseLong(value.getString());
 		}
 	}
 	
@@ -331,11 +755,13 @@ abstract public class Function extends Expression{
 	 * 
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 参数为数值时直接取值,不再转换为字符串后解析
 	 */	
 	public static class ToDouble extends Function{
 
 		public ToDouble() {
-			super("to_double");
+			super("to_double", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -348,13 +774,37 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 1){
 				throw new FormulaException("to_double function need 1 argument.");
 			}
 			
-			String value = getArgument(0).getValue(provider).getString();
-			BigDecimal bg = new BigDecimal(value);
-			return new ExprValue(bg.setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue());
+			Expression arg = getArgument(0);
+			if (arg.getResultType() == ExprValue.DataType.Long){
+				// a long is exact with scale 2
+				try {
+					return arg.evalLong(provider);
+				} catch (DecimalUtil.LongOverflowException ex){
+					return overflowed(arg, ex, provider).getDouble();
+				}
+			}
+			ExprValue value = arg.getValue(provider);
+			switch (value.getDataType()){
+			case Long:
+				return value.getLong();
+			case Double:
+				// same digits as new BigDecimal(value.getString())
+				return BigDecimal.valueOf(value.getDouble()).setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+			default:
+				converted();
+				BigDecimal bg = new BigDecimal(value.getString());
+				return bg.setScale(2, BigDecimal.ROUND_HALF_UP).doubleValue();
+			}
 		}
 	}
 	/**
@@ -370,11 +820,13 @@ abstract public class Function extends Expression{
 	 * <p>return:string_expr
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 字符串参数原样返回，不生成String
 	 */	
 	public static class ToString extends Function{
 
 		public ToString() {
-			super("to_string");
+			super("to_string", ExprValue.DataType.String, true);
 		}
 
 		@Override
@@ -391,8 +843,7 @@ abstract public class Function extends Expression{
 				throw new FormulaException("to_string function need 1 argument.");
 			}
 			
-			String value = getArgument(0).getValue(provider).toString();
-			return new ExprValue(value);
+			return new ExprValue(getArgument(0).getValue(provider).getCharSequence());
 		}
 	}	
 	/**
@@ -408,11 +859,13 @@ abstract public class Function extends Expression{
 	 * <p>return:long
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 直接取CharSequence的长度，不生成String
 	 */	
 	public static class StrLen extends Function{
 
 		public StrLen() {
-			super("strlen");
+			super("strlen", ExprValue.DataType.Long, true);
 		}
 
 		@Override
@@ -425,12 +878,17 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalLong(provider));
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 1){
 				throw new FormulaException("strlen function need 1 argument.");
 			}
 			
-			String value = getArgument(0).getValue(provider).toString();
-			return new ExprValue(value.length());
+			return getArgument(0).getValue(provider).getCharSequence().length();
 		}
 	}	
 	/**
@@ -446,11 +904,13 @@ abstract public class Function extends Expression{
 	 * <p>return:substring
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 较长的子串共享原字符串({@link Rope#slice(CharSequence, int, int)})，不再复制
 	 */	
 	public static class SubStr extends Function{
 
 		public SubStr() {
-			super("substr");
+			super("substr", ExprValue.DataType.String, true);
 		}
 
 		@Override
@@ -467,13 +927,13 @@ abstract public class Function extends Expression{
 				throw new FormulaException("substr function need 3 argument.");
 			}
 			
-			String string = getArgument(0).getValue(provider).getString();
+			CharSequence string = getArgument(0).getValue(provider).getCharSequence();
 			int startOffset = getArgument(1).getValue(provider).getInt();
 			int length = getArgument(2).getValue(provider).getInt();
 			
 			startOffset = startOffset < 0 ? 0 : startOffset >= string.length()?string.length() - 1:startOffset; 
 			length = string.length() - startOffset < length ? string.length() - startOffset:length;
-			return new ExprValue(string.substring(startOffset, startOffset + length));
+			return new ExprValue(Rope.slice(string, startOffset, startOffset + length));
 		}
 	}
 	
@@ -490,11 +950,13 @@ abstract public class Function extends Expression{
 	 * <p>return:index of child string,-1 if child string is not matched.
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 子串({@link Rope.Slice})直接在原字符串中查找
 	 */	
 	public static class InStr extends Function{
 
 		public InStr() {
-			super("instr");
+			super("instr", ExprValue.DataType.Long, true);
 		}
 
 		@Override
@@ -507,14 +969,20 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalLong(provider));
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("substr function need 2 argument.");
 			}
 			
-			String srcString = getArgument(0).getValue(provider).getString();
+			CharSequence srcString = getArgument(0).getValue(provider).getCharSequence();
 			String childString = getArgument(1).getValue(provider).getString();
 			
-			return new ExprValue(srcString.indexOf(childString));
+			return Rope.indexOf(srcString, childString);
 		}
 	}
 
@@ -531,31 +999,56 @@ abstract public class Function extends Expression{
 	 * <p>return:true when src_str matches regex.
 	 * @author duanyy
 	 * @version 1.0.0
+	 * @version 1.0.1
+	 * - 常量正则表达式在添加参数时编译，其他正则表达式从{@link RegexMatcher#get(String)}的缓存中获取
 	 */	
 	public static class Match extends Function{
 
+		/**
+		 * the regex compiled when it is a string constant,null if it is known at runtime
+		 */
+		protected RegexMatcher matcher = null;
+
 		public Match() {
-			super("match");
+			super("match", ExprValue.DataType.Boolean, true);
 		}
 
 		@Override
 		public void checkArgument(Expression arg) throws FormulaException {
 			if (getArgumentCount() > 2){
 				throw new FormulaException("match function only supports 2 argument.");
-			}	
+			}
+			if (getArgumentCount() == 1){
+				matcher = null;
+				if (arg instanceof Expression.StringConstant){
+					try {
+						matcher = RegexMatcher.compile(arg.getValue(null).getString());
+					} catch (PatternSyntaxException ex){
+						// reported when it is evaluated,as before
+					}
+				}
+			}
 		}
 
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalBoolean(provider));
+		}
+		
+		@Override
+		public boolean evalBoolean(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("match function need 2 argument.");
 			}
 			
 			String srcString = getArgument(0).getValue(provider).getString();
-			String regex = getArgument(1).getValue(provider).getString();
-			
-			return new ExprValue(srcString.matches(regex));
+			RegexMatcher found = matcher;
+			if (found == null){
+				found = RegexMatcher.get(getArgument(1).getValue(provider).getString());
+			}
+			return found.matches(srcString);
 		}
 	}
 	
@@ -563,7 +1056,7 @@ abstract public class Function extends Expression{
 	public static class PMT extends Function{
 
 		public PMT() {
-			super("PMT");
+			super("PMT", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -576,31 +1069,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 5){
 				throw new FormulaException("match function need 5 argument.");
 			}
 			
-			String r = getArgument(0).getValue(provider).getString();
-			String n = getArgument(1).getValue(provider).getString();
-			String p = getArgument(2).getValue(provider).getString();
-			String f = getArgument(3).getValue(provider).getString();
-			String t = getArgument(4).getValue(provider).getString();
-			Double rDouble = Double.parseDouble(r);
-			Double nDouble = Double.parseDouble(n);
-			Double pDouble = Double.parseDouble(p);
-			Double fDouble = Double.parseDouble(f);
-			boolean tBoolean = Boolean.parseBoolean(t);
-			
-			Double resultDouble = FinanceFunctionUtilss.PMT(rDouble, nDouble, pDouble, fDouble, tBoolean);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.PMT(doubleArgument(0, provider), doubleArgument(1, provider),
+					doubleArgument(2, provider), doubleArgument(3, provider), booleanArgument(4, provider));
 		}
 	}
 	
 	public static class FV extends Function{
 
 		public FV() {
-			super("FV");
+			super("FV", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -613,32 +1100,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 5){
 				throw new FormulaException("match function need 5 argument.");
 			}
 			
-			String r = getArgument(0).getValue(provider).getString();
-			String n = getArgument(1).getValue(provider).getString();
-			String y = getArgument(2).getValue(provider).getString();
-			String p = getArgument(3).getValue(provider).getString();
-			String t = getArgument(4).getValue(provider).getString();
-			
-			Double rDouble = Double.parseDouble(r);
-			Double nDouble = Double.parseDouble(n);
-			Double yDouble = Double.parseDouble(y);
-			Double pDouble = Double.parseDouble(p);
-			boolean tBoolean = Boolean.parseBoolean(t);
-			
-			Double resultDouble = FinanceFunctionUtilss.FV(rDouble, nDouble, yDouble, pDouble, tBoolean);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.FV(doubleArgument(0, provider), doubleArgument(1, provider),
+					doubleArgument(2, provider), doubleArgument(3, provider), booleanArgument(4, provider));
 		}
 	}
 	
 	public static class NPER extends Function{
 
 		public NPER() {
-			super("NPER");
+			super("NPER", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -651,32 +1131,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 5){
 				throw new FormulaException("match function need 5 argument.");
 			}
 			
-			String r = getArgument(0).getValue(provider).getString();
-			String y = getArgument(1).getValue(provider).getString();
-			String p = getArgument(2).getValue(provider).getString();
-			String f = getArgument(3).getValue(provider).getString();
-			String t = getArgument(4).getValue(provider).getString();
-			
-			Double rDouble = Double.parseDouble(r);
-			Double yDouble = Double.parseDouble(y);
-			Double pDouble = Double.parseDouble(p);
-			Double fDouble = Double.parseDouble(f);
-			boolean tBoolean = Boolean.parseBoolean(t);
-			
-			Double resultDouble = FinanceFunctionUtilss.NPER(rDouble, yDouble, pDouble, fDouble, tBoolean);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.NPER(doubleArgument(0, provider), doubleArgument(1, provider),
+					doubleArgument(2, provider), doubleArgument(3, provider), booleanArgument(4, provider));
 		}
 	}
 	
 	public static class PV extends Function{
 
 		public PV() {
-			super("PV");
+			super("PV", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -689,32 +1162,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 5){
 				throw new FormulaException("match function need 5 argument.");
 			}
 			
-			String r = getArgument(0).getValue(provider).getString();
-			String n = getArgument(1).getValue(provider).getString();
-			String y = getArgument(2).getValue(provider).getString();
-			String f = getArgument(3).getValue(provider).getString();
-			String t = getArgument(4).getValue(provider).getString();
-			
-			Double rDouble = Double.parseDouble(r);
-			Double nDouble = Double.parseDouble(n);
-			Double yDouble = Double.parseDouble(y);
-			Double fDouble = Double.parseDouble(f);
-			boolean tBoolean = Boolean.parseBoolean(t);
-			
-			Double resultDouble = FinanceFunctionUtilss.PV(rDouble, nDouble, yDouble, fDouble, tBoolean);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.PV(doubleArgument(0, provider), doubleArgument(1, provider),
+					doubleArgument(2, provider), doubleArgument(3, provider), booleanArgument(4, provider));
 		}
 	}
 	
 	public static class DB extends Function{
 
 		public DB() {
-			super("DB");
+			super("DB", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -727,32 +1193,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 5){
 				throw new FormulaException("match function need 5 argument.");
 			}
 			
-			String cost = getArgument(0).getValue(provider).getString();
-			String salvage = getArgument(1).getValue(provider).getString();
-			String life = getArgument(2).getValue(provider).getString();
-			String period = getArgument(3).getValue(provider).getString();
-			String month = getArgument(4).getValue(provider).getString();
-			
-			Double costDouble = Double.parseDouble(cost);
-			Double salvageDouble = Double.parseDouble(salvage);
-			int lifeInt = Integer.parseInt(life);
-			int periodInt = Integer.parseInt(period);
-			int monthInt = Integer.parseInt(month);
-			
-			Double resultDouble = FinanceFunctionUtilss.DB(costDouble, salvageDouble, lifeInt, periodInt, monthInt);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.DB(doubleArgument(0, provider), doubleArgument(1, provider),
+					intArgument(2, provider), intArgument(3, provider), intArgument(4, provider));
 		}
 	}
 	
 	public static class DDB extends Function{
 
 		public DDB() {
-			super("DDB");
+			super("DDB", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -765,32 +1224,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 5){
 				throw new FormulaException("match function need 5 argument.");
 			}
 			
-			String cost = getArgument(0).getValue(provider).getString();
-			String salvage = getArgument(1).getValue(provider).getString();
-			String life = getArgument(2).getValue(provider).getString();
-			String period = getArgument(3).getValue(provider).getString();
-			String factor = getArgument(4).getValue(provider).getString();
-			
-			Double costDouble = Double.parseDouble(cost);
-			Double salvageDouble = Double.parseDouble(salvage);
-			int lifeInt = Integer.parseInt(life);
-			int periodInt = Integer.parseInt(period);
-			Double factorDouble = Double.parseDouble(factor);
-			
-			Double resultDouble = FinanceFunctionUtilss.DDB(costDouble, salvageDouble, lifeInt, periodInt, factorDouble);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.DDB(doubleArgument(0, provider), doubleArgument(1, provider),
+					intArgument(2, provider), intArgument(3, provider), doubleArgument(4, provider));
 		}
 	}
 	
 	public static class RATE extends Function{
 
 		public RATE() {
-			super("RATE");
+			super("RATE", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -803,35 +1255,26 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 6){
 				throw new FormulaException("match function need 6 argument.");
 			}
 			
-			String nper = getArgument(0).getValue(provider).getString();
-			String pmt = getArgument(1).getValue(provider).getString();
-			String pv = getArgument(2).getValue(provider).getString();
-			String fv = getArgument(3).getValue(provider).getString();
-			String type = getArgument(4).getValue(provider).getString();
-			String guess = getArgument(5).getValue(provider).getString();
-			
-			Double nperDouble = Double.parseDouble(nper);
-			Double pmtDouble = Double.parseDouble(pmt);
-			Double pvDouble = Double.parseDouble(pv);
-			Double fvDouble = Double.parseDouble(fv);
-			Double typeDouble = Double.parseDouble(type);
-			Double guessDouble = Double.parseDouble(guess);
-			
-			Double resultDouble = FinanceFunctionUtilss.RATE(nperDouble, pmtDouble, pvDouble, 
-					fvDouble, typeDouble, guessDouble);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.RATE(doubleArgument(0, provider), doubleArgument(1, provider),
+					doubleArgument(2, provider), doubleArgument(3, provider), doubleArgument(4, provider),
+					doubleArgument(5, provider));
 		}
 	}
 	
 	public static class EFFECT extends Function{
 
 		public EFFECT() {
-			super("EFFECT");
+			super("EFFECT", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -844,27 +1287,31 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("match function need 2 argument.");
 			}
 			
-			String nominal_rate = getArgument(0).getValue(provider).getString();
-			String npery = getArgument(1).getValue(provider).getString();
-			
-			Double nominal_rateDouble = Double.parseDouble(nominal_rate);
-			Double nperyDouble = Double.parseDouble(npery);
-			
-			Double resultDouble = FinanceFunctionUtilss.EFFECT(nominal_rateDouble, nperyDouble);
-			
-			return new ExprValue(resultDouble);
+			return FinanceFunctionUtilss.EFFECT(doubleArgument(0, provider), doubleArgument(1, provider));
 		}
 	}
 	
-	//
+	/**
+	 * IF(bool_expr,expr1,expr2)
+	 * 
+	 * <p>只计算选中的分支，结果总是Double:分支的值按{@link #doubleArgument(int, DataProvider)}转换，
+	 * 与原有实现(按字符串解析为Double)一致，所以IF(a>0,1,"2.5")这类公式的结果类型不随分支变化。
+	 * 需要保留分支原有类型时使用{@link Choice}。
+	 */
 	public static class IF extends Function{
 
 		public IF() {
-			super("IF");
+			super("IF", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -877,21 +1324,19 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 3){
 				throw new FormulaException("match function need 3 argument.");
 			}
 			
-			boolean logical_test_boolean = getArgument(0).getValue(provider).getBoolean();
-			String value_if_true = getArgument(1).getValue(provider).getString();
-			String value_if_false = getArgument(2).getValue(provider).getString();
-			
-			Double resultDouble = Double.valueOf("0.00");
-			if(logical_test_boolean) {
-				resultDouble = Double.valueOf(value_if_true);
-			} else {
-				resultDouble = Double.valueOf(value_if_false);
-			}
-			return new ExprValue(resultDouble);
+			boolean logical_test_boolean = getArgument(0).evalBoolean(provider);
+			// only the chosen branch is computed,numeric branches without string conversion
+			return doubleArgument(logical_test_boolean ? 1 : 2, provider);
 		}
 	}
 	
@@ -899,7 +1344,7 @@ abstract public class Function extends Expression{
 	public static class DEVIDE extends Function{
 
 		public DEVIDE() {
-			super("DEVIDE");
+			super("DEVIDE", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -912,12 +1357,36 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("match function need 2 argument.");
 			}
 			
-			String divisor = getArgument(0).getValue(provider).getString();
-			String dividend = getArgument(1).getValue(provider).getString();
+			ExprValue divisorValue = getArgument(0).getValue(provider);
+			ExprValue dividendValue = getArgument(1).getValue(provider);
+			
+			// decimal fast path,the same result as BigDecimal for short decimals
+			if (divisorValue != null && dividendValue != null) {
+				int divisorScale = decimalScale(divisorValue);
+				int dividendScale = decimalScale(dividendValue);
+				if (divisorScale >= 0 && dividendScale >= 0) {
+					long result = DecimalUtil.divide(
+							unscaled(divisorValue, divisorScale), divisorScale,
+							unscaled(dividendValue, dividendScale), dividendScale, 10, RoundingMode.CEILING);
+					if (DecimalUtil.isExact(result)) {
+						return DecimalUtil.toDouble(result, 10);
+					}
+				}
+			}
+			
+			converted();
+			String divisor = divisorValue.getString();
+			String dividend = dividendValue.getString();
 			
 			BigDecimal divisorBigDecimal = new BigDecimal(divisor);
 			BigDecimal dividendBigDecimal = new BigDecimal(dividend);
@@ -925,7 +1394,7 @@ abstract public class Function extends Expression{
 			BigDecimal returnBigDecimal = divisorBigDecimal.divide(dividendBigDecimal, 10, BigDecimal.ROUND_CEILING);
 			String returnStr = returnBigDecimal.toString();
 			Double returnDouble = Double.parseDouble(returnStr);
-			return new ExprValue(returnDouble);
+			return returnDouble;
 		}
 	}
 	
@@ -933,7 +1402,7 @@ abstract public class Function extends Expression{
 	public static class ROUND extends Function{
 
 		public ROUND() {
-			super("ROUND");
+			super("ROUND", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -946,14 +1415,43 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("match function need 2 argument.");
 			}
 			
 			// 数值
-			String value = getArgument(0).getValue(provider).getString();
+			ExprValue numberValue = getArgument(0).getValue(provider);
 			// 小数位数
-			String digits = getArgument(1).getValue(provider).getString();
+			ExprValue digitsValue = getArgument(1).getValue(provider);
+			
+			int scale = scaleArgument(digitsValue);
+			if (scale >= 0 && numberValue != null) {
+				switch (numberValue.getDataType()) {
+				case Long:
+					// an integer is not changed by setScale
+					return numberValue.getDouble();
+				case Double:
+					long rounded = DecimalUtil.roundHalfUp(numberValue.getDouble(), scale);
+					if (DecimalUtil.isExact(rounded)) {
+						return DecimalUtil.toDouble(rounded, scale);
+					}
+					break;
+				case Decimal:
+					return numberValue.getDecimal().setScale(scale, RoundingMode.HALF_UP).doubleValue();
+				default:
+					break;
+				}
+			}
+			
+			converted();
+			String value = numberValue.getString();
+			String digits = digitsValue.getString();
 			
 			BigDecimal valueBig = new BigDecimal(value);
 			int digitsInt = Integer.parseInt(digits);
@@ -961,14 +1459,14 @@ abstract public class Function extends Expression{
 			BigDecimal returnBigDecimal = valueBig.setScale(digitsInt, BigDecimal.ROUND_HALF_UP);
 			String returnStr = returnBigDecimal.toString() + "";
 			Double returnDouble = Double.parseDouble(returnStr);
-			return new ExprValue(returnDouble);
+			return returnDouble;
 		}
 	}
 	
 	public static class ROUNDUP extends Function{
 
 		public ROUNDUP() {
-			super("ROUNDUP");
+			super("ROUNDUP", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -981,14 +1479,48 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("match function need 2 argument.");
 			}
 			
 			// 数值
-			String value = getArgument(0).getValue(provider).getString();
+			ExprValue numberValue = getArgument(0).getValue(provider);
 			// 小数位数
-			String digits = getArgument(1).getValue(provider).getString();
+			ExprValue digitsValue = getArgument(1).getValue(provider);
+			
+			int scale = scaleArgument(digitsValue);
+			if (scale >= 0 && numberValue != null) {
+				long rounded = DecimalUtil.UNKNOWN;
+				switch (numberValue.getDataType()) {
+				case Long:
+					rounded = numberValue.getLong();
+					scale = 0;
+					break;
+				case Double:
+					rounded = DecimalUtil.roundUp(numberValue.getDouble(), scale);
+					break;
+				case Decimal:
+					Decimal decimal = numberValue.getDecimal().setScale(scale, RoundingMode.UP);
+					rounded = decimal.isCompact() ? decimal.unscaled : DecimalUtil.UNKNOWN;
+					break;
+				default:
+					break;
+				}
+				// the result goes through float:up to 6 digits survive the float round trip unchanged
+				if (rounded != DecimalUtil.UNKNOWN && rounded > -FLOAT_DIGITS && rounded < FLOAT_DIGITS) {
+					return DecimalUtil.toDouble(rounded, scale);
+				}
+			}
+			
+			converted();
+			String value = numberValue.getString();
+			String digits = digitsValue.getString();
 			
 			BigDecimal valueBig = new BigDecimal(value);
 			int digitsInt = Integer.parseInt(digits);
@@ -996,7 +1528,7 @@ abstract public class Function extends Expression{
 			BigDecimal returnBigDecimal = valueBig.setScale(digitsInt, BigDecimal.ROUND_UP);
 			String returnStr = returnBigDecimal.floatValue() + "";
 			Double returnDouble = Double.parseDouble(returnStr);
-			return new ExprValue(returnDouble);
+			return returnDouble;
 		}
 	}
 	
@@ -1008,7 +1540,7 @@ abstract public class Function extends Expression{
 	public static class TOINT extends Function{
 
 		public TOINT() {
-			super("TO_INT");
+			super("TO_INT", ExprValue.DataType.Long, true);
 		}
 
 		@Override
@@ -1021,12 +1553,17 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalLong(provider));
+		}
+		
+		@Override
+		public long evalLong(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 1){
 				throw new FormulaException("TO_INT function need 1 argument.");
 			}
 			
-			int value = getArgument(0).getValue(provider).getInt();
-			return new ExprValue(value);
+			return (int)longArgument(getArgument(0), provider);
 		}
 	}
 	
@@ -1038,7 +1575,7 @@ abstract public class Function extends Expression{
 	public static class ENUMBER extends Function{
 
 		public ENUMBER() {
-			super("E_NUMBER");
+			super("E_NUMBER", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -1051,15 +1588,22 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 1){
 				throw new FormulaException("E_NUMBER function need 1 argument.");
 			}
 			
+			converted();
 			String value = getArgument(0).getValue(provider).toString();
 			BigDecimal valueBig = new BigDecimal(value);
 			String returnValue = valueBig.toPlainString();
 			Double returnDouble = Double.parseDouble(returnValue);
-			return new ExprValue(returnDouble);
+			return returnDouble;
 		}
 	}
 	
@@ -1067,7 +1611,7 @@ abstract public class Function extends Expression{
 	public static class NUMDIGIT extends Function{
 
 		public NUMDIGIT() {
-			super("NUMDIGIT");
+			super("NUMDIGIT", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -1080,21 +1624,25 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 1){
 				throw new FormulaException("NUMDIGIT function need 1 argument.");
 			}
 			
-			String value = getArgument(0).getValue(provider).toString();
-			String returnValue = new java.text.DecimalFormat("#.00").format(Double.parseDouble(value));
-			Double returnDouble = Double.parseDouble(returnValue);
-			return new ExprValue(returnDouble);
+			ExprValue value = converted(getArgument(0).getValue(provider));
+			return formatTwoDigits(toDouble(value));
 		}
 	}
 	
 	public static class EYUSHU extends Function{
 
 		public EYUSHU() {
-			super("EYUSHU");
+			super("EYUSHU", ExprValue.DataType.Double, true);
 		}
 
 		@Override
@@ -1107,18 +1655,20 @@ abstract public class Function extends Expression{
 		@Override
 		public ExprValue getValue(DataProvider provider)
 				throws FormulaException {
+			return new ExprValue(evalDouble(provider));
+		}
+		
+		@Override
+		public double evalDouble(DataProvider provider)
+				throws FormulaException {
 			if (getArgumentCount() != 2){
 				throw new FormulaException("EYUSHU function need 2 argument.");
 			}
 			
-			String before = getArgument(0).getValue(provider).toString();
-			String end = getArgument(1).getValue(provider).toString();
-			Float beforeFloat = Float.parseFloat(before);
-			Float endFloat = Float.parseFloat(end);
-			float size = (float)beforeFloat/endFloat;
-			String returnValue = new java.text.DecimalFormat("#.00").format(size);
-			Double returnDouble = Double.parseDouble(returnValue);
-			return new ExprValue(returnDouble);
+			float beforeFloat = toFloat(converted(getArgument(0).getValue(provider)));
+			float endFloat = toFloat(converted(getArgument(1).getValue(provider)));
+			float size = beforeFloat/endFloat;
+			return formatTwoDigits(size);
 		}
 	}
 }
@@ -0,0 +1,54 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * 函数工厂
+ *
+ * <br>
+ * 解析公式时每遇到一次函数调用就要生成一个新的{@link Function}实例，
+ * 工厂直接调用构造函数，避免每次通过Class.newInstance()反射查找构造函数。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public interface FunctionFactory {
+
+	/**
+	 * 生成新的函数实例
+	 * @return 函数实例
+	 */
+	public Function newFunction();
+
+	/**
+	 * 按函数实现类生成实例的工厂，兼容按类注册的自定义函数
+	 *
+	 * <br>
+	 * 构造函数在创建工厂时查找一次，之后每次只做调用。
+	 */
+	public static class ByClass implements FunctionFactory {
+
+		protected final Constructor<? extends Function> constructor;
+
+		/**
+		 * 构造函数
+		 * @param _class 函数实现类，需要有公共的无参构造函数
+		 */
+		public ByClass(Class<? extends Function> _class) {
+			try {
+				constructor = _class.getConstructor();
+			} catch (NoSuchMethodException ex) {
+				throw new IllegalArgumentException("No public default constructor in " + _class.getName());
+			}
+		}
+
+		@Override
+		public Function newFunction() {
+			try {
+				return constructor.newInstance();
+			} catch (Exception ex) {
+				throw new FormulaException("Can not create function :" + constructor.getDeclaringClass().getName());
+			}
+		}
+	}
+}
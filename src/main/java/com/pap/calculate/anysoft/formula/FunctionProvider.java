@@ -0,0 +1,23 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.Map;
+
+/**
+ * 函数插件
+ *
+ * <br>
+ * 插件jar在META-INF/services/com.pap.calculate.anysoft.formula.FunctionProvider中列出实现类，
+ * 由{@link FunctionRegistry}首次使用时通过{@link java.util.ServiceLoader}加载，只实例化列出的类，不扫描classpath。<br>
+ * 与内置函数重名的函数被忽略。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public interface FunctionProvider {
+
+	/**
+	 * 插件提供的函数
+	 * @return 函数名到工厂的映射
+	 */
+	public Map<String, FunctionFactory> getFunctions();
+}
@@ -0,0 +1,241 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * 全局的函数注册表
+ *
+ * <br>
+ * 包含内置函数以及通过{@link FunctionProvider}发现的插件函数:<br>
+ * - 首次查找时加载，加载后不可变，查找无锁<br>
+ * - 内置函数直接调用构造函数生成实例，不使用反射<br>
+ * - 插件按META-INF/services中列出的类加载，不扫描classpath<br>
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 每个内置函数名直接对应自己的工厂，不再依赖名称数组与switch的顺序一致
+ */
+public final class FunctionRegistry {
+
+	private FunctionRegistry() {
+	}
+
+	/**
+	 * 查找函数工厂
+	 * @param funcName 函数名
+	 * @return 函数工厂，没有该函数时为null
+	 */
+	public static FunctionFactory get(String funcName) {
+		return Loaded.FACTORIES.get(funcName);
+	}
+
+	/**
+	 * 已注册的函数名
+	 * @return 函数名集合(不可修改)
+	 */
+	public static Set<String> getNames() {
+		return Loaded.FACTORIES.keySet();
+	}
+
+	/**
+	 * 加载后的映射表，首次使用时由类初始化完成
+	 */
+	private static class Loaded {
+		private static final Map<String, FunctionFactory> FACTORIES = load();
+	}
+
+	private static Map<String, FunctionFactory> load() {
+		Map<String, FunctionFactory> factories = new HashMap<String, FunctionFactory>();
+		Iterator<FunctionProvider> providers = ServiceLoader.load(FunctionProvider.class).iterator();
+		while (true) {
+			try {
+				if (!providers.hasNext()) {
+					break;
+				}
+				factories.putAll(providers.next().getFunctions());
+			} catch (ServiceConfigurationError e) {
+				// a broken plugin does not prevent the built-in functions
+				e.printStackTrace();
+			}
+		}
+		// built-in functions take precedence over plugins
+		putBuiltins(factories);
+		return Collections.unmodifiableMap(factories);
+	}
+
+	/**
+	 * 登记内置函数，每个函数名对应一个直接调用构造函数的工厂
+	 */
+	private static void putBuiltins(Map<String, FunctionFactory> factories) {
+		factories.put("choice", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.Choice();
+			}
+		});
+		factories.put("nvl", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.Nvl();
+			}
+		});
+		factories.put("to_date", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.Char2Date();
+			}
+		});
+		factories.put("to_char", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.Date2Char();
+			}
+		});
+		factories.put("to_string", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.ToString();
+			}
+		});
+		factories.put("to_long", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.ToLong();
+			}
+		});
+		factories.put("to_double", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.ToDouble();
+			}
+		});
+		factories.put("substr", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.SubStr();
+			}
+		});
+		factories.put("instr", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.InStr();
+			}
+		});
+		factories.put("strlen", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.StrLen();
+			}
+		});
+		factories.put("match", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.Match();
+			}
+		});
+		// alexgaoyh add finance function
+		factories.put("PMT", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.PMT();
+			}
+		});
+		factories.put("FV", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.FV();
+			}
+		});
+		factories.put("NPER", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.NPER();
+			}
+		});
+		factories.put("PV", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.PV();
+			}
+		});
+		factories.put("DB", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.DB();
+			}
+		});
+		factories.put("DDB", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.DDB();
+			}
+		});
+		factories.put("RATE", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.RATE();
+			}
+		});
+		factories.put("EFFECT", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.EFFECT();
+			}
+		});
+		factories.put("IF", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.IF();
+			}
+		});
+		factories.put("DEVIDE", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.DEVIDE();
+			}
+		});
+		factories.put("ROUND", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.ROUND();
+			}
+		});
+		factories.put("ROUNDUP", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.ROUNDUP();
+			}
+		});
+		factories.put("TOINT", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.TOINT();
+			}
+		});
+		factories.put("E_NUMBER", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.ENUMBER();
+			}
+		});
+		factories.put("NUM_DIGIT", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.NUMDIGIT();
+			}
+		});
+		factories.put("E_YUSHU", new FunctionFactory() {
+			@Override
+			public Function newFunction() {
+				return new Function.EYUSHU();
+			}
+		});
+	}
+}
@@ -0,0 +1,242 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * 计算指标的插桩
+ *
+ * <br>
+ * {@link #instrument(String, Expression, MetricsSink)}改写Expression树，在公式和每个函数外包一层{@link Timed}:<br>
+ * - 计算时记录耗时以及是否抛出异常，函数的耗时包含其参数(包括嵌套的函数)的计算<br>
+ * - 函数复制后带有{@link Probe}，参数经过字符串转换时记录一次转换<br>
+ * - 没有插桩的树不受影响，不插桩时没有任何额外开销<br>
+ *
+ * <p>改写不修改原有节点。插桩应在{@link Optimizer}和{@link Schema#bind(Expression)}之后进行，
+ * Timed节点在{@link FormulaCompiler}、{@link BatchEvaluator}中按解释执行处理。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class Instrumentation {
+
+	/**
+	 * 插桩
+	 * @param formulaId 公式的标识，用于区分指标
+	 * @param expr 表达式
+	 * @param sink 指标的接收者
+	 * @return 插桩后的表达式，已插桩的表达式原样返回
+	 */
+	public static Expression instrument(String formulaId, Expression expr, MetricsSink sink) {
+		if (formulaId == null || sink == null) {
+			throw new IllegalArgumentException("formulaId and sink must not be null.");
+		}
+		if (expr instanceof Timed) {
+			return expr;
+		}
+		return new Timed(formulaId, null, rewrite(formulaId, expr, sink), sink);
+	}
+
+	/**
+	 * 去掉插桩
+	 * @param expr 表达式
+	 * @return 没有插桩的表达式
+	 */
+	public static Expression strip(Expression expr) {
+		if (expr instanceof Timed) {
+			return strip(((Timed) expr).getChild());
+		}
+		if (expr instanceof Expression.BinaryExpression) {
+			Expression.BinaryExpression binary = (Expression.BinaryExpression) expr;
+			Expression left = strip(binary.getLeft());
+			Expression right = strip(binary.getRight());
+			if (left == binary.getLeft() && right == binary.getRight()) {
+				return expr;
+			}
+			return Expression.BinaryExpression.createChild(binary.getOperator(), left, right);
+		}
+		if (expr instanceof Expression.UnaryExpression) {
+			Expression.UnaryExpression unary = (Expression.UnaryExpression) expr;
+			Expression child = strip(unary.getChild());
+			return child == unary.getChild() ? expr : new Expression.UnaryExpression(unary.getOperator(), child);
+		}
+		if (expr instanceof Function) {
+			Function func = (Function) expr;
+			int count = func.getArgumentCount();
+			Expression[] args = new Expression[count];
+			boolean changed = func.probe != null;
+			for (int i = 0; i < count; i++) {
+				args[i] = strip(func.getArgument(i));
+				changed = changed || args[i] != func.getArgument(i);
+			}
+			if (!changed) {
+				return func;
+			}
+			Function copied = func.copy(args);
+			copied.probe = null;
+			return copied;
+		}
+		return expr;
+	}
+
+	protected static Expression rewrite(String formulaId, Expression expr, MetricsSink sink) {
+		if (expr instanceof Expression.BinaryExpression) {
+			Expression.BinaryExpression binary = (Expression.BinaryExpression) expr;
+			Expression left = rewrite(formulaId, binary.getLeft(), sink);
+			Expression right = rewrite(formulaId, binary.getRight(), sink);
+			if (left == binary.getLeft() && right == binary.getRight()) {
+				return expr;
+			}
+			return Expression.BinaryExpression.createChild(binary.getOperator(), left, right);
+		}
+		if (expr instanceof Expression.UnaryExpression) {
+			Expression.UnaryExpression unary = (Expression.UnaryExpression) expr;
+			Expression child = rewrite(formulaId, unary.getChild(), sink);
+			return child == unary.getChild() ? expr : new Expression.UnaryExpression(unary.getOperator(), child);
+		}
+		if (expr instanceof Function) {
+			Function func = (Function) expr;
+			int count = func.getArgumentCount();
+			Expression[] args = new Expression[count];
+			for (int i = 0; i < count; i++) {
+				args[i] = rewrite(formulaId, func.getArgument(i), sink);
+			}
+			String name = func.getOperatorPrototype();
+			Function copied = func.copy(args);
+			copied.probe = new Probe(formulaId, name, sink);
+			return new Timed(formulaId, name, copied, sink);
+		}
+		return expr;
+	}
+
+	/**
+	 * 记录函数中的字符串转换
+	 */
+	public static final class Probe {
+		protected final String formulaId;
+		protected final String function;
+		protected final MetricsSink sink;
+
+		protected Probe(String _formulaId, String _function, MetricsSink _sink) {
+			formulaId = _formulaId;
+			function = _function;
+			sink = _sink;
+		}
+
+		public void converted() {
+			sink.recordConversion(formulaId, function);
+		}
+	}
+
+	/**
+	 * 记录耗时的节点
+	 *
+	 * <p>结果类型和toString与被包装的节点相同。long溢出(按Decimal重新计算)不计为异常。
+	 */
+	public static class Timed extends Expression {
+		protected final String formulaId;
+		/**
+		 * 函数名，为null时表示整个公式
+		 */
+		protected final String function;
+		protected final Expression child;
+		protected final MetricsSink sink;
+
+		public Timed(String _formulaId, String _function, Expression _child, MetricsSink _sink) {
+			super(Operator.OP_Extend);
+			formulaId = _formulaId;
+			function = _function;
+			child = _child;
+			sink = _sink;
+		}
+
+		public String getFormulaId() {
+			return formulaId;
+		}
+
+		public String getFunction() {
+			return function;
+		}
+
+		public Expression getChild() {
+			return child;
+		}
+
+		@Override
+		public ExprValue getValue(DataProvider provider) throws FormulaException {
+			long start = System.nanoTime();
+			try {
+				ExprValue value = child.getValue(provider);
+				record(start, false);
+				return value;
+			} catch (RuntimeException e) {
+				record(start, failed(e));
+				throw e;
+			}
+		}
+
+		@Override
+		public double evalDouble(DataProvider provider) throws FormulaException {
+			long start = System.nanoTime();
+			try {
+				double value = child.evalDouble(provider);
+				record(start, false);
+				return value;
+			} catch (RuntimeException e) {
+				record(start, failed(e));
+				throw e;
+			}
+		}
+
+		@Override
+		public long evalLong(DataProvider provider) throws FormulaException {
+			long start = System.nanoTime();
+			try {
+				long value = child.evalLong(provider);
+				record(start, false);
+				return value;
+			} catch (RuntimeException e) {
+				record(start, failed(e));
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean evalBoolean(DataProvider provider) throws FormulaException {
+			long start = System.nanoTime();
+			try {
+				boolean value = child.evalBoolean(provider);
+				record(start, false);
+				return value;
+			} catch (RuntimeException e) {
+				record(start, failed(e));
+				throw e;
+			}
+		}
+
+		protected void record(long start, boolean failed) {
+			long nanos = System.nanoTime() - start;
+			if (function == null) {
+				sink.recordFormula(formulaId, nanos, failed);
+			} else {
+				sink.recordFunction(formulaId, function, nanos, failed);
+			}
+		}
+
+		protected static boolean failed(RuntimeException e) {
+			return !(e instanceof DecimalUtil.LongOverflowException);
+		}
+
+		@Override
+		public ExprValue.DataType getResultType() {
+			return child.getResultType();
+		}
+
+		@Override
+		public String getOperatorPrototype() {
+			return child.getOperatorPrototype();
+		}
+
+		@Override
+		public String toString() {
+			return child.toString();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时的直方图
+ *
+ * <br>
+ * 与HdrHistogram相同的对数-线性分桶:<br>
+ * - 小于64的值每个值一个桶<br>
+ * - 更大的值按最高位分组，每组再等分为64个桶，相对误差不超过1/64<br>
+ * - 超出2^40(纳秒时约18分钟)的值计入最后一个桶<br>
+ *
+ * <p>记录时只做原子递增，不加锁，可被多个线程同时记录和读取;读取到的是近似的快照。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class LatencyHistogram {
+
+	/**
+	 * 每组的桶数为2^SUB_BITS
+	 */
+	protected static final int SUB_BITS = 6;
+
+	protected static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/**
+	 * 可区分的最大值为2^MAX_BITS
+	 */
+	protected static final int MAX_BITS = 40;
+
+	protected static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	protected final LongAdder count = new LongAdder();
+
+	protected final LongAdder sum = new LongAdder();
+
+	protected final AtomicLong max = new AtomicLong();
+
+	/**
+	 * 记录一个值
+	 * @param value 值，负数按0计
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * 平均值
+	 * @return 平均值，没有记录时为0
+	 */
+	public double getMean() {
+		long total = count.sum();
+		return total == 0 ? 0 : (double) sum.sum() / total;
+	}
+
+	/**
+	 * 百分位数
+	 * @param percentile 百分比，例如99.9
+	 * @return 不小于该比例的值的最小值(桶的上界)，没有记录时为0
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		double ratio = Math.min(Math.max(percentile, 0), 100) / 100;
+		long rank = Math.max(1, (long) Math.ceil(ratio * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highest(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * 清空所有记录
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * 值所在的桶
+	 */
+	protected static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int bits = 63 - Long.numberOfLeadingZeros(value);
+		if (bits >= MAX_BITS) {
+			return BUCKETS - 1;
+		}
+		int shift = bits - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	/**
+	 * 桶中的最大值
+	 */
+	protected static long highest(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index >>> SUB_BITS) - 1;
+		long lowest = ((long) (SUB_COUNT | (index & (SUB_COUNT - 1)))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
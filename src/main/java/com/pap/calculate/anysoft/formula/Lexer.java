@@ -0,0 +1,315 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * 公式词法分析器
+ *
+ * <br>
+ * 在char[]上扫描公式文本，Token以(offset,length)区间表示，不为每个字符创建字符串:<br>
+ * - 公式文本只复制一次，末尾追加两个'\0'哨兵，扫描时无需边界检查<br>
+ * - 数字在原位解析，只有在无法精确快速解析时才创建字符串<br>
+ * - 字符串常量的区间不含引号<br>
+ *
+ * <p>Token类型沿用{@link Parser}中的常量定义。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 增加getDecimal
+ */
+public class Lexer {
+
+	/**
+	 * 10的0~22次幂，均可用double精确表示
+	 */
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * 可以精确表示的十进制有效位数
+	 */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	/**
+	 * 公式文本，末尾有两个'\0'哨兵
+	 */
+	protected final char[] buffer;
+
+	/**
+	 * 公式文本长度
+	 */
+	protected final int length;
+
+	/**
+	 * 当前扫描位置
+	 */
+	protected int position = 0;
+
+	/**
+	 * 当前Token类型
+	 */
+	protected char type = Parser.FINISHED;
+
+	/**
+	 * 当前Token的起始位置
+	 */
+	protected int tokenOffset = 0;
+
+	/**
+	 * 当前Token的长度
+	 */
+	protected int tokenLength = 0;
+
+	/**
+	 * 构造函数
+	 * @param _text 公式文本
+	 */
+	public Lexer(CharSequence _text) {
+		length = _text.length();
+		buffer = new char[length + 2];
+		if (_text instanceof String) {
+			((String) _text).getChars(0, length, buffer, 0);
+		} else {
+			for (int i = 0; i < length; i++) {
+				buffer[i] = _text.charAt(i);
+			}
+		}
+	}
+
+	/**
+	 * 构造函数
+	 * @param _text 公式文本
+	 * @param _offset 起始位置
+	 * @param _length 长度
+	 */
+	public Lexer(char[] _text, int _offset, int _length) {
+		length = _length;
+		buffer = new char[_length + 2];
+		System.arraycopy(_text, _offset, buffer, 0, _length);
+	}
+
+	/**
+	 * 扫描下一个Token
+	 * @return Token类型
+	 */
+	public char next() {
+		char[] buf = buffer;
+		int pos = position;
+		char ch = buf[pos];
+		while (Parser.isSpace(ch)) {
+			ch = buf[++pos];
+		}
+		tokenOffset = pos;
+		char next = buf[pos + 1];
+		switch (ch) {
+		case Parser.STRING: {
+			int start = pos + 1;
+			int end = start;
+			while (end < length && buf[end] != Parser.STRING) {
+				end++;
+			}
+			if (end >= length) {
+				throw new FormulaException("unterminated string,index:" + pos);
+			}
+			return token(Parser.STRING, start, end - start, end + 1);
+		}
+		case Parser.LESS:
+			if (next == Parser.EQUAL) {
+				return token(Parser.EQUAL_LESS, pos, 2, pos + 2);
+			}
+			return token(ch, pos, 1, pos + 1);
+		case Parser.GREATER:
+			if (next == Parser.EQUAL) {
+				return token(Parser.EQUAL_GREATE, pos, 2, pos + 2);
+			}
+			return token(ch, pos, 1, pos + 1);
+		case Parser.EQUAL:
+			if (next == Parser.EQUAL) {
+				return token(Parser.EQUAL, pos, 2, pos + 2);
+			}
+			return token(ch, pos, 1, pos + 1);
+		case Parser.NOT:
+			if (next == Parser.EQUAL) {
+				return token(Parser.NOT_EQUAL, pos, 2, pos + 2);
+			}
+			break;
+		case Parser.BIT_AND:
+			if (next == Parser.BIT_AND) {
+				return token(Parser.AND, pos, 2, pos + 2);
+			}
+			break;
+		case Parser.BIT_OR:
+			if (next == Parser.BIT_OR) {
+				return token(Parser.OR, pos, 2, pos + 2);
+			}
+			break;
+		case Parser.ADD_OR_POSITIVE:
+		case Parser.SUBTRACT_OR_NEGATIVE:
+		case Parser.MULTIPLY:
+		case Parser.DIVIDE:
+		case Parser.MOD:
+		case Parser.LEFT_BRACKET:
+		case Parser.RIGHT_BRACKET:
+		case Parser.PARAMETER_SEPERATOR:
+			return token(ch, pos, 1, pos + 1);
+		case 0:
+			// '\0' in the text also finishes the formula
+			return token(Parser.FINISHED, pos, 0, pos);
+		default:
+			break;
+		}
+
+		int end = pos + 1;
+		if (Parser.isIdentifierFirstChar(ch)) {
+			while (Parser.isIdentifierChar(buf[end])) {
+				end++;
+			}
+			return token(Parser.IDENTIFIER, pos, end - pos, end);
+		}
+
+		// number,any other leading char is kept in the token and rejected when the number is parsed
+		boolean isFloat = false;
+		for (;;) {
+			char c = buf[end];
+			if (Parser.isDigital(c)) {
+				end++;
+			} else if (Parser.isDecimalChar(c) && !isFloat) {
+				isFloat = true;
+				end++;
+			} else {
+				break;
+			}
+		}
+		return token(isFloat ? Parser.FLOAT : Parser.INTEGER, pos, end - pos, end);
+	}
+
+	private char token(char _type, int _offset, int _length, int _position) {
+		type = _type;
+		tokenOffset = _offset;
+		tokenLength = _length;
+		position = _position;
+		return _type;
+	}
+
+	/**
+	 * 获取当前Token类型
+	 * @return Token类型
+	 */
+	public char getType() {
+		return type;
+	}
+
+	/**
+	 * 获取当前扫描位置
+	 * @return 扫描位置
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * 获取当前Token的起始位置
+	 * @return 起始位置
+	 */
+	public int getTokenOffset() {
+		return tokenOffset;
+	}
+
+	/**
+	 * 获取当前Token的长度
+	 * @return 长度
+	 */
+	public int getTokenLength() {
+		return tokenLength;
+	}
+
+	/**
+	 * 获取当前Token的文本
+	 * @return Token文本
+	 */
+	public String getText() {
+		return new String(buffer, tokenOffset, tokenLength);
+	}
+
+	/**
+	 * 当前Token的文本是否等于指定字符串，不创建新的字符串
+	 * @param value 字符串
+	 * @return 是否相等
+	 */
+	public boolean textEquals(String value) {
+		if (value.length() != tokenLength) {
+			return false;
+		}
+		for (int i = 0; i < tokenLength; i++) {
+			if (buffer[tokenOffset + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 将当前Token解析为long
+	 * @return long值
+	 * @throws NumberFormatException Token不是合法的整数
+	 */
+	public long getLong() {
+		long value = 0;
+		int end = tokenOffset + tokenLength;
+		for (int i = tokenOffset; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+				// let the JDK report the error
+				return Long.parseLong(getText());
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * 将当前Token解析为{@link Decimal}
+	 * @return 十进制值
+	 * @throws NumberFormatException Token不是合法的数字
+	 */
+	public Decimal getDecimal() {
+		return Decimal.valueOf(getText());
+	}
+
+	/**
+	 * 将当前Token解析为double
+	 *
+	 * <p>有效位数不超过15位且小数位数不超过22位时，尾数和10的幂均可精确表示，一次除法即可得到正确舍入的结果；
+	 * 其他情况交由{@link Double#parseDouble(String)}处理。
+	 * @return double值
+	 * @throws NumberFormatException Token不是合法的浮点数
+	 */
+	public double getDouble() {
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean decimal = false;
+		int end = tokenOffset + tokenLength;
+		for (int i = tokenOffset; i < end; i++) {
+			char c = buffer[i];
+			if (c == '.' && !decimal) {
+				decimal = true;
+				continue;
+			}
+			int digit = c - '0';
+			if (digit < 0 || digit > 9 || digits >= MAX_EXACT_DIGITS) {
+				return Double.parseDouble(getText());
+			}
+			if (decimal) {
+				scale++;
+			}
+			if (mantissa != 0 || digit != 0) {
+				mantissa = mantissa * 10 + digit;
+				digits++;
+			}
+		}
+		if (scale >= POWERS_OF_TEN.length) {
+			return Double.parseDouble(getText());
+		}
+		return mantissa / POWERS_OF_TEN[scale];
+	}
+}
@@ -0,0 +1,43 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * 计算指标的接收者
+ *
+ * <br>
+ * 由{@link Instrumentation#instrument(String, Expression, MetricsSink)}插桩后的表达式在计算时调用:<br>
+ * - 整个公式每次计算后调用{@link #recordFormula(String, long, boolean)}<br>
+ * - 每个函数每次计算后调用{@link #recordFunction(String, String, long, boolean)}，耗时包含参数的计算<br>
+ * - 函数的参数或中间结果经过字符串转换(解析数字、BigDecimal)时调用{@link #recordConversion(String, String)}<br>
+ *
+ * <p>{@link FormulaMetrics}汇总后通过JMX发布，也可以实现该接口转发到其他监控系统。
+ * 实现类会被多个计算线程同时调用，应尽量轻量且不抛出异常。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public interface MetricsSink {
+
+	/**
+	 * 公式计算了一次
+	 * @param formulaId 公式的标识
+	 * @param nanos 耗时(纳秒)
+	 * @param failed 是否抛出了异常
+	 */
+	public void recordFormula(String formulaId, long nanos, boolean failed);
+
+	/**
+	 * 函数计算了一次
+	 * @param formulaId 所在公式的标识
+	 * @param function 函数名
+	 * @param nanos 耗时(纳秒)
+	 * @param failed 是否抛出了异常
+	 */
+	public void recordFunction(String formulaId, String function, long nanos, boolean failed);
+
+	/**
+	 * 函数做了一次字符串转换
+	 * @param formulaId 所在公式的标识
+	 * @param function 函数名
+	 */
+	public void recordConversion(String formulaId, String function);
+}
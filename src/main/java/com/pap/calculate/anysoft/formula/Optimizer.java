@@ -0,0 +1,225 @@
+package com.pap.calculate.anysoft.formula;
+
+/**
+ * 公式优化器
+ *
+ * <br>
+ * 在{@link Parser#parse(String)}之后对Expression树做一次改写:<br>
+ * - 常量折叠:子节点均为常量的算术、逻辑、一元运算以及纯函数({@link Function#isPure()})，直接计算为常量<br>
+ * - 代数化简:x*1,x+0,true&&x等恒等式，仅在不改变结果类型和值时化简<br>
+ * - choice,nvl,&&,||在条件为常量时只保留会被计算的分支<br>
+ *
+ * <p>改写不修改原有节点，计算出错(例如除零)的子树保持原样，错误在计算时抛出。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 折叠Decimal常量
+ * @version 1.0.2
+ * - 由long提升的Decimal折叠后仍按整数运算，结果与不优化时一致
+ */
+public class Optimizer {
+
+	/**
+	 * 优化表达式
+	 * @param expr 表达式
+	 * @return 优化后的表达式，无法优化时返回原表达式
+	 */
+	public Expression optimize(Expression expr) {
+		if (expr instanceof Expression.BinaryExpression) {
+			return optimizeBinary((Expression.BinaryExpression) expr);
+		}
+		if (expr instanceof Expression.UnaryExpression) {
+			return optimizeUnary((Expression.UnaryExpression) expr);
+		}
+		if (expr instanceof Function) {
+			return optimizeFunction((Function) expr);
+		}
+		return expr;
+	}
+
+	protected Expression optimizeBinary(Expression.BinaryExpression expr) {
+		Expression left = optimize(expr.getLeft());
+		Expression right = optimize(expr.getRight());
+		Expression.Operator operator = expr.getOperator();
+
+		Expression result = expr;
+		if (left != expr.getLeft() || right != expr.getRight()) {
+			result = Expression.BinaryExpression.createChild(operator, left, right);
+		}
+		if (isConstant(left) && isConstant(right)) {
+			return fold(result);
+		}
+
+		if (expr instanceof Expression.LogicalExpression) {
+			return simplifyLogical(result, operator, left, right);
+		}
+		return simplifyArithmetic(result, operator, left, right);
+	}
+
+	protected Expression simplifyLogical(Expression expr, Expression.Operator operator, Expression left,
+			Expression right) {
+		if (operator != Expression.Operator.OP_And && operator != Expression.Operator.OP_Or) {
+			return expr;
+		}
+		boolean isAnd = operator == Expression.Operator.OP_And;
+		if (left instanceof Expression.BooleanConstant) {
+			boolean value = ((Expression.BooleanConstant) left).getConstant();
+			if (value != isAnd) {
+				// false&&x,true||x,the right is never computed
+				return left;
+			}
+			// true&&x,false||x
+			return isBoolean(right) ? right : expr;
+		}
+		if (right instanceof Expression.BooleanConstant) {
+			boolean value = ((Expression.BooleanConstant) right).getConstant();
+			if (value == isAnd && isBoolean(left)) {
+				// x&&true,x||false
+				return left;
+			}
+		}
+		return expr;
+	}
+
+	protected Expression simplifyArithmetic(Expression expr, Expression.Operator operator, Expression left,
+			Expression right) {
+		ExprValue.DataType type = expr.getResultType();
+		if (type != ExprValue.DataType.Long && type != ExprValue.DataType.Double) {
+			return expr;
+		}
+		boolean isLong = type == ExprValue.DataType.Long;
+		switch (operator) {
+		case OP_Add:
+			// x+0 is not an identity for double,-0.0+0 is 0.0
+			if (isLong && isNumber(right, 0) && left.getResultType() == type) {
+				return left;
+			}
+			if (isLong && isNumber(left, 0) && right.getResultType() == type) {
+				return right;
+			}
+			break;
+		case OP_Sub:
+			if (isNumber(right, 0) && left.getResultType() == type) {
+				return left;
+			}
+			break;
+		case OP_Mul:
+			if (isNumber(right, 1) && left.getResultType() == type) {
+				return left;
+			}
+			if (isNumber(left, 1) && right.getResultType() == type) {
+				return right;
+			}
+			break;
+		case OP_Div:
+			if (isNumber(right, 1) && left.getResultType() == type) {
+				return left;
+			}
+			break;
+		default:
+			break;
+		}
+		return expr;
+	}
+
+	protected Expression optimizeUnary(Expression.UnaryExpression expr) {
+		Expression child = optimize(expr.getChild());
+		Expression.Operator operator = expr.getOperator();
+		if (operator == Expression.Operator.OP_Positive) {
+			return child;
+		}
+		Expression result = child == expr.getChild() ? expr : new Expression.UnaryExpression(operator, child);
+		if (isConstant(child)) {
+			return fold(result);
+		}
+		if (child instanceof Expression.UnaryExpression && child.getOperator() == operator
+				&& result.getResultType() != null) {
+			// -(-x),!(!x)
+			Expression grandChild = ((Expression.UnaryExpression) child).getChild();
+			if (grandChild.getResultType() == result.getResultType()) {
+				return grandChild;
+			}
+		}
+		return result;
+	}
+
+	protected Expression optimizeFunction(Function func) {
+		int count = func.getArgumentCount();
+		Expression[] args = new Expression[count];
+		boolean changed = false;
+		boolean constant = true;
+		for (int i = 0; i < count; i++) {
+			args[i] = optimize(func.getArgument(i));
+			changed = changed || args[i] != func.getArgument(i);
+			constant = constant && isConstant(args[i]);
+		}
+		Function result = changed ? func.copy(args) : func;
+		if (!func.isPure()) {
+			return result;
+		}
+		if (constant) {
+			return fold(result);
+		}
+		if (func instanceof Function.Choice && count == 3 && isConstant(args[0])) {
+			try {
+				return args[0].getValue(null).getBoolean() ? args[1] : args[2];
+			} catch (RuntimeException ex) {
+				return result;
+			}
+		}
+		if (func instanceof Function.Nvl && count == 2 && isConstant(args[0])) {
+			// a constant is never null
+			return args[0];
+		}
+		return result;
+	}
+
+	/**
+	 * 计算表达式并转换为常量，计算出错或结果无法表示为常量时返回原表达式
+	 */
+	protected Expression fold(Expression expr) {
+		ExprValue value;
+		try {
+			value = expr.getValue(null);
+		} catch (RuntimeException ex) {
+			return expr;
+		}
+		if (value == null) {
+			return expr;
+		}
+		switch (value.getDataType()) {
+		case Long:
+			return new Expression.LongConstant(value.getLong());
+		case Double:
+			return new Expression.DoubleConstant(value.getDouble());
+		case Decimal:
+			// a value promoted from long keeps the integer semantics
+			return new Expression.DecimalConstant(value.getDecimal(), value.isInteger());
+		case Boolean:
+			return new Expression.BooleanConstant(value.getBoolean());
+		case String:
+			return new Expression.StringConstant(value.getString());
+		default:
+			return expr;
+		}
+	}
+
+	protected static boolean isConstant(Expression expr) {
+		return expr instanceof Expression.Constant;
+	}
+
+	protected static boolean isBoolean(Expression expr) {
+		return expr.getResultType() == ExprValue.DataType.Boolean;
+	}
+
+	protected static boolean isNumber(Expression expr, long number) {
+		if (expr instanceof Expression.LongConstant) {
+			return ((Expression.LongConstant) expr).getConstant() == number;
+		}
+		if (expr instanceof Expression.DoubleConstant) {
+			return ((Expression.DoubleConstant) expr).getConstant() == number;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,262 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行批量计算
+ *
+ * <br>
+ * 在大量行上计算同一个公式，行按区间拆分到{@link ForkJoinPool}中并行计算(工作窃取):<br>
+ * - 区间大于粒度时一分为二，分界点对齐到64行，直到不大于粒度为止<br>
+ * - 每个叶子任务使用自己的计算状态({@link Row}实例、{@link BatchEvaluator}的算子树)，任务之间不共享可变对象<br>
+ * - 结果写入与输入相同的位置，输出顺序与线程数、调度顺序无关<br>
+ *
+ * <p>公式可被多个线程同时计算，前提是公式中的自定义函数没有可变状态，内置函数均满足这一点。
+ * 任一行计算出错时抛出该异常，其余结果丢弃。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 粒度不超过{@link #MAX_GRAIN}，接近Integer.MAX_VALUE时不再溢出为负数
+ * @version 1.0.2
+ * - 按列计算时long运算溢出，与{@link BatchEvaluator}一样按提升模式重新规划并计算
+ */
+public class ParallelEvaluator {
+
+	/**
+	 * 缺省的粒度(每个叶子任务的最大行数)
+	 */
+	public static final int DEFAULT_GRAIN = 16384;
+
+	/**
+	 * 粒度的上限，int范围内最大的64的倍数
+	 */
+	public static final int MAX_GRAIN = Integer.MAX_VALUE & ~63;
+
+	/**
+	 * 线程池
+	 */
+	protected final ForkJoinPool pool;
+
+	/**
+	 * 粒度，64的倍数
+	 */
+	protected final int grain;
+
+	/**
+	 * 构造函数，使用{@link ForkJoinPool#commonPool()}
+	 */
+	public ParallelEvaluator() {
+		this(ForkJoinPool.commonPool(), DEFAULT_GRAIN);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _pool 线程池
+	 */
+	public ParallelEvaluator(ForkJoinPool _pool) {
+		this(_pool, DEFAULT_GRAIN);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _pool 线程池
+	 * @param _grain 粒度，向上取整为64的倍数，超过{@link #MAX_GRAIN}时按MAX_GRAIN计
+	 */
+	public ParallelEvaluator(ForkJoinPool _pool, int _grain) {
+		if (_pool == null) {
+			throw new IllegalArgumentException("pool can not be null.");
+		}
+		if (_grain <= 0) {
+			throw new IllegalArgumentException("grain must be positive.");
+		}
+		pool = _pool;
+		grain = (Math.min(_grain, MAX_GRAIN) + 63) & ~63;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public int getGrain() {
+		return grain;
+	}
+
+	/**
+	 * 逐行计算，每行一个DataProvider
+	 * @param expr 公式
+	 * @param rows 行
+	 * @return 计算结果，顺序与rows一致
+	 * @throws FormulaException 计算出错
+	 */
+	public ExprValue[] evaluate(final Expression expr, final List<? extends DataProvider> rows)
+			throws FormulaException {
+		final ExprValue[] results = new ExprValue[rows.size()];
+		invoke(new RangeTask(0, results.length) {
+			@Override
+			protected void leaf(int from, int to) {
+				for (int i = from; i < to; i++) {
+					results[i] = expr.getValue(rows.get(i));
+				}
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * 逐行计算Object[]行
+	 * @param expr 公式
+	 * @param schema 变量模式，公式先按此绑定
+	 * @param rows 行，每行的值顺序与Schema一致
+	 * @return 计算结果，顺序与rows一致
+	 * @throws FormulaException 计算出错
+	 */
+	public ExprValue[] evaluate(Expression expr, final Schema schema, final Object[][] rows)
+			throws FormulaException {
+		final Expression bound = schema.bind(expr);
+		final ExprValue[] results = new ExprValue[rows.length];
+		invoke(new RangeTask(0, rows.length) {
+			@Override
+			protected void leaf(int from, int to) {
+				Row.ObjectRow row = null;
+				for (int i = from; i < to; i++) {
+					row = row == null ? new Row.ObjectRow(schema, rows[i]) : row.setValues(rows[i]);
+					results[i] = bound.getValue(row);
+				}
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * 逐行计算double[]行，结果为double
+	 * @param expr 公式
+	 * @param schema 变量模式，公式先按此绑定
+	 * @param rows 行，每行的值顺序与Schema一致
+	 * @return 计算结果，顺序与rows一致
+	 * @throws FormulaException 计算出错
+	 */
+	public double[] evaluateDouble(Expression expr, final Schema schema, final double[][] rows)
+			throws FormulaException {
+		final Expression bound = schema.bind(expr);
+		final double[] results = new double[rows.length];
+		invoke(new RangeTask(0, rows.length) {
+			@Override
+			protected void leaf(int from, int to) {
+				Row.DoubleRow row = null;
+				for (int i = from; i < to; i++) {
+					row = row == null ? new Row.DoubleRow(schema, rows[i]) : row.setValues(rows[i]);
+					results[i] = bound.evalDouble(row);
+				}
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * 按列计算所有行
+	 * @param evaluator 列式计算引擎
+	 * @param expr 公式
+	 * @param columns 输入列，顺序与Schema一致
+	 * @return 输出列
+	 * @throws FormulaException 计算出错
+	 */
+	public Column evaluate(BatchEvaluator evaluator, Expression expr, Column[] columns) throws FormulaException {
+		return evaluate(evaluator, expr, columns, columns.length == 0 ? 0 : columns[0].size());
+	}
+
+	/**
+	 * 按列计算前size行
+	 * @param evaluator 列式计算引擎
+	 * @param expr 公式
+	 * @param columns 输入列，顺序与Schema一致
+	 * @param size 行数
+	 * @return 输出列
+	 * @throws FormulaException 计算出错
+	 */
+	public Column evaluate(BatchEvaluator evaluator, Expression expr, Column[] columns, int size)
+			throws FormulaException {
+		try {
+			return evaluate(evaluator, expr, columns, size, false);
+		} catch (DecimalUtil.LongOverflowException ex) {
+			// a long operation overflows,the results of long add,sub,mul may be decimal
+			return evaluate(evaluator, expr, columns, size, true);
+		}
+	}
+
+	protected Column evaluate(final BatchEvaluator evaluator, final Expression expr, final Column[] columns, int size,
+			final boolean promote) throws FormulaException {
+		final Column output = Column.allocate(evaluator.getResultType(expr, columns, promote), size);
+		// allocate the bitmap up front,the tasks write disjoint words of it
+		output.nulls = new long[Column.words(size)];
+		invoke(new RangeTask(0, size) {
+			@Override
+			protected void leaf(int from, int to) {
+				evaluator.evaluate(expr, columns, from, to, output, promote);
+			}
+		});
+		for (long word : output.nulls) {
+			if (word != 0) {
+				return output;
+			}
+		}
+		output.nulls = null;
+		return output;
+	}
+
+	protected void invoke(RangeTask task) {
+		if (task.to - task.from <= grain) {
+			// not worth a task
+			task.leaf(task.from, task.to);
+		} else {
+			pool.invoke(task);
+		}
+	}
+
+	/**
+	 * 区间任务
+	 *
+	 * <p>拆分出的子任务把leaf委托给拆分它的任务，最终都由最初创建的任务计算。
+	 */
+	protected abstract class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final int from;
+		protected final int to;
+
+		protected RangeTask(int _from, int _to) {
+			from = _from;
+			to = _to;
+		}
+
+		/**
+		 * 计算[from,to)行
+		 */
+		protected abstract void leaf(int from, int to);
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				leaf(from, to);
+				return;
+			}
+			// from is aligned,so is mid
+			int mid = from + ((((to - from) >>> 1) + 32) & ~63);
+			invokeAll(split(from, mid), split(mid, to));
+		}
+
+		private RangeTask split(int _from, int _to) {
+			final RangeTask owner = this;
+			return new RangeTask(_from, _to) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void leaf(int from, int to) {
+					owner.leaf(from, to);
+				}
+			};
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.pap.calculate.anysoft.formula;
 
+import java.util.Arrays;
 
 /**
  * Formula Parser
@@ -24,17 +25,14 @@ package com.pap.calculate.anysoft.formula;
  * 
  * @author duanyy
  * @version 1.0
+ * @version 1.1 - 使用显式栈的算符优先解析，公式长度和嵌套深度不再受线程栈限制;支持%操作符
+ * @version 1.2 - 增加十进制模式，小数常量解析为{@link Decimal}
  */
 public class Parser {
 	/**
-	 * 当前处理的公式文本
+	 * 词法分析器
 	 */
-	protected String text;
-	
-	/**
-	 * 当前解析的位置
-	 */
-	protected int current;
+	protected Lexer lexer;
 	
 	public static final char ADD_OR_POSITIVE = '+';
 	public static final char SUBTRACT_OR_NEGATIVE = '-';
@@ -62,19 +60,16 @@ public class Parser {
 	public static final char INTEGER = 266;
 	
 	/**
-	 * 当前解析Token的类型
-	 */
-	protected char type;
-	
-	/**
-	 * 当前解析的ID
+	 * 解析栈中的标记:负号,函数调用,未知函数后的隐式分组
 	 */
-	protected String identifier;
+	private static final char NEGATIVE = 267;
+	private static final char FUNCTION = 268;
+	private static final char IMPLICIT_GROUP = 269;
 	
 	/**
-	 * 当前是否在字符串中
+	 * 当前解析Token的类型
 	 */
-	protected boolean inString;
+	protected char type;
 	
 	/**
 	 * 函数对象辅助器
@@ -89,8 +84,25 @@ public class Parser {
 		funcHelper = helper;
 	}
 	
+	/**
+	 * 是否为十进制模式
+	 */
+	protected boolean decimal = false;
+	
+	/**
+	 * to set decimal mode
+	 * 
+	 * <br>In decimal mode float literals are parsed as {@link Decimal},so money formulas like
+	 * {@code price * 1.07} are computed exactly instead of in double.
+	 * @param _decimal decimal mode or not
+	 */
+	public void setDecimal(boolean _decimal){
+		decimal = _decimal;
+	}
+	
 	static public boolean isSpace(char ch){
-		return Character.isSpaceChar(ch);
+		// the only ASCII space separator is ' '
+		return ch == ' ' || ch > 0x7f && Character.isSpaceChar(ch);
 	}
 	static public boolean isAlpha(char ch){
 		return ch >= 'a' && ch <='z' || ch >= 'A' && ch <= 'Z';
@@ -125,385 +137,281 @@ public class Parser {
 	 * @throws FormulaException
 	 */
 	public Expression parse(String _text)throws FormulaException{
-		text = _text;
-		current = 0;
-		inString = false;
-		identifier = "";
-		lookAhead();
-		return expression_R_Logical_Or
-				(
-				expression_R_Logical_And
-					(
-					expression_R_Compare
-						(
-							expression_R(higher_expression())
-						)
-					)
-				);
+		return parse(new Lexer(_text));
 	}
 	
-	private Expression higher_expression() {
-		return higher_expression_R( sign_expression() );
-	}
-
-	private Expression higher_expression_R(Expression left) {
-		Expression result = left;
-		if( type == MULTIPLY )
-		{
-			match( MULTIPLY );
-			Expression higher = sign_expression();
-			result = higher_expression_R( Expression.BinaryExpression.createChild(Expression.Operator.OP_Mul,left,higher) );
-		}
-		else if( type == DIVIDE )
-		{
-			match( DIVIDE );
-			Expression higher = sign_expression() ;
-			result = higher_expression_R( Expression.BinaryExpression.createChild(Expression.Operator.OP_Div,left,higher) );
-		}
-		return result;
-	}
-
-	private Expression sign_expression() {
-		Expression result;
-		if( type == ADD_OR_POSITIVE )
-		{
-			match( ADD_OR_POSITIVE );
-			result = sign_expression();
-		}
-		else if( type == SUBTRACT_OR_NEGATIVE )
-		{
-			match( SUBTRACT_OR_NEGATIVE );
-			result = new Expression.UnaryExpression(Expression.Operator.OP_Negative,sign_expression());
-		}
-		else
-			result = factor();
-		return result;
+	/**
+	 * 将公式文本解析为Expression模型
+	 * @param _text 公式文本
+	 * @param _offset 起始位置
+	 * @param _length 长度
+	 * @return Expression实例
+	 * @throws FormulaException
+	 */
+	public Expression parse(char[] _text, int _offset, int _length)throws FormulaException{
+		return parse(new Lexer(_text, _offset, _length));
 	}
-
-	private Expression factor() {
-		Expression result;
-		if (type == FLOAT)
-		{
-			match(FLOAT);
-			result = new Expression.DoubleConstant(Double.valueOf(identifier));
-		}
-		else
-			if (type == STRING)
-			{
-				match(STRING);
-				result = new Expression.StringConstant(identifier);
-			}
-			else
-			if (type == INTEGER)
-			{
-				match(INTEGER);
-				result = new Expression.LongConstant(Long.valueOf(identifier));
-			}
-			else
-				if (type == LEFT_BRACKET)
-				{
+	
+	protected Expression parse(Lexer _lexer)throws FormulaException{
+		lexer = _lexer;
+		lookAhead();
+		
+		Stack stack = new Stack();
+		for (;;){
+			// operand position: prefix signs,brackets,then a primary
+			for (;;){
+				if (type == ADD_OR_POSITIVE){
+					match(ADD_OR_POSITIVE);
+				}else if (type == SUBTRACT_OR_NEGATIVE){
+					match(SUBTRACT_OR_NEGATIVE);
+					stack.pushOperator(NEGATIVE);
+				}else if (type == LEFT_BRACKET){
 					match(LEFT_BRACKET);
-					result = expression_R_Logical_Or
-				(
-				expression_R_Logical_And
-					(
-					expression_R_Compare
-						(
-							expression_R(higher_expression())
-						)
-					)
-				);
-					match( RIGHT_BRACKET );
+					stack.pushOperator(LEFT_BRACKET);
+				}else{
+					break;
 				}
-			else
-			{
-				result = lang_structure();
 			}
-		return result;
-	}
-
-	private Expression lang_structure() {
-	    String id = identifier;
-        match(IDENTIFIER);
-        return lang_tail( id );
-	}
-
-	private Expression lang_tail(String id) {
-		if (id.equals("true"))
-		{
-			return new Expression.BooleanConstant(true);
-		}
-		if (id.equals("false"))
-		{
-			return new Expression.BooleanConstant(false);
-		}
-
-		if (type == LEFT_BRACKET)
-		{		
-			Function result = null;
-			if (funcHelper != null)
-			{
-				result = (Function)funcHelper.customize(id);
+			if (!primary(stack)){
+				// a function call or an implicit group is opened,parse its first operand
+				continue;
 			}
-			if (result != null)
-			{
-				match( LEFT_BRACKET );
-				result.addArgument(expression_R_Logical_Or
-				(
-				expression_R_Logical_And
-					(
-					expression_R_Compare
-						(
-							expression_R(higher_expression())
-						)
-					)
-				));
-				for(;;)
-				{
-					if( type == RIGHT_BRACKET )
-					{
-						match( RIGHT_BRACKET );
-						break;
+			
+			// operator position
+			for (;;){
+				stack.reduceNegative();
+				int precedence = precedence(type);
+				if (precedence > 0){
+					stack.reduce(precedence);
+					stack.pushOperator(type);
+					match(type);
+					break;
+				}
+				stack.reduce(1);
+				char top = stack.peekOperator();
+				if (top == LEFT_BRACKET){
+					match(RIGHT_BRACKET);
+					stack.popOperator();
+					continue;
+				}
+				if (top == FUNCTION){
+					Function func = stack.peekFunction();
+					func.addArgument(stack.popOperand());
+					if (type == RIGHT_BRACKET){
+						match(RIGHT_BRACKET);
+						stack.popOperator();
+						stack.pushOperand(stack.popFunction());
+						continue;
 					}
 					match(PARAMETER_SEPERATOR);
-					result.addArgument(expression_R_Logical_Or
-				(
-				expression_R_Logical_And
-					(
-					expression_R_Compare
-						(
-							expression_R(higher_expression())
-						)
-					)
-				));	
+					break;
 				}
-				return result;
+				if (top == IMPLICIT_GROUP){
+					stack.popOperator();
+					continue;
+				}
+				// trailing tokens are ignored
+				return stack.popOperand();
 			}
-
-			return  expression_R_Logical_Or
-				(
-				expression_R_Logical_And
-					(
-					expression_R_Compare
-						(
-							expression_R(higher_expression())
-						)
-					)
-				);
 		}
-		return new Expression.Variant(id);
 	}
-
-	private Expression expression_R_Logical_Or(Expression left) {
-		Expression result = left;
-
-		if( type == OR )
-		{
-			match( OR );
-			Expression higher = expression_R_Logical_And
-					(
-					expression_R_Compare
-						(
-							expression_R(higher_expression())
-						)
-					);
-			result = expression_R_Logical_Or
-				(Expression.BinaryExpression.createChild(Expression.Operator.OP_Or,left,higher));
+	
+	/**
+	 * 解析常量、变量、函数调用
+	 * @param stack 解析栈
+	 * @return 是否得到了一个完整的操作数，函数调用时返回false
+	 */
+	private boolean primary(Stack stack){
+		if (type == FLOAT){
+			stack.pushOperand(decimal ? new Expression.DecimalConstant(lexer.getDecimal())
+					: new Expression.DoubleConstant(lexer.getDouble()));
+			match(FLOAT);
+			return true;
 		}
-		return result;
-	}
-
-	private Expression expression_R_Logical_And(Expression left) {
-		Expression result = left;
-
-		if( type == AND )
-		{
-			match( AND );
-			Expression  higher = expression_R_Compare
-						(
-							expression_R(higher_expression())
-						);
-			result = expression_R_Logical_And
-				(Expression.BinaryExpression.createChild(Expression.Operator.OP_And,left,higher));
+		if (type == STRING){
+			stack.pushOperand(new Expression.StringConstant(lexer.getText()));
+			match(STRING);
+			return true;
 		}
-		return result;
-	}
-
-	private Expression expression_R_Compare(Expression left) {
-		Expression result = left;
-
-		if( type == EQUAL_LESS )
-		{
-			match( EQUAL_LESS );
-			Expression higher = expression_R(higher_expression());
-			result = expression_R_Compare(
-				Expression.BinaryExpression.createChild(Expression.Operator.OP_Less_Equal,left,higher));
+		if (type == INTEGER){
+			stack.pushOperand(new Expression.LongConstant(lexer.getLong()));
+			match(INTEGER);
+			return true;
 		}
-		else if( type == EQUAL_GREATE )
-		{
-			match( EQUAL_GREATE );
-			Expression higher = expression_R(higher_expression());
-			result = expression_R_Compare(Expression.BinaryExpression.createChild(Expression.Operator.OP_Greater_Equal,left,higher));
+		if (type == IDENTIFIER && lexer.textEquals("true")){
+			match(IDENTIFIER);
+			stack.pushOperand(new Expression.BooleanConstant(true));
+			return true;
 		}
-		else if( type == NOT_EQUAL )
-		{
-			match( NOT_EQUAL );
-			Expression higher = expression_R(higher_expression());
-			result = expression_R_Compare(Expression.BinaryExpression.createChild(Expression.Operator.OP_Not_Equal,left,higher));
+		if (type == IDENTIFIER && lexer.textEquals("false")){
+			match(IDENTIFIER);
+			stack.pushOperand(new Expression.BooleanConstant(false));
+			return true;
 		}
-		else if( type == EQUAL )
-		{
-			match( EQUAL );
-			Expression higher = expression_R(higher_expression());
-			result = expression_R_Compare(Expression.BinaryExpression.createChild(Expression.Operator.OP_Equal,left,higher));
+		String id = type == IDENTIFIER ? lexer.getText() : null;
+		match(IDENTIFIER);
+		if (type != LEFT_BRACKET){
+			stack.pushOperand(new Expression.Variant(id));
+			return true;
 		}
-		else if( type == LESS )
-		{
-			match( LESS );
-			Expression higher = expression_R(higher_expression());
-			result = expression_R_Compare(Expression.BinaryExpression.createChild(Expression.Operator.OP_Less,left,higher));
+		Function func = null;
+		if (funcHelper != null){
+			func = (Function)funcHelper.customize(id);
 		}
-		else if( type == GREATER )
-		{
-			match( GREATER );
-			Expression higher = expression_R(higher_expression());
-			result = expression_R_Compare(Expression.BinaryExpression.createChild(Expression.Operator.OP_Greater,left,higher));
+		if (func != null){
+			match(LEFT_BRACKET);
+			stack.pushFunction(func);
+		}else{
+			// unknown function,the rest is parsed as an expression starting with the bracket
+			stack.pushOperator(IMPLICIT_GROUP);
 		}
-		return result;
+		return false;
 	}
-
-	private Expression expression_R(Expression left) {
-		Expression result = left;
-
-		if( type == ADD_OR_POSITIVE )
-		{
-			match( ADD_OR_POSITIVE );
-			Expression higher = higher_expression();
-			result = expression_R(Expression.BinaryExpression.createChild(Expression.Operator.OP_Add,left,higher));
-		}
-		else if( type == SUBTRACT_OR_NEGATIVE )
-		{
-			match( SUBTRACT_OR_NEGATIVE );
-			Expression higher = higher_expression();
-			result = expression_R(Expression.BinaryExpression.createChild(Expression.Operator.OP_Sub,left,higher));
+	
+	/**
+	 * 二元操作符的优先级，非二元操作符返回0
+	 * @param _type Token类型
+	 * @return 优先级
+	 */
+	private static int precedence(char _type){
+		switch (_type){
+		case OR:
+			return 1;
+		case AND:
+			return 2;
+		case EQUAL:
+		case NOT_EQUAL:
+		case LESS:
+		case EQUAL_LESS:
+		case GREATER:
+		case EQUAL_GREATE:
+			return 3;
+		case ADD_OR_POSITIVE:
+		case SUBTRACT_OR_NEGATIVE:
+			return 4;
+		case MULTIPLY:
+		case DIVIDE:
+		case MOD:
+			return 5;
 		}
-		return result;
+		return 0;
 	}
-
-	private char get(int _current){
-		if (_current >= text.length()){
-			return 0;
+	
+	private static Expression.Operator toOperator(char _type){
+		switch (_type){
+		case OR:return Expression.Operator.OP_Or;
+		case AND:return Expression.Operator.OP_And;
+		case EQUAL:return Expression.Operator.OP_Equal;
+		case NOT_EQUAL:return Expression.Operator.OP_Not_Equal;
+		case LESS:return Expression.Operator.OP_Less;
+		case EQUAL_LESS:return Expression.Operator.OP_Less_Equal;
+		case GREATER:return Expression.Operator.OP_Greater;
+		case EQUAL_GREATE:return Expression.Operator.OP_Greater_Equal;
+		case ADD_OR_POSITIVE:return Expression.Operator.OP_Add;
+		case SUBTRACT_OR_NEGATIVE:return Expression.Operator.OP_Sub;
+		case MULTIPLY:return Expression.Operator.OP_Mul;
+		case DIVIDE:return Expression.Operator.OP_Div;
+		case MOD:return Expression.Operator.OP_Mod;
 		}
-		return text.charAt(_current);
+		throw new FormulaException("Unsupport operator:" + (int)_type);
 	}
 	
-	private void lookAhead(){
-		for (;;){
-			if (inString){
-				if (get(current) != STRING){
-					identifier += get(current);
-					++current;
-					continue;
-				}
+	/**
+	 * 解析栈
+	 * 
+	 * <p>操作数栈、操作符栈以及正在解析参数的函数栈，代替递归调用，解析深层嵌套的公式时不会栈溢出。
+	 */
+	private static final class Stack {
+		private Expression[] operands = new Expression[16];
+		private int operandCount = 0;
+		private char[] operators = new char[16];
+		private int operatorCount = 0;
+		private Function[] functions = new Function[4];
+		private int functionCount = 0;
+		
+		void pushOperand(Expression expr){
+			if (operandCount == operands.length){
+				operands = Arrays.copyOf(operands, operandCount * 2);
 			}
-			if (isSpace(get(current))){
-				++current;
-				continue;
+			operands[operandCount++] = expr;
+		}
+		
+		Expression popOperand(){
+			Expression expr = operands[--operandCount];
+			operands[operandCount] = null;
+			return expr;
+		}
+		
+		void pushOperator(char op){
+			if (operatorCount == operators.length){
+				operators = Arrays.copyOf(operators, operatorCount * 2);
 			}
-			if (get(current) == STRING){
-				type = STRING;
-				++current;
-				if (!inString){
-					identifier = "";
-					inString = true;
-					continue;
-				}else{
-					inString = false;
-					break;
-				}
+			operators[operatorCount++] = op;
+		}
+		
+		char peekOperator(){
+			return operatorCount == 0 ? FINISHED : operators[operatorCount - 1];
+		}
+		
+		char popOperator(){
+			return operators[--operatorCount];
+		}
+		
+		void pushFunction(Function func){
+			if (functionCount == functions.length){
+				functions = Arrays.copyOf(functions, functionCount * 2);
 			}
-			
-			if (get(current) == LESS && get(current + 1) == EQUAL){
-				type = EQUAL_LESS;
-				current += 2;
-			}else{
-				if (get(current) == GREATER && get(current + 1) == EQUAL){
-					type = EQUAL_GREATE;
-					current += 2;
-				}else{
-					if (get(current) == EQUAL && get(current + 1) == EQUAL){
-						type = EQUAL;
-						current += 2;
-					}else{
-						if (get(current) == NOT && get(current + 1) == EQUAL){
-							type = NOT_EQUAL;
-							current += 2;							
-						}else{
-							if (get(current) == BIT_AND && get(current + 1) == BIT_AND){
-								type = AND;
-								current += 2;	
-							}else{
-								if (get(current) == BIT_OR && get(current + 1) == BIT_OR){
-									type = OR;
-									current += 2;										
-								}else{
-									char ch = get(current);
-									if (ch == ADD_OR_POSITIVE
-											|| ch == SUBTRACT_OR_NEGATIVE
-											|| ch == MULTIPLY
-											|| ch == DIVIDE
-											|| ch == MOD
-											|| ch == LEFT_BRACKET
-											|| ch == RIGHT_BRACKET
-											|| ch == PARAMETER_SEPERATOR
-											|| ch == EQUAL
-											|| ch == LESS
-											|| ch == GREATER){
-										type = ch;
-										++current;
-									}else{
-										if (isIdentifierFirstChar(get(current))){
-											type = IDENTIFIER;
-											identifier = "";
-											identifier += get(current);
-											++current;
-											while(isIdentifierChar(get(current))){
-												identifier += get(current);
-												++current;
-											}
-										}else{
-											if (get(current) == 0){
-												type = FINISHED;
-											}else{
-												identifier = "";
-												identifier += get(current);
-												++current;
-												boolean isFloat = false;
-												while((isDecimalChar(get(current)) && !isFloat) || isDigital(get(current)) ){
-													identifier += get(current);
-													if (isDecimalChar(get(current))){
-														isFloat = true;
-													}
-													++current;
-												}
-												type = isFloat?FLOAT:INTEGER;
-											}
-										}
-									}
-								}
-							}
-						}
-					}
+			functions[functionCount++] = func;
+			pushOperator(FUNCTION);
+		}
+		
+		Function peekFunction(){
+			return functions[functionCount - 1];
+		}
+		
+		Function popFunction(){
+			Function func = functions[--functionCount];
+			functions[functionCount] = null;
+			return func;
+		}
+		
+		/**
+		 * 操作数完整后，应用其前面的负号
+		 */
+		void reduceNegative(){
+			while (peekOperator() == NEGATIVE){
+				popOperator();
+				pushOperand(new Expression.UnaryExpression(Expression.Operator.OP_Negative,popOperand()));
+			}
+		}
+		
+		/**
+		 * 归约优先级不低于指定值的二元操作符(左结合)
+		 * @param _precedence 优先级
+		 */
+		void reduce(int _precedence){
+			for (;;){
+				char top = peekOperator();
+				int p = precedence(top);
+				if (p == 0 || p < _precedence){
+					return;
 				}
+				popOperator();
+				Expression right = popOperand();
+				Expression left = popOperand();
+				pushOperand(Expression.BinaryExpression.createChild(toOperator(top), left, right));
 			}
-			break;
 		}
 	}
+
+	private void lookAhead(){
+		type = lexer.next();
+	}
 	
 	private void match(char _type){
 		if( type == _type )
 			lookAhead();
 		else
-			throw new FormulaException("mismatched token,index:" + current);
+			throw new FormulaException("mismatched token,index:" + lexer.getPosition());
 	}
 }
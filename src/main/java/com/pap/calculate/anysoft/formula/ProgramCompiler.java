@@ -0,0 +1,554 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.pap.calculate.anysoft.formula.FormulaCompiler.Kind;
+
+/**
+ * 栈式虚拟机的编译器
+ *
+ * <br>
+ * 把{@link Expression}编译为{@link FormulaProgram}的后缀指令流，与{@link FormulaCompiler}覆盖相同的节点，计算结果一致:<br>
+ * - 常量、算术、比较、逻辑运算以及choice、IF和财务函数编译为指令，静态类型已知时使用long/double栈<br>
+ * - 类型只能在运行时确定的节点使用对象栈按{@link ExprValue}计算<br>
+ * - 其他节点(变量、自定义函数等)保存在常量池中，由解释器计算<br>
+ *
+ * <p>编译只做一次树遍历，不生成类，代价与解析相当。嵌套过深的公式整体由解释器计算。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class ProgramCompiler {
+
+	/**
+	 * 编译公式
+	 * @param expr 公式
+	 * @return 编译后的公式
+	 */
+	public FormulaProgram compile(Expression expr) {
+		Assembler assembler = new Assembler();
+		try {
+			assembler.compile(expr);
+		} catch (StackOverflowError error) {
+			// the expression is too deep
+			assembler = new Assembler();
+			assembler.interpret(expr);
+		}
+		return assembler.toProgram(expr);
+	}
+
+	/**
+	 * 指令生成器
+	 */
+	protected static class Assembler {
+		protected int[] code = new int[32];
+		protected int length = 0;
+
+		protected final List<Long> longs = new ArrayList<Long>();
+		protected final HashMap<Long, Integer> longIndexes = new HashMap<Long, Integer>();
+		protected final List<Double> doubles = new ArrayList<Double>();
+		protected final HashMap<Double, Integer> doubleIndexes = new HashMap<Double, Integer>();
+		protected final List<ExprValue> values = new ArrayList<ExprValue>();
+		protected final List<Expression> nodes = new ArrayList<Expression>();
+
+		/*
+		 * 各操作数栈的当前深度和最大深度
+		 */
+		protected int lp, dp, vp;
+		protected int maxLongs, maxDoubles, maxValues;
+
+		protected FormulaProgram toProgram(Expression source) {
+			long[] longPool = new long[longs.size()];
+			for (int i = 0; i < longPool.length; i++) {
+				longPool[i] = longs.get(i);
+			}
+			double[] doublePool = new double[doubles.size()];
+			for (int i = 0; i < doublePool.length; i++) {
+				doublePool[i] = doubles.get(i);
+			}
+			return new FormulaProgram(Arrays.copyOf(code, length), longPool, doublePool,
+					values.toArray(new ExprValue[0]), nodes.toArray(new Expression[0]), source, maxLongs,
+					maxDoubles, maxValues);
+		}
+
+		/**
+		 * 编译表达式，值以指定形式留在操作数栈上
+		 */
+		protected void compileAs(Expression expr, Kind kind) {
+			if (kind == Kind.DOUBLE && expr instanceof Expression.LongConstant) {
+				// no L2D at runtime
+				emit(new Expression.DoubleConstant(((Expression.LongConstant) expr).getConstant()));
+				return;
+			}
+			convert(compile(expr), kind);
+		}
+
+		/**
+		 * 编译表达式，值以其静态类型对应的形式留在操作数栈上
+		 */
+		protected Kind compile(Expression expr) {
+			Kind natural = Kind.of(expr.getResultType());
+			convert(emit(expr), natural);
+			return natural;
+		}
+
+		protected Kind emit(Expression expr) {
+			if (expr instanceof Expression.LongConstant) {
+				long value = ((Expression.LongConstant) expr).getConstant();
+				Integer index = longIndexes.get(value);
+				if (index == null) {
+					index = longs.size();
+					longs.add(value);
+					longIndexes.put(value, index);
+				}
+				op(FormulaProgram.LCONST, index);
+				return push(Kind.LONG);
+			}
+			if (expr instanceof Expression.DoubleConstant) {
+				double value = ((Expression.DoubleConstant) expr).getConstant();
+				Integer index = doubleIndexes.get(value);
+				if (index == null) {
+					index = doubles.size();
+					doubles.add(value);
+					doubleIndexes.put(value, index);
+				}
+				op(FormulaProgram.DCONST, index);
+				return push(Kind.DOUBLE);
+			}
+			if (expr instanceof Expression.BooleanConstant) {
+				boolean value = ((Expression.BooleanConstant) expr).getConstant();
+				emit(new Expression.LongConstant(value ? 1 : 0));
+				return Kind.BOOLEAN;
+			}
+			if (expr instanceof Expression.StringConstant) {
+				values.add(expr.getValue(null));
+				op(FormulaProgram.VCONST, values.size() - 1);
+				return push(Kind.VALUE);
+			}
+			if (expr instanceof Expression.ArithmeticExpression) {
+				return emitArithmetic((Expression.ArithmeticExpression) expr);
+			}
+			if (expr instanceof Expression.LogicalExpression) {
+				return emitLogical((Expression.LogicalExpression) expr);
+			}
+			if (expr instanceof Expression.UnaryExpression) {
+				return emitUnary((Expression.UnaryExpression) expr);
+			}
+			if (expr instanceof Function) {
+				return emitFunction((Function) expr);
+			}
+			return interpret(expr);
+		}
+
+		protected Kind emitArithmetic(Expression.ArithmeticExpression expr) {
+			Kind kind = Kind.of(expr.getResultType());
+			if (kind == Kind.LONG || kind == Kind.DOUBLE) {
+				boolean isLong = kind == Kind.LONG;
+				int opcode;
+				switch (expr.getOperator()) {
+				case OP_Add:
+					opcode = isLong ? FormulaProgram.LADD : FormulaProgram.DADD;
+					break;
+				case OP_Sub:
+					opcode = isLong ? FormulaProgram.LSUB : FormulaProgram.DSUB;
+					break;
+				case OP_Mul:
+					opcode = isLong ? FormulaProgram.LMUL : FormulaProgram.DMUL;
+					break;
+				case OP_Div:
+					opcode = isLong ? FormulaProgram.LDIV : FormulaProgram.DDIV;
+					break;
+				case OP_Mod:
+					if (isLong) {
+						opcode = FormulaProgram.LMOD;
+						break;
+					}
+					return interpret(expr);
+				default:
+					return interpret(expr);
+				}
+				compileAs(expr.getLeft(), kind);
+				compileAs(expr.getRight(), kind);
+				op(opcode);
+				pop(kind);
+				return kind;
+			}
+
+			int opcode;
+			switch (expr.getOperator()) {
+			case OP_Add:
+				opcode = FormulaProgram.VADD;
+				break;
+			case OP_Sub:
+				opcode = FormulaProgram.VSUB;
+				break;
+			case OP_Mul:
+				opcode = FormulaProgram.VMUL;
+				break;
+			case OP_Div:
+				opcode = FormulaProgram.VDIV;
+				break;
+			case OP_Mod:
+				opcode = FormulaProgram.VMOD;
+				break;
+			default:
+				return interpret(expr);
+			}
+			compileAs(expr.getLeft(), Kind.VALUE);
+			compileAs(expr.getRight(), Kind.VALUE);
+			op(opcode);
+			pop(Kind.VALUE);
+			return Kind.VALUE;
+		}
+
+		protected Kind emitLogical(Expression.LogicalExpression expr) {
+			int condition;
+			switch (expr.getOperator()) {
+			case OP_And:
+				return emitShortCircuit(expr.getLeft(), expr.getRight(), FormulaProgram.JZ_KEEP);
+			case OP_Or:
+				return emitShortCircuit(expr.getLeft(), expr.getRight(), FormulaProgram.JNZ_KEEP);
+			case OP_Greater:
+				condition = FormulaProgram.GT;
+				break;
+			case OP_Greater_Equal:
+				condition = FormulaProgram.GE;
+				break;
+			case OP_Equal:
+				condition = FormulaProgram.EQ;
+				break;
+			case OP_Not_Equal:
+				condition = FormulaProgram.NE;
+				break;
+			case OP_Less:
+				condition = FormulaProgram.LT;
+				break;
+			case OP_Less_Equal:
+				condition = FormulaProgram.LE;
+				break;
+			default:
+				return interpret(expr);
+			}
+
+			Kind left = Kind.of(expr.getLeft().getResultType());
+			Kind right = Kind.of(expr.getRight().getResultType());
+			if ((left == Kind.LONG || left == Kind.DOUBLE) && (right == Kind.LONG || right == Kind.DOUBLE)) {
+				compile(expr.getLeft());
+				compile(expr.getRight());
+				if (left == Kind.LONG) {
+					op(right == Kind.LONG ? FormulaProgram.CMP_LL : FormulaProgram.CMP_LD, condition);
+				} else {
+					op(right == Kind.LONG ? FormulaProgram.CMP_DL : FormulaProgram.CMP_DD, condition);
+				}
+				pop(left);
+				pop(right);
+			} else {
+				compileAs(expr.getLeft(), Kind.VALUE);
+				compileAs(expr.getRight(), Kind.VALUE);
+				op(FormulaProgram.CMP_VV, condition);
+				pop(Kind.VALUE);
+				pop(Kind.VALUE);
+			}
+			return push(Kind.BOOLEAN);
+		}
+
+		/**
+		 * &&,||:左值决定结果时保留在栈顶并跳过右值
+		 */
+		protected Kind emitShortCircuit(Expression left, Expression right, int jump) {
+			compileAs(left, Kind.BOOLEAN);
+			int end = jump(jump);
+			pop(Kind.BOOLEAN);
+			compileAs(right, Kind.BOOLEAN);
+			mark(end);
+			return Kind.BOOLEAN;
+		}
+
+		protected Kind emitUnary(Expression.UnaryExpression expr) {
+			Kind kind = Kind.of(expr.getResultType());
+			switch (expr.getOperator()) {
+			case OP_Positive:
+				return compile(expr.getChild());
+			case OP_Negative:
+				if (kind == Kind.LONG || kind == Kind.DOUBLE) {
+					compile(expr.getChild());
+					op(kind == Kind.LONG ? FormulaProgram.LNEG : FormulaProgram.DNEG);
+					return kind;
+				}
+				break;
+			case OP_Not:
+				if (kind == Kind.BOOLEAN) {
+					compile(expr.getChild());
+					op(FormulaProgram.ZNOT);
+					return kind;
+				}
+				break;
+			}
+			return interpret(expr);
+		}
+
+		protected Kind emitFunction(Function func) {
+			int count = func.getArgumentCount();
+			if (func instanceof Function.Choice && count == 3) {
+				Kind kind = Kind.of(func.getResultType());
+				compileAs(func.getArgument(0), Kind.BOOLEAN);
+				int otherwise = jump(FormulaProgram.JZ);
+				pop(Kind.BOOLEAN);
+				compileAs(func.getArgument(1), kind);
+				int end = jump(FormulaProgram.JMP);
+				// the other branch starts with the same stack
+				pop(kind);
+				mark(otherwise);
+				compileAs(func.getArgument(2), kind);
+				mark(end);
+				return kind;
+			}
+			if (func instanceof Function.IF && count == 3) {
+				// IF is always double,the branches are converted as Function.IF does
+				compileAs(func.getArgument(0), Kind.BOOLEAN);
+				int otherwise = jump(FormulaProgram.JZ);
+				pop(Kind.BOOLEAN);
+				doubleArgument(func.getArgument(1));
+				int end = jump(FormulaProgram.JMP);
+				pop(Kind.DOUBLE);
+				mark(otherwise);
+				doubleArgument(func.getArgument(2));
+				mark(end);
+				return Kind.DOUBLE;
+			}
+			if (count == 5) {
+				int opcode = -1;
+				if (func instanceof Function.PMT) {
+					opcode = FormulaProgram.PMT;
+				} else if (func instanceof Function.FV) {
+					opcode = FormulaProgram.FV;
+				} else if (func instanceof Function.NPER) {
+					opcode = FormulaProgram.NPER;
+				} else if (func instanceof Function.PV) {
+					opcode = FormulaProgram.PV;
+				}
+				if (opcode >= 0) {
+					for (int i = 0; i < 4; i++) {
+						doubleArgument(func.getArgument(i));
+					}
+					booleanArgument(func.getArgument(4));
+					return call(opcode, 1, 4);
+				}
+			}
+			if ((func instanceof Function.DB || func instanceof Function.DDB) && count == 5) {
+				boolean isDB = func instanceof Function.DB;
+				doubleArgument(func.getArgument(0));
+				doubleArgument(func.getArgument(1));
+				intArgument(func.getArgument(2));
+				intArgument(func.getArgument(3));
+				if (isDB) {
+					intArgument(func.getArgument(4));
+					return call(FormulaProgram.DB, 3, 2);
+				}
+				doubleArgument(func.getArgument(4));
+				return call(FormulaProgram.DDB, 2, 3);
+			}
+			if (func instanceof Function.RATE && count == 6) {
+				for (int i = 0; i < 6; i++) {
+					doubleArgument(func.getArgument(i));
+				}
+				return call(FormulaProgram.RATE, 0, 6);
+			}
+			if (func instanceof Function.EFFECT && count == 2) {
+				doubleArgument(func.getArgument(0));
+				doubleArgument(func.getArgument(1));
+				return call(FormulaProgram.EFFECT, 0, 2);
+			}
+			return interpret(func);
+		}
+
+		/**
+		 * 调用返回double的内置函数
+		 * @param opcode 操作码
+		 * @param longCount 从long栈弹出的参数个数
+		 * @param doubleCount 从double栈弹出的参数个数
+		 */
+		protected Kind call(int opcode, int longCount, int doubleCount) {
+			op(opcode);
+			lp -= longCount;
+			dp -= doubleCount;
+			return push(Kind.DOUBLE);
+		}
+
+		/**
+		 * 与函数的参数转换一致:数值直接使用，其他值按字符串解析
+		 */
+		protected void doubleArgument(Expression arg) {
+			if (arg instanceof Expression.LongConstant) {
+				compileAs(arg, Kind.DOUBLE);
+				return;
+			}
+			Kind kind = compile(arg);
+			if (kind == Kind.LONG) {
+				convert(kind, Kind.DOUBLE);
+			} else if (kind != Kind.DOUBLE) {
+				convert(kind, Kind.VALUE);
+				op(FormulaProgram.ARG_D);
+				pop(Kind.VALUE);
+				push(Kind.DOUBLE);
+			}
+		}
+
+		protected void booleanArgument(Expression arg) {
+			Kind kind = compile(arg);
+			if (kind == Kind.LONG) {
+				op(FormulaProgram.L2Z);
+			} else if (kind == Kind.DOUBLE) {
+				op(FormulaProgram.D2Z);
+				pop(Kind.DOUBLE);
+				push(Kind.BOOLEAN);
+			} else if (kind != Kind.BOOLEAN) {
+				convert(kind, Kind.VALUE);
+				op(FormulaProgram.ARG_Z);
+				pop(Kind.VALUE);
+				push(Kind.BOOLEAN);
+			}
+		}
+
+		protected void intArgument(Expression arg) {
+			Kind kind = compile(arg);
+			if (kind == Kind.LONG) {
+				op(FormulaProgram.L2I);
+			} else if (kind == Kind.DOUBLE) {
+				op(FormulaProgram.D2I);
+				pop(Kind.DOUBLE);
+				push(Kind.LONG);
+			} else {
+				convert(kind, Kind.VALUE);
+				op(FormulaProgram.ARG_I);
+				pop(Kind.VALUE);
+				push(Kind.LONG);
+			}
+		}
+
+		/**
+		 * 由解释器计算节点，静态类型为基本类型时调用evalLong/evalDouble/evalBoolean
+		 */
+		protected Kind interpret(Expression expr) {
+			Kind kind = Kind.of(expr.getResultType());
+			int index = nodes.size();
+			nodes.add(expr);
+			switch (kind) {
+			case LONG:
+				op(FormulaProgram.EVAL_L, index);
+				break;
+			case DOUBLE:
+				op(FormulaProgram.EVAL_D, index);
+				break;
+			case BOOLEAN:
+				op(FormulaProgram.EVAL_Z, index);
+				break;
+			default:
+				op(FormulaProgram.EVAL_V, index);
+				break;
+			}
+			return push(kind);
+		}
+
+		protected void convert(Kind from, Kind to) {
+			if (from == to) {
+				return;
+			}
+			if (from == Kind.LONG && to == Kind.DOUBLE) {
+				op(FormulaProgram.L2D);
+				pop(from);
+				push(to);
+				return;
+			}
+			if (from == Kind.LONG && to == Kind.BOOLEAN) {
+				op(FormulaProgram.L2Z);
+				return;
+			}
+			if (from != Kind.VALUE) {
+				op(from == Kind.LONG ? FormulaProgram.BOX_L : from == Kind.DOUBLE ? FormulaProgram.BOX_D
+						: FormulaProgram.BOX_Z);
+				pop(from);
+				push(Kind.VALUE);
+			}
+			switch (to) {
+			case LONG:
+				op(FormulaProgram.UNBOX_L);
+				break;
+			case DOUBLE:
+				op(FormulaProgram.UNBOX_D);
+				break;
+			case BOOLEAN:
+				op(FormulaProgram.UNBOX_Z);
+				break;
+			default:
+				return;
+			}
+			pop(Kind.VALUE);
+			push(to);
+		}
+
+		protected Kind push(Kind kind) {
+			switch (kind) {
+			case LONG:
+			case BOOLEAN:
+				maxLongs = Math.max(maxLongs, ++lp);
+				break;
+			case DOUBLE:
+				maxDoubles = Math.max(maxDoubles, ++dp);
+				break;
+			default:
+				maxValues = Math.max(maxValues, ++vp);
+				break;
+			}
+			return kind;
+		}
+
+		protected void pop(Kind kind) {
+			switch (kind) {
+			case LONG:
+			case BOOLEAN:
+				lp--;
+				break;
+			case DOUBLE:
+				dp--;
+				break;
+			default:
+				vp--;
+				break;
+			}
+		}
+
+		protected void op(int opcode) {
+			ensure(1);
+			code[length++] = opcode;
+		}
+
+		protected void op(int opcode, int operand) {
+			ensure(2);
+			code[length++] = opcode;
+			code[length++] = operand;
+		}
+
+		/**
+		 * 生成跳转指令
+		 * @return 目标地址的位置，由{@link #mark(int)}回填
+		 */
+		protected int jump(int opcode) {
+			op(opcode, -1);
+			return length - 1;
+		}
+
+		protected void mark(int position) {
+			code[position] = length;
+		}
+
+		protected void ensure(int count) {
+			if (length + count > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, length + count));
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 编译后的正则表达式
+ *
+ * <br>
+ * 与String.matches(regex)的结果一致，但正则表达式只编译一次:<br>
+ * - 除首尾的.*外没有元字符的正则表达式按字符串比较:equals,startsWith,endsWith,contains<br>
+ * - 其他正则表达式编译为{@link Pattern}<br>
+ * - {@link #get(String)}以有界的并发缓存保存编译结果，供运行时才确定的正则表达式使用<br>
+ *
+ * <p>RegexMatcher不可变，可被多个线程共享。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public abstract class RegexMatcher {
+
+	/**
+	 * 缓存的正则表达式数的上限，超出后清空
+	 */
+	protected static final int MAX_PATTERNS = 1024;
+
+	/**
+	 * 编译后的正则表达式
+	 */
+	protected static final ConcurrentHashMap<String, RegexMatcher> matchers = new ConcurrentHashMap<String, RegexMatcher>();
+
+	/**
+	 * 元字符，转义后为普通字符
+	 */
+	protected static final String META = "\\^$.|?*+()[]{}";
+
+	protected final String regex;
+
+	protected RegexMatcher(String _regex) {
+		regex = _regex;
+	}
+
+	/**
+	 * 整个字符串是否与正则表达式匹配
+	 * @param value 字符串
+	 * @return 是否匹配
+	 */
+	public abstract boolean matches(String value);
+
+	public String getRegex() {
+		return regex;
+	}
+
+	@Override
+	public String toString() {
+		return regex;
+	}
+
+	/**
+	 * 从缓存中获取编译后的正则表达式
+	 * @param regex 正则表达式
+	 * @return 编译后的正则表达式
+	 * @throws java.util.regex.PatternSyntaxException 正则表达式的语法错误
+	 */
+	public static RegexMatcher get(String regex) {
+		RegexMatcher found = matchers.get(regex);
+		if (found == null) {
+			if (matchers.size() >= MAX_PATTERNS) {
+				matchers.clear();
+			}
+			found = compile(regex);
+			matchers.put(regex, found);
+		}
+		return found;
+	}
+
+	/**
+	 * 编译正则表达式
+	 * @param regex 正则表达式
+	 * @return 编译后的正则表达式
+	 * @throws java.util.regex.PatternSyntaxException 正则表达式的语法错误
+	 */
+	public static RegexMatcher compile(String regex) {
+		int from = 0;
+		int to = regex.length();
+		boolean anyBefore = regex.startsWith(".*");
+		if (anyBefore) {
+			from += 2;
+		}
+		boolean anyAfter = to - from >= 2 && regex.endsWith(".*") && !isEscaped(regex, to - 2);
+		if (anyAfter) {
+			to -= 2;
+		}
+		String literal = literal(regex, from, to);
+		if (literal == null) {
+			return new Regex(regex);
+		}
+		if (anyBefore && anyAfter) {
+			return new Contains(regex, literal);
+		}
+		if (anyBefore) {
+			return new Suffix(regex, literal);
+		}
+		if (anyAfter) {
+			return new Prefix(regex, literal);
+		}
+		return new Exact(regex, literal);
+	}
+
+	/**
+	 * regex[from,to)表示的字符串
+	 * @return 字符串，有元字符、转义的字母数字或行结束符时为null
+	 */
+	protected static String literal(String regex, int from, int to) {
+		StringBuilder buffer = new StringBuilder(to - from);
+		for (int i = from; i < to; i++) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 >= to) {
+					return null;
+				}
+				c = regex.charAt(++i);
+				if (META.indexOf(c) < 0) {
+					// \d,\Q,\n and so on
+					return null;
+				}
+			} else if (META.indexOf(c) >= 0 || isLineTerminator(c)) {
+				return null;
+			}
+			buffer.append(c);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * regex[index]前是否有奇数个反斜杠
+	 */
+	protected static boolean isEscaped(String regex, int index) {
+		int count = 0;
+		for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+			count++;
+		}
+		return (count & 1) != 0;
+	}
+
+	/**
+	 * .不匹配的字符
+	 */
+	protected static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * 字符串中是否有.不匹配的字符，此时.*不能匹配字符串的剩余部分
+	 */
+	protected static boolean hasLineTerminator(String value) {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c <= '\r' ? c == '\n' || c == '\r' : c == '\u0085' || c == '\u2028' || c == '\u2029') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 没有元字符
+	 */
+	protected static class Exact extends RegexMatcher {
+		protected final String literal;
+
+		protected Exact(String _regex, String _literal) {
+			super(_regex);
+			literal = _literal;
+		}
+
+		@Override
+		public boolean matches(String value) {
+			return literal.equals(value);
+		}
+	}
+
+	/**
+	 * literal.*
+	 */
+	protected static class Prefix extends RegexMatcher {
+		protected final String literal;
+
+		protected Prefix(String _regex, String _literal) {
+			super(_regex);
+			literal = _literal;
+		}
+
+		@Override
+		public boolean matches(String value) {
+			return value.startsWith(literal) && !hasLineTerminator(value);
+		}
+	}
+
+	/**
+	 * .*literal
+	 */
+	protected static class Suffix extends RegexMatcher {
+		protected final String literal;
+
+		protected Suffix(String _regex, String _literal) {
+			super(_regex);
+			literal = _literal;
+		}
+
+		@Override
+		public boolean matches(String value) {
+			return value.endsWith(literal) && !hasLineTerminator(value);
+		}
+	}
+
+	/**
+	 * .*literal.*
+	 */
+	protected static class Contains extends RegexMatcher {
+		protected final String literal;
+
+		protected Contains(String _regex, String _literal) {
+			super(_regex);
+			literal = _literal;
+		}
+
+		@Override
+		public boolean matches(String value) {
+			return value.contains(literal) && !hasLineTerminator(value);
+		}
+	}
+
+	/**
+	 * 其他正则表达式
+	 */
+	protected static class Regex extends RegexMatcher {
+		protected final Pattern pattern;
+
+		protected Regex(String _regex) {
+			super(_regex);
+			pattern = Pattern.compile(_regex);
+		}
+
+		@Override
+		public boolean matches(String value) {
+			return pattern.matcher(value).matches();
+		}
+	}
+}
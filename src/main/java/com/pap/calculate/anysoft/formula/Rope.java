@@ -0,0 +1,220 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.ArrayDeque;
+
+/**
+ * 延迟拼接的字符串
+ *
+ * <br>
+ * 字符串的+运算和substr不复制字符，需要String时才一次性生成:<br>
+ * - {@link #concat(CharSequence, CharSequence)}较短时直接拼接，否则生成左右两个子节点，多项的+只在最后复制一次<br>
+ * - {@link #slice(CharSequence, int, int)}较短时直接复制，否则生成共享原字符串的{@link Slice}<br>
+ * - {@link #toString()}非递归地把各叶子复制到同一个char数组，结果被缓存<br>
+ *
+ * <p>Rope生成后不再修改(缓存的String除外)，可被多个线程共享。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class Rope implements CharSequence {
+
+	/**
+	 * 短于该长度的字符串直接复制，不生成节点
+	 */
+	protected static final int MIN_LENGTH = 64;
+
+	protected final CharSequence left;
+
+	protected final CharSequence right;
+
+	protected final int length;
+
+	/**
+	 * 拼接后的字符串，未生成时为null
+	 */
+	protected volatile String flat = null;
+
+	protected Rope(CharSequence _left, CharSequence _right, int _length) {
+		left = _left;
+		right = _right;
+		length = _length;
+	}
+
+	/**
+	 * 拼接两个字符串
+	 * @param left 左侧字符串
+	 * @param right 右侧字符串
+	 * @return 拼接的结果，较短时为String
+	 * @throws FormulaException 长度超出int的范围
+	 */
+	public static CharSequence concat(CharSequence left, CharSequence right) {
+		int leftLength = left.length();
+		int rightLength = right.length();
+		if (leftLength == 0) {
+			return right;
+		}
+		if (rightLength == 0) {
+			return left;
+		}
+		long total = (long) leftLength + rightLength;
+		if (total > Integer.MAX_VALUE) {
+			throw new FormulaException("String is too long:" + total);
+		}
+		if (total < MIN_LENGTH) {
+			return join(left, right, (int) total);
+		}
+		if (rightLength < MIN_LENGTH && left instanceof Rope) {
+			// a+b+c+...:merge short terms into the right leaf
+			Rope rope = (Rope) left;
+			int merged = rope.right.length() + rightLength;
+			if (merged < MIN_LENGTH) {
+				return new Rope(rope.left, join(rope.right, right, merged), (int) total);
+			}
+		}
+		return new Rope(left, right, (int) total);
+	}
+
+	/**
+	 * 截取字符串
+	 * @param value 字符串
+	 * @param start 开始位置(包含)
+	 * @param end 结束位置(不包含)
+	 * @return 截取的结果，较短时为String
+	 * @throws StringIndexOutOfBoundsException 位置超出范围
+	 */
+	public static CharSequence slice(CharSequence value, int start, int end) {
+		int size = value.length();
+		if (start < 0 || end > size || start > end) {
+			throw new StringIndexOutOfBoundsException("begin " + start + ", end " + end + ", length " + size);
+		}
+		if (start == 0 && end == size) {
+			return value;
+		}
+		if (value instanceof Slice) {
+			Slice slice = (Slice) value;
+			return slice(slice.base, slice.offset + start, slice.offset + end);
+		}
+		String base = value.toString();
+		if (end - start < MIN_LENGTH) {
+			return base.substring(start, end);
+		}
+		return new Slice(base, start, end - start);
+	}
+
+	/**
+	 * 查找子串第一次出现的位置，与String.indexOf(String)一致
+	 * @param value 字符串
+	 * @param child 子串
+	 * @return 位置，没有找到时为-1
+	 */
+	public static int indexOf(CharSequence value, String child) {
+		if (value instanceof Slice) {
+			Slice slice = (Slice) value;
+			int found = slice.base.indexOf(child, slice.offset);
+			return found < 0 || found + child.length() > slice.offset + slice.length ? -1 : found - slice.offset;
+		}
+		return value.toString().indexOf(child);
+	}
+
+	protected static String join(CharSequence left, CharSequence right, int length) {
+		return new StringBuilder(length).append(left).append(right).toString();
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return toString().charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return slice(this, start, end);
+	}
+
+	@Override
+	public String toString() {
+		String result = flat;
+		if (result == null) {
+			char[] buffer = new char[length];
+			// fill from right to left,the deque holds the pending left parts
+			ArrayDeque<CharSequence> pending = new ArrayDeque<CharSequence>();
+			int end = length;
+			CharSequence current = this;
+			while (true) {
+				if (current instanceof Rope && ((Rope) current).flat == null) {
+					Rope rope = (Rope) current;
+					pending.push(rope.left);
+					current = rope.right;
+					continue;
+				}
+				end -= copy(current, buffer, end);
+				if (pending.isEmpty()) {
+					break;
+				}
+				current = pending.pop();
+			}
+			result = new String(buffer);
+			flat = result;
+		}
+		return result;
+	}
+
+	/**
+	 * 把叶子复制到buffer中以end结束的位置
+	 * @return 复制的长度
+	 */
+	protected static int copy(CharSequence value, char[] buffer, int end) {
+		int size = value.length();
+		int start = end - size;
+		if (value instanceof Slice) {
+			Slice slice = (Slice) value;
+			slice.base.getChars(slice.offset, slice.offset + size, buffer, start);
+		} else {
+			String string = value.toString();
+			string.getChars(0, size, buffer, start);
+		}
+		return size;
+	}
+
+	/**
+	 * 共享原字符串的子串
+	 */
+	public static class Slice implements CharSequence {
+		protected final String base;
+		protected final int offset;
+		protected final int length;
+
+		protected Slice(String _base, int _offset, int _length) {
+			base = _base;
+			offset = _offset;
+			length = _length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new StringIndexOutOfBoundsException(index);
+			}
+			return base.charAt(offset + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return slice(this, start, end);
+		}
+
+		@Override
+		public String toString() {
+			return base.substring(offset, offset + length);
+		}
+	}
+}
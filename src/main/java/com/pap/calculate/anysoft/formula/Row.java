@@ -0,0 +1,421 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * 按位置提供变量值的DataProvider
+ *
+ * <br>
+ * 与{@link Schema}配合使用，{@link Schema#bind(Expression)}之后的{@link Expression.Slot}按下标从Row中取值:<br>
+ * - {@link ObjectRow}:Object[]，按Schema声明的数据类型转换，未声明时按值的Java类型推断<br>
+ * - {@link DoubleRow}:double[]，evalDouble直接读取数组元素<br>
+ * - {@link LongRow}:long[]，evalLong直接读取数组元素<br>
+ *
+ * <p>Row也是{@link TypedDataProvider}，未绑定的{@link Expression.Variant}仍可按变量名从Row中按类型取值，
+ * 上下文为变量在Schema中的位置。
+ *
+ * <p>Row可通过setValues在多行之间复用，但不是线程安全的，每个线程应使用自己的实例。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 实现{@link TypedDataProvider}
+ * @version 1.0.2
+ * - ObjectRow支持Decimal类型
+ */
+public abstract class Row implements TypedDataProvider {
+
+	/**
+	 * 变量模式
+	 */
+	protected final Schema schema;
+
+	/**
+	 * 构造函数
+	 * @param _schema 变量模式
+	 */
+	protected Row(Schema _schema) {
+		schema = _schema;
+	}
+
+	/**
+	 * 获取变量模式
+	 * @return 变量模式
+	 */
+	public Schema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * 获取指定位置的变量值
+	 * @param slot 位置
+	 * @return 变量值，可能为null
+	 */
+	public abstract ExprValue getValue(int slot);
+
+	/**
+	 * 获取指定位置的变量数据类型
+	 * @param slot 位置
+	 * @return 数据类型，值为null且类型未声明时为null
+	 */
+	public abstract ExprValue.DataType getDataType(int slot);
+
+	/**
+	 * 指定位置的变量值是否为null
+	 * @param slot 位置
+	 * @return 是否为null
+	 */
+	public boolean isNull(int slot) {
+		return false;
+	}
+
+	/**
+	 * 获取指定位置的double值
+	 * @param slot 位置
+	 * @return double值
+	 * @throws FormulaException 值为null或类型不匹配
+	 */
+	public double getDouble(int slot) throws FormulaException {
+		return notNull(slot, getValue(slot)).getDouble();
+	}
+
+	/**
+	 * 获取指定位置的long值
+	 * @param slot 位置
+	 * @return long值
+	 * @throws FormulaException 值为null或类型不匹配
+	 */
+	public long getLong(int slot) throws FormulaException {
+		return notNull(slot, getValue(slot)).getLong();
+	}
+
+	/**
+	 * 获取指定位置的boolean值
+	 * @param slot 位置
+	 * @return boolean值
+	 * @throws FormulaException 值为null或类型不匹配
+	 */
+	public boolean getBoolean(int slot) throws FormulaException {
+		return notNull(slot, getValue(slot)).getBoolean();
+	}
+
+	protected ExprValue notNull(int slot, ExprValue value) {
+		if (value == null) {
+			throw new FormulaException("The value of " + schema.getName(slot) + " is null");
+		}
+		return value;
+	}
+
+	@Override
+	public String getValue(String varName, Object context, String defaultValue) {
+		int slot = toSlot(varName, context);
+		if (slot < 0) {
+			return defaultValue;
+		}
+		ExprValue value = getValue(slot);
+		return value == null ? defaultValue : value.toString();
+	}
+
+	@Override
+	public Object getContext(String varName) {
+		return schema.indexOf(varName);
+	}
+
+	@Override
+	public ExprValue.DataType getDataType(String varName, Object context) {
+		int slot = toSlot(varName, context);
+		return slot < 0 ? null : getDataType(slot);
+	}
+
+	@Override
+	public boolean isNull(String varName, Object context) {
+		int slot = toSlot(varName, context);
+		return slot < 0 || isNull(slot);
+	}
+
+	@Override
+	public double getDouble(String varName, Object context) {
+		return getDouble(toSlot(varName, context));
+	}
+
+	@Override
+	public long getLong(String varName, Object context) {
+		return getLong(toSlot(varName, context));
+	}
+
+	@Override
+	public boolean getBoolean(String varName, Object context) {
+		return getBoolean(toSlot(varName, context));
+	}
+
+	@Override
+	public Date getDate(String varName, Object context) {
+		int slot = toSlot(varName, context);
+		return notNull(slot, getValue(slot)).getDate();
+	}
+
+	private int toSlot(String varName, Object context) {
+		return context instanceof Integer ? ((Integer) context).intValue() : schema.indexOf(varName);
+	}
+
+	/**
+	 * Object[]行
+	 *
+	 * <p>值为null时变量值为null;声明了数据类型时，数字和字符串会被转换为声明的类型。
+	 */
+	public static class ObjectRow extends Row {
+		protected Object[] values;
+
+		public ObjectRow(Schema _schema, Object[] _values) {
+			super(_schema);
+			setValues(_values);
+		}
+
+		/**
+		 * 设置当前行的值
+		 * @param _values 变量值，顺序与Schema一致
+		 * @return this
+		 */
+		public ObjectRow setValues(Object[] _values) {
+			if (_values.length < schema.size()) {
+				throw new FormulaException("The row has " + _values.length + " values,but the schema has " + schema.size());
+			}
+			values = _values;
+			return this;
+		}
+
+		@Override
+		public ExprValue getValue(int slot) {
+			Object value = values[slot];
+			if (value == null) {
+				return null;
+			}
+			ExprValue.DataType type = schema.getType(slot);
+			if (type == null) {
+				return toValue(value);
+			}
+			switch (type) {
+			case Long:
+				return new ExprValue(value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString()));
+			case Double:
+				return new ExprValue(value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString()));
+			case Boolean:
+				return new ExprValue(value instanceof Boolean ? ((Boolean) value).booleanValue() : Boolean.parseBoolean(value.toString()));
+			case Decimal:
+				return new ExprValue(toDecimal(value));
+			case String:
+				return new ExprValue(value.toString());
+			default:
+				return toValue(value);
+			}
+		}
+
+		@Override
+		public ExprValue.DataType getDataType(int slot) {
+			ExprValue.DataType type = schema.getType(slot);
+			if (type != null) {
+				return type;
+			}
+			Object value = values[slot];
+			if (value == null) {
+				return null;
+			}
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return ExprValue.DataType.Long;
+			}
+			if (value instanceof Decimal) {
+				return ExprValue.DataType.Decimal;
+			}
+			if (value instanceof Number) {
+				return ExprValue.DataType.Double;
+			}
+			if (value instanceof Boolean) {
+				return ExprValue.DataType.Boolean;
+			}
+			if (value instanceof Date) {
+				return ExprValue.DataType.Date;
+			}
+			return ExprValue.DataType.String;
+		}
+
+		@Override
+		public boolean isNull(int slot) {
+			return values[slot] == null;
+		}
+
+		@Override
+		public double getDouble(int slot) throws FormulaException {
+			Object value = values[slot];
+			ExprValue.DataType type = schema.getType(slot);
+			if (value instanceof Double && type != ExprValue.DataType.Long && type != ExprValue.DataType.String) {
+				return ((Double) value).doubleValue();
+			}
+			return super.getDouble(slot);
+		}
+
+		@Override
+		public long getLong(int slot) throws FormulaException {
+			Object value = values[slot];
+			ExprValue.DataType type = schema.getType(slot);
+			if (value instanceof Long && type != ExprValue.DataType.Double && type != ExprValue.DataType.String) {
+				return ((Long) value).longValue();
+			}
+			return super.getLong(slot);
+		}
+
+		/**
+		 * 按值的Java类型转换
+		 */
+		protected static ExprValue toValue(Object value) {
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return new ExprValue(((Number) value).longValue());
+			}
+			if (value instanceof Decimal) {
+				return new ExprValue((Decimal) value);
+			}
+			if (value instanceof Number) {
+				return new ExprValue(((Number) value).doubleValue());
+			}
+			if (value instanceof Boolean) {
+				return new ExprValue(((Boolean) value).booleanValue());
+			}
+			if (value instanceof Date) {
+				return new ExprValue((Date) value);
+			}
+			return new ExprValue(value.toString());
+		}
+
+		/**
+		 * 转换为声明的Decimal类型，BigDecimal和整数精确转换，double按其十进制表示转换
+		 */
+		protected static Decimal toDecimal(Object value) {
+			if (value instanceof Decimal) {
+				return (Decimal) value;
+			}
+			if (value instanceof BigDecimal) {
+				return Decimal.valueOf((BigDecimal) value);
+			}
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return Decimal.valueOf(((Number) value).longValue());
+			}
+			return Decimal.valueOf(value.toString());
+		}
+	}
+
+	/**
+	 * double[]行
+	 *
+	 * <p>声明为Long的变量按(long)截断，其他变量均为Double。
+	 */
+	public static class DoubleRow extends Row {
+		protected double[] values;
+
+		public DoubleRow(Schema _schema, double[] _values) {
+			super(_schema);
+			setValues(_values);
+		}
+
+		/**
+		 * 设置当前行的值
+		 * @param _values 变量值，顺序与Schema一致
+		 * @return this
+		 */
+		public DoubleRow setValues(double[] _values) {
+			if (_values.length < schema.size()) {
+				throw new FormulaException("The row has " + _values.length + " values,but the schema has " + schema.size());
+			}
+			values = _values;
+			return this;
+		}
+
+		@Override
+		public ExprValue getValue(int slot) {
+			if (schema.getType(slot) == ExprValue.DataType.Long) {
+				return new ExprValue((long) values[slot]);
+			}
+			return new ExprValue(values[slot]);
+		}
+
+		@Override
+		public ExprValue.DataType getDataType(int slot) {
+			return schema.getType(slot) == ExprValue.DataType.Long ? ExprValue.DataType.Long : ExprValue.DataType.Double;
+		}
+
+		@Override
+		public double getDouble(int slot) {
+			if (schema.getType(slot) == ExprValue.DataType.Long) {
+				return (long) values[slot];
+			}
+			return values[slot];
+		}
+
+		@Override
+		public long getLong(int slot) {
+			return (long) values[slot];
+		}
+	}
+
+	/**
+	 * long[]行
+	 *
+	 * <p>声明为Double的变量转换为double，声明为Boolean的变量非0即为true，其他变量均为Long。
+	 */
+	public static class LongRow extends Row {
+		protected long[] values;
+
+		public LongRow(Schema _schema, long[] _values) {
+			super(_schema);
+			setValues(_values);
+		}
+
+		/**
+		 * 设置当前行的值
+		 * @param _values 变量值，顺序与Schema一致
+		 * @return this
+		 */
+		public LongRow setValues(long[] _values) {
+			if (_values.length < schema.size()) {
+				throw new FormulaException("The row has " + _values.length + " values,but the schema has " + schema.size());
+			}
+			values = _values;
+			return this;
+		}
+
+		@Override
+		public ExprValue getValue(int slot) {
+			ExprValue.DataType type = schema.getType(slot);
+			if (type == ExprValue.DataType.Double) {
+				return new ExprValue((double) values[slot]);
+			}
+			if (type == ExprValue.DataType.Boolean) {
+				return new ExprValue(values[slot] != 0);
+			}
+			return new ExprValue(values[slot]);
+		}
+
+		@Override
+		public ExprValue.DataType getDataType(int slot) {
+			ExprValue.DataType type = schema.getType(slot);
+			if (type == ExprValue.DataType.Double || type == ExprValue.DataType.Boolean) {
+				return type;
+			}
+			return ExprValue.DataType.Long;
+		}
+
+		@Override
+		public double getDouble(int slot) {
+			return values[slot];
+		}
+
+		@Override
+		public long getLong(int slot) {
+			return values[slot];
+		}
+
+		@Override
+		public boolean getBoolean(int slot) {
+			return values[slot] != 0;
+		}
+	}
+}
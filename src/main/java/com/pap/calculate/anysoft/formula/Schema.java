@@ -0,0 +1,187 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.HashMap;
+
+/**
+ * 变量模式
+ *
+ * <br>
+ * 一组有序的变量名(可声明数据类型)，用于把公式中的变量绑定到位置:<br>
+ * - {@link #bind(Expression)}把{@link Expression.Variant}改写为按位置读取的{@link Expression.Slot}，变量名只查找一次<br>
+ * - 计算时以{@link Row}提供一行数据(Object[]、double[]或long[])，按下标取值，不再按变量名查找<br>
+ * - 声明为Long或Double的变量参与静态类型推导，算术运算可直接走evalLong/evalDouble<br>
+ *
+ * <p>这是{@link DataProvider}上下文的显式形式。Schema和绑定后的Expression均不可变，可被多个线程共享。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class Schema {
+
+	/**
+	 * 变量名
+	 */
+	protected final String[] names;
+
+	/**
+	 * 变量的数据类型，null表示未知
+	 */
+	protected final ExprValue.DataType[] types;
+
+	/**
+	 * 变量名到位置的索引
+	 */
+	protected final HashMap<String, Integer> indexes;
+
+	/**
+	 * 构造函数，变量的数据类型未知
+	 * @param _names 变量名
+	 */
+	public Schema(String... _names) {
+		this(_names, new ExprValue.DataType[_names.length]);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _names 变量名
+	 * @param _types 变量的数据类型，元素为null表示未知
+	 */
+	public Schema(String[] _names, ExprValue.DataType[] _types) {
+		if (_names.length != _types.length) {
+			throw new IllegalArgumentException("names and types must have the same length.");
+		}
+		names = _names.clone();
+		types = _types.clone();
+		indexes = new HashMap<String, Integer>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null) {
+				throw new IllegalArgumentException("variable name can not be null,index:" + i);
+			}
+			if (indexes.put(names[i], i) != null) {
+				throw new IllegalArgumentException("duplicate variable:" + names[i]);
+			}
+		}
+	}
+
+	/**
+	 * 获取变量个数
+	 * @return 变量个数
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * 获取指定位置的变量名
+	 * @param index 位置
+	 * @return 变量名
+	 */
+	public String getName(int index) {
+		return names[index];
+	}
+
+	/**
+	 * 获取指定位置的变量数据类型
+	 * @param index 位置
+	 * @return 数据类型，未知时为null
+	 */
+	public ExprValue.DataType getType(int index) {
+		return types[index];
+	}
+
+	/**
+	 * 获取变量的位置
+	 * @param name 变量名
+	 * @return 位置，不存在时为-1
+	 */
+	public int indexOf(String name) {
+		Integer index = indexes.get(name);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * 将表达式中的变量绑定到位置
+	 *
+	 * <p>改写不修改原有节点，没有变量的子树原样共享。
+	 * @param expr 表达式
+	 * @return 绑定后的表达式
+	 * @throws FormulaException 变量不在Schema中
+	 */
+	public Expression bind(Expression expr) throws FormulaException {
+		if (expr instanceof Expression.Variant) {
+			String varName = ((Expression.Variant) expr).getVarName();
+			int index = indexOf(varName);
+			if (index < 0) {
+				throw new FormulaException("Variant " + varName + " is not defined in the schema.");
+			}
+			return new Expression.Slot(varName, index, types[index]);
+		}
+		if (expr instanceof Expression.BinaryExpression) {
+			Expression.BinaryExpression binary = (Expression.BinaryExpression) expr;
+			Expression left = bind(binary.getLeft());
+			Expression right = bind(binary.getRight());
+			if (left == binary.getLeft() && right == binary.getRight()) {
+				return expr;
+			}
+			return Expression.BinaryExpression.createChild(binary.getOperator(), left, right);
+		}
+		if (expr instanceof Expression.UnaryExpression) {
+			Expression.UnaryExpression unary = (Expression.UnaryExpression) expr;
+			Expression child = bind(unary.getChild());
+			return child == unary.getChild() ? expr : new Expression.UnaryExpression(unary.getOperator(), child);
+		}
+		if (expr instanceof Function) {
+			Function func = (Function) expr;
+			int count = func.getArgumentCount();
+			Expression[] args = new Expression[count];
+			boolean changed = false;
+			for (int i = 0; i < count; i++) {
+				args[i] = bind(func.getArgument(i));
+				changed = changed || args[i] != func.getArgument(i);
+			}
+			return changed ? func.copy(args) : func;
+		}
+		return expr;
+	}
+
+	/**
+	 * 以Object[]创建一行数据
+	 * @param values 变量值，顺序与Schema一致
+	 * @return 行
+	 */
+	public Row.ObjectRow row(Object[] values) {
+		return new Row.ObjectRow(this, values);
+	}
+
+	/**
+	 * 以double[]创建一行数据
+	 * @param values 变量值，顺序与Schema一致
+	 * @return 行
+	 */
+	public Row.DoubleRow row(double[] values) {
+		return new Row.DoubleRow(this, values);
+	}
+
+	/**
+	 * 以long[]创建一行数据
+	 * @param values 变量值，顺序与Schema一致
+	 * @return 行
+	 */
+	public Row.LongRow row(long[] values) {
+		return new Row.LongRow(this, values);
+	}
+
+	public String toString() {
+		StringBuilder buffer = new StringBuilder("[");
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				buffer.append(",");
+			}
+			buffer.append(names[i]);
+			if (types[i] != null) {
+				buffer.append(":").append(types[i]);
+			}
+		}
+		return buffer.append("]").toString();
+	}
+}
@@ -0,0 +1,336 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按运行时类型特化的公式
+ *
+ * <br>
+ * 变量的类型在计算前未知时({@link Expression.Variant}以及未声明类型的{@link Expression.Slot})，
+ * 其上的运算只能按{@link ExprValue}逐个判断类型。SpeculativeFormula在计算时观察变量的实际类型并据此特化:<br>
+ * - 前若干次计算(采样)记录每个变量出现过的类型以及是否出现过null值<br>
+ * - 采样结束后，只出现过一种类型(Long,Double,Boolean)且没有null值的变量替换为{@link Expression.Speculated}，
+ * 其上的算术、比较节点由此推断出静态类型，按long/double计算<br>
+ * - 特化后每次取值都检查类型(守卫)，不符时放弃本次特化计算，改由原公式重新计算，并重新采样<br>
+ * - 重新特化超过{@link #MAX_DEOPTIMIZATIONS}次后不再特化<br>
+ *
+ * <p>变量只能通过{@link TypedDataProvider}(例如{@link Row})提供类型，其他DataProvider提供的变量均为字符串，不会特化。
+ * 守卫失败时公式会被重新计算，因此公式中的自定义函数不能有副作用。
+ *
+ * <p>原公式和特化后的公式均不可变，采样数据允许丢失并发更新，可被多个线程共享。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class SpeculativeFormula implements CompiledFormula {
+
+	/**
+	 * 缺省的采样次数
+	 */
+	public static final int DEFAULT_SAMPLES = 100;
+
+	/**
+	 * 最多重新特化的次数
+	 */
+	public static final int MAX_DEOPTIMIZATIONS = 3;
+
+	/*
+	 * 类型掩码，每种数据类型一位
+	 */
+	protected static final int NULL = 1 << ExprValue.DataType.values().length;
+	protected static final int LONG = 1 << ExprValue.DataType.Long.ordinal();
+	protected static final int DOUBLE = 1 << ExprValue.DataType.Double.ordinal();
+	protected static final int BOOLEAN = 1 << ExprValue.DataType.Boolean.ordinal();
+	protected static final int OTHER = 1 << ExprValue.DataType.String.ordinal();
+
+	/**
+	 * 原公式
+	 */
+	protected final Expression expr;
+
+	/**
+	 * 采样次数
+	 */
+	protected final int samples;
+
+	/*
+	 * 待观察的变量，index为-1表示Variant，否则为Slot的位置
+	 */
+	protected final String[] names;
+	protected final int[] indexes;
+
+	/**
+	 * 每个变量出现过的类型
+	 */
+	protected final int[] masks;
+
+	/**
+	 * 特化后的公式，没有特化时为null
+	 */
+	protected volatile Expression specialized = null;
+
+	/**
+	 * 已采样的次数，为-1时不再采样
+	 */
+	protected int sampled = 0;
+
+	protected int deoptimizations = 0;
+
+	/**
+	 * 构造函数
+	 * @param _expr 公式
+	 */
+	public SpeculativeFormula(Expression _expr) {
+		this(_expr, DEFAULT_SAMPLES);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _expr 公式
+	 * @param _samples 采样次数
+	 */
+	public SpeculativeFormula(Expression _expr, int _samples) {
+		if (_samples <= 0) {
+			throw new IllegalArgumentException("samples must be positive.");
+		}
+		expr = _expr;
+		samples = _samples;
+		List<String> nameList = new ArrayList<String>();
+		List<Integer> indexList = new ArrayList<Integer>();
+		collect(_expr, nameList, indexList);
+		names = nameList.toArray(new String[0]);
+		indexes = new int[names.length];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = indexList.get(i);
+		}
+		masks = new int[names.length];
+		if (names.length == 0) {
+			// nothing to speculate on
+			sampled = -1;
+		}
+	}
+
+	@Override
+	public ExprValue getValue(DataProvider provider) throws FormulaException {
+		Expression fast = specialized;
+		if (fast != null) {
+			try {
+				return fast.getValue(provider);
+			} catch (Expression.Speculated.Miss miss) {
+				deoptimize(fast);
+				return expr.getValue(provider);
+			}
+		}
+		int count = sampled;
+		if (count >= 0) {
+			record(provider);
+			if (count + 1 >= samples) {
+				specialize();
+			} else {
+				sampled = count + 1;
+			}
+		}
+		return expr.getValue(provider);
+	}
+
+	@Override
+	public Expression getExpression() {
+		return expr;
+	}
+
+	@Override
+	public boolean isCompiled() {
+		return false;
+	}
+
+	/**
+	 * 当前特化后的公式
+	 * @return 特化后的公式，没有特化时为null
+	 */
+	public Expression getSpecialized() {
+		return specialized;
+	}
+
+	/**
+	 * 放弃特化的次数
+	 * @return 次数
+	 */
+	public int getDeoptimizations() {
+		return deoptimizations;
+	}
+
+	/**
+	 * 记录变量的实际类型，与{@link Expression.Variant}和{@link Expression.Slot}的取值方式一致
+	 */
+	protected void record(DataProvider provider) {
+		for (int i = 0; i < names.length; i++) {
+			int mask;
+			if (indexes[i] >= 0) {
+				if (provider instanceof Row) {
+					Row row = (Row) provider;
+					mask = row.isNull(indexes[i]) ? NULL : bit(row.getDataType(indexes[i]));
+				} else {
+					mask = OTHER;
+				}
+			} else if (provider instanceof TypedDataProvider) {
+				TypedDataProvider typed = (TypedDataProvider) provider;
+				Object context = typed.getContext(names[i]);
+				mask = bit(typed.getDataType(names[i], context));
+				if (mask != OTHER && typed.isNull(names[i], context)) {
+					mask = NULL;
+				}
+			} else {
+				mask = OTHER;
+			}
+			masks[i] |= mask;
+		}
+	}
+
+	protected static int bit(ExprValue.DataType type) {
+		if (type == ExprValue.DataType.Long || type == ExprValue.DataType.Double
+				|| type == ExprValue.DataType.Boolean) {
+			return 1 << type.ordinal();
+		}
+		return OTHER;
+	}
+
+	/**
+	 * 采样结束，按观察到的类型改写公式
+	 */
+	protected synchronized void specialize() {
+		if (sampled < 0 || specialized != null) {
+			return;
+		}
+		sampled = -1;
+		ExprValue.DataType[] types = new ExprValue.DataType[names.length];
+		boolean any = false;
+		for (int i = 0; i < names.length; i++) {
+			int mask = masks[i];
+			if (mask == LONG) {
+				types[i] = ExprValue.DataType.Long;
+			} else if (mask == DOUBLE) {
+				types[i] = ExprValue.DataType.Double;
+			} else if (mask == BOOLEAN) {
+				types[i] = ExprValue.DataType.Boolean;
+			}
+			any = any || types[i] != null;
+		}
+		if (any) {
+			specialized = rewrite(expr, types);
+		}
+	}
+
+	/**
+	 * 守卫失败，回到原公式并重新采样，已观察到的类型保留
+	 */
+	protected synchronized void deoptimize(Expression failed) {
+		if (specialized != failed) {
+			// another thread has done it
+			return;
+		}
+		specialized = null;
+		deoptimizations++;
+		if (deoptimizations <= MAX_DEOPTIMIZATIONS) {
+			sampled = 0;
+		}
+	}
+
+	/**
+	 * 把类型确定的变量替换为{@link Expression.Speculated}，没有变化的子树原样共享
+	 */
+	protected Expression rewrite(Expression node, ExprValue.DataType[] types) {
+		if (node instanceof Expression.Variant || node instanceof Expression.Slot) {
+			int i = find(node);
+			if (i >= 0 && types[i] != null) {
+				return new Expression.Speculated(names[i], indexes[i], types[i]);
+			}
+			return node;
+		}
+		if (node instanceof Expression.BinaryExpression) {
+			Expression.BinaryExpression binary = (Expression.BinaryExpression) node;
+			Expression left = rewrite(binary.getLeft(), types);
+			Expression right = rewrite(binary.getRight(), types);
+			if (left == binary.getLeft() && right == binary.getRight()) {
+				return node;
+			}
+			return Expression.BinaryExpression.createChild(binary.getOperator(), left, right);
+		}
+		if (node instanceof Expression.UnaryExpression) {
+			Expression.UnaryExpression unary = (Expression.UnaryExpression) node;
+			Expression child = rewrite(unary.getChild(), types);
+			return child == unary.getChild() ? node : new Expression.UnaryExpression(unary.getOperator(), child);
+		}
+		if (node instanceof Function) {
+			Function func = (Function) node;
+			int count = func.getArgumentCount();
+			Expression[] args = new Expression[count];
+			boolean changed = false;
+			for (int i = 0; i < count; i++) {
+				args[i] = rewrite(func.getArgument(i), types);
+				changed = changed || args[i] != func.getArgument(i);
+			}
+			return changed ? func.copy(args) : func;
+		}
+		return node;
+	}
+
+	/**
+	 * 收集Variant和未声明类型的Slot
+	 */
+	protected static void collect(Expression node, List<String> nameList, List<Integer> indexList) {
+		String name = null;
+		int index = -1;
+		if (node instanceof Expression.Variant) {
+			name = ((Expression.Variant) node).getVarName();
+		} else if (node instanceof Expression.Slot && node.getResultType() == null) {
+			name = ((Expression.Slot) node).getVarName();
+			index = ((Expression.Slot) node).getIndex();
+		}
+		if (name != null) {
+			for (int i = 0; i < nameList.size(); i++) {
+				if (nameList.get(i).equals(name) && indexList.get(i) == index) {
+					return;
+				}
+			}
+			nameList.add(name);
+			indexList.add(index);
+			return;
+		}
+		if (node instanceof Expression.BinaryExpression) {
+			collect(((Expression.BinaryExpression) node).getLeft(), nameList, indexList);
+			collect(((Expression.BinaryExpression) node).getRight(), nameList, indexList);
+		} else if (node instanceof Expression.UnaryExpression) {
+			collect(((Expression.UnaryExpression) node).getChild(), nameList, indexList);
+		} else if (node instanceof Function) {
+			Function func = (Function) node;
+			for (int i = 0; i < func.getArgumentCount(); i++) {
+				collect(func.getArgument(i), nameList, indexList);
+			}
+		}
+	}
+
+	protected int find(Expression node) {
+		String name;
+		int index = -1;
+		if (node instanceof Expression.Variant) {
+			name = ((Expression.Variant) node).getVarName();
+		} else if (node.getResultType() == null) {
+			name = ((Expression.Slot) node).getVarName();
+			index = ((Expression.Slot) node).getIndex();
+		} else {
+			return -1;
+		}
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name) && indexes[i] == index) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public String toString() {
+		Expression fast = specialized;
+		return fast == null ? expr.toString() : fast.toString();
+	}
+}
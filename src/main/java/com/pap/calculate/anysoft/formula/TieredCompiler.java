@@ -0,0 +1,153 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分层编译器
+ *
+ * <br>
+ * 公式先由解释器计算，计算次数达到阈值后在后台线程中由{@link FormulaCompiler}编译为字节码，编译完成后替换解释执行:<br>
+ * - 只运行几次的公式不付出编译的代价<br>
+ * - 频繁运行的公式自动编译，不需要调用方判断<br>
+ * - 编译在后台进行，计算线程不等待，编译完成前继续解释执行<br>
+ *
+ * <p>缺省使用一个守护线程编译，所有使用缺省构造函数的TieredCompiler共用该线程。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class TieredCompiler {
+
+	/**
+	 * 缺省的编译阈值
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * 编译阈值，计算次数达到该值时编译
+	 */
+	protected final int threshold;
+
+	/**
+	 * 执行编译的线程池
+	 */
+	protected final Executor executor;
+
+	/**
+	 * 公式编译器
+	 */
+	protected final FormulaCompiler compiler = new FormulaCompiler();
+
+	protected final LongAdder compiledCount = new LongAdder();
+	protected final LongAdder failedCount = new LongAdder();
+
+	/**
+	 * 构造函数，使用缺省的阈值和后台线程
+	 */
+	public TieredCompiler() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * 构造函数，使用缺省的后台线程
+	 * @param _threshold 编译阈值
+	 */
+	public TieredCompiler(int _threshold) {
+		this(_threshold, null);
+	}
+
+	/**
+	 * 构造函数
+	 * @param _threshold 编译阈值
+	 * @param _executor 执行编译的线程池，为null时使用缺省的后台线程
+	 */
+	public TieredCompiler(int _threshold, Executor _executor) {
+		if (_threshold <= 0) {
+			throw new IllegalArgumentException("threshold must be positive.");
+		}
+		threshold = _threshold;
+		executor = _executor;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * 创建分层执行的公式
+	 * @param expr 公式
+	 * @return 分层执行的公式，开始时解释执行
+	 */
+	public TieredFormula create(Expression expr) {
+		return new TieredFormula(this, expr);
+	}
+
+	/**
+	 * 已编译的公式个数
+	 * @return 个数
+	 */
+	public long getCompiledCount() {
+		return compiledCount.sum();
+	}
+
+	/**
+	 * 无法编译为字节码、继续解释执行的公式个数
+	 * @return 个数
+	 */
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	/**
+	 * 提交编译任务
+	 * @param formula 达到阈值的公式
+	 */
+	protected void submit(final TieredFormula formula) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				compile(formula);
+			}
+		};
+		try {
+			(executor == null ? Background.EXECUTOR : executor).execute(task);
+		} catch (RejectedExecutionException ex) {
+			// try again after another round of invocations
+			formula.reset();
+		}
+	}
+
+	protected void compile(TieredFormula formula) {
+		CompiledFormula compiled;
+		try {
+			compiled = compiler.compile(formula.getExpression());
+		} catch (RuntimeException ex) {
+			compiled = new CompiledFormula.Interpreted(formula.getExpression());
+		}
+		if (compiled.isCompiled()) {
+			compiledCount.increment();
+		} else {
+			failedCount.increment();
+		}
+		formula.install(compiled);
+	}
+
+	/**
+	 * 缺省的后台编译线程，首次使用时创建
+	 */
+	protected static class Background {
+		protected static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "formula-compiler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,98 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 分层执行的公式
+ *
+ * <br>
+ * 由{@link TieredCompiler#create(Expression)}创建，开始时解释执行，计算次数达到阈值后提交编译，
+ * 编译结果通过volatile字段整体替换，之后的计算直接使用编译后的公式。<br>
+ *
+ * <p>计数不加锁，并发时可能少计，只影响编译的时机。每个公式最多提交一次编译。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ */
+public class TieredFormula implements CompiledFormula {
+
+	/*
+	 * 状态
+	 */
+	protected static final int INTERPRETED = 0;
+	protected static final int QUEUED = 1;
+	protected static final int INSTALLED = 2;
+
+	protected static final AtomicIntegerFieldUpdater<TieredFormula> STATE = AtomicIntegerFieldUpdater.newUpdater(
+			TieredFormula.class, "state");
+
+	protected final TieredCompiler owner;
+
+	protected final Expression expr;
+
+	/**
+	 * 当前的执行形式
+	 */
+	protected volatile CompiledFormula target;
+
+	protected volatile int state = INTERPRETED;
+
+	/**
+	 * 计算次数，只在解释执行时计数
+	 */
+	protected int count = 0;
+
+	protected TieredFormula(TieredCompiler _owner, Expression _expr) {
+		owner = _owner;
+		expr = _expr;
+		target = new CompiledFormula.Interpreted(_expr);
+	}
+
+	@Override
+	public ExprValue getValue(DataProvider provider) throws FormulaException {
+		CompiledFormula current = target;
+		if (state == INTERPRETED && ++count >= owner.threshold && STATE.compareAndSet(this, INTERPRETED, QUEUED)) {
+			owner.submit(this);
+		}
+		return current.getValue(provider);
+	}
+
+	@Override
+	public Expression getExpression() {
+		return expr;
+	}
+
+	@Override
+	public boolean isCompiled() {
+		return target.isCompiled();
+	}
+
+	/**
+	 * 计算次数(近似值)
+	 * @return 计算次数，编译完成后不再增加
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * 替换为编译后的公式
+	 * @param compiled 编译后的公式
+	 */
+	protected void install(CompiledFormula compiled) {
+		target = compiled;
+		state = INSTALLED;
+	}
+
+	/**
+	 * 编译任务未能提交，重新计数
+	 */
+	protected void reset() {
+		count = 0;
+		state = INTERPRETED;
+	}
+
+	public String toString() {
+		return expr.toString();
+	}
+}
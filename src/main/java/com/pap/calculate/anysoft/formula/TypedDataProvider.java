@@ -0,0 +1,71 @@
+package com.pap.calculate.anysoft.formula;
+
+import java.util.Date;
+
+/**
+ * Typed data provider
+ *
+ * <br>
+ * 按数据类型提供变量值的{@link DataProvider}，数值变量不必先转换为字符串再解析。<br>
+ *
+ * {@link Expression.Variant}计算时先由{@link #getDataType(String, Object)}获取变量的类型:<br>
+ * - Long,Double,Boolean,Date:先调用{@link #isNull(String, Object)}，再调用对应的getXXX方法<br>
+ * - Decimal:先调用{@link #isNull(String, Object)}，再由{@link DataProvider#getValue(String, Object, String)}获取十进制字符串<br>
+ * - String或null:沿用{@link DataProvider#getValue(String, Object, String)}<br>
+ *
+ * <p>各方法的context参数均来自{@link #getContext(String)}。
+ *
+ * @author alexgaoyh
+ * @version 1.0.0
+ * @version 1.0.1
+ * - 支持Decimal类型
+ */
+public interface TypedDataProvider extends DataProvider {
+	/**
+	 * 获取变量的数据类型
+	 * @param varName 变量名
+	 * @param context 上下文
+	 * @return 数据类型，null表示未知，按字符串处理
+	 */
+	public ExprValue.DataType getDataType(String varName, Object context);
+
+	/**
+	 * 变量值是否为null
+	 * @param varName 变量名
+	 * @param context 上下文
+	 * @return 是否为null
+	 */
+	public boolean isNull(String varName, Object context);
+
+	/**
+	 * 获取double类型的变量值
+	 * @param varName 变量名
+	 * @param context 上下文
+	 * @return 变量值
+	 */
+	public double getDouble(String varName, Object context);
+
+	/**
+	 * 获取long类型的变量值
+	 * @param varName 变量名
+	 * @param context 上下文
+	 * @return 变量值
+	 */
+	public long getLong(String varName, Object context);
+
+	/**
+	 * 获取boolean类型的变量值
+	 * @param varName 变量名
+	 * @param context 上下文
+	 * @return 变量值
+	 */
+	public boolean getBoolean(String varName, Object context);
+
+	/**
+	 * 获取Date类型的变量值
+	 * @param varName 变量名
+	 * @param context 上下文
+	 * @return 变量值
+	 */
+	public Date getDate(String varName, Object context);
+}
@@ -1,30 +1,46 @@
 package com.pap.calculate.anysoft.formula.utilss;
 
+import com.pap.calculate.anysoft.formula.CompiledFormula;
 import com.pap.calculate.anysoft.formula.DataProvider;
 import com.pap.calculate.anysoft.formula.DefaultFunctionHelper;
-import com.pap.calculate.anysoft.formula.Expression;
-import com.pap.calculate.anysoft.formula.Parser;
+import com.pap.calculate.anysoft.formula.FormulaCache;
 
 public class MyFormulaUtilss {
 
-	public static Object selfOperationResult(String expressStr) {
-		DefaultFunctionHelper functionHelper = new DefaultFunctionHelper();
-		Parser parser = new Parser(functionHelper);
-		String formula = expressStr;
-		Expression expr = parser.parse(formula);
+	/**
+	 * 解析后的公式缓存,所有调用共享
+	 */
+	private static final FormulaCache cache = new FormulaCache(4096, 4L * 1024 * 1024,
+			FormulaCache.Policy.LRU, new DefaultFunctionHelper());
+
+	/**
+	 * 不提供任何变量的DataProvider
+	 */
+	private static final DataProvider emptyProvider = new DataProvider() {
+		@Override
+		public String getValue(String varName, Object context,
+				String defaultValue) {
+			return null;
+		}
 
-		Object returnObject = (expr.getValue(new DataProvider() {
-			@Override
-			public String getValue(String varName, Object context,
-					String defaultValue) {
-				return null;
-			}
+		@Override
+		public Object getContext(String varName) {
+			return new Object();
+		}
+	};
 
-			@Override
-			public Object getContext(String varName) {
-				return new Object();
-			}
-		}));
+	public static Object selfOperationResult(String expressStr) {
+		// interpreted at first,compiled in the background once it is hot
+		CompiledFormula formula = cache.getTiered(expressStr);
+		Object returnObject = (formula.getValue(emptyProvider));
 		return returnObject;
 	}
+
+	/**
+	 * 获取公式缓存,可用于查看统计信息
+	 * @return 公式缓存
+	 */
+	public static FormulaCache getCache() {
+		return cache;
+	}
 }